@@ -585,6 +585,7 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        Database.getBufferPool().stopBackgroundWriters();
         System.out.println("Bye");
     }
 
@@ -594,6 +595,7 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        Database.getBufferPool().startBackgroundWriters();
 
         String queryFile = null;
 
@@ -1,7 +1,10 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.ParallelBTreeChecker;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -50,8 +53,9 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    ParallelHeapFileEncoder.Result result = ParallelHeapFileEncoder.convert(sourceTxtFile,
+                            targetDatFile, BufferPool.getPageSize(), ts, fieldSeparator);
+                    System.out.println("Converted " + result);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -75,6 +79,24 @@ public class SimpleDb {
                     it.close();
                 }
                 break;
+            case "checkbtree":
+                // checkbtree <file> <columns> <key field> [max violations], for int columns
+                try {
+                    File btreeFile = new File(args[1]);
+                    BTreeFile bf = new BTreeFile(btreeFile, Integer.parseInt(args[3]),
+                            Utility.getTupleDesc(Integer.parseInt(args[2])));
+                    Database.getCatalog().addTable(bf, btreeFile.getName());
+                    int maxViolations = args.length > 4 ? Integer.parseInt(args[4])
+                            : ParallelBTreeChecker.DEFAULT_MAX_VIOLATIONS;
+                    ParallelBTreeChecker.Report report = ParallelBTreeChecker.check(bf, true, maxViolations);
+                    report.getViolations().forEach(System.out::println);
+                    System.out.println("Checked " + report);
+                    if (!report.isConsistent())
+                        System.exit(1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "parser":
                 // Strip the first argument and call the parser
                 String[] newargs = new String[args.length - 1];
@@ -1,6 +1,8 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.TableIndex;
+import simpledb.storage.BufferPool;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -23,6 +25,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Catalog {
     private List<Mytable> mytables ;
+    private List<TableIndex> indexes;
     public class Mytable{
         DbFile file;
         String name;
@@ -73,6 +76,7 @@ public class Catalog {
     public Catalog() {
         // some code goes here
         mytables = new ArrayList<>();
+        indexes = new ArrayList<>();
     }
 
     /**
@@ -93,6 +97,8 @@ public class Catalog {
                 continue;
             }
             if(tmp.getName().equals(name) || tmp.getFile().getId() == file.getId()){
+                int replaced = tmp.getFile().getId();
+                indexes.removeIf(index -> index.getTable().getId() == replaced);
                 mytables.set(i,mytable);
                 return;
             }
@@ -115,6 +121,61 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add an index, a B+ tree or a hash table, on a table already in the
+     * catalog. From then on,
+     * tuples inserted into or deleted from the table through the BufferPool
+     * are added to or removed from the index, and the query optimizer may
+     * read the table through it. The pages of the index are read through the
+     * BufferPool like those of a table, under the id of the index file.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table is not in the catalog
+     */
+    public void addIndex(TableIndex index) throws NoSuchElementException {
+        int tableid = index.getTable().getId();
+        if (getDatabaseFile(tableid) != index.getTable()) {
+            throw new NoSuchElementException();
+        }
+        if (indexes.contains(index)) {
+            return;
+        }
+        indexes.removeIf(other -> other.getId() == index.getId());
+        indexes.add(index);
+        index.getTable().addTupleMoveListener(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, in the order
+     * they were added.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<TableIndex> getIndexes(int tableid) {
+        List<TableIndex> res = new ArrayList<>();
+        for (TableIndex index : indexes) {
+            if (index.getTable().getId() == tableid) {
+                res.add(index);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the first secondary index on the specified column of a table,
+     * or null if the column is not indexed.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @param field the index of the column in the tuples of the table
+     */
+    public TableIndex getIndex(int tableid, int field) {
+        for (TableIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -149,6 +210,11 @@ public class Catalog {
                 return dbFile.getTupleDesc();
             }
         }
+        for (TableIndex index : indexes) {
+            if(index.getId() == tableid){
+                return index.getTupleDesc();
+            }
+        }
         throw new NoSuchElementException();
     }
 
@@ -167,9 +233,36 @@ public class Catalog {
                 return dbFile;
             }
         }
+        for (TableIndex index : indexes) {
+            if(index.getId() == tableid){
+                return index;
+            }
+        }
         throw new NoSuchElementException();
     }
 
+    /**
+     * Returns the page size of the specified table, or the global page size
+     * if the table is not in the catalog.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @see DbFile#getPageSize()
+     */
+    public int getPageSize(int tableid) {
+        for (int i = 0; i < mytables.size(); i++) {
+            DbFile dbFile = mytables.get(i).getFile();
+            if(dbFile.getId() == tableid){
+                return dbFile.getPageSize();
+            }
+        }
+        for (TableIndex index : indexes) {
+            if(index.getId() == tableid){
+                return index.getPageSize();
+            }
+        }
+        return BufferPool.getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         for (int i = 0; i < mytables.size(); i++) {
@@ -205,6 +298,7 @@ public class Catalog {
     public void clear() {
         // some code goes here
         mytables.clear();
+        indexes.clear();
     }
 
     /**
@@ -246,10 +340,28 @@ public class Catalog {
                         }
                     }
                 }
+                // optional table options follow the column list,
+                // e.g. "compressed" or "pagesize=16384"
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean compressed = false;
+                int pageSize = 0;
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty()) {
+                        continue;
+                    }
+                    if (option.equalsIgnoreCase("compressed")) {
+                        compressed = true;
+                    } else if (option.toLowerCase().startsWith("pagesize=")) {
+                        pageSize = Integer.parseInt(option.substring("pagesize=".length()));
+                    } else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, compressed, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -2,6 +2,8 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.VersionManager;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,6 +25,8 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final VersionManager _versionManager;
+    private final LockManager _lockManager;
 
     private Database() {
         _catalog = new Catalog();
@@ -35,6 +39,8 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _versionManager = new VersionManager();
+        _lockManager = new LockManager();
         // startControllerThread();
     }
 
@@ -48,6 +54,16 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the version manager of the static Database instance */
+    public static VersionManager getVersionManager() {
+        return _instance.get()._versionManager;
+    }
+
+    /** Return the lock manager of the static Database instance */
+    public static LockManager getLockManager() {
+        return _instance.get()._lockManager;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -106,6 +106,7 @@ public class Utility {
         throws IOException {
         File f = new File(path);
         // touch the file
+        PageChecksums.reset(f);
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
@@ -38,6 +38,10 @@ public class Filter extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        // let the scan skip tuples it can rule out without decoding them
+        if (child instanceof SeqScan) {
+            ((SeqScan) child).pushDownPredicate(p);
+        }
         child.open();
         super.open();
     }
@@ -0,0 +1,157 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.index.TableIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins an outer child with a table on equality of a column
+ * of the table, by looking up the join field of each outer tuple in an index on
+ * that column. The table is never scanned, which makes this join cheaper than a
+ * {@link HashEquiJoin} when the outer child has few tuples and the table many
+ * pages.
+ * <p>
+ * It returns the same tuples as a HashEquiJoin of the outer child with a SeqScan
+ * of the table: the fields of the outer tuple followed by those of the table.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final TransactionId tid;
+    private final TableIndex index;
+    private OpIterator outer;
+    private OpIterator inner;
+    private final TupleDesc comboTD;
+    transient private Tuple t1 = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on, whose operation must be EQUALS and
+     *            whose second field the indexed column
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            A SeqScan of the indexed table, giving the TupleDesc of the
+     *            inner tuples; it is not read
+     * @param tid
+     *            The transaction the lookups run as a part of
+     * @param index
+     *            The index on the table to look the outer tuples up in
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator outer, SeqScan inner,
+                               TransactionId tid, TableIndex index) {
+        if (p.getOperator() != Predicate.Op.EQUALS || !index.supports(Predicate.Op.EQUALS)) {
+            throw new IllegalArgumentException("an index nested loop join needs an equality lookup");
+        }
+        this.pred = p;
+        this.outer = outer;
+        this.inner = inner;
+        this.tid = tid;
+        this.index = index;
+        comboTD = TupleDesc.merge(outer.getTupleDesc(), inner.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the index the outer tuples are looked up in
+     */
+    public TableIndex getIndex() {
+        return index;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return outer.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return inner.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        outer.close();
+        if (matches != null) {
+            matches.close();
+        }
+        t1 = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        if (matches != null) {
+            matches.close();
+        }
+        t1 = null;
+        matches = null;
+    }
+
+    /**
+     * Returns the next outer tuple joined with the next table tuple with the same
+     * value in the join field, looking up the next outer tuple when the matches of
+     * the current one run out.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                Tuple t2 = matches.next();
+                Tuple t = new Tuple(comboTD);
+                int td1n = t1.getTupleDesc().numFields();
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            if (matches != null) {
+                matches.close();
+                matches = null;
+            }
+            if (!outer.hasNext()) {
+                return null;
+            }
+            t1 = outer.next();
+            matches = index.lookup(tid, new IndexPredicate(Predicate.Op.EQUALS, t1.getField(pred.getField1())));
+            matches.open();
+        }
+    }
+
+    /**
+     * @return the outer child, and the scan of the indexed table
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.outer, this.inner};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.outer = children[0];
+        this.inner = children[1];
+    }
+}
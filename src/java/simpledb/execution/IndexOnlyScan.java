@@ -0,0 +1,170 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan reads the columns of a table that are held by the entries of a
+ * {@link SecondaryIndex} (its key and included columns) straight from the leaf
+ * pages of the index, without fetching the tuples from the table. It can stand
+ * in for a SeqScan of the table in a query that reads no other column.
+ * <p>
+ * The returned tuples only have the covered columns, in the order they have in
+ * the table, named tableAlias.fieldName like the fields of a SeqScan. Each tuple
+ * carries the RecordId of the tuple of the table it was read from. Entries of
+ * tuples outside the snapshot of the transaction, which stay in the index until
+ * the VersionManager collects them, are skipped.
+ */
+public class IndexOnlyScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final boolean descending;
+    private final int[] fields;
+    private final TupleDesc td;
+    private DbFileIterator iterator;
+    private Tuple next;
+
+    /**
+     * Creates an index-only scan of a table as a part of the specified
+     * transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the entries of
+     * @param tableAlias
+     *            the alias of the table, see {@link SeqScan#SeqScan}
+     * @param ipred
+     *            the predicate on the indexed column the entries must
+     *            satisfy, or null to read all the entries
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, ipred, false);
+    }
+
+    /**
+     * Creates an index-only scan of a table as a part of the specified
+     * transaction, returning the tuples in ascending or descending order of
+     * the indexed column.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the entries of
+     * @param tableAlias
+     *            the alias of the table, see {@link SeqScan#SeqScan}
+     * @param ipred
+     *            the predicate on the indexed column the entries must
+     *            satisfy, or null to read all the entries
+     * @param descending
+     *            whether to read the entries in descending key order
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+                         boolean descending) {
+        super(tid, index.getTable().getId(), tableAlias);
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.descending = descending;
+
+        List<Integer> covered = new ArrayList<>();
+        covered.add(index.getField());
+        for (int f : index.getIncluded()) {
+            covered.add(f);
+        }
+        Collections.sort(covered);
+        fields = new int[covered.size()];
+        Type[] typeAr = new Type[fields.length];
+        String[] fieldAr = new String[fields.length];
+        TupleDesc entryDesc = index.getTupleDesc();
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = index.entryField(covered.get(i));
+            typeAr[i] = entryDesc.getFieldType(fields[i]);
+            fieldAr[i] = tableAlias + "." + entryDesc.getFieldName(fields[i]);
+        }
+        td = new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * @return the index this scan reads
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed column, or null if the scan reads
+     *         all the entries
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return true if this scan returns the tuples in descending order of the
+     *         indexed column
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        iterator = index.entries(tid, ipred, descending);
+        iterator.open();
+        next = null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        while (next == null && iterator.hasNext()) {
+            Tuple e = iterator.next();
+            RecordId rid = index.recordId(e);
+            if (!Database.getVersionManager().isVisible(tid, rid)) {
+                continue;
+            }
+            next = new Tuple(td);
+            for (int i = 0; i < fields.length; i++) {
+                next.setField(i, e.getField(fields[i]));
+            }
+            next.setRecordId(rid);
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        iterator.close();
+        next = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        iterator.rewind();
+        next = null;
+    }
+}
@@ -1,11 +1,21 @@
 package simpledb.execution;
 
+import simpledb.storage.CompositeField;
 import simpledb.storage.Field;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
- * IndexPredicate compares a field which has index on it against a given value
+ * IndexPredicate compares a field which has index on it against a given value.
+ * On an index with a composite key, the value is a {@link CompositeField} of the
+ * first key fields, and the predicate selects the keys equal to it in all but
+ * its last field and satisfying the operation in that last field.
+ * <p>
+ * A range predicate also has an upper bound, and selects the keys between its
+ * two bounds, such as {@code a > 10 AND a < 20}. A B+ tree reads such a range
+ * from the leaf of its lower bound up to the leaf of its upper bound only.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -14,6 +24,8 @@ public class IndexPredicate implements Serializable {
 	
     private final Predicate.Op op;
     private final Field fieldvalue;
+    private final Predicate.Op upperOp;
+    private final Field upperValue;
 
     /**
      * Constructor.
@@ -27,6 +39,64 @@ public class IndexPredicate implements Serializable {
     public IndexPredicate(Predicate.Op op, Field fvalue) {
         this.op = op;
         this.fieldvalue = fvalue;
+        this.upperOp = null;
+        this.upperValue = null;
+    }
+
+    /**
+     * Constructor for a range predicate, selecting the keys that satisfy both a
+     * lower and an upper bound.
+     *
+     * @param lowerOp Predicate.Op.GREATER_THAN or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param lower The value of the lower bound.
+     * @param upperOp Predicate.Op.LESS_THAN or Predicate.Op.LESS_THAN_OR_EQ
+     * @param upper The value of the upper bound.
+     * @throws IllegalArgumentException if the operations are not a lower and an
+     *   upper bound
+     */
+    public IndexPredicate(Predicate.Op lowerOp, Field lower, Predicate.Op upperOp, Field upper) {
+        if ((lowerOp != Predicate.Op.GREATER_THAN && lowerOp != Predicate.Op.GREATER_THAN_OR_EQ)
+                || (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ))
+            throw new IllegalArgumentException("a range needs a lower and an upper bound, not "
+                    + lowerOp + " and " + upperOp);
+        this.op = lowerOp;
+        this.fieldvalue = lower;
+        this.upperOp = upperOp;
+        this.upperValue = upper;
+    }
+
+    /**
+     * Constructor for a range predicate on an index with a composite key,
+     * selecting the keys starting with the given values and whose next field is
+     * between the two bounds.
+     *
+     * @param prefix The values the first key fields must be equal to.
+     * @param lowerOp The operation of the lower bound of the next key field.
+     * @param lower The value of the lower bound.
+     * @param upperOp The operation of the upper bound of the next key field.
+     * @param upper The value of the upper bound.
+     */
+    public IndexPredicate(Field[] prefix, Predicate.Op lowerOp, Field lower, Predicate.Op upperOp, Field upper) {
+        this(lowerOp, composite(prefix, lower), upperOp, composite(prefix, upper));
+    }
+
+    /**
+     * Constructor for a predicate on an index with a composite key, selecting the
+     * keys starting with the given values and whose next field satisfies the
+     * operation, such as all the rows of a tenant created after some time.
+     *
+     * @param prefix The values the first key fields must be equal to.
+     * @param op The operation to apply to the next key field.
+     * @param fvalue The value that the next key field compares against.
+     */
+    public IndexPredicate(Field[] prefix, Predicate.Op op, Field fvalue) {
+        this(op, composite(prefix, fvalue));
+    }
+
+    private static CompositeField composite(Field[] prefix, Field fvalue) {
+        Field[] fields = Arrays.copyOf(prefix, prefix.length + 1);
+        fields[prefix.length] = fvalue;
+        return new CompositeField(fields);
     }
 
     public Field getField() {
@@ -37,6 +107,37 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return true if this predicate is a range with an upper bound
+     */
+    public boolean isRange() {
+        return upperOp != null;
+    }
+
+    /**
+     * @return the operation of the upper bound of a range, or null
+     */
+    public Predicate.Op getUpperOp() {
+        return upperOp;
+    }
+
+    /**
+     * @return the value of the upper bound of a range, or null
+     */
+    public Field getUpperField() {
+        return upperValue;
+    }
+
+    /**
+     * @param key The value of the indexed field, or the key of an index with a
+     *   composite key.
+     * @return true if the key satisfies the operation, and the upper bound of a
+     *   range
+     */
+    public boolean matches(Field key) {
+        return key.compare(op, fieldvalue) && (upperOp == null || key.compare(upperOp, upperValue));
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -45,7 +146,8 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue)
+                && Objects.equals(upperOp, ipd.upperOp) && Objects.equals(upperValue, ipd.upperValue));
     }
 
 }
@@ -0,0 +1,118 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.TableIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan reads the tuples of a table that satisfy a predicate on an
+ * indexed column, by looking them up in a {@link TableIndex} instead of
+ * reading every page of the table. It returns the same tuples, with the same
+ * TupleDesc, as a SeqScan of the table under a Filter on that predicate, but
+ * in the order of the indexed column if the index is a B+ tree.
+ */
+public class IndexScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final TableIndex index;
+    private final IndexPredicate ipred;
+    private final boolean descending;
+    private DbFileIterator iterator;
+
+    /**
+     * Creates an index scan over the table of the given index as a part of
+     * the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look the tuples up in
+     * @param tableAlias
+     *            the alias of the table, see {@link SeqScan#SeqScan}
+     * @param ipred
+     *            the predicate on the indexed column the tuples must satisfy
+     */
+    public IndexScan(TransactionId tid, TableIndex index, String tableAlias, IndexPredicate ipred) {
+        super(tid, index.getTable().getId(), tableAlias);
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.descending = false;
+    }
+
+    /**
+     * Creates an index scan returning the tuples in descending order of the
+     * indexed column, by reading a B+ tree backward.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the B+ tree index to look the tuples up in
+     * @param tableAlias
+     *            the alias of the table, see {@link SeqScan#SeqScan}
+     * @param ipred
+     *            the predicate on the indexed column the tuples must satisfy
+     * @param descending
+     *            whether to return the tuples in descending order
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+                     boolean descending) {
+        super(tid, index.getTable().getId(), tableAlias);
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.descending = descending;
+    }
+
+    /**
+     * @return the index this scan looks the tuples up in
+     */
+    public TableIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed column
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return true if this scan returns the tuples in descending order of the
+     *         indexed column
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        iterator = descending ? ((SecondaryIndex) index).lookup(tid, ipred, true) : index.lookup(tid, ipred);
+        iterator.open();
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return iterator.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return iterator.next();
+    }
+
+    public void close() {
+        iterator.close();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        iterator.rewind();
+    }
+}
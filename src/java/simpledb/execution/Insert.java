@@ -12,6 +12,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -27,6 +29,13 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The number of child tuples inserted together with
+     * {@link BufferPool#insertTuples}. Inserting a batch keeps B+ tree files
+     * latched for its whole duration, so batches are bounded.
+     */
+    public static final int BATCH_SIZE = 1000;
+
     /**
      * Constructor.
      *
@@ -80,23 +89,33 @@ public class Insert extends Operator {
      * inserted records. Inserts should be passed through BufferPool. An
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
-     * duplicate before inserting it.
+     * duplicate before inserting it. The tuples are inserted in batches of up
+     * to {@link #BATCH_SIZE} tuples.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
      * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException{
         int count = 0;
+        List<Tuple> batch = new ArrayList<>();
         while (child.hasNext()) {
-            Tuple next = child.next();
-            try {
-                bufferPool.insertTuple(t, tableId, next);
-            } catch (IOException e) {
-                e.printStackTrace();
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    if (batch.size() == 1) {
+                        bufferPool.insertTuple(t, tableId, batch.get(0));
+                    } else {
+                        bufferPool.insertTuples(t, tableId, batch);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                count += batch.size();
+                batch.clear();
             }
-            count++;
         }
         Tuple tuple = new Tuple(td);
         tuple.setField(0, new IntField(count));
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -26,6 +27,7 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
     private Catalog catalog;
     private DbFileIterator iterator;
+    private Predicate predicate;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -88,10 +90,26 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Hand a predicate down to the scanned file so that it can discard
+     * tuples (or whole pages) before they reach the parent operator. The
+     * scan may still return tuples that do not satisfy p, so the parent
+     * Filter keeps applying it.
+     *
+     * @param p the predicate of the Filter directly above this scan
+     */
+    public void pushDownPredicate(Predicate p) {
+        this.predicate = p;
+    }
+
     /* Create a HeapFileIterator and then open it */
     public void open() throws DbException, TransactionAbortedException {
         DbFile databaseFile = catalog.getDatabaseFile(tableid);
-        iterator = databaseFile.iterator(tid);
+        if (predicate != null && databaseFile instanceof HeapFile) {
+            iterator = ((HeapFile) databaseFile).iterator(tid, predicate);
+        } else {
+            iterator = databaseFile.iterator(tid);
+        }
         iterator.open();
     }
 
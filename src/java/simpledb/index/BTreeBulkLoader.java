@@ -0,0 +1,444 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from tuples in any order, without
+ * holding them all in memory. The tuples are first sorted on the key field with an
+ * external merge sort: runs of at most <code>runTuples</code> tuples are sorted in
+ * memory and spilled to temporary files, which are then merged. Since the number of
+ * tuples is known once the runs are written, the shape of the whole tree is
+ * computed up front, and every page is written exactly once, in page number order,
+ * with its parent and sibling pointers already set: first the leaf pages, then each
+ * level of internal pages, using large sequential writes.
+ * <p>
+ * Leaf and internal pages are filled to <code>fillFactor</code> of their capacity,
+ * leaving room for later inserts before pages split. As in
+ * {@link BTreeFileEncoder}, the last two pages of a level share the remaining
+ * tuples or children so that no page is less than half full.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page filled by the loader */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Default number of tuples sorted in memory at a time */
+	public static final int DEFAULT_RUN_TUPLES = 1 << 20;
+
+	/** Maximum number of runs merged at once */
+	private static final int MAX_FAN_IN = 64;
+
+	/** Number of pages written by each FileChannel write */
+	private static final int PAGES_PER_WRITE = 256;
+
+	private final TupleDesc td;
+	private final int keyField;
+	private final int npagebytes;
+	private final double fillFactor;
+	private final int runTuples;
+	private final BTreeFileEncoder.TupleComparator comparator;
+
+	/**
+	 * @param td - the tuple descriptor of the tuples to load
+	 * @param keyField - the field the B+ tree is keyed on
+	 * @param npagebytes - the size of the leaf and internal pages
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runTuples - the number of tuples sorted in memory at a time
+	 */
+	public BTreeBulkLoader(TupleDesc td, int keyField, int npagebytes, double fillFactor, int runTuples) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		}
+		if(runTuples < 1) {
+			throw new IllegalArgumentException("runs must hold at least one tuple");
+		}
+		this.td = td;
+		this.keyField = keyField;
+		this.npagebytes = npagebytes;
+		this.fillFactor = fillFactor;
+		this.runTuples = runTuples;
+		this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * Build a B+ tree keyed on a column of an existing table. The table is read
+	 * through the buffer pool one page at a time, so it stays available to other
+	 * transactions during the build.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param source - the table to index
+	 * @param keyField - the column to key the B+ tree on
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the BTreeFile, which is not added to the catalog
+	 */
+	public static BTreeFile createIndex(TransactionId tid, DbFile source, int keyField, File bFile,
+			double fillFactor) throws IOException, DbException, TransactionAbortedException {
+		BTreeBulkLoader loader = new BTreeBulkLoader(source.getTupleDesc(), keyField,
+				BufferPool.getPageSize(), fillFactor, DEFAULT_RUN_TUPLES);
+		DbFileIterator it = source.iterator(tid);
+		it.open();
+		try {
+			return loader.load(it, bFile);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Write all the tuples returned by an open iterator to a new B+ tree file,
+	 * replacing any previous contents of the file.
+	 *
+	 * @param it - an open iterator over the tuples to load
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @return the BTreeFile, which is not added to the catalog
+	 */
+	public BTreeFile load(DbFileIterator it, File bFile)
+			throws IOException, DbException, TransactionAbortedException {
+		List<Run> runs = new ArrayList<>();
+		List<Tuple> buffer = new ArrayList<>();
+		long count = 0;
+		try {
+			while(it.hasNext()) {
+				buffer.add(it.next());
+				count++;
+				if(buffer.size() == runTuples) {
+					runs.add(spill(buffer));
+					buffer.clear();
+				}
+			}
+			TupleStream sorted;
+			if(runs.isEmpty()) {
+				buffer.sort(comparator);
+				Iterator<Tuple> inMemory = buffer.iterator();
+				sorted = () -> inMemory.hasNext() ? inMemory.next() : null;
+			}
+			else {
+				if(!buffer.isEmpty()) {
+					runs.add(spill(buffer));
+				}
+				buffer = null;
+				while(runs.size() > MAX_FAN_IN) {
+					List<Run> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+					runs.subList(0, MAX_FAN_IN).clear();
+					runs.add(merge(group));
+				}
+				sorted = new Merger(runs);
+			}
+			write(sorted, count, bFile);
+		} finally {
+			for(Run r : runs) {
+				r.file.delete();
+			}
+		}
+
+		int pageSize = npagebytes == BufferPool.getPageSize() ? 0 : npagebytes;
+		return new BTreeFile(bFile, keyField, td, pageSize);
+	}
+
+	/**
+	 * A source of tuples in key order.
+	 */
+	private interface TupleStream {
+		/** @return the next tuple, or null at the end */
+		Tuple next() throws IOException;
+	}
+
+	/**
+	 * A sorted run of tuples spilled to a temporary file.
+	 */
+	private static class Run {
+		final File file;
+		final long size;
+
+		Run(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	private Run spill(List<Tuple> tuples) throws IOException {
+		tuples.sort(comparator);
+		File f = File.createTempFile("btreerun", ".dat");
+		f.deleteOnExit();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+			for(Tuple t : tuples) {
+				writeTuple(out, t);
+			}
+		}
+		return new Run(f, tuples.size());
+	}
+
+	private Run merge(List<Run> group) throws IOException {
+		File f = File.createTempFile("btreerun", ".dat");
+		f.deleteOnExit();
+		long size = 0;
+		try (Merger merger = new Merger(group);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+			Tuple t;
+			while((t = merger.next()) != null) {
+				writeTuple(out, t);
+				size++;
+			}
+		}
+		for(Run r : group) {
+			r.file.delete();
+		}
+		return new Run(f, size);
+	}
+
+	private void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+		for(int i = 0; i < td.numFields(); i++) {
+			t.getField(i).serialize(out);
+		}
+	}
+
+	/**
+	 * Reads the tuples of a run in order.
+	 */
+	private class RunReader {
+		final DataInputStream in;
+		final int index;
+		long remaining;
+		Tuple head;
+
+		RunReader(Run run, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), 1 << 16));
+			this.index = index;
+			this.remaining = run.size;
+		}
+
+		/** @return false once the run is exhausted */
+		boolean advance() throws IOException {
+			if(remaining == 0) {
+				head = null;
+				return false;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run: " + e.getMessage());
+			}
+			remaining--;
+			head = t;
+			return true;
+		}
+	}
+
+	/**
+	 * Merges sorted runs, keeping tuples with equal keys in run order.
+	 */
+	private class Merger implements TupleStream, Closeable {
+		private final List<RunReader> readers = new ArrayList<>();
+		private final PriorityQueue<RunReader> heap;
+
+		Merger(List<Run> runs) throws IOException {
+			heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+				int cmp = comparator.compare(a.head, b.head);
+				return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+			});
+			for(Run run : runs) {
+				RunReader r = new RunReader(run, readers.size());
+				readers.add(r);
+				if(r.advance()) {
+					heap.add(r);
+				}
+			}
+		}
+
+		public Tuple next() throws IOException {
+			RunReader r = heap.poll();
+			if(r == null) {
+				close();
+				return null;
+			}
+			Tuple t = r.head;
+			if(r.advance()) {
+				heap.add(r);
+			}
+			return t;
+		}
+
+		public void close() throws IOException {
+			for(RunReader r : readers) {
+				r.in.close();
+			}
+		}
+	}
+
+	/**
+	 * Split n tuples or children into pages of per, except for the last two pages,
+	 * which share the remainder so that neither is less than half full.
+	 *
+	 * @param n - the number of tuples or children
+	 * @param per - the number of tuples or children per page, given the fill factor
+	 * @param capacity - the maximum number of tuples or children per page
+	 * @param roundUp - whether the second to last page gets the larger half of an
+	 *            odd remainder
+	 * @return the number of tuples or children of each page
+	 */
+	static int[] distribute(long n, int per, int capacity, boolean roundUp) {
+		if(n <= per) {
+			return new int[]{(int) n};
+		}
+		int full = (int) ((n + per - 1) / per) - 2;
+		int remainder = (int) (n - (long) full * per);
+		if(remainder <= capacity && per < capacity) {
+			// a page filled beyond the fill factor beats two pages less than half full
+			int[] sizes = new int[full + 1];
+			Arrays.fill(sizes, per);
+			sizes[full] = remainder;
+			return sizes;
+		}
+		int[] sizes = new int[full + 2];
+		Arrays.fill(sizes, per);
+		sizes[full] = roundUp ? (remainder + 1) / 2 : remainder / 2;
+		sizes[full + 1] = remainder - sizes[full];
+		return sizes;
+	}
+
+	/**
+	 * Write a B+ tree holding count sorted tuples.
+	 */
+	private void write(TupleStream sorted, long count, File bFile) throws IOException {
+		Type[] typeAr = new Type[td.numFields()];
+		int nrecbytes = 0;
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+			nrecbytes += typeAr[i].getLen();
+		}
+		Type keyType = typeAr[keyField];
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (nrecbytes * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+		if(BTreeInternalPage.hasCompactKeys(keyType)) {
+			// the shape of the tree is fixed before the keys are known: plan for keys of
+			// the largest size, less one entry, as an empty page would accept them
+			int headerbytes = (BTreeInternalPage.maxEntries(keyType, npagebytes) + 8) / 8;
+			nentrybytes = 1 + Type.STRING_LEN + BTreeInternalPage.INDEX_SIZE;
+			nentries = (npagebytes - internalpointerbytes - headerbytes) / nentrybytes - 1;
+		}
+
+		// compute the shape of the tree: the size of every page of every level,
+		// from the leaves up to the root
+		List<int[]> levels = new ArrayList<>();
+		levels.add(distribute(count, Math.max(1, (int) (nrecords * fillFactor)), nrecords, false));
+		while(levels.get(levels.size() - 1).length > 1) {
+			int children = levels.get(levels.size() - 1).length;
+			levels.add(distribute(children, Math.max(2, (int) (nentries * fillFactor) + 1), nentries + 1, true));
+		}
+		int[] firstPage = new int[levels.size()];
+		firstPage[0] = 1;
+		for(int l = 1; l < levels.size(); l++) {
+			firstPage[l] = firstPage[l - 1] + levels.get(l - 1).length;
+		}
+		int root = firstPage[levels.size() - 1];
+		int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+
+		PageChecksums.reset(bFile);
+		try (FileChannel out = FileChannel.open(bFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(ByteBuffer.wrap(BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0)));
+			ByteBuffer batch = ByteBuffer.allocate(PAGES_PER_WRITE * npagebytes);
+
+			// leaf pages, keeping the key separating each one from the previous one
+			int[] leaves = levels.get(0);
+			int[] parents = parentsOf(levels, firstPage, 0);
+			List<Field> separators = new ArrayList<>(leaves.length);
+			Field lastKey = null;
+			for(int i = 0; i < leaves.length; i++) {
+				List<Tuple> tuples = new ArrayList<>(leaves[i]);
+				for(int j = 0; j < leaves[i]; j++) {
+					tuples.add(sorted.next());
+				}
+				separators.add(tuples.isEmpty() ? null : i == 0 ? tuples.get(0).getField(keyField)
+						: BTreeFile.separator(lastKey, tuples.get(0).getField(keyField)));
+				if(!tuples.isEmpty()) {
+					lastKey = tuples.get(tuples.size() - 1).getField(keyField);
+				}
+				byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, npagebytes, typeAr.length, typeAr, keyField);
+				ByteBuffer page = ByteBuffer.wrap(data);
+				page.putInt(0, parents[i]);
+				page.putInt(4, i > 0 ? firstPage[0] + i - 1 : 0);
+				page.putInt(8, i < leaves.length - 1 ? firstPage[0] + i + 1 : 0);
+				append(out, batch, data);
+			}
+
+			// internal pages, level by level
+			for(int l = 1; l < levels.size(); l++) {
+				int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+				parents = parentsOf(levels, firstPage, l);
+				List<Field> upper = new ArrayList<>();
+				int child = 0;
+				for(int i = 0; i < levels.get(l).length; i++) {
+					upper.add(separators.get(child));
+					List<BTreeEntry> entries = new ArrayList<>();
+					for(int j = 1; j < levels.get(l)[i]; j++) {
+						entries.add(new BTreeEntry(separators.get(child + j),
+								new BTreePageId(0, firstPage[l - 1] + child + j - 1, childCategory),
+								new BTreePageId(0, firstPage[l - 1] + child + j, childCategory)));
+					}
+					child += levels.get(l)[i];
+					byte[] data = BTreeFileEncoder.convertToInternalPage(entries, npagebytes, keyType, childCategory);
+					ByteBuffer.wrap(data).putInt(0, parents[i]);
+					append(out, batch, data);
+				}
+				separators = upper;
+			}
+
+			batch.flip();
+			while(batch.hasRemaining()) {
+				out.write(batch);
+			}
+		}
+	}
+
+	/**
+	 * @return the page number of the parent of each page of level l, where 0 is the
+	 * root pointer page
+	 */
+	private static int[] parentsOf(List<int[]> levels, int[] firstPage, int l) {
+		int[] parents = new int[levels.get(l).length];
+		if(l < levels.size() - 1) {
+			int[] sizes = levels.get(l + 1);
+			int i = 0;
+			for(int p = 0; p < sizes.length; p++) {
+				for(int c = 0; c < sizes[p]; c++) {
+					parents[i++] = firstPage[l + 1] + p;
+				}
+			}
+		}
+		return parents;
+	}
+
+	private static void append(FileChannel out, ByteBuffer batch, byte[] page) throws IOException {
+		if(batch.remaining() < page.length) {
+			batch.flip();
+			while(batch.hasRemaining()) {
+				out.write(batch);
+			}
+			batch.clear();
+		}
+		batch.put(page);
+	}
+}
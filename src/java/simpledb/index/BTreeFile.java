@@ -2,6 +2,9 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -9,6 +12,7 @@ import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
+import simpledb.common.Type;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -19,6 +23,15 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Concurrent operations on the tree are coordinated with short-duration latches,
+ * held only for the duration of a single insert, delete or leaf read. A tree latch
+ * guards the structure of the tree: inserts and deletes that only change one leaf
+ * hold it shared, descend from the root while crabbing shared latches on the
+ * internal pages, and latch the leaf exclusively. An operation that would split or
+ * merge pages releases everything and restarts holding the tree latch exclusively.
+ * Readers latch one leaf at a time and move right along the leaf sibling links,
+ * going back through the root if the structure changed in between.
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -31,7 +44,17 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int[] keyFields;
+	private final int pageSize;
+	private final PageChecksums checksums;
+
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	// the latches of the pages latched or waited for, removed once unused
+	private final Map<BTreePageId, PageLatch> pageLatches = new ConcurrentHashMap<>();
+	// incremented by every operation holding the tree latch exclusively
+	private final AtomicLong structureVersion = new AtomicLong();
+	// the root id and upper internal pages, read by descents without the buffer pool
+	private final BTreeInternalCache internalPages = new BTreeInternalCache();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +65,62 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, 0);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on one or more fields, with the global page size.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see #BTreeFile(File, int[], TupleDesc, int)
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, 0);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param pageSize - the size of the leaf, internal and header pages, one of
+	 *            {@link BufferPool#SUPPORTED_PAGE_SIZES}, or 0 for the global page size
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int pageSize) {
+		this(f, new int[]{key}, td, pageSize);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on one or more fields, whose keys are
+	 * {@link CompositeField}s of the values of the key fields if there are more
+	 * than one. Tuples are sorted by their first key field, then their second key
+	 * field, and so on.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param pageSize - the size of the leaf, internal and header pages, one of
+	 *            {@link BufferPool#SUPPORTED_PAGE_SIZES}, or 0 for the global page size
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, int pageSize) {
+		if (pageSize != 0) {
+			BufferPool.checkPageSize(pageSize);
+		}
+		if (keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.pageSize = pageSize;
+		this.checksums = new PageChecksums(f);
 	}
 
 	/**
@@ -77,6 +152,15 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Returns the size of the non-root-pointer pages of this file. Files
+	 * created without an explicit page size follow the global page size.
+	 */
+	@Override
+	public int getPageSize() {
+		return pageSize != 0 ? pageSize : BufferPool.getPageSize();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -99,27 +183,29 @@ public class BTreeFile implements DbFile {
                             + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+                pageBuf = checksums.verify(0, 0, pageBuf);
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
+                byte[] pageBuf = new byte[getPageSize()];
+                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * getPageSize()) !=
+                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * getPageSize()) {
                     throw new IllegalArgumentException(
                             "Unable to seek to correct place in BTreeFile");
                 }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = bis.read(pageBuf, 0, getPageSize());
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
-                if (retval < BufferPool.getPageSize()) {
+                if (retval < getPageSize()) {
                     throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
+                            + getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+                pageBuf = checksums.verify(id.getPageNumber(), pageOffset(id), pageBuf);
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyFields);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyFields);
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     return new BTreeHeaderPage(id, pageBuf);
                 }
@@ -138,19 +224,47 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+		writePages(Collections.singletonList(page));
+	}
+
+	/**
+	 * Write several pages to disk, forcing their images to the double-write buffer
+	 * at once. This should not be called directly but should be called from the
+	 * BufferPool when pages are flushed to disk
+	 * 
+	 * @param pages - the pages to write to disk
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		int[] slots = new int[pages.size()];
+		long[] offsets = new long[pages.size()];
+		byte[][] data = new byte[pages.size()][];
+		for(int i = 0; i < pages.size(); i++) {
+			BTreePageId id = (BTreePageId) pages.get(i).getId();
+			slots[i] = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.getPageNumber();
+			offsets[i] = pageOffset(id);
+			data[i] = pages.get(i).getPageData();
 		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		checksums.beforeWrite(slots, offsets, data);
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			for(int i = 0; i < pages.size(); i++) {
+				rf.seek(offsets[i]);
+				rf.write(data[i]);
+			}
+		}
+		for(int i = 0; i < pages.size(); i++) {
+			checksums.afterWrite(slots[i], data[i]);
+		}
+	}
+
+	/**
+	 * Returns the byte offset of a page in the file. The root pointer page
+	 * comes first, followed by pages 1, 2, ...
+	 */
+	private long pageOffset(BTreePageId id) {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return 0;
 		}
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * getPageSize();
 	}
 	
 	/**
@@ -158,14 +272,30 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ getPageSize());
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, the first
+	 * one if it is keyed on more than one field
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: the value of its key field, or
+	 * a {@link CompositeField} of the values of its key fields
+	 */
+	public Field keyOf(Tuple t) {
+		return BTreePage.keyOf(t, keyFields);
 	}
 
 	/**
@@ -187,13 +317,215 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, page.findChild(f), perm, f);
+	}
+
+	/**
+	 * Latch crabbing version of findLeafPage, called with the tree latch held in
+	 * shared mode. Descends from the root holding a shared latch on at most two pages
+	 * at a time: the latch on a page is released once its child is latched. Returns
+	 * the left-most leaf page possibly containing the key field f, latched exclusively
+	 * if perm is READ_WRITE and shared otherwise; the caller must release it with
+	 * {@link #unlatch(BTreePageId, boolean)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the latched leaf page, or null if the tree has no root yet
+	 */
+	BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, IOException, TransactionAbortedException {
+		return latchLeafPage(tid, dirtypages, perm, f, false);
+	}
+
+	/**
+	 * Like {@link #latchLeafPage(TransactionId, Map, Permissions, Field)}, but if last
+	 * is true returns the right-most leaf page possibly containing the key field f, or
+	 * the right-most leaf page if f is null, to scan the tree backward from.
+	 * <p>
+	 * The root id and the internal pages found in the {@link BTreeInternalCache} are
+	 * read from it without latching them, since they cannot change while the tree latch
+	 * is held in shared mode; the others are latched and read through the buffer pool,
+	 * and cached.
+	 */
+	BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f,
+			boolean last) throws DbException, IOException, TransactionAbortedException {
+		return latchLeafPage(tid, dirtypages, perm, f, last, null);
+	}
+
+	/**
+	 * Like {@link #latchLeafPage(TransactionId, Map, Permissions, Field, boolean)}, but
+	 * if upperKey is not null also sets upperKey[0] to the largest key the leaf page
+	 * may hold: the key to the right of its branch in the lowest internal page that
+	 * has one, or null if the leaf page is the right-most one.
+	 */
+	private BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f,
+			boolean last, Field[] upperKey) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId held = null;
+		boolean heldExclusive = false;
+		try {
+			BTreePageId pid = internalPages.getRootId();
+			if(pid == null) {
+				held = BTreeRootPtrPage.getId(tableid);
+				latch(held, false);
+				pid = getRootPtrPage(tid, dirtypages).getRootId();
+				if(pid != null) {
+					internalPages.putRootId(pid);
+				}
+			}
+			while(pid != null) {
+				boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+				BTreeInternalPage cached = leaf ? null : internalPages.get(pid);
+				if(cached != null) {
+					if(held != null) {
+						unlatch(held, heldExclusive);
+						held = null;
+					}
+					boundChild(cached, f, upperKey);
+					pid = last ? cached.findLastChild(f) : cached.findChild(f);
+					continue;
+				}
+				boolean exclusive = leaf && perm == Permissions.READ_WRITE;
+				latch(pid, exclusive);
+				if(held != null) {
+					unlatch(held, heldExclusive);
+				}
+				held = pid;
+				heldExclusive = exclusive;
+				if(leaf) {
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+					held = null;
+					return page;
+				}
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				internalPages.put(page);
+				boundChild(page, f, upperKey);
+				pid = last ? page.findLastChild(f) : page.findChild(f);
+			}
+			return null;
+		} finally {
+			if(held != null) {
+				unlatch(held, heldExclusive);
+			}
+		}
+	}
+
+	/**
+	 * Narrow upperKey[0] to the largest key the child of page holding the key field f
+	 * may hold, if upperKey is not null and that child is not the right-most one.
+	 */
+	private static void boundChild(BTreeInternalPage page, Field f, Field[] upperKey) throws DbException {
+		if(upperKey != null) {
+			Field bound = page.findChildUpperKey(f);
+			if(bound != null) {
+				upperKey[0] = bound;
+			}
+		}
+	}
+
+	/**
+	 * Acquire the latch of a page of this file.
+	 * 
+	 * @param pid - the id of the page
+	 * @param exclusive - whether to latch the page exclusively or shared
+	 */
+	void latch(BTreePageId pid, boolean exclusive) {
+		PageLatch latch = pageLatches.compute(pid, (k, l) -> {
+			if(l == null) {
+				l = new PageLatch();
+			}
+			l.users++;
+			return l;
+		});
+		if(exclusive) {
+			latch.lock.writeLock().lock();
+		}
+		else {
+			latch.lock.readLock().lock();
+		}
+	}
+
+	/**
+	 * Release a latch acquired with {@link #latch(BTreePageId, boolean)}. The latch
+	 * is forgotten once no thread holds or waits for it.
+	 */
+	void unlatch(BTreePageId pid, boolean exclusive) {
+		PageLatch latch = pageLatches.get(pid);
+		if(exclusive) {
+			latch.lock.writeLock().unlock();
+		}
+		else {
+			latch.lock.readLock().unlock();
+		}
+		pageLatches.computeIfPresent(pid, (k, l) -> --l.users == 0 ? null : l);
+	}
+
+	/**
+	 * Returns the number of pages of this file whose latch is held or waited for.
+	 */
+	public int numPageLatches() {
+		return pageLatches.size();
+	}
+
+	/**
+	 * The latch of a page, with the number of threads holding or waiting for it,
+	 * only changed in the atomic updates of pageLatches.
+	 */
+	private static class PageLatch {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		int users;
+	}
+
+	/**
+	 * Acquire the tree latch in shared mode, which keeps the structure of the tree
+	 * from changing until {@link #unlatchTree()} is called.
+	 */
+	void latchTree() {
+		treeLatch.readLock().lock();
+	}
+
+	void unlatchTree() {
+		treeLatch.readLock().unlock();
+	}
+
+	/**
+	 * Returns a counter incremented every time the structure of the tree may have
+	 * changed. Leaves read while holding the tree latch in shared mode are still
+	 * linked to the same siblings as long as the counter does not change.
+	 */
+	long getStructureVersion() {
+		return structureVersion.get();
+	}
+
+	/**
+	 * Returns the number of internal pages descents currently read from the cache of
+	 * this file instead of the buffer pool.
+	 */
+	public int numCachedInternalPages() {
+		return internalPages.size();
+	}
+
+	/**
+	 * Mark the pages changed by an operation dirty and put them into the buffer pool
+	 * while they are still latched. Once the latches are released, another thread may
+	 * free and reuse the pages, and the versions held here are no longer current.
+	 * Their changes are logged with the tuples the operation inserted or deleted, by
+	 * which the operation is rolled back.
+	 */
+	private List<Page> dirtied(TransactionId tid, Map<PageId, Page> dirtypages, boolean inserted,
+			List<Tuple> tuples) throws IOException {
+		List<Page> pages = new ArrayList<>(dirtypages.values());
+		Database.getBufferPool().cacheDirtyPages(tid, pages, tableid, inserted, tuples);
+		return pages;
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
 	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
@@ -231,18 +563,64 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = 0; i < page.getNumTuples() / 2; i++) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId oldRightId = page.getRightSiblingId();
+		newPage.setRightSiblingId(oldRightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newPage.getId());
+		}
+
+		// copy the first key of the new page up into the parent
+		Field midKey = separator(keyOf(page.reverseIterator().next()),
+				keyOf(newPage.iterator().next()));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, midKey) ? newPage : page;
 	}
 	
+	/**
+	 * Returns the key separating two adjacent pages in their parent, given the last key
+	 * of the left page and the first key of the right page. A string key is truncated to
+	 * the shortest prefix of right that is greater than left, so that all the keys of the
+	 * left page are less than it and all the keys of the right page at least as large,
+	 * and takes less room in the compact internal pages. Other keys are not truncated.
+	 *
+	 * @param left - the last key of the left page
+	 * @param right - the first key of the right page
+	 * @return the key to put in the entry of the parent pointing to the two pages
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int common = 0;
+		while(common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common)) {
+			common++;
+		}
+		return new StringField(r.substring(0, Math.min(common + 1, r.length())), Type.STRING_LEN);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -268,16 +646,32 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, keeping the
+		// middle one aside to push it up
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = 0; i < page.getNumEntries() / 2; i++) {
+			moving.add(it.next());
+		}
+		BTreeEntry mid = it.next();
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -387,7 +781,9 @@ public class BTreeFile implements DbFile {
 	 * presumably they will soon be dirtied by this transaction.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
-	 * accessed multiple times.
+	 * accessed multiple times. Fetching an internal, root pointer or header page with
+	 * read-write permission also clears the cache of internal pages used by
+	 * {@link #latchLeafPage(TransactionId, Map, Permissions, Field, boolean)}.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -405,6 +801,10 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
+			if(perm == Permissions.READ_WRITE && pid.pgcateg() != BTreePageId.LEAF) {
+				// the structure of the tree is about to change
+				internalPages.clear();
+			}
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
@@ -427,6 +827,141 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
+		// optimistically assume the leaf page has room for the tuple, so that only
+		// the leaf page changes
+		treeLatch.readLock().lock();
+		try {
+			BTreeLeafPage leafPage = latchLeafPage(tid, dirtypages, Permissions.READ_WRITE, keyOf(t));
+			if(leafPage != null) {
+				try {
+					if(leafPage.getNumEmptySlots() > 0) {
+						leafPage.insertTuple(t);
+						return dirtied(tid, dirtypages, true, Collections.singletonList(t));
+					}
+				} finally {
+					unlatch(leafPage.getId(), true);
+				}
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+
+		// the leaf page has to split: start over with the whole tree latched
+		treeLatch.writeLock().lock();
+		try {
+			dirtypages.clear();
+			insertTuple(tid, dirtypages, t);
+			return dirtied(tid, dirtypages, true, Collections.singletonList(t));
+		} finally {
+			structureVersion.incrementAndGet();
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Insert a batch of tuples into this BTreeFile. The tuples are sorted by key and
+	 * inserted leaf page by leaf page: like {@link #insertTuple(TransactionId, Tuple)},
+	 * each descent from the root holds the tree latch in shared mode and latches only
+	 * the leaf page it reaches, into which it inserts the run of tuples that belong to
+	 * it while the page has room. When the leaf page is full, the next tuple is
+	 * inserted with the tree latch held exclusively, splitting the page, and the
+	 * following runs go back to the optimistic descent.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert, in any order
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> sorted = new ArrayList<>(tuples);
+		sorted.sort((a, b) -> compareKeys(keyOf(a), keyOf(b)));
+		Map<PageId, Page> changed = new LinkedHashMap<>();
+
+		int i = 0;
+		while(i < sorted.size()) {
+			int inserted = insertRun(tid, sorted, i, changed);
+			if(inserted > 0) {
+				i += inserted;
+				continue;
+			}
+
+			// the leaf page has to split: insert the next tuple with the whole tree latched
+			treeLatch.writeLock().lock();
+			try {
+				Map<PageId, Page> dirtypages = new HashMap<>();
+				Tuple t = sorted.get(i++);
+				insertTuple(tid, dirtypages, t);
+				for(Page p : dirtied(tid, dirtypages, true, Collections.singletonList(t))) {
+					changed.put(p.getId(), p);
+				}
+			} finally {
+				structureVersion.incrementAndGet();
+				treeLatch.writeLock().unlock();
+			}
+		}
+		return new ArrayList<>(changed.values());
+	}
+
+	/**
+	 * Insert the run of sorted tuples starting at index from that belongs to the leaf
+	 * page of its first tuple, optimistically assuming that page has room: only the
+	 * leaf page is latched exclusively, with the tree latch held in shared mode.
+	 * 
+	 * @param changed - the pages dirtied by the batch, to which the leaf page is added
+	 * @return the number of tuples inserted, 0 if the leaf page is full or the tree
+	 * has no root yet
+	 */
+	private int insertRun(TransactionId tid, List<Tuple> sorted, int from, Map<PageId, Page> changed)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field[] upperKey = new Field[1];
+		treeLatch.readLock().lock();
+		try {
+			BTreeLeafPage leafPage = latchLeafPage(tid, dirtypages, Permissions.READ_WRITE, keyOf(sorted.get(from)),
+					false, upperKey);
+			if(leafPage == null) {
+				return 0;
+			}
+			try {
+				int i = from;
+				while(i < sorted.size() && leafPage.getNumEmptySlots() > 0
+						&& (i == from || upperKey[0] == null
+								|| keyOf(sorted.get(i)).compare(Op.LESS_THAN_OR_EQ, upperKey[0]))) {
+					leafPage.insertTuple(sorted.get(i++));
+				}
+				if(i > from) {
+					for(Page p : dirtied(tid, dirtypages, true, new ArrayList<>(sorted.subList(from, i)))) {
+						changed.put(p.getId(), p);
+					}
+				}
+				return i - from;
+			} finally {
+				unlatch(leafPage.getId(), true);
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compare two keys of this file.
+	 *
+	 * @return -1 if a < b, 1 if a > b, 0 if a == b
+	 */
+	private static int compareKeys(Field a, Field b) {
+		if(a.compare(Op.LESS_THAN, b)) {
+			return -1;
+		}
+		return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+	}
+
+	/**
+	 * Insert a tuple, splitting pages as needed. Must be called with the tree latch
+	 * held exclusively.
+	 */
+	private void insertTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
@@ -439,15 +974,13 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, keyOf(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-        return new ArrayList<>(dirtypages.values());
 	}
 	
 	/**
@@ -564,11 +1097,28 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int toMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < toMove; i++) {
+			moving.add(it.next());
+		}
+
+		// the parent key must separate the last tuple moved from the first tuple
+		// left behind, in key order
+		Field moved = keyOf(moving.get(moving.size() - 1));
+		Field next = keyOf(it.next());
+		Field key = isRightSibling ? separator(moved, next) : separator(next, moved);
+		if(!parent.hasRoomForKey(entry, key)) {
+			// a longer key would overflow the parent: leave the page as it is
+			return;
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+		entry.setKey(key);
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -598,12 +1148,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.isAtMinOccupancy()) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -614,7 +1163,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.isAtMinOccupancy()) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -643,11 +1192,24 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = entriesToSteal(page, leftSibling, leftSibling.reverseIterator());
+		if(!parent.hasRoomForKey(parentEntry, moving.get(moving.size() - 1).getKey())) {
+			return;
+		}
+
+		// rotate the keys through the parent entry: each key from the left
+		// sibling goes up, and the key it replaces comes down into the page
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		Field parentKey = parentEntry.getKey();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentKey, e.getRightChild(), firstChild));
+			firstChild = e.getRightChild();
+			parentKey = e.getKey();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,13 +1232,55 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = entriesToSteal(page, rightSibling, rightSibling.iterator());
+		if(!parent.hasRoomForKey(parentEntry, moving.get(moving.size() - 1).getKey())) {
+			return;
+		}
+
+		// rotate the keys through the parent entry: each key from the right
+		// sibling goes up, and the key it replaces comes down into the page
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		Field parentKey = parentEntry.getKey();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentKey, lastChild, e.getLeftChild()));
+			lastChild = e.getLeftChild();
+			parentKey = e.getKey();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
+	/**
+	 * Returns the entries to move from a sibling to an internal page below minimum
+	 * occupancy so that both end up about as full, in the order of the given iterator
+	 * over the sibling. Pages with compact keys are evened out by bytes rather than by
+	 * number of entries.
+	 */
+	private static List<BTreeEntry> entriesToSteal(BTreeInternalPage page, BTreeInternalPage sibling,
+			Iterator<BTreeEntry> it) {
+		List<BTreeEntry> moving = new ArrayList<>();
+		if(!page.hasCompactKeys()) {
+			int toMove = sibling.getNumEntries() - (page.getNumEntries() + sibling.getNumEntries()) / 2;
+			for(int i = 0; i < toMove; i++) {
+				moving.add(it.next());
+			}
+			return moving;
+		}
+		int difference = sibling.getEntryBytes() - page.getEntryBytes();
+		while(moving.size() < sibling.getNumEntries() - 1) {
+			BTreeEntry e = it.next();
+			int size = sibling.getEntrySize(e.getKey());
+			if(!moving.isEmpty() && difference < 2 * size) {
+				break;
+			}
+			moving.add(e);
+			difference -= 2 * size;
+		}
+		return moving;
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
@@ -699,12 +1303,23 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<Tuple> moving = new ArrayList<>();
+		rightPage.iterator().forEachRemaining(moving::add);
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightRightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightRightId);
+		if(rightRightId != null) {
+			BTreeLeafPage rightRight = (BTreeLeafPage) getPage(tid, dirtypages, rightRightId, Permissions.READ_WRITE);
+			rightRight.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -730,14 +1345,22 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+
+		// pull the parent key down between the two sets of children
+		BTreePageId lastLeftChild = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId firstRightChild = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastLeftChild, firstRightChild));
+
+		List<BTreeEntry> moving = new ArrayList<>();
+		rightPage.iterator().forEachRemaining(moving::add);
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -766,8 +1389,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -782,7 +1404,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isBelowMinOccupancy()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -802,8 +1424,107 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
+		// optimistically assume the leaf page stays at least half full, so that only
+		// the leaf page changes. The record id is read under the tree latch, since
+		// a concurrent split or merge may move the tuple to another page
+		treeLatch.readLock().lock();
+		try {
+			BTreePageId pageId = leafPageOf(t);
+			latch(pageId, true);
+			try {
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() < maxEmptySlots
+						|| page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+					page.deleteTuple(t);
+					return dirtied(tid, dirtypages, false, Collections.singletonList(t));
+				}
+			} finally {
+				unlatch(pageId, true);
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+
+		// the leaf page has to be rebalanced: start over with the whole tree latched
+		treeLatch.writeLock().lock();
+		try {
+			dirtypages.clear();
+			deleteTuple(tid, dirtypages, leafPageOf(t), t);
+			return dirtied(tid, dirtypages, false, Collections.singletonList(t));
+		} finally {
+			structureVersion.incrementAndGet();
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete a tuple with the same values as t from this BTreeFile, wherever it is in
+	 * the tree. A transaction that is rolled back deletes the tuples it inserted this
+	 * way, since the splits and merges of other transactions may have moved them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete, whose record id is ignored
+	 * @return a list of all pages that were dirtied by this operation, empty if no tuple
+	 * of the tree has the values of t
+	 */
+	public List<Page> deleteEqualTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		treeLatch.writeLock().lock();
+		try {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			Field key = keyOf(t);
+			BTreeLeafPage page = rootId == null ? null
+					: findLeafPage(tid, dirtypages, rootId, Permissions.READ_ONLY, key);
+			while(page != null) {
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					Tuple candidate = it.next();
+					if(keyOf(candidate).compare(Op.GREATER_THAN, key)) {
+						return Collections.emptyList();
+					}
+					if(sameValues(candidate, t)) {
+						deleteTuple(tid, dirtypages, page.getId(), candidate);
+						return dirtied(tid, dirtypages, false, Collections.singletonList(candidate));
+					}
+				}
+				BTreePageId rightId = page.getRightSiblingId();
+				page = rightId == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+			}
+			return Collections.emptyList();
+		} finally {
+			structureVersion.incrementAndGet();
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	private static boolean sameValues(Tuple a, Tuple b) {
+		for(int i = 0; i < a.getTupleDesc().numFields(); i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the id of the leaf page holding the given tuple, according to its record id.
+	 */
+	private BTreePageId leafPageOf(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null) {
+			throw new DbException("tried to delete tuple with null rid");
+		}
+		return new BTreePageId(tableid, rid.getPageId().getPageNumber(), BTreePageId.LEAF);
+	}
+
+	/**
+	 * Delete a tuple from the given leaf page, merging or redistributing pages as
+	 * needed. Must be called with the tree latch held exclusively.
+	 */
+	private void deleteTuple(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pageId, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
@@ -813,8 +1534,6 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
-
-        return new ArrayList<>(dirtypages.values());
 	}
 
 	/**
@@ -835,10 +1554,12 @@ public class BTreeFile implements DbFile {
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData(getPageSize());
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
+				checksums.afterWrite(0, emptyRootPtrData);
+				checksums.afterWrite(1, emptyLeafData);
 			}
 		}
 
@@ -885,7 +1606,7 @@ public class BTreeFile implements DbFile {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize()) + emptySlot;
 			}
 		}
 
@@ -896,10 +1617,11 @@ public class BTreeFile implements DbFile {
 				// create the new page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+				byte[] emptyData = BTreeInternalPage.createEmptyPageData(getPageSize());
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
+				checksums.afterWrite(emptyPageNo, emptyData);
 			}
 		}
 
@@ -928,15 +1650,22 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
+		// make sure the page is not in the buffer pool or in the local cache, under
+		// any category: a dirty copy of the page as it was before it was freed must
+		// not be written over the new page later
+		for(int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER}) {
+			BTreePageId oldPageId = new BTreePageId(tableid, emptyPageNo, categ);
+			Database.getBufferPool().discardPage(oldPageId);
+			dirtypages.remove(oldPageId);
+		}
+		
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
+		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * getPageSize());
+		byte[] emptyData = BTreePage.createEmptyPageData(getPageSize());
+		rf.write(emptyData);
 		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		checksums.afterWrite(emptyPageNo, emptyData);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -997,7 +1726,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1007,7 +1736,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1023,34 +1752,65 @@ public class BTreeFile implements DbFile {
 		// now headerId should be set with the headerPage containing the slot corresponding to 
 		// emptyPageNo
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize());
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
-	 * behalf of the specified transaction. This method will acquire a read lock on
-	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
+	 * behalf of the specified transaction. This method takes no locks; the leaf pages
+	 * are read under the shared tree latch.
+	 * <p>
+	 * If this B+ tree has a composite key, the value of the predicate is either a
+	 * field compared to the first key field, or a {@link CompositeField} of the
+	 * first k+1 key fields: the tuples returned have the first k key fields equal
+	 * to those of the value, and their next key field satisfies the predicate.
+	 * <p>
+	 * A range predicate starts at the leaf page of its lower bound and stops at the
+	 * first key past its upper bound, so only the leaf pages holding the range are read.
 	 * 
 	 * @param tid - the transaction id
 	 * @param ipred - the index predicate value to filter on
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-		return new BTreeSearchIterator(this, tid, ipred);
+		return new BTreeSearchIterator(this, tid, ipred, false);
+	}
+
+	/**
+	 * Get an iterator for the tuples matching an IndexPredicate, like
+	 * {@link #indexIterator(TransactionId, IndexPredicate)}, but in descending key
+	 * order. The iterator starts at the largest key that can match the predicate
+	 * and follows the left sibling pointers of the leaf pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples, in descending key order
+	 */
+	public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeSearchIterator(this, tid, ipred, true);
 	}
 
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
-	 * will acquire a read lock on the affected pages of the file, and may block until 
-	 * the lock can be acquired.
+	 * takes no locks; the leaf pages are read under the shared tree latch.
 	 * 
 	 * @param tid - the transaction id
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+		return new BTreeFileIterator(this, tid, false);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order,
+	 * starting at the right-most leaf page.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, in descending key order
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeFileIterator(this, tid, true);
 	}
 
 }
@@ -1060,61 +1820,43 @@ public class BTreeFile implements DbFile {
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
+	final boolean reverse;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
+	 * @param reverse - whether to return the tuples in descending key order
 	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, boolean reverse) {
 		this.f = f;
 		this.tid = tid;
+		this.reverse = reverse;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Open this iterator by positioning a cursor on the first leaf page, or on the
+	 * last one if the iterator is reverse
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		cursor = new BTreeLeafCursor(f, tid, null, reverse);
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * from the next page by following the right (or left) sibling pointer.
 	 * 
 	 * @return the next tuple, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
-		}
-
-		if (it == null)
+		if (cursor == null)
 			return null;
-		return it.next();
+		return cursor.next();
 	}
 
 	/**
@@ -1130,8 +1872,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		cursor = null;
 	}
 }
 
@@ -1141,82 +1882,130 @@ class BTreeFileIterator extends AbstractDbFileIterator {
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final boolean reverse;
+
+	// for a composite key, the key fields the tuples must be equal to, the index
+	// of the key field compared by the predicate, and the value it is compared to
+	final CompositeField prefix;
+	final int component;
+	final Field value;
+	// the upper bound of a range predicate, compared to the same key field
+	final Op upperOp;
+	final Field upper;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
-	 * @param ipred - the predicate to filter on
+	 * @param ipred - the predicate to filter on, possibly a range; the bounds of a
+	 * range on a composite key must have the same prefix
+	 * @param reverse - whether to return the tuples in descending key order
 	 */
-	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, boolean reverse) {
 		this.f = f;
 		this.tid = tid;
+		this.reverse = reverse;
+		Field v = ipred.getField();
+		Field u = ipred.getUpperField();
+		if(f.keyFields().length > 1 && !(v instanceof CompositeField)) {
+			v = new CompositeField(v);
+			if(ipred.isRange()) {
+				u = new CompositeField(u);
+				ipred = new IndexPredicate(ipred.getOp(), v, ipred.getUpperOp(), u);
+			}
+			else {
+				ipred = new IndexPredicate(ipred.getOp(), v);
+			}
+		}
 		this.ipred = ipred;
+		this.upperOp = ipred.getUpperOp();
+		if(v instanceof CompositeField) {
+			CompositeField c = (CompositeField) v;
+			this.component = c.numFields() - 1;
+			this.prefix = component > 0 ? c.prefix(component) : null;
+			this.value = c.getField(component);
+			this.upper = u == null ? null : ((CompositeField) u).getField(component);
+		}
+		else {
+			this.component = -1;
+			this.prefix = null;
+			this.value = v;
+			this.upper = u;
+		}
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * Open this iterator by positioning a cursor on the first leaf page applicable
+	 * for the given predicate operation, or on the last one if the iterator is
+	 * reverse: the leaf of the lower bound of a range, or of its upper bound
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+		boolean lowerBound = ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+		boolean upperBound = ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ;
+		if(ipred.getOp() == Op.EQUALS || (reverse ? upperBound : lowerBound)) {
+			cursor = new BTreeLeafCursor(f, tid, ipred.getField(), reverse);
+		}
+		else if(reverse && ipred.isRange()) {
+			cursor = new BTreeLeafCursor(f, tid, ipred.getUpperField(), true);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			cursor = new BTreeLeafCursor(f, tid, prefix, reverse);
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * the predicate or from the next page by following the right sibling pointer, or
+	 * the left one if the iterator is reverse.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
+		if (cursor == null)
+			return null;
+		// the keys not reached yet are greater, or less if the iterator is reverse
+		Op before = reverse ? Op.GREATER_THAN : Op.LESS_THAN;
+		Op after = reverse ? Op.LESS_THAN : Op.GREATER_THAN;
+		Tuple t;
+		while ((t = cursor.next()) != null) {
+			Field key = f.keyOf(t);
+			if(prefix != null) {
+				if(key.compare(before, prefix)) {
+					continue;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
+				if(key.compare(after, prefix)) {
+					// past the last key starting with the prefix, we have hit the end
 					return null;
 				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
+			}
+			if(component >= 0) {
+				key = ((CompositeField) key).getField(component);
+			}
+			boolean inLower = key.compare(ipred.getOp(), value);
+			boolean inUpper = upperOp == null || key.compare(upperOp, upper);
+			if (inLower && inUpper) {
+				return t;
+			}
+			else if(ipred.getOp() == Op.EQUALS) {
+				if(key.compare(after, value)) {
+					// if the tuple is now past the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
 				}
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			else if(reverse ? !inLower && (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+					: !inUpper || ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				// if the predicate was not satisfied and the operation bounds the keys
+				// from the side we are moving towards, we have hit the end
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-			}
 		}
 
 		return null;
@@ -1235,6 +2024,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		cursor = null;
 	}
 }
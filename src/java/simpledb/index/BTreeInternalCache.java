@@ -0,0 +1,94 @@
+package simpledb.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+
+/**
+ * Keeps the root id and the internal pages of a BTreeFile read by its descents, so
+ * that a descent only goes through the buffer pool for its leaf page. Every descent
+ * starts at the root, so the root and the top levels of the tree are the first pages
+ * cached and stay cached, up to {@link #MAX_PAGES} pages; lower levels are read
+ * through the buffer pool as usual once the cache is full.
+ * <p>
+ * The internal pages and the root pointer of a BTreeFile only change when the tree
+ * latch is held exclusively, after fetching them READ_WRITE, which clears the cache.
+ * Cached pages are therefore only read with the tree latch held in shared mode, and
+ * need no page latches. The cache is also cleared when the buffer pool it was filled
+ * from is replaced, like the pages of that buffer pool.
+ */
+class BTreeInternalCache {
+
+	/**
+	 * Maximum number of internal pages cached for one BTreeFile.
+	 */
+	static final int MAX_PAGES = 1024;
+
+	private final Map<BTreePageId, BTreeInternalPage> pages = new ConcurrentHashMap<>();
+	private volatile BTreePageId rootId = null;
+	private volatile BufferPool pool = null;
+
+	/**
+	 * Returns the cached root id, or null if it is not cached.
+	 */
+	BTreePageId getRootId() {
+		if(pool != Database.getBufferPool()) {
+			return null;
+		}
+		return rootId;
+	}
+
+	/**
+	 * Returns the cached internal page with the given id, or null if it is not cached.
+	 */
+	BTreeInternalPage get(BTreePageId pid) {
+		if(pool != Database.getBufferPool()) {
+			return null;
+		}
+		return pages.get(pid);
+	}
+
+	/**
+	 * Cache the root id read from the root pointer page of the current buffer pool.
+	 */
+	void putRootId(BTreePageId id) {
+		checkPool();
+		rootId = id;
+	}
+
+	/**
+	 * Cache an internal page read from the current buffer pool, if there is room.
+	 */
+	void put(BTreeInternalPage page) {
+		checkPool();
+		if(pages.size() < MAX_PAGES) {
+			pages.put(page.getId(), page);
+		}
+	}
+
+	/**
+	 * Drop everything cached, because the structure of the tree is about to change.
+	 */
+	synchronized void clear() {
+		pages.clear();
+		rootId = null;
+	}
+
+	/**
+	 * Returns the number of internal pages cached.
+	 */
+	int size() {
+		return pool == Database.getBufferPool() ? pages.size() : 0;
+	}
+
+	private synchronized void checkPool() {
+		BufferPool current = Database.getBufferPool();
+		if(pool != current) {
+			pages.clear();
+			rootId = null;
+			pool = current;
+		}
+	}
+}
@@ -13,10 +13,18 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages keyed on a string field use a compact layout: each key takes a length
+ * byte and its characters instead of the full width of the type, and entries
+ * are only written for the slots in use. How many entries such a page holds
+ * depends on the length of their keys, so its free space and occupancy are
+ * measured in bytes (see {@link #getNumEmptySlots()} and
+ * {@link #isBelowMinOccupancy()}).
  *
  * @see BTreeFile
  * @see BufferPool
@@ -30,6 +38,14 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// the size of the largest entry (key and child pointer) in the compact layout
+	private static final int MAX_COMPACT_ENTRY_SIZE = 1 + Type.STRING_LEN + INDEX_SIZE;
+	private final boolean compactKeys;
+
+	// the slots in use, in key order; built from the header when needed and
+	// dropped whenever a slot is filled or cleared
+	private volatile int[] slotDirectory = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +59,8 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // entries of different sizes only keep compact pages roughly balanced
+        assert !checkOccupancy || depth <= 0 || (compactKeys ? getNumEntries() > 0 : !isBelowMinOccupancy());
 	}
 	
 	/**
@@ -71,7 +88,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[]{key});
+	}
+
+	/**
+	 * Same as {@link #BTreeInternalPage(BTreePageId, byte[], int)}, for a B+ tree
+	 * keyed on one or more fields. Composite keys are stored in the fixed-width
+	 * layout, one field after the other.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compactKeys = keyFields.length == 1 && hasCompactKeys(td.getFieldType(keyField));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -92,6 +123,21 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(compactKeys) {
+			// the child pointer and the key of each slot in use, in order
+			for (int i=0; i<numSlots; i++) {
+				children[i] = -1;
+				if(isSlotUsed(i)) {
+					children[i] = dis.readInt();
+					if(i > 0)
+						keys[i] = readCompactKey(dis);
+				}
+			}
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +149,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -118,14 +163,138 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * In the compact layout, this is the number of slots of the page, which only
+	 * fill up with the shortest keys.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if(keyFields.length > 1)
+			return maxEntries(getKeySize(), getPageSize());
+		return maxEntries(td.getFieldType(keyField), getPageSize());
+	}
+
+	/**
+	 * Computes the number of entry slots of an internal page.
+	 *
+	 * @param keyType - the type of the key field
+	 * @param pageSize - the size of the page in bytes
+	 * @see #getMaxEntries()
+	 */
+	public static int maxEntries(Type keyType, int pageSize) {
+		return maxEntries(hasCompactKeys(keyType) ? 1 : keyType.getLen(), pageSize);
+	}
+
+	private static int maxEntries(int keySize, int pageSize) {
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
-        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
+        return (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/**
+	 * Returns true if internal pages keyed on a field of the given type use the
+	 * compact layout, which is the case for string keys.
+	 */
+	public static boolean hasCompactKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return true if this page uses the compact layout
+	 */
+	public boolean hasCompactKeys() {
+		return compactKeys;
+	}
+
+	/**
+	 * Returns the number of bytes a key takes in the compact layout.
+	 */
+	static int compactKeySize(Field key) {
+		return 1 + Math.min(((StringField) key).getValue().length(), Type.STRING_LEN);
+	}
+
+	/**
+	 * Write a key in the compact layout: its length in one byte, then its characters.
+	 */
+	static void writeCompactKey(DataOutputStream dos, Field key) throws IOException {
+		String s = ((StringField) key).getValue();
+		if (s.length() > Type.STRING_LEN)
+			s = s.substring(0, Type.STRING_LEN);
+		dos.writeByte(s.length());
+		dos.writeBytes(s);
+	}
+
+	private static Field readCompactKey(DataInputStream dis) throws IOException {
+		byte[] bs = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return new StringField(new String(bs), Type.STRING_LEN);
+	}
+
+	/**
+	 * Returns the number of bytes of a compact page available to its entries (keys
+	 * and their right child pointers).
+	 */
+	private int getEntryCapacity() {
+		// parent pointer, child page category, header and first child pointer
+		return getPageSize() - (2 * INDEX_SIZE + 1 + getHeaderSize());
+	}
+
+	/**
+	 * Returns the number of bytes taken by an entry with the given key.
+	 */
+	int getEntrySize(Field key) {
+		return INDEX_SIZE + (compactKeys ? compactKeySize(key) : getKeySize());
+	}
+
+	/**
+	 * Returns the number of bytes taken by the entries of this page.
+	 */
+	int getEntryBytes() {
+		int bytes = 0;
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				bytes += getEntrySize(keys[i]);
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of entry bytes under which a compact page is below minimum
+	 * occupancy. A page at this occupancy can be merged with a sibling below it and
+	 * the key pulled down from their parent.
+	 */
+	private int getMinEntryBytes() {
+		return (getEntryCapacity() - MAX_COMPACT_ENTRY_SIZE) / 2;
+	}
+
+	/**
+	 * Returns true if this page is less than half full, so that it should get entries
+	 * from a sibling or be merged with one.
+	 */
+	public boolean isBelowMinOccupancy() {
+		if (compactKeys)
+			return getEntryBytes() < getMinEntryBytes();
+		return getNumEmptySlots() > getMaxEntries() - getMaxEntries()/2;
+	}
+
+	/**
+	 * Returns true if this page has no entries to spare for a sibling below minimum
+	 * occupancy, so that the two should be merged instead.
+	 */
+	public boolean isAtMinOccupancy() {
+		if (compactKeys)
+			return getEntryBytes() <= getMinEntryBytes();
+		return getNumEmptySlots() >= getMaxEntries() - getMaxEntries()/2;
+	}
+
+	/**
+	 * Returns true if the key of the given entry of this page can be replaced with
+	 * the given key, which may be longer in the compact layout.
+	 */
+	public boolean hasRoomForKey(BTreeEntry e, Field key) {
+		if (!compactKeys)
+			return true;
+		Field old = keys[e.getRecordId().getTupleNumber()];
+		return getEntryBytes() - compactKeySize(old) + compactKeySize(key) <= getEntryCapacity();
 	}
 
 	/**
@@ -149,7 +318,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -165,6 +334,21 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
+	/** Return the data of the before image of this page, without parsing it */
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -172,7 +356,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +369,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -236,9 +420,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
+		int len = getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
+		if (compactKeys)
+			return getCompactPageData(baos, dos);
 
 		// write out the parent pointer
 		try {
@@ -273,7 +459,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -319,8 +505,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = getPageSize() - (INDEX_SIZE + 1 + header.length + 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -337,6 +523,30 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Generates the page data in the compact layout: the pointers and the header,
+	 * followed by the child pointer and key of each slot in use.
+	 */
+	private byte[] getCompactPageData(ByteArrayOutputStream baos, DataOutputStream dos) {
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.write(header);
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				dos.writeInt(children[i]);
+				if (i > 0)
+					writeCompactKey(dos, keys[i]);
+			}
+			dos.write(new byte[getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -413,6 +623,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (!hasRoomForKey(e, e.getKey()))
+			throw new DbException("not enough room on the page to update entry with key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -445,7 +657,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKeyType(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -460,8 +672,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(compactKeys && getEntryBytes() + getEntrySize(e.getKey()) > getEntryCapacity())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,22 +781,127 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. In the compact layout, this is
+	 * the number of entries with keys of any length that are sure to fit, keeping
+	 * room for one more so that the key of an entry can always grow.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
+		int cnt = getNumFreeSlots();
+		if(compactKeys) {
+			int room = (getEntryCapacity() - getEntryBytes() - MAX_COMPACT_ENTRY_SIZE) / MAX_COMPACT_ENTRY_SIZE;
+			cnt = Math.max(0, Math.min(cnt, room));
+		}
 		return cnt;
 	}
 
+	private int getNumFreeSlots() {
+		// the first key slot is not counted, since a node with m keys has m+1 pointers
+		int[] slots = getSlotDirectory();
+		int used = slots.length > 0 && slots[0] == 0 ? slots.length - 1 : slots.length;
+		return numSlots - 1 - used;
+	}
+
+	/**
+	 * Returns the slots of this page in use, in key order, so that the keys of the
+	 * page can be binary searched without walking the empty slots.
+	 */
+	private int[] getSlotDirectory() {
+		int[] slots = slotDirectory;
+		if(slots == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			slots = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[cnt++] = i;
+			slotDirectory = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Returns the child in which to look for the key field f: the left child of the
+	 * first entry with a key greater than or equal to f, or the right child of the
+	 * last entry if there is none. Binary searches the keys of the page.
+	 * @param f - the key field to search for, or null for the left-most child
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) throws DbException {
+		int[] slots = getSlotDirectory();
+		if(slots.length < 2 || slots[0] != 0)
+			throw new DbException("internal page " + pid + " has no entries");
+		if(f == null)
+			return new BTreePageId(pid.getTableId(), children[slots[0]], childCategory);
+		int lo = firstKeyAtLeast(slots, f);
+		return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
+	}
+
+	/**
+	 * Returns the key of the entry to the right of the child {@link #findChild(Field)}
+	 * returns for the key field f: the first key greater than or equal to f, the
+	 * largest key the child may hold. Returns null if that child is the right-most one.
+	 * @param f - the key field to search for
+	 * @throws DbException if the page has no entries
+	 */
+	public Field findChildUpperKey(Field f) throws DbException {
+		int[] slots = getSlotDirectory();
+		if(slots.length < 2 || slots[0] != 0)
+			throw new DbException("internal page " + pid + " has no entries");
+		int lo = firstKeyAtLeast(slots, f);
+		return lo < slots.length ? keys[slots[lo]] : null;
+	}
+
+	/**
+	 * Binary searches the keys of the page for the first one greater than or equal
+	 * to f, and returns its index in the slot directory, or slots.length if there is
+	 * none.
+	 */
+	private int firstKeyAtLeast(int[] slots, Field f) {
+		// slots[0] only holds the left-most child
+		int lo = 1, hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[slots[mid]].compare(Op.GREATER_THAN_OR_EQ, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the right-most child that may hold the key field f: the left child of
+	 * the first entry with a key greater than f, or the right child of the last entry
+	 * if there is none. Used to scan the tree backward from f.
+	 * @param f - the key field to search for, or null for the right-most child
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	public BTreePageId findLastChild(Field f) throws DbException {
+		int[] slots = getSlotDirectory();
+		if(slots.length < 2 || slots[0] != 0)
+			throw new DbException("internal page " + pid + " has no entries");
+		if(f == null)
+			return new BTreePageId(pid.getTableId(), children[slots[slots.length - 1]], childCategory);
+		int lo = 1, hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[slots[mid]].compare(Op.GREATER_THAN, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -599,6 +919,7 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		slotDirectory = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -765,8 +1086,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is in the closest used slot before the key,
+				// which is not necessarily the one right before it
+				int left = entry - 1;
+				while(left > 0 && !p.isSlotUsed(left)) {
+					left--;
+				}
+				BTreePageId childId = p.getChildId(left);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
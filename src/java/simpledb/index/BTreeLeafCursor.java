@@ -0,0 +1,178 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Reads the tuples of a BTreeFile in key order, one leaf page at a time, while
+ * other threads insert and delete tuples. The tuples of a leaf are copied while the
+ * leaf is latched, so no latch is held between calls to {@link #next()}.
+ * <p>
+ * The cursor then moves to the right sibling of the leaf as it was when the leaf was
+ * read, which is still the right sibling as long as the structure of the tree has
+ * not changed. Tuples moved right by a concurrent split have already been read from
+ * the leaf they were on, and are not read again. If the structure did change, the
+ * sibling may have been merged away or reused, so the cursor goes back through the
+ * root to the leaf containing the last key returned, and skips the tuples it has
+ * already returned.
+ * <p>
+ * A reverse cursor reads the tuples in descending key order the same way, reading
+ * each leaf backward and moving to its left sibling.
+ */
+class BTreeLeafCursor {
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final Field start;
+	private final boolean reverse;
+
+	private List<Tuple> tuples = new ArrayList<>();
+	private int pos = 0;
+	// the sibling to read next: the right sibling, or the left one for a reverse cursor
+	private BTreePageId nextId = null;
+	private long version;
+
+	// the key of the last tuple returned, and how many tuples with that key were returned
+	private Field lastKey = null;
+	private int lastKeyCount = 0;
+	// number of tuples with key lastKey still to skip after going back through the root
+	private int skipCount = 0;
+	private boolean skipping = false;
+
+	/**
+	 * @param f - the BTreeFile to read
+	 * @param tid - the transaction id
+	 * @param start - the key field at which to start, or null to start at the left-most leaf
+	 */
+	BTreeLeafCursor(BTreeFile f, TransactionId tid, Field start)
+			throws DbException, TransactionAbortedException {
+		this(f, tid, start, false);
+	}
+
+	/**
+	 * @param f - the BTreeFile to read
+	 * @param tid - the transaction id
+	 * @param start - the key field at which to start, or null to start at the left-most
+	 * leaf, or at the right-most leaf if reverse is true
+	 * @param reverse - whether to read the tuples in descending key order
+	 */
+	BTreeLeafCursor(BTreeFile f, TransactionId tid, Field start, boolean reverse)
+			throws DbException, TransactionAbortedException {
+		this.f = f;
+		this.tid = tid;
+		this.start = start;
+		this.reverse = reverse;
+		descend(start);
+	}
+
+	/**
+	 * Returns the next tuple in key order, or in descending key order for a reverse
+	 * cursor, or null if there are no more tuples.
+	 */
+	Tuple next() throws DbException, TransactionAbortedException {
+		while(true) {
+			while(pos >= tuples.size()) {
+				if(nextId == null) {
+					return null;
+				}
+				moveNext();
+			}
+			Tuple t = tuples.get(pos++);
+			Field key = f.keyOf(t);
+			if(skipping) {
+				if(key.compare(reverse ? Op.GREATER_THAN : Op.LESS_THAN, lastKey)) {
+					continue;
+				}
+				if(key.compare(Op.EQUALS, lastKey) && skipCount > 0) {
+					skipCount--;
+					continue;
+				}
+				skipping = false;
+			}
+			if(lastKey != null && key.compare(Op.EQUALS, lastKey)) {
+				lastKeyCount++;
+			}
+			else {
+				lastKey = key;
+				lastKeyCount = 1;
+			}
+			return t;
+		}
+	}
+
+	private void moveNext() throws DbException, TransactionAbortedException {
+		f.latchTree();
+		try {
+			if(f.getStructureVersion() == version) {
+				BTreePageId pid = nextId;
+				f.latch(pid, false);
+				try {
+					read((BTreeLeafPage) f.getPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY));
+				} finally {
+					f.unlatch(pid, false);
+				}
+				return;
+			}
+		} finally {
+			f.unlatchTree();
+		}
+
+		// the leaf pages may have been merged, split or reused since the last read
+		if(lastKey == null) {
+			descend(start);
+		}
+		else {
+			descend(lastKey);
+			skipping = true;
+			skipCount = lastKeyCount;
+		}
+	}
+
+	private void descend(Field key) throws DbException, TransactionAbortedException {
+		f.latchTree();
+		try {
+			BTreeLeafPage page = f.latchLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, key, reverse);
+			if(page == null) {
+				tuples = new ArrayList<>();
+				pos = 0;
+				nextId = null;
+				return;
+			}
+			try {
+				read(page);
+			} finally {
+				f.unlatch(page.getId(), false);
+			}
+		} catch (IOException e) {
+			throw new DbException("unable to read the root of the B+ tree: " + e.getMessage());
+		} finally {
+			f.unlatchTree();
+		}
+	}
+
+	/**
+	 * Copy the tuples and next sibling of a latched leaf page, in the order they are
+	 * to be returned.
+	 */
+	private void read(BTreeLeafPage page) {
+		tuples = new ArrayList<>(page.getNumTuples());
+		Iterator<Tuple> it = reverse ? page.reverseIterator() : page.iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		pos = 0;
+		nextId = reverse ? page.getLeftSiblingId() : page.getRightSiblingId();
+		version = f.getStructureVersion();
+	}
+}
@@ -27,6 +27,10 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the slots in use, in key order; built from the header when needed and
+	// dropped whenever a slot is filled or cleared
+	private volatile int[] slotDirectory = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -34,8 +38,8 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(t)));
+			prev = keyOf(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -66,7 +70,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[]{key});
+	}
+
+	/**
+	 * Same as {@link #BTreeLeafPage(BTreePageId, byte[], int)}, for a B+ tree keyed
+	 * on one or more fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -117,7 +133,7 @@ public class BTreeLeafPage extends BTreePage {
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
-        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
+        return (getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
 	}
 
 	/**
@@ -140,7 +156,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -156,6 +172,21 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
+	/** Return the data of the before image of this page, without parsing it */
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -202,7 +233,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
+		int len = getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
@@ -265,7 +296,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -313,30 +344,38 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
+		// binary search for the last key less than or equal to the key being inserted
+		int[] slots = getSlotDirectory();
+		Field key = keyOf(t);
+		int lo = 0, hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keyOf(tuples[slots[mid]]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int lessOrEqKey = lo > 0 ? slots[lo - 1] : -1;
+		int greaterKey = lo < slots.length ? slots[lo] : numSlots;
+
+		// use the empty slot closest to that position, so that as few records as
+		// possible are shifted to keep the records in sorted order
 		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+		if(greaterKey - lessOrEqKey > 1) {
+			emptySlot = lessOrEqKey + 1;
+		}
+		else {
+			for (int d = 1; emptySlot == -1 && (lessOrEqKey - d >= 0 || greaterKey + d < numSlots); d++) {
+				if (greaterKey + d < numSlots && !isSlotUsed(greaterKey + d))
+					emptySlot = greaterKey + d;
+				else if (lessOrEqKey - d >= 0 && !isSlotUsed(lessOrEqKey - d))
+					emptySlot = lessOrEqKey - d;
 			}
 		}
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
-
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
 		int goodSlot = -1;
@@ -441,18 +480,35 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return getSlotDirectory().length;
 	}
 
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - getNumTuples();
+	}
+
+	/**
+	 * Returns the slots of this page in use, in key order, so that the tuples of the
+	 * page can be binary searched without walking the empty slots.
+	 */
+	int[] getSlotDirectory() {
+		int[] slots = slotDirectory;
+		if(slots == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			slots = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[cnt++] = i;
+			slotDirectory = slots;
+		}
+		return slots;
 	}
 
 	/**
@@ -472,6 +528,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		slotDirectory = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -5,10 +5,16 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.text.ParseException;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -26,10 +32,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock= (byte) 0;
+	protected final Object oldDataLock = new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -55,11 +62,90 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[]{key});
+	}
+
+	/**
+	 * Same as {@link #BTreePage(BTreePageId, int)}, for an index keyed on one or
+	 * more fields.
+	 *
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * Returns the key of a tuple in a B+ tree keyed on the given fields: the key
+	 * field itself, or a {@link CompositeField} of the key fields if there are
+	 * more than one.
+	 */
+	static Field keyOf(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < keyFields.length; i++) {
+			fields[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Returns the key of a tuple stored in this page's B+ tree.
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * Returns the number of bytes taken by a key in the fixed-width layout.
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for(int f : keyFields) {
+			size += td.getFieldType(f).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Reads a key written by {@link Field#serialize} in the fixed-width layout.
+	 */
+	protected Field parseKey(DataInputStream dis) throws ParseException {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyField).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < keyFields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Returns true if a field has the type of the keys of this page's B+ tree.
+	 */
+	protected boolean isKeyType(Field key) {
+		if(keyFields.length == 1) {
+			return key.getType().equals(td.getFieldType(keyField));
+		}
+		if(!(key instanceof CompositeField) || ((CompositeField) key).numFields() != keyFields.length) {
+			return false;
+		}
+		Type[] types = ((CompositeField) key).getTypes();
+		for(int i = 0; i < keyFields.length; i++) {
+			if(!types[i].equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -77,8 +163,22 @@ public abstract class BTreePage implements Page {
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
-		int len = BufferPool.getPageSize();
-		return new byte[len]; //all 0
+		return createEmptyPageData(BufferPool.getPageSize());
+	}
+
+	/**
+	 * Same as {@link #createEmptyPageData()}, for a BTreeFile with the given page size.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
+	}
+
+	/**
+	 * @return the size of this page, which is the page size of its BTreeFile
+	 * @see BufferPool#getPageSize(int)
+	 */
+	protected int getPageSize() {
+		return BufferPool.getPageSize(pid.getTableId());
 	}
 
 	/**
@@ -55,6 +55,15 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	public void setBeforeImage(byte[] data) {
+		oldData = data;
+	}
+
+	/** Return the data of the before image of this page, without parsing it */
+	public byte[] getBeforeImageData() {
+		return oldData;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -15,7 +15,9 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending order or, for a descending
+ * scan, in descending order by following the left sibling pointers
+ * of the leaf pages
  */
 public class BTreeScan implements OpIterator {
 
@@ -25,6 +27,7 @@ public class BTreeScan implements OpIterator {
 	private final TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private final boolean descending;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -45,12 +48,36 @@ public class BTreeScan implements OpIterator {
 	 *            are, but the resulting name can be null.fieldName,
 	 *            tableAlias.null, or null.null).
 	 * @param ipred
+	 * 			  The index predicate to match, possibly a range with a lower and an
+	 *            upper bound. If null, the scan will return all tuples in sorted order
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table as a part of the
+	 * specified transaction, returning the tuples in ascending or descending
+	 * key order.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table, see
+	 *            {@link #BTreeScan(TransactionId, int, String, IndexPredicate)}
+	 * @param ipred
 	 * 			  The index predicate to match. If null, the scan will return all tuples
 	 *            in sorted order
+	 * @param descending
+	 *            whether to return the tuples in descending key order
 	 */
-	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -71,6 +98,13 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return true if this scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -87,11 +121,17 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(ipred == null && !descending) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+			if(ipred == null) {
+				this.it = f.reverseIterator(tid);
+			}
+			else {
+				this.it = descending ? f.reverseIndexIterator(tid, ipred) : f.indexIterator(tid, ipred);
+			}
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
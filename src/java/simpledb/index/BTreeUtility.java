@@ -446,6 +446,7 @@ public class BTreeUtility {
 			throws IOException {
 		File f = new File(path);
 		// touch the file
+		PageChecksums.reset(f);
 		FileOutputStream fos = new FileOutputStream(f);
 		fos.write(new byte[0]);
 		fos.close();
@@ -462,6 +463,7 @@ public class BTreeUtility {
 	public static BTreeFile createEmptyBTreeFile(String path, int cols, int keyField, int pages)
 			throws IOException {
 		File f = new File(path);
+		PageChecksums.reset(f);
 		BufferedOutputStream bw = new BufferedOutputStream(
 				new FileOutputStream(f, true));
 		byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
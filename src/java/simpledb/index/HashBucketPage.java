@@ -0,0 +1,367 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket of a
+ * {@link HashFile}, the tuples whose keys have the same lowest localDepth bits of
+ * their hash. A bucket that cannot be split any more, because all its keys have
+ * the same hash or the directory is full, continues in a chain of overflow pages.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+	private final static int INDEX_SIZE = 4;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final int pageSize;
+	private final int numSlots;
+
+	private int localDepth;
+	private int nextOverflow;
+	private final byte[] header;
+	private final Tuple[] tuples;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is an integer for the local depth of the
+	 * bucket and an integer for the page number of the next overflow page (0 if
+	 * there is none), followed by header bytes indicating the slots of the page
+	 * that are in use and the tuple slots, as in a {@link HeapPage}.
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.pageSize = BufferPool.getPageSize(id.getTableId());
+		this.numSlots = getMaxTuples(td, pageSize);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		nextOverflow = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			// allocate and read the actual records of this page
+			for (int i = 0; i < tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Computes the number of tuples that fit in a bucket page
+	 *
+	 * @param td - the TupleDesc of the tuples of the hash file
+	 * @param pageSize - the size of the page in bytes
+	 */
+	public static int getMaxTuples(TupleDesc td, int pageSize) {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		return ((pageSize - 2 * INDEX_SIZE) * 8) / bitsPerTupleIncludingHeader;
+	}
+
+	/**
+	 * Computes the number of bytes in the header of this page
+	 */
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
+	/** Return the data of the before image of this page, without parsing it */
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i = 0; i < td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashBucketPage constructor and
+	 * have it produce an identical HashBucketPage object.
+	 *
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(nextOverflow);
+			dos.write(header);
+
+			for (int i = 0; i < tuples.length; i++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				// non-empty slot
+				for (int j = 0; j < td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+
+			// padding
+			dos.write(new byte[pageSize - (2 * INDEX_SIZE + header.length + td.getSize() * tuples.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage of local depth 0 with no overflow page.
+	 * Used to add new, empty pages to the file.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid){
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * @return the number of lowest bits of the hash that all the keys of this
+	 * bucket have in common
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/**
+	 * Set the local depth of this bucket
+	 * @param localDepth - the new local depth
+	 */
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the id of the next overflow page of this bucket, or null if this is
+	 * the last page of the bucket
+	 */
+	public HashPageId getNextOverflowId() {
+		if(nextOverflow == 0) {
+			return null;
+		}
+		return new HashPageId(pid.getTableId(), nextOverflow, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the id of the next overflow page of this bucket
+	 * @param id - the id of the next overflow page, or null if there is none
+	 * @throws DbException if the id is not valid
+	 */
+	public void setNextOverflowId(HashPageId id) throws DbException {
+		if(id == null) {
+			nextOverflow = 0;
+			return;
+		}
+		if(id.getTableId() != pid.getTableId()) {
+			throw new DbException("table id mismatch in setNextOverflowId");
+		}
+		if(id.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("overflow pages must be bucket pages");
+		}
+		nextOverflow = id.getPageNumber();
+	}
+
+	/**
+	 * Delete the specified tuple from the page, by its RecordId.
+	 *
+	 * @param t The tuple to delete
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !pid.equals(rid.getPageId())) {
+			throw new DbException("tried to delete tuple that is not on this page");
+		}
+		int slot = rid.getTupleNumber();
+		if(slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+			throw new DbException("tried to delete tuple from an empty slot");
+		}
+		markSlotUsed(slot, false);
+		tuples[slot] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple is updated to reflect
+	 * that it is now stored on this page.
+	 *
+	 * @param t The tuple to add.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int count = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (!isSlotUsed(i))
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] >> (i % 8) & 1) == 1;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		else
+			header[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> result = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++)
+			if (isSlotUsed(i))
+				result.add(tuples[i]);
+		return java.util.Collections.unmodifiableList(result).iterator();
+	}
+}
@@ -0,0 +1,227 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage is the first page of a {@link HashFile}: the directory of its
+ * extendible hash table. It maps the lowest globalDepth bits of the hash of a key
+ * to the page number of the bucket page holding the tuples with that key. Several
+ * entries point to the same bucket when the local depth of the bucket is less
+ * than the global depth.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashDirectoryPage implements Page {
+	private final static int INDEX_SIZE = 4;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final int pageSize;
+
+	private int globalDepth;
+	private final int[] buckets;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Constructor.
+	 * Construct the HashDirectoryPage from a set of bytes of data read from
+	 * disk.
+	 * The format of a HashDirectoryPage is an integer for the global depth,
+	 * followed by 2^globalDepth integers for the page numbers of the buckets.
+	 * A page number of 0 means that the hash file has no bucket yet.
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.pageSize = BufferPool.getPageSize(id.getTableId());
+		this.buckets = new int[1 << maxDepth(pageSize)];
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		globalDepth = dis.readInt();
+		for (int i = 0; i < (1 << globalDepth); i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Computes the largest global depth of the directory of a hash file, which
+	 * must fit in one page.
+	 *
+	 * @param pageSize - the size of the page in bytes
+	 */
+	public static int maxDepth(int pageSize) {
+		int entries = (pageSize - INDEX_SIZE) / INDEX_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/**
+	 * @return the largest global depth of this directory
+	 */
+	public int getMaxDepth() {
+		return maxDepth(pageSize);
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
+	/** Return the data of the before image of this page, without parsing it */
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this directory page.
+	 * Used to serialize this page to disk.
+	 * The invariant here is that it should be possible to pass the byte array
+	 * generated by getPageData to the HashDirectoryPage constructor and have it
+	 * produce an identical HashDirectoryPage object.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			for (int i = 0; i < (1 << globalDepth); i++)
+				dos.writeInt(buckets[i]);
+			dos.write(new byte[pageSize - INDEX_SIZE * (1 + (1 << globalDepth))]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage, of a hash file with no bucket.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid){
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of bits of the hash of a key used to find its bucket
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @return the number of entries of this directory, 2^globalDepth
+	 */
+	public int getNumEntries() {
+		return 1 << globalDepth;
+	}
+
+	/**
+	 * Get the id of the bucket page that the directory entry for a hash points to
+	 * @param hash - the hash of a key
+	 * @return the id of the bucket page, or null if the hash file has no bucket yet
+	 */
+	public HashPageId getBucketId(int hash) {
+		int bucket = buckets[hash & (getNumEntries() - 1)];
+		if(bucket == 0) {
+			return null;
+		}
+		return new HashPageId(pid.getTableId(), bucket, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Point a directory entry to a bucket page
+	 * @param entry - the index of the entry, less than 2^globalDepth
+	 * @param id - the id of the bucket page
+	 * @throws DbException if the id is not valid
+	 */
+	public void setBucketId(int entry, HashPageId id) throws DbException {
+		if(id.getTableId() != pid.getTableId()) {
+			throw new DbException("table id mismatch in setBucketId");
+		}
+		if(id.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("directory entries must point to bucket pages");
+		}
+		if(entry < 0 || entry >= getNumEntries()) {
+			throw new DbException("no directory entry " + entry + " at global depth " + globalDepth);
+		}
+		buckets[entry] = id.getPageNumber();
+	}
+
+	/**
+	 * Double the number of entries of this directory, each new entry pointing to
+	 * the same bucket as the entry differing from it in the new bit.
+	 * @throws DbException if the directory is at its largest global depth
+	 */
+	public void doubleDirectory() throws DbException {
+		if(globalDepth >= getMaxDepth()) {
+			throw new DbException("hash directory is full");
+		}
+		int n = getNumEntries();
+		System.arraycopy(buckets, 0, buckets, n, n);
+		globalDepth++;
+	}
+}
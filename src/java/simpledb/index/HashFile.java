@@ -0,0 +1,543 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores an extendible hash table
+ * on one field of its tuples. It answers equality lookups on that field by reading
+ * a single bucket, where a {@link BTreeFile} descends from the root to a leaf.
+ * <p>
+ * Page 0 is a {@link HashDirectoryPage}, mapping the lowest bits of the hash of a
+ * key to a {@link HashBucketPage}. When a bucket fills up, it is split in two
+ * along the next bit of the hash, doubling the directory if needed: only the
+ * tuples of that bucket move, and the rest of the table is never rehashed. A
+ * bucket whose keys all have the same hash, or that cannot be split because the
+ * directory fills its page, continues in a chain of overflow pages. Buckets are
+ * not merged when tuples are deleted.
+ * <p>
+ * Inserts and deletes are serialized on the file, and lookups read the bucket
+ * they need while holding the same latch.
+ *
+ * @see HashDirectoryPage#HashDirectoryPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final PageChecksums checksums;
+
+	/**
+	 * Constructs a hash file backed by the specified file, with the global page size.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the field the tuples are hashed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.checksums = new PageChecksums(f);
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash of the absolute
+	 * file name of its file.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * @return the index of the field the tuples are hashed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Hashes a key. The hash code of the field is mixed so that its low bits,
+	 * which choose the bucket, depend on all of its bits.
+	 *
+	 * @param key - the value of the key field of a tuple
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		try {
+			if(id.pgcateg() == HashPageId.DIRECTORY && f.length() == 0) {
+				// the file has not been written yet: it has an empty directory
+				return new HashDirectoryPage(id, HashDirectoryPage.createEmptyPageData(getPageSize()));
+			}
+			byte[] pageBuf = new byte[getPageSize()];
+			try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+				rf.seek(pageOffset(id));
+				rf.readFully(pageBuf);
+			} catch (EOFException e) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			pageBuf = checksums.verify(id.getPageNumber(), pageOffset(id), pageBuf);
+			if(id.pgcateg() == HashPageId.DIRECTORY) {
+				return new HashDirectoryPage(id, pageBuf);
+			}
+			return new HashBucketPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		writePages(Collections.singletonList(page));
+	}
+
+	/**
+	 * Write several pages to disk, forcing their images to the double-write buffer
+	 * at once. This should not be called directly but should be called from the
+	 * BufferPool when pages are flushed to disk
+	 *
+	 * @param pages - the pages to write to disk
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		int[] slots = new int[pages.size()];
+		long[] offsets = new long[pages.size()];
+		byte[][] data = new byte[pages.size()][];
+		for(int i = 0; i < pages.size(); i++) {
+			HashPageId id = (HashPageId) pages.get(i).getId();
+			slots[i] = id.getPageNumber();
+			offsets[i] = pageOffset(id);
+			data[i] = pages.get(i).getPageData();
+		}
+		checksums.beforeWrite(slots, offsets, data);
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			for(int i = 0; i < pages.size(); i++) {
+				rf.seek(offsets[i]);
+				rf.write(data[i]);
+			}
+		}
+		for(int i = 0; i < pages.size(); i++) {
+			checksums.afterWrite(slots[i], data[i]);
+		}
+	}
+
+	private long pageOffset(HashPageId id) {
+		return (long) id.getPageNumber() * getPageSize();
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the directory page.
+	 */
+	public int numPages() {
+		return (int) (f.length() / getPageSize());
+	}
+
+	/**
+	 * Get a page, from the pages already changed by this operation if it is one of
+	 * them. Pages fetched READ_WRITE are added to the changed pages.
+	 */
+	private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if(perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Append an empty bucket page to the file.
+	 *
+	 * @return the new page, fetched READ_WRITE
+	 */
+	private HashBucketPage newBucketPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		int pageNo = Math.max(numPages(), 1);
+		HashPageId pid = new HashPageId(tableid, pageNo, HashPageId.BUCKET);
+		Database.getBufferPool().discardPage(pid);
+		byte[] emptyData = HashBucketPage.createEmptyPageData(getPageSize());
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			if(rf.length() == 0) {
+				// the directory page comes first
+				rf.write(HashDirectoryPage.createEmptyPageData(getPageSize()));
+				checksums.afterWrite(0, HashDirectoryPage.createEmptyPageData(getPageSize()));
+			}
+			rf.seek(pageOffset(pid));
+			rf.write(emptyData);
+		}
+		checksums.afterWrite(pageNo, emptyData);
+		return (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, splitting its bucket if it is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public synchronized List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		int h = hash(t.getField(keyField));
+
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				HashPageId.directoryId(tableid), Permissions.READ_WRITE);
+		if(dir.getBucketId(h) == null) {
+			dir.setBucketId(0, newBucketPage(tid, dirtypages).getId());
+		}
+
+		while(true) {
+			HashPageId bucketId = dir.getBucketId(h);
+			HashBucketPage page = findPageWithRoom(tid, dirtypages, bucketId);
+			if(page != null) {
+				page.insertTuple(t);
+				break;
+			}
+			HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages, bucketId, Permissions.READ_WRITE);
+			if(bucket.getLocalDepth() >= dir.getMaxDepth() || allHash(tid, dirtypages, bucketId, h)) {
+				// splitting would not make room: chain an overflow page
+				appendOverflowPage(tid, dirtypages, bucketId).insertTuple(t);
+				break;
+			}
+			splitBucket(tid, dirtypages, dir, bucket);
+		}
+		return dirtied(tid, dirtypages);
+	}
+
+	/**
+	 * Mark the pages changed by an operation dirty and put them into the buffer pool
+	 * before the file latch is released.
+	 */
+	private static List<Page> dirtied(TransactionId tid, Map<PageId, Page> dirtypages) throws IOException {
+		List<Page> pages = new ArrayList<>(dirtypages.values());
+		Database.getBufferPool().cacheDirtyPages(tid, pages);
+		return pages;
+	}
+
+	/**
+	 * @return the first page of a bucket chain with an empty slot, or null if all
+	 * of its pages are full
+	 */
+	private HashBucketPage findPageWithRoom(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId bucketId)
+			throws DbException, TransactionAbortedException {
+		for(HashPageId id = bucketId; id != null; ) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_ONLY);
+			if(page.getNumEmptySlots() > 0) {
+				return (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+			}
+			id = page.getNextOverflowId();
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if all the tuples of a bucket chain have the given hash
+	 */
+	private boolean allHash(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId bucketId, int h)
+			throws DbException, TransactionAbortedException {
+		for(HashPageId id = bucketId; id != null; ) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_ONLY);
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				if(hash(it.next().getField(keyField)) != h) {
+					return false;
+				}
+			}
+			id = page.getNextOverflowId();
+		}
+		return true;
+	}
+
+	/**
+	 * Add an empty overflow page at the end of a bucket chain.
+	 *
+	 * @return the new page
+	 */
+	private HashBucketPage appendOverflowPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId bucketId)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage last = (HashBucketPage) getPage(tid, dirtypages, bucketId, Permissions.READ_WRITE);
+		while(last.getNextOverflowId() != null) {
+			last = (HashBucketPage) getPage(tid, dirtypages, last.getNextOverflowId(), Permissions.READ_WRITE);
+		}
+		HashBucketPage overflow = newBucketPage(tid, dirtypages);
+		overflow.setLocalDepth(last.getLocalDepth());
+		last.setNextOverflowId(overflow.getId());
+		return overflow;
+	}
+
+	/**
+	 * Split a bucket along the bit of the hash following its local depth: the
+	 * tuples with that bit set move to a new bucket, and the directory entries
+	 * with that bit set are pointed to it. The directory is doubled first if the
+	 * local depth of the bucket is its global depth.
+	 *
+	 * @param dir - the directory page
+	 * @param bucket - the first page of the bucket chain to split
+	 */
+	private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashDirectoryPage dir,
+			HashBucketPage bucket) throws DbException, IOException, TransactionAbortedException {
+		int depth = bucket.getLocalDepth();
+		if(depth == dir.getGlobalDepth()) {
+			dir.doubleDirectory();
+		}
+		int bit = 1 << depth;
+		int low = bucketEntry(dir, bucket.getId()) & (bit - 1);
+
+		HashBucketPage sibling = newBucketPage(tid, dirtypages);
+		sibling.setLocalDepth(depth + 1);
+		for(HashPageId id = bucket.getId(); id != null; ) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+			page.setLocalDepth(depth + 1);
+			List<Tuple> moved = new ArrayList<>();
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if((hash(t.getField(keyField)) & bit) != 0) {
+					moved.add(t);
+				}
+			}
+			for(Tuple t : moved) {
+				page.deleteTuple(t);
+				HashBucketPage dest = findPageWithRoom(tid, dirtypages, sibling.getId());
+				if(dest == null) {
+					dest = appendOverflowPage(tid, dirtypages, sibling.getId());
+				}
+				dest.insertTuple(t);
+			}
+			id = page.getNextOverflowId();
+		}
+
+		// the entries pointing to the bucket are those whose low depth bits are the
+		// same as the bucket's; those of them with the new bit set now point to the sibling
+		for(int e = low | bit; e < dir.getNumEntries(); e += bit << 1) {
+			dir.setBucketId(e, sibling.getId());
+		}
+	}
+
+	/**
+	 * Find the index of one directory entry pointing to a bucket.
+	 */
+	private static int bucketEntry(HashDirectoryPage dir, HashPageId bucketId) throws DbException {
+		for(int e = 0; e < dir.getNumEntries(); e++) {
+			if(bucketId.equals(dir.getBucketId(e))) {
+				return e;
+			}
+		}
+		throw new DbException("no directory entry points to bucket " + bucketId.getPageNumber());
+	}
+
+	/**
+	 * Delete a tuple from this HashFile, using its RecordId.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if the tuple is not in this file
+	 */
+	public synchronized List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		RecordId rid = t.getRecordId();
+		if(rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tried to delete tuple that is not in this file");
+		}
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, (HashPageId) rid.getPageId(),
+				Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return dirtied(tid, dirtypages);
+	}
+
+	/**
+	 * Get the tuples of this file whose key field matches a predicate. Equality is
+	 * answered by reading the bucket chain of the key; other operations scan the
+	 * whole file, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key field
+	 * @return an iterator over the matching tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(ipred.getOp() == Op.EQUALS) {
+			return new HashLookupIterator(this, tid, ipred.getField());
+		}
+		return new HashFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Read the tuples of the bucket chain of a key that have that key.
+	 */
+	synchronized List<Tuple> lookupKey(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		List<Tuple> result = new ArrayList<>();
+		HashDirectoryPage dir = (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+				HashPageId.directoryId(tableid), Permissions.READ_ONLY);
+		for(HashPageId id = dir.getBucketId(hash(key)); id != null; ) {
+			HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_ONLY);
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(t.getField(keyField).equals(key)) {
+					result.add(t);
+				}
+			}
+			id = page.getNextOverflowId();
+		}
+		return result;
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+}
+
+/**
+ * Helper class that reads the tuples of all the bucket pages of a HashFile,
+ * optionally filtered by a predicate on the key field.
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	private int pageNo;
+	private Iterator<Tuple> tuples;
+
+	HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	public void open() {
+		pageNo = 0;
+		tuples = Collections.emptyIterator();
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		if(tuples == null) {
+			return null;
+		}
+		while(true) {
+			while(tuples.hasNext()) {
+				Tuple t = tuples.next();
+				if(ipred == null || ipred.matches(t.getField(f.keyField()))) {
+					return t;
+				}
+			}
+			if(++pageNo >= f.numPages()) {
+				return null;
+			}
+			HashPageId pid = new HashPageId(f.getId(), pageNo, HashPageId.BUCKET);
+			tuples = ((HashBucketPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+		}
+	}
+
+	public void rewind() {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		tuples = null;
+	}
+}
+
+/**
+ * Helper class that returns the tuples of a HashFile with a given key.
+ */
+class HashLookupIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final Field key;
+	private Iterator<Tuple> tuples;
+
+	HashLookupIterator(HashFile f, TransactionId tid, Field key) {
+		this.f = f;
+		this.tid = tid;
+		this.key = key;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		tuples = f.lookupKey(tid, key).iterator();
+	}
+
+	@Override
+	protected Tuple readNext() {
+		if(tuples == null || !tuples.hasNext()) {
+			return null;
+		}
+		return tuples.next();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		tuples = null;
+	}
+}
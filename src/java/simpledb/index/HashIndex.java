@@ -0,0 +1,131 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashIndex is a hash table on one column of a HeapFile, holding (key, page
+ * number, slot) entries like a {@link SecondaryIndex}. It only answers equality
+ * lookups, but reads a single bucket for them instead of descending a B+ tree,
+ * which makes it the cheaper index for point filters and for the inner side of an
+ * {@link simpledb.execution.IndexNestedLoopJoin}.
+ *
+ * @see HashFile
+ * @see TableIndex
+ */
+public class HashIndex extends HashFile implements TableIndex {
+
+	private final HeapFile table;
+	private final int field;
+
+	/**
+	 * Open an index, stored in the given file, on a column of a table.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this index
+	 * @param table - the indexed table
+	 * @param field - the index of the indexed column in the tuples of the table
+	 */
+	public HashIndex(File f, HeapFile table, int field) {
+		super(f, 0, SecondaryIndex.entryDesc(table.getTupleDesc(), field, new int[0]));
+		this.table = table;
+		this.field = field;
+	}
+
+	/**
+	 * Build an index on a column of a table that already holds tuples, replacing any
+	 * previous contents of the file. The entries are inserted through the buffer
+	 * pool, so the index is added to the catalog first.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index, which must be in the catalog
+	 * @param field - the column to index
+	 * @param f - the file to store the index in
+	 * @return the index, which is added to the catalog
+	 */
+	public static HashIndex create(TransactionId tid, HeapFile table, int field, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.setLength(0);
+		}
+		PageChecksums.reset(f);
+		HashIndex index = new HashIndex(f, table, field);
+		Database.getCatalog().addIndex(index);
+		DbFileIterator tuples = table.iterator(tid);
+		tuples.open();
+		try {
+			while(tuples.hasNext()) {
+				Database.getBufferPool().cacheDirtyPages(tid, index.insertEntry(tid, tuples.next()));
+			}
+		} finally {
+			tuples.close();
+		}
+		return index;
+	}
+
+	public HeapFile getTable() {
+		return table;
+	}
+
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * A hash table only looks up equality.
+	 */
+	public boolean supports(Op op) {
+		return op == Op.EQUALS;
+	}
+
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return insertTuple(tid, SecondaryIndex.entry(getTupleDesc(), field, new int[0], t));
+	}
+
+	public List<Page> insertEntries(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Page> pages = new ArrayList<>();
+		for(Tuple t : tuples) {
+			pages.addAll(insertEntry(tid, t));
+		}
+		return pages;
+	}
+
+	public List<Page> deleteEntry(TransactionId tid, Field key, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		for(Tuple e : lookupKey(tid, key)) {
+			if(rid.equals(SecondaryIndex.recordId(table, e))) {
+				return deleteTuple(tid, e);
+			}
+		}
+		throw new DbException("no index entry for tuple " + rid.getPageId().getPageNumber()
+				+ "/" + rid.getTupleNumber());
+	}
+
+	public void tupleMoved(TransactionId tid, RecordId oldRid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Page> pages = new ArrayList<>(deleteEntry(tid, t.getField(field), oldRid));
+		pages.addAll(insertEntry(tid, t));
+		Database.getBufferPool().cacheDirtyPages(tid, pages);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed column matches the
+	 * given predicate. Only equality reads a single bucket; other operations scan
+	 * every entry.
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		return new SecondaryIndex.EntryTupleIterator(table, tid, indexIterator(tid, ipred));
+	}
+}
@@ -0,0 +1,79 @@
+package simpledb.index;
+
+import java.io.*;
+
+import simpledb.storage.Field;
+
+/**
+ * A Bloom filter over the keys of a sorted run of an LsmFile, so that a point
+ * lookup only reads the runs that may hold its key. With {@link #BITS_PER_KEY}
+ * bits per key and {@link #NUM_HASHES} hash functions, about one lookup of an
+ * absent key in a hundred reads the run anyway.
+ */
+class LsmBloomFilter {
+
+	static final int BITS_PER_KEY = 10;
+	static final int NUM_HASHES = 7;
+
+	private final long[] bits;
+
+	/**
+	 * Create an empty filter sized for the given number of keys.
+	 */
+	LsmBloomFilter(int expectedKeys) {
+		this(new long[Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64))]);
+	}
+
+	private LsmBloomFilter(long[] bits) {
+		this.bits = bits;
+	}
+
+	/**
+	 * Returns the position of the i-th bit of a key, with double hashing.
+	 */
+	private int bit(int h1, int h2, int i) {
+		return (int) Math.floorMod(h1 + (long) i * h2, (long) bits.length * 64);
+	}
+
+	private static int secondHash(int h1) {
+		// odd, so that the positions of a key are all different
+		return (Integer.rotateLeft(h1, 16) * 0x9e3779b9) | 1;
+	}
+
+	void add(Field key) {
+		int h1 = HashFile.hash(key), h2 = secondHash(h1);
+		for(int i = 0; i < NUM_HASHES; i++) {
+			int b = bit(h1, h2, i);
+			bits[b >>> 6] |= 1L << b;
+		}
+	}
+
+	/**
+	 * @return false if the key was never added, true if it may have been
+	 */
+	boolean mightContain(Field key) {
+		int h1 = HashFile.hash(key), h2 = secondHash(h1);
+		for(int i = 0; i < NUM_HASHES; i++) {
+			int b = bit(h1, h2, i);
+			if((bits[b >>> 6] & (1L << b)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(bits.length);
+		for(long word : bits) {
+			dos.writeLong(word);
+		}
+	}
+
+	static LsmBloomFilter read(DataInputStream dis) throws IOException {
+		long[] bits = new long[dis.readInt()];
+		for(int i = 0; i < bits.length; i++) {
+			bits[i] = dis.readLong();
+		}
+		return new LsmBloomFilter(bits);
+	}
+}
@@ -0,0 +1,87 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Comparator;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * An entry of an LsmFile: a tuple with the sequence number it was inserted with,
+ * or a tombstone deleting the entry with the same tuple and sequence number.
+ * Sequence numbers are unique in a file, so a tombstone deletes exactly one entry,
+ * wherever that entry is.
+ */
+class LsmEntry {
+
+	final Tuple tuple;
+	final long seq;
+	final boolean tombstone;
+
+	LsmEntry(Tuple tuple, long seq, boolean tombstone) {
+		this.tuple = tuple;
+		this.seq = seq;
+		this.tombstone = tombstone;
+	}
+
+	/**
+	 * Returns the number of bytes an entry of tuples with the given TupleDesc
+	 * takes: its sequence number, a tombstone flag and its tuple.
+	 */
+	static int size(TupleDesc td) {
+		return 8 + 1 + td.getSize();
+	}
+
+	/**
+	 * Returns the order of the entries of a file keyed on the given field: by
+	 * key, then by sequence number, with a tombstone right before the entry it
+	 * deletes.
+	 */
+	static Comparator<LsmEntry> order(int keyField) {
+		return (a, b) -> {
+			Field ka = a.tuple.getField(keyField), kb = b.tuple.getField(keyField);
+			if(ka.compare(Op.LESS_THAN, kb)) {
+				return -1;
+			}
+			if(ka.compare(Op.GREATER_THAN, kb)) {
+				return 1;
+			}
+			if(a.seq != b.seq) {
+				return Long.compare(a.seq, b.seq);
+			}
+			return Boolean.compare(b.tombstone, a.tombstone);
+		};
+	}
+
+	/**
+	 * @return true if this is a tombstone deleting the entry e
+	 */
+	boolean deletes(LsmEntry e) {
+		return tombstone && !e.tombstone && seq == e.seq;
+	}
+
+	void write(DataOutputStream dos) throws IOException {
+		dos.writeLong(seq);
+		dos.writeBoolean(tombstone);
+		for(int i = 0; i < tuple.getTupleDesc().numFields(); i++) {
+			tuple.getField(i).serialize(dos);
+		}
+	}
+
+	static LsmEntry read(DataInputStream dis, TupleDesc td) throws IOException {
+		long seq = dis.readLong();
+		boolean tombstone = dis.readBoolean();
+		Tuple t = new Tuple(td);
+		try {
+			for(int i = 0; i < td.numFields(); i++) {
+				t.setField(i, td.getFieldType(i).parse(dis));
+			}
+		} catch (ParseException e) {
+			throw new IOException("corrupt LSM entry: " + e.getMessage());
+		}
+		return new LsmEntry(t, seq, tombstone);
+	}
+}
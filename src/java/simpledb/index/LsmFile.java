@@ -0,0 +1,839 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * LsmFile is an implementation of a DbFile that stores its tuples in a
+ * log-structured merge tree, sorted on one field, for tables that take many
+ * inserts with random keys. An insert never reads or rewrites a page: it is
+ * appended to the log of the memtable and added to the memtable, which is sorted
+ * in memory. A full memtable is written out sequentially as an immutable sorted
+ * run, and runs are merged into larger ones in the background.
+ * <p>
+ * The file given to the constructor is the manifest: it lists the live runs and
+ * their levels, and is replaced atomically whenever they change. The memtable log
+ * and each run are kept in files next to it. Each run has fence pointers to its
+ * pages and a Bloom filter of its keys (see {@link LsmRun}), so that a point
+ * lookup only reads one page, or a few for duplicate keys, of the runs that may
+ * hold its key. Run pages are read through the buffer pool as {@link LsmRunPage}s.
+ * <p>
+ * Compaction is tiered: memtables are written out to level 0, and once a level
+ * holds {@code fanout} runs they are merged into one run on the next level, so
+ * that each entry is rewritten about once per level. Deleting a tuple removes it
+ * from the memtable if it is still there, and adds a tombstone for it otherwise;
+ * a tombstone is dropped with its entry when a compaction merges both.
+ * <p>
+ * Inserts and deletes are serialized on the file and are visible at once; they
+ * change no pages of the buffer pool, and are not undone when a transaction
+ * aborts. Iterators read the runs and the memtable as of when they were opened,
+ * except that they see deletions from the memtable made since.
+ *
+ * @see LsmMemtable
+ * @see LsmRun
+ */
+public class LsmFile implements DbFile {
+
+	/** Default number of entries of the memtable that makes it written out */
+	public static final int DEFAULT_MEMTABLE_ENTRIES = 4096;
+	/** Default number of runs of a level that are merged into the next level */
+	public static final int DEFAULT_FANOUT = 4;
+
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "lsm-compaction");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final File f;
+	private final File logFile;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int memtableEntries;
+	private final int fanout;
+	private final Comparator<LsmEntry> order;
+	private final RecordId memtableRid;
+
+	// guarded by this
+	private LsmMemtable memtable;
+	private final List<List<LsmRun>> levels = new ArrayList<>();
+	private long nextSeq = 1;
+	private long flushedLsn = 0;
+	private int nextRunNo = 1;
+
+	// every run whose file still exists, including those replaced but still read
+	private final Map<Integer, LsmRun> runs = new ConcurrentHashMap<>();
+	private final Object compactionLock = new Object();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Constructs an LSM file with the default memtable size and fanout.
+	 *
+	 * @param f - the manifest file of the LSM file, empty for a new file
+	 * @param key - the field the tuples are sorted on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public LsmFile(File f, int key, TupleDesc td) {
+		this(f, key, td, DEFAULT_MEMTABLE_ENTRIES, DEFAULT_FANOUT);
+	}
+
+	/**
+	 * Constructs an LSM file, recovering its runs and memtable if the manifest
+	 * file is not empty.
+	 *
+	 * @param f - the manifest file of the LSM file, empty for a new file
+	 * @param key - the field the tuples are sorted on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param memtableEntries - the number of entries of the memtable that makes
+	 * it written out as a run
+	 * @param fanout - the number of runs of a level merged into the next one
+	 */
+	public LsmFile(File f, int key, TupleDesc td, int memtableEntries, int fanout) {
+		if(fanout < 2) {
+			throw new IllegalArgumentException("fanout must be at least 2");
+		}
+		this.f = f;
+		this.logFile = new File(f.getPath() + ".log");
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.memtableEntries = memtableEntries;
+		this.fanout = fanout;
+		this.order = LsmEntry.order(key);
+		this.memtableRid = new RecordId(new LsmPageId(tableid, LsmPageId.MEMTABLE, 0), 0);
+		try {
+			if(f.length() == 0) {
+				writeManifest();
+				memtable = LsmMemtable.create(logFile, order, td, memtableRid, flushedLsn);
+			} else {
+				readManifest();
+				memtable = LsmMemtable.recover(logFile, order, td, memtableRid, flushedLsn);
+				nextSeq = Math.max(nextSeq, memtable.getLastLsn() + 1);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the manifest file of this LsmFile.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this LsmFile, the hash of the absolute
+	 * file name of its manifest.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * @return the index of the field the tuples are sorted on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	private File runFile(int runNo) {
+		return new File(f.getPath() + "." + runNo + ".run");
+	}
+
+	/**
+	 * Write the manifest: the next sequence number, the log sequence number of the
+	 * last log record written out to a run, the next run number, and the number
+	 * and level of each live run. Must be called with the file latched.
+	 */
+	private void writeManifest() throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			dos.writeLong(nextSeq);
+			dos.writeLong(flushedLsn);
+			dos.writeInt(nextRunNo);
+			dos.writeInt(levels.size());
+			for(List<LsmRun> level : levels) {
+				dos.writeInt(level.size());
+				for(LsmRun run : level) {
+					dos.writeInt(run.getRunNumber());
+				}
+			}
+		}
+		bytesWritten.addAndGet(tmp.length());
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void readManifest() throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			nextSeq = dis.readLong();
+			flushedLsn = dis.readLong();
+			nextRunNo = dis.readInt();
+			int numLevels = dis.readInt();
+			for(int l = 0; l < numLevels; l++) {
+				List<LsmRun> level = new ArrayList<>();
+				int n = dis.readInt();
+				for(int i = 0; i < n; i++) {
+					int runNo = dis.readInt();
+					LsmRun run = LsmRun.open(runFile(runNo), runNo, td, keyField, getPageSize());
+					level.add(run);
+					runs.put(runNo, run);
+				}
+				levels.add(level);
+			}
+		}
+	}
+
+	/**
+	 * Read a page of a run from its file. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		LsmPageId id = (LsmPageId) pid;
+		LsmRun run = runs.get(id.getRunNumber());
+		if(run == null) {
+			throw new IllegalArgumentException("run " + id.getRunNumber() + " is not in this file");
+		}
+		try {
+			return new LsmRunPage(id, run.readPageData(id.getPageNumber()), td);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Run pages never change, so they are always on disk already.
+	 */
+	public void writePage(Page page) {
+	}
+
+	/**
+	 * Insert a tuple into this LsmFile: log it and add it to the memtable, writing
+	 * the memtable out as a run once it is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return an empty list, since no page is changed
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!t.getTupleDesc().equals(td)) {
+			throw new DbException("tuple does not match the TupleDesc of the table");
+		}
+		synchronized(this) {
+			memtable.insert(t, nextSeq++);
+			if(memtable.size() >= memtableEntries) {
+				flushMemtable();
+			}
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Delete a tuple from this LsmFile: an entry with the same fields, the one the
+	 * tuple was read from if it is still there.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return an empty list, since no page is changed
+	 * @throws DbException if the tuple is not in this file
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !(rid.getPageId() instanceof LsmPageId) || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tried to delete tuple that is not in this file");
+		}
+		synchronized(this) {
+			LsmEntry found = null;
+			LsmFileIterator it = new LsmFileIterator(this, tid,
+					new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+			it.open();
+			try {
+				LsmEntry e;
+				while((e = it.nextEntry()) != null) {
+					if(sameFields(e.tuple, t) && (found == null || rid.equals(e.tuple.getRecordId()))) {
+						found = e;
+					}
+				}
+			} finally {
+				it.close();
+			}
+			if(found == null) {
+				throw new DbException("tried to delete tuple that is not in this file");
+			}
+			memtable.delete(found, nextSeq++);
+			if(memtable.size() >= memtableEntries) {
+				flushMemtable();
+			}
+		}
+		t.setRecordId(null);
+		return new ArrayList<>();
+	}
+
+	private static boolean sameFields(Tuple a, Tuple b) {
+		for(int i = 0; i < a.getTupleDesc().numFields(); i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the memtable out as a run on level 0, and start a new memtable and
+	 * log. Compactions that become due are started in the background.
+	 */
+	public synchronized void flush() throws IOException {
+		flushMemtable();
+	}
+
+	/**
+	 * Write the memtable out. The run is in the manifest before the log is
+	 * truncated, and the manifest records the last log record the run holds, so
+	 * that the records are replayed exactly once whenever the process stops.
+	 */
+	private synchronized void flushMemtable() throws IOException {
+		if(memtable.size() == 0) {
+			return;
+		}
+		LsmMemtable old = memtable;
+		old.closeLog();
+		int runNo = nextRunNo++;
+		LsmRun run = LsmRun.write(runFile(runNo), runNo, old.iterator(null), old.size(), td, keyField,
+				getPageSize());
+		if(levels.isEmpty()) {
+			levels.add(new ArrayList<>());
+		}
+		levels.get(0).add(run);
+		runs.put(runNo, run);
+		flushedLsn = old.getLastLsn();
+		writeManifest();
+		bytesWritten.addAndGet(old.getLogBytes() + run.getSize());
+		memtable = LsmMemtable.create(logFile, order, td, memtableRid, flushedLsn);
+
+		if(levels.get(0).size() >= fanout) {
+			compactor.submit(() -> {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Merge the runs of every level that holds {@code fanout} runs into one run on
+	 * the next level, from level 0 down, until no level is full. Compactions run
+	 * one at a time, in the background after a flush, but may also be run by the
+	 * caller; inserts and reads go on meanwhile.
+	 */
+	public void compact() throws IOException {
+		synchronized(compactionLock) {
+			while(true) {
+				List<LsmRun> inputs = null;
+				int level = 0;
+				int runNo;
+				boolean allRuns;
+				synchronized(this) {
+					for(; level < levels.size(); level++) {
+						if(levels.get(level).size() >= fanout) {
+							inputs = new ArrayList<>(levels.get(level));
+							break;
+						}
+					}
+					if(inputs == null) {
+						return;
+					}
+					allRuns = inputs.size() == numLiveRuns();
+					runNo = nextRunNo++;
+				}
+
+				// runs written out meanwhile only hold entries inserted after the
+				// tombstones of the inputs, so with no other run left the entries
+				// of the remaining tombstones were already dropped
+				replace(inputs, merge(inputs, runNo, !allRuns), level + 1);
+			}
+		}
+	}
+
+	/**
+	 * Merge every run into one run on the deepest level, dropping every deleted
+	 * entry and its tombstone.
+	 */
+	public void compactAll() throws IOException {
+		synchronized(compactionLock) {
+			List<LsmRun> inputs = new ArrayList<>();
+			int level, runNo;
+			synchronized(this) {
+				for(List<LsmRun> l : levels) {
+					inputs.addAll(l);
+				}
+				if(inputs.size() < 2) {
+					return;
+				}
+				level = levels.size() - 1;
+				runNo = nextRunNo++;
+			}
+			replace(inputs, merge(inputs, runNo, false), level);
+		}
+	}
+
+	/**
+	 * Replace runs with the run they were merged into, and delete their files
+	 * once no iterator reads them.
+	 *
+	 * @param inputs - the merged runs
+	 * @param out - the run they were merged into, or null if it is empty
+	 * @param level - the level of the new run
+	 */
+	private void replace(List<LsmRun> inputs, LsmRun out, int level) throws IOException {
+		synchronized(this) {
+			for(List<LsmRun> l : levels) {
+				l.removeAll(inputs);
+			}
+			if(out != null) {
+				while(levels.size() <= level) {
+					levels.add(new ArrayList<>());
+				}
+				levels.get(level).add(out);
+				runs.put(out.getRunNumber(), out);
+				bytesWritten.addAndGet(out.getSize());
+			}
+			writeManifest();
+		}
+		for(LsmRun run : inputs) {
+			if(run.replace()) {
+				forget(run);
+			}
+		}
+	}
+
+	/**
+	 * Merge runs into a new run, reading their pages from disk rather than
+	 * through the buffer pool.
+	 *
+	 * @return the new run, or null if every entry was deleted
+	 */
+	private LsmRun merge(List<LsmRun> inputs, int runNo, boolean keepTombstones) throws IOException {
+		List<LsmMergeIterator.Source> sources = new ArrayList<>();
+		int expected = 0;
+		for(LsmRun run : inputs) {
+			sources.add(new LsmMergeIterator.RunSource(run, 0, (r, pgNo) -> (LsmRunPage) readPage(
+					new LsmPageId(tableid, r.getRunNumber(), pgNo))));
+			expected += run.getNumEntries();
+		}
+		try {
+			LsmMergeIterator merged = new LsmMergeIterator(sources, order, keepTombstones);
+			Iterator<LsmEntry> entries = new Iterator<LsmEntry>() {
+				private LsmEntry next = merged.next();
+
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				public LsmEntry next() {
+					LsmEntry e = next;
+					try {
+						next = merged.next();
+					} catch (DbException | TransactionAbortedException ex) {
+						throw new RuntimeException(ex);
+					}
+					return e;
+				}
+			};
+			return LsmRun.write(runFile(runNo), runNo, entries, expected, td, keyField, getPageSize());
+		} catch (DbException | TransactionAbortedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Drop a run whose file was deleted, and its pages from the buffer pool.
+	 */
+	private void forget(LsmRun run) {
+		runs.remove(run.getRunNumber());
+		for(int i = 0; i < run.getNumPages(); i++) {
+			Database.getBufferPool().discardPage(new LsmPageId(tableid, run.getRunNumber(), i));
+		}
+	}
+
+	/**
+	 * Take the memtable and a reference to every live run, for an iterator.
+	 */
+	synchronized LsmSnapshot snapshot() {
+		List<LsmRun> live = new ArrayList<>();
+		for(List<LsmRun> level : levels) {
+			for(LsmRun run : level) {
+				// live runs are referenced by the file until they are replaced
+				run.acquire();
+				live.add(run);
+			}
+		}
+		return new LsmSnapshot(memtable, nextSeq, live);
+	}
+
+	/**
+	 * Release the references an iterator took to runs.
+	 */
+	void release(LsmSnapshot snapshot) {
+		for(LsmRun run : snapshot.runs) {
+			if(run.release()) {
+				forget(run);
+			}
+		}
+	}
+
+	Comparator<LsmEntry> order() {
+		return order;
+	}
+
+	private synchronized int numLiveRuns() {
+		int n = 0;
+		for(List<LsmRun> level : levels) {
+			n += level.size();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of runs on each level
+	 */
+	public synchronized int[] numRuns() {
+		int[] n = new int[levels.size()];
+		for(int l = 0; l < n.length; l++) {
+			n[l] = levels.get(l).size();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of entries, tombstones included, of the live runs
+	 */
+	public synchronized long numRunEntries() {
+		long n = 0;
+		for(List<LsmRun> level : levels) {
+			for(LsmRun run : level) {
+				n += run.getNumEntries();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of bytes written to the log, the runs and the manifest of
+	 * this file since it was opened, to measure its write amplification.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten.get() + memtable.getLogBytes();
+	}
+
+	/**
+	 * Get the tuples of this file whose key field matches a predicate, in key
+	 * order. Equality and ranges only read the pages of the runs that may hold
+	 * matching keys; other operations scan the whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key field
+	 * @return an iterator over the matching tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new LsmFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this LSM file, in key order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new LsmFileIterator(this, tid, null);
+	}
+}
+
+/**
+ * The memtable and the runs of an LsmFile an iterator reads, with the sequence
+ * number of the first entry inserted after it was taken.
+ */
+class LsmSnapshot {
+	final LsmMemtable memtable;
+	final long seqLimit;
+	final List<LsmRun> runs;
+
+	LsmSnapshot(LsmMemtable memtable, long seqLimit, List<LsmRun> runs) {
+		this.memtable = memtable;
+		this.seqLimit = seqLimit;
+		this.runs = runs;
+	}
+}
+
+/**
+ * Merges sorted sources of entries of an LsmFile into one sorted stream, dropping
+ * each tombstone along with the entry it deletes.
+ */
+class LsmMergeIterator {
+
+	/**
+	 * Reads a page of a run.
+	 */
+	interface PageReader {
+		LsmRunPage read(LsmRun run, int pgNo) throws DbException, TransactionAbortedException;
+	}
+
+	/**
+	 * A sorted source of entries, positioned on its next entry.
+	 */
+	static abstract class Source {
+		LsmEntry head;
+
+		/**
+		 * Move to the next entry, or set head to null at the end.
+		 */
+		abstract void advance() throws DbException, TransactionAbortedException;
+	}
+
+	/**
+	 * The entries of a memtable from a given entry on, inserted before a snapshot
+	 * was taken.
+	 */
+	static class MemtableSource extends Source {
+		private final Iterator<LsmEntry> it;
+		private final long seqLimit;
+
+		MemtableSource(Iterator<LsmEntry> it, long seqLimit) {
+			this.it = it;
+			this.seqLimit = seqLimit;
+		}
+
+		void advance() {
+			head = null;
+			while(it.hasNext()) {
+				LsmEntry e = it.next();
+				if(e.tombstone || e.seq < seqLimit) {
+					head = e;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The entries of a run from a given page on.
+	 */
+	static class RunSource extends Source {
+		private final LsmRun run;
+		private final PageReader reader;
+		private int pgNo;
+		private LsmRunPage page = null;
+		private int slot = 0;
+
+		RunSource(LsmRun run, int firstPage, PageReader reader) {
+			this.run = run;
+			this.pgNo = firstPage;
+			this.reader = reader;
+		}
+
+		void advance() throws DbException, TransactionAbortedException {
+			while(page == null || slot >= page.getNumEntries()) {
+				if(page != null) {
+					pgNo++;
+				}
+				if(pgNo >= run.getNumPages()) {
+					head = null;
+					return;
+				}
+				page = reader.read(run, pgNo);
+				slot = 0;
+			}
+			head = page.getEntry(slot++);
+		}
+	}
+
+	private final PriorityQueue<Source> queue;
+	private final boolean keepTombstones;
+
+	/**
+	 * @param sources - the sources to merge, not positioned yet
+	 * @param order - the order of the entries
+	 * @param keepTombstones - whether to return tombstones whose entry is not in
+	 * any of the sources
+	 */
+	LsmMergeIterator(List<Source> sources, Comparator<LsmEntry> order, boolean keepTombstones)
+			throws DbException, TransactionAbortedException {
+		this.queue = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> order.compare(a.head, b.head));
+		this.keepTombstones = keepTombstones;
+		for(Source s : sources) {
+			s.advance();
+			if(s.head != null) {
+				queue.add(s);
+			}
+		}
+	}
+
+	private LsmEntry poll() throws DbException, TransactionAbortedException {
+		Source s = queue.poll();
+		if(s == null) {
+			return null;
+		}
+		LsmEntry e = s.head;
+		s.advance();
+		if(s.head != null) {
+			queue.add(s);
+		}
+		return e;
+	}
+
+	/**
+	 * @return the next entry, or null at the end
+	 */
+	LsmEntry next() throws DbException, TransactionAbortedException {
+		while(true) {
+			LsmEntry e = poll();
+			if(e == null || !e.tombstone) {
+				return e;
+			}
+			// a tombstone comes right before the entry it deletes
+			Source s = queue.peek();
+			if(s != null && e.deletes(s.head)) {
+				poll();
+			} else if(keepTombstones) {
+				return e;
+			}
+		}
+	}
+}
+
+/**
+ * Helper class that returns the tuples of an LsmFile in key order, optionally
+ * those whose key field matches a predicate, merging its memtable and runs.
+ */
+class LsmFileIterator extends AbstractDbFileIterator {
+
+	private final LsmFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	private final Field lower;
+	private final boolean strictLower;
+	private final Op upperOp;
+	private final Field upper;
+	private LsmSnapshot snapshot;
+	private LsmMergeIterator merged;
+
+	LsmFileIterator(LsmFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		Op op = ipred == null ? null : ipred.getOp();
+		if(op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ) {
+			lower = ipred.getField();
+			strictLower = op == Op.GREATER_THAN;
+		} else {
+			lower = null;
+			strictLower = false;
+		}
+		if(op == Op.EQUALS) {
+			upperOp = Op.LESS_THAN_OR_EQ;
+			upper = ipred.getField();
+		} else if(ipred != null && ipred.isRange()) {
+			upperOp = ipred.getUpperOp();
+			upper = ipred.getUpperField();
+		} else if(op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ) {
+			upperOp = op;
+			upper = ipred.getField();
+		} else {
+			upperOp = null;
+			upper = null;
+		}
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		snapshot = f.snapshot();
+		List<LsmMergeIterator.Source> sources = new ArrayList<>();
+		LsmEntry from = null;
+		if(lower != null) {
+			Tuple probe = new Tuple(f.getTupleDesc());
+			probe.setField(f.keyField(), lower);
+			// before every entry with the key
+			from = new LsmEntry(probe, Long.MIN_VALUE, true);
+		}
+		sources.add(new LsmMergeIterator.MemtableSource(snapshot.memtable.iterator(from), snapshot.seqLimit));
+		boolean point = ipred != null && ipred.getOp() == Op.EQUALS;
+		LsmMergeIterator.PageReader reader = (run, pgNo) -> (LsmRunPage) Database.getBufferPool().getPage(tid,
+				new LsmPageId(f.getId(), run.getRunNumber(), pgNo), Permissions.READ_ONLY);
+		for(LsmRun run : snapshot.runs) {
+			if(point ? !run.mightContain(lower) : lower != null && !run.mightHaveKeysFrom(lower, strictLower)) {
+				continue;
+			}
+			sources.add(new LsmMergeIterator.RunSource(run, run.firstPage(lower), reader));
+		}
+		merged = new LsmMergeIterator(sources, f.order(), false);
+	}
+
+	/**
+	 * @return the next entry whose key matches the predicate, or null at the end
+	 */
+	LsmEntry nextEntry() throws DbException, TransactionAbortedException {
+		if(merged == null) {
+			return null;
+		}
+		LsmEntry e;
+		while((e = merged.next()) != null) {
+			Field key = e.tuple.getField(f.keyField());
+			if(upper != null && !key.compare(upperOp, upper)) {
+				return null;
+			}
+			if(ipred == null || ipred.matches(key)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		LsmEntry e = nextEntry();
+		return e == null ? null : e.tuple;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		merged = null;
+		if(snapshot != null) {
+			f.release(snapshot);
+			snapshot = null;
+		}
+	}
+}
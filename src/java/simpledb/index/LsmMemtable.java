@@ -0,0 +1,177 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * The memtable of an LsmFile: its most recent entries, sorted in memory, and the
+ * log they are appended to before they are added, so that they survive a restart
+ * until the memtable is written out as a run.
+ * <p>
+ * Each log record is a type byte, the log sequence number of the record, then the
+ * entry it inserts or deletes. Records with a log sequence number up to the last
+ * one written out to a run are skipped when the log is replayed.
+ */
+class LsmMemtable {
+
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+
+	private final ConcurrentSkipListSet<LsmEntry> entries;
+	private final AtomicInteger size = new AtomicInteger();
+	private final TupleDesc td;
+	private final RecordId rid;
+	private DataOutputStream log;
+	private long logBytes = 0;
+	private long lastLsn;
+
+	private LsmMemtable(Comparator<LsmEntry> order, TupleDesc td, RecordId rid, long lastLsn) {
+		this.entries = new ConcurrentSkipListSet<>(order);
+		this.td = td;
+		this.rid = rid;
+		this.lastLsn = lastLsn;
+	}
+
+	/**
+	 * Create an empty memtable, truncating its log.
+	 *
+	 * @param logFile - the log of the memtable
+	 * @param rid - the RecordId of the tuples in the memtable
+	 * @param lastLsn - the log sequence number of the last record written out
+	 */
+	static LsmMemtable create(File logFile, Comparator<LsmEntry> order, TupleDesc td, RecordId rid, long lastLsn)
+			throws IOException {
+		LsmMemtable m = new LsmMemtable(order, td, rid, lastLsn);
+		m.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, false)));
+		return m;
+	}
+
+	/**
+	 * Rebuild the memtable from the records of its log that were not written out
+	 * yet. A record cut short by a crash ends the log and is dropped.
+	 *
+	 * @param logFile - the log of the memtable
+	 * @param rid - the RecordId of the tuples in the memtable
+	 * @param lastLsn - the log sequence number of the last record written out
+	 */
+	static LsmMemtable recover(File logFile, Comparator<LsmEntry> order, TupleDesc td, RecordId rid, long lastLsn)
+			throws IOException {
+		LsmMemtable m = new LsmMemtable(order, td, rid, lastLsn);
+		long valid = 0;
+		if(logFile.exists()) {
+			try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+				int recordSize = 1 + 8 + LsmEntry.size(td);
+				while(true) {
+					byte type;
+					long lsn;
+					LsmEntry e;
+					try {
+						type = dis.readByte();
+						lsn = dis.readLong();
+						e = LsmEntry.read(dis, td);
+					} catch (EOFException ex) {
+						break;
+					}
+					valid += recordSize;
+					if(lsn > lastLsn) {
+						m.apply(type, e);
+						m.lastLsn = lsn;
+					}
+				}
+			}
+			try (RandomAccessFile rf = new RandomAccessFile(logFile, "rw")) {
+				rf.setLength(valid);
+			}
+		}
+		m.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+		return m;
+	}
+
+	private void apply(byte type, LsmEntry e) {
+		if(type == INSERT) {
+			e.tuple.setRecordId(rid);
+			if(entries.add(e)) {
+				size.incrementAndGet();
+			}
+		} else if(entries.remove(new LsmEntry(e.tuple, e.seq, false))) {
+			// the deleted entry never left the memtable
+			size.decrementAndGet();
+		} else if(entries.add(e)) {
+			size.incrementAndGet();
+		}
+	}
+
+	private void append(byte type, long lsn, LsmEntry e) throws IOException {
+		log.writeByte(type);
+		log.writeLong(lsn);
+		e.write(log);
+		log.flush();
+		logBytes += 1 + 8 + LsmEntry.size(td);
+		lastLsn = lsn;
+	}
+
+	/**
+	 * Log and add the entry of an inserted tuple, whose log sequence number is its
+	 * sequence number.
+	 */
+	void insert(Tuple t, long seq) throws IOException {
+		LsmEntry e = new LsmEntry(t, seq, false);
+		append(INSERT, seq, e);
+		apply(INSERT, e);
+	}
+
+	/**
+	 * Log and apply the deletion of an entry: the entry is removed if it is in the
+	 * memtable, and a tombstone is added for it otherwise.
+	 *
+	 * @param e - the entry to delete
+	 * @param lsn - the log sequence number of the deletion
+	 */
+	void delete(LsmEntry e, long lsn) throws IOException {
+		LsmEntry tombstone = new LsmEntry(e.tuple, e.seq, true);
+		append(DELETE, lsn, tombstone);
+		apply(DELETE, tombstone);
+	}
+
+	/**
+	 * Stop logging to this memtable, once it is about to be written out. It can
+	 * still be read.
+	 */
+	void closeLog() throws IOException {
+		log.close();
+	}
+
+	/**
+	 * @return the entries of the memtable from the given one on, in order
+	 */
+	Iterator<LsmEntry> iterator(LsmEntry from) {
+		return from == null ? entries.iterator() : entries.tailSet(from, true).iterator();
+	}
+
+	/**
+	 * @return the number of entries, tombstones included
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the log sequence number of the last record of the log
+	 */
+	long getLastLsn() {
+		return lastLsn;
+	}
+
+	/**
+	 * @return the number of bytes appended to the log by this memtable
+	 */
+	long getLogBytes() {
+		return logBytes;
+	}
+}
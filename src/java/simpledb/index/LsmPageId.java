@@ -0,0 +1,100 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/** Unique identifier for the LsmRunPage objects of the sorted runs of an LsmFile.
+ */
+public class LsmPageId implements PageId {
+
+	/**
+	 * The run number of the RecordIds of the tuples still in the memtable, which
+	 * are on no page.
+	 */
+	public final static int MEMTABLE = 0;
+
+	private final int tableId;
+	private final int runNo;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a sorted
+	 * run of a specific LSM file.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param runNo The number of the run, which is never reused
+	 * @param pgNo The page number in that run.
+	 */
+	public LsmPageId(int tableId, int runNo, int pgNo) {
+		this.tableId = tableId;
+		this.runNo = runNo;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the number of the run this page belongs to
+	 */
+	public int getRunNumber() {
+		return runNo;
+	}
+
+	/**
+	 * @return the page number in the run getRunNumber() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return a hash code for this page, represented by the combination of
+	 *   the table number, run number and page number (needed if a PageId is
+	 *   used as a key in a hash table in the BufferPool, for example.)
+	 * @see BufferPool
+	 */
+	public int hashCode() {
+		return Objects.hash(tableId, runNo, pgNo);
+	}
+
+	/**
+	 * Compares one PageId to another.
+	 *
+	 * @param o The object to compare against (must be a PageId)
+	 * @return true if the objects are equal (e.g., page numbers, run numbers
+	 *   and table ids are the same)
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof LsmPageId))
+			return false;
+		LsmPageId p = (LsmPageId)o;
+		return tableId == p.tableId && runNo == p.runNo && pgNo == p.pgNo;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId +
+				", runNo: " + runNo +
+				", pgNo: " + pgNo +
+				")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		int[] data = new int[3];
+		data[0] = tableId;
+		data[1] = runNo;
+		data[2] = pgNo;
+		return data;
+	}
+}
@@ -0,0 +1,255 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.TupleDesc;
+
+/**
+ * An immutable sorted run of an LsmFile, in a file of its own. The pages of the
+ * run come first, then a footer with the number of entries and pages, the first
+ * key of each page (the fence pointers), the last key of the run and the Bloom
+ * filter of its keys; the file ends with the offset of the footer. The footer is
+ * kept in memory while the run is live, so that lookups read only the pages that
+ * may hold their keys.
+ * <p>
+ * A run is referenced by its file until a compaction replaces it, and by every
+ * iterator that reads it; its file is deleted once it is replaced and no longer
+ * read.
+ */
+class LsmRun {
+
+	private final File file;
+	private final int runNo;
+	private final int pageSize;
+	private final int numEntries;
+	private final Field[] fences;
+	private final Field lastKey;
+	private final LsmBloomFilter bloom;
+
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	private LsmRun(File file, int runNo, int pageSize, int numEntries, Field[] fences, Field lastKey,
+			LsmBloomFilter bloom) {
+		this.file = file;
+		this.runNo = runNo;
+		this.pageSize = pageSize;
+		this.numEntries = numEntries;
+		this.fences = fences;
+		this.lastKey = lastKey;
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Write a run holding the given entries, which must be in key order.
+	 *
+	 * @param file - the file of the run
+	 * @param runNo - the number of the run
+	 * @param entries - the entries of the run
+	 * @param expectedEntries - the number of entries, or an upper bound of it
+	 * @param td - the tuple descriptor of the tuples of the file
+	 * @param keyField - the field the file is keyed on
+	 * @param pageSize - the size of the pages of the file
+	 * @return the new run, or null if there were no entries
+	 */
+	static LsmRun write(File file, int runNo, Iterator<LsmEntry> entries, int expectedEntries,
+			TupleDesc td, int keyField, int pageSize) throws IOException {
+		int perPage = LsmRunPage.maxEntries(td, pageSize);
+		LsmBloomFilter bloom = new LsmBloomFilter(expectedEntries);
+		List<Field> fences = new ArrayList<>();
+		Field lastKey = null;
+		int numEntries = 0;
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			List<LsmEntry> page = new ArrayList<>(perPage);
+			while(entries.hasNext()) {
+				LsmEntry e = entries.next();
+				lastKey = e.tuple.getField(keyField);
+				if(page.isEmpty()) {
+					fences.add(lastKey);
+				}
+				bloom.add(lastKey);
+				page.add(e);
+				numEntries++;
+				if(page.size() == perPage || !entries.hasNext()) {
+					writePage(dos, page, pageSize);
+					page.clear();
+				}
+			}
+			if(numEntries == 0) {
+				return null;
+			}
+
+			long footer = (long) fences.size() * pageSize;
+			dos.writeInt(numEntries);
+			dos.writeInt(fences.size());
+			for(Field f : fences) {
+				f.serialize(dos);
+			}
+			lastKey.serialize(dos);
+			bloom.write(dos);
+			dos.writeLong(footer);
+		} finally {
+			if(numEntries == 0) {
+				file.delete();
+			}
+		}
+		return new LsmRun(file, runNo, pageSize, numEntries, fences.toArray(new Field[0]), lastKey, bloom);
+	}
+
+	private static void writePage(DataOutputStream dos, List<LsmEntry> entries, int pageSize) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream page = new DataOutputStream(baos);
+		page.writeInt(entries.size());
+		for(LsmEntry e : entries) {
+			e.write(page);
+		}
+		page.flush();
+		dos.write(baos.toByteArray());
+		dos.write(new byte[pageSize - baos.size()]);
+	}
+
+	/**
+	 * Open a run written by {@link #write}, reading its footer.
+	 */
+	static LsmRun open(File file, int runNo, TupleDesc td, int keyField, int pageSize) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(file, "r")) {
+			rf.seek(rf.length() - 8);
+			long footer = rf.readLong();
+			byte[] data = new byte[(int) (rf.length() - 8 - footer)];
+			rf.seek(footer);
+			rf.readFully(data);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+			int numEntries = dis.readInt();
+			Field[] fences = new Field[dis.readInt()];
+			try {
+				for(int i = 0; i < fences.length; i++) {
+					fences[i] = td.getFieldType(keyField).parse(dis);
+				}
+				Field lastKey = td.getFieldType(keyField).parse(dis);
+				return new LsmRun(file, runNo, pageSize, numEntries, fences, lastKey, LsmBloomFilter.read(dis));
+			} catch (ParseException e) {
+				throw new IOException("corrupt footer in run " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int getRunNumber() {
+		return runNo;
+	}
+
+	int getNumEntries() {
+		return numEntries;
+	}
+
+	int getNumPages() {
+		return fences.length;
+	}
+
+	/**
+	 * @return the number of bytes of the file of this run
+	 */
+	long getSize() {
+		return file.length();
+	}
+
+	/**
+	 * Read the data of a page of this run from its file.
+	 */
+	byte[] readPageData(int pgNo) throws IOException {
+		if(pgNo < 0 || pgNo >= fences.length) {
+			throw new IllegalArgumentException("page " + pgNo + " is not in run " + runNo);
+		}
+		byte[] data = new byte[pageSize];
+		try (RandomAccessFile rf = new RandomAccessFile(file, "r")) {
+			rf.seek((long) pgNo * pageSize);
+			rf.readFully(data);
+		}
+		return data;
+	}
+
+	/**
+	 * @return false if the run has no entry with the given key, true if it may have
+	 */
+	boolean mightContain(Field key) {
+		return bloom.mightContain(key) && !key.compare(Op.LESS_THAN, fences[0])
+				&& !key.compare(Op.GREATER_THAN, lastKey);
+	}
+
+	/**
+	 * @return true if the run may have entries with keys greater than or equal
+	 * to the given key (greater than it if strict)
+	 */
+	boolean mightHaveKeysFrom(Field key, boolean strict) {
+		return lastKey.compare(strict ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ, key);
+	}
+
+	/**
+	 * Returns the first page that may hold an entry with a key greater than or
+	 * equal to the given key, with a binary search of the fence pointers: the
+	 * page before the first one starting with such a key, since entries with the
+	 * same key may span pages.
+	 *
+	 * @param key - the key, or null for the first page
+	 */
+	int firstPage(Field key) {
+		if(key == null) {
+			return 0;
+		}
+		int lo = 0, hi = fences.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(fences[mid].compare(Op.GREATER_THAN_OR_EQ, key))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return Math.max(lo - 1, 0);
+	}
+
+	/**
+	 * Take a reference to the run, so that its file is kept until it is released.
+	 *
+	 * @return false if the run was already deleted
+	 */
+	boolean acquire() {
+		while(true) {
+			int n = refs.get();
+			if(n == 0) {
+				return false;
+			}
+			if(refs.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Release a reference to the run, deleting its file if it was the last one.
+	 *
+	 * @return true if the file was deleted
+	 */
+	boolean release() {
+		if(refs.decrementAndGet() == 0) {
+			file.delete();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the reference of the file to this run, once a compaction replaced it.
+	 *
+	 * @return true if the file of the run was deleted
+	 */
+	boolean replace() {
+		return release();
+	}
+}
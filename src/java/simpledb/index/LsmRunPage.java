@@ -0,0 +1,105 @@
+package simpledb.index;
+
+import java.io.*;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.storage.RecordId;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Each instance of LsmRunPage stores one page of a sorted run of an LsmFile and
+ * implements the Page interface that is used by BufferPool. Runs are written once
+ * and never change, so these pages are never dirty.
+ * <p>
+ * A page holds the number of its entries, then the entries in key order, each
+ * with its sequence number, its tombstone flag and its tuple.
+ *
+ * @see LsmFile
+ * @see BufferPool
+ */
+public class LsmRunPage implements Page {
+
+	private final LsmPageId pid;
+	private final byte[] data;
+	private final LsmEntry[] entries;
+	private volatile TransactionId dirtier = null;
+
+	/**
+	 * Create an LsmRunPage from a set of bytes of data read from disk, for a
+	 * table in the catalog.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public LsmRunPage(LsmPageId id, byte[] data) throws IOException {
+		this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create an LsmRunPage from a set of bytes of data read from disk.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param td - the tuple descriptor of the tuples of the file
+	 */
+	public LsmRunPage(LsmPageId id, byte[] data, TupleDesc td) throws IOException {
+		this.pid = id;
+		this.data = data.clone();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		entries = new LsmEntry[dis.readInt()];
+		for(int i = 0; i < entries.length; i++) {
+			entries[i] = LsmEntry.read(dis, td);
+			entries[i].tuple.setRecordId(new RecordId(id, i));
+		}
+	}
+
+	/**
+	 * Computes the number of entries a page holds.
+	 *
+	 * @param td - the tuple descriptor of the tuples of the file
+	 * @param pageSize - the size of the page in bytes
+	 */
+	public static int maxEntries(TupleDesc td, int pageSize) {
+		return (pageSize - 4) / LsmEntry.size(td);
+	}
+
+	public LsmPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * @return the number of entries on this page
+	 */
+	public int getNumEntries() {
+		return entries.length;
+	}
+
+	LsmEntry getEntry(int i) {
+		return entries[i];
+	}
+
+	public TransactionId isDirty() {
+		return dirtier;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		dirtier = dirty ? tid : null;
+	}
+
+	public byte[] getPageData() {
+		return data.clone();
+	}
+
+	/**
+	 * The page never changes, so it is its own before image.
+	 */
+	public LsmRunPage getBeforeImage() {
+		return this;
+	}
+
+	public void setBeforeImage() {
+	}
+}
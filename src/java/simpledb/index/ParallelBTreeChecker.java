@@ -0,0 +1,516 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+/**
+ * ParallelBTreeChecker verifies the file of a B+ tree on disk, for trees too
+ * large for {@link BTreeChecker#checkRep}, which walks the tree recursively
+ * through the buffer pool on one thread. It checks the same invariants (key
+ * order and ranges, parent pointers, sibling pointers and occupancy) and the
+ * header pages: every page of the tree must be marked used, and every page
+ * marked used must be in the tree or be a header page.
+ * <p>
+ * The internal pages are checked first, one level at a time, each level split
+ * across the threads of a fork-join pool. They tell where every leaf belongs:
+ * its parent, its key range, and its left and right siblings, the leaves before
+ * and after it in key order. The whole file is then read with large sequential
+ * reads, in ranges of pages checked in parallel, and each leaf is checked
+ * against where it belongs, without reading any other page.
+ * <p>
+ * The file is read as it is on disk, bypassing the buffer pool: flush the pages
+ * of the tree before checking it, and do not modify it meanwhile.
+ */
+public class ParallelBTreeChecker {
+
+	/** Default number of violations reported */
+	public static final int DEFAULT_MAX_VIOLATIONS = 100;
+
+	/** Number of pages read by each FileChannel read */
+	private static final int PAGES_PER_READ = 64;
+
+	/** Number of pages below which a range of pages is checked by one task */
+	private static final int PAGES_PER_TASK = 1024;
+
+	/** Number of internal pages below which they are checked by one task */
+	private static final int INTERNAL_PAGES_PER_TASK = 16;
+
+	/**
+	 * Summary of a check: the violations found, and how fast the file was read.
+	 */
+	public static class Report {
+		private final int pages;
+		private final long bytes;
+		private final long nanos;
+		private final long numViolations;
+		private final List<String> violations;
+
+		Report(int pages, long bytes, long nanos, long numViolations, List<String> violations) {
+			this.pages = pages;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.numViolations = numViolations;
+			this.violations = Collections.unmodifiableList(violations);
+		}
+
+		/**
+		 * @return the number of pages of the file, the root pointer page excluded
+		 */
+		public int getPages() {
+			return pages;
+		}
+
+		/**
+		 * @return the number of bytes read from the file
+		 */
+		public long getBytesRead() {
+			return bytes;
+		}
+
+		public long getMillis() {
+			return nanos / 1000000;
+		}
+
+		public double getPagesPerSecond() {
+			return pages * 1e9 / Math.max(1, nanos);
+		}
+
+		public double getMegabytesPerSecond() {
+			return bytes * 1e9 / (1 << 20) / Math.max(1, nanos);
+		}
+
+		/**
+		 * @return the number of violations found, which may be more than are reported
+		 */
+		public long getNumViolations() {
+			return numViolations;
+		}
+
+		/**
+		 * @return the violations found on the first pages of the file, in page order
+		 */
+		public List<String> getViolations() {
+			return violations;
+		}
+
+		public boolean isConsistent() {
+			return numViolations == 0;
+		}
+
+		public String toString() {
+			return String.format("%d pages in %.2f s (%.0f pages/s, %.1f MB/s), %d violations",
+					pages, nanos / 1e9, getPagesPerSecond(), getMegabytesPerSecond(), numViolations);
+		}
+	}
+
+	/**
+	 * Where a page belongs in the tree, as told by its parent.
+	 */
+	private static class Placement {
+		final BTreePageId id;
+		final BTreePageId parent;
+		final Field lowerBound;
+		final Field upperBound;
+		final int depth;
+		BTreePageId left;
+		BTreePageId right;
+
+		Placement(BTreePageId id, BTreePageId parent, Field lowerBound, Field upperBound, int depth) {
+			this.id = id;
+			this.parent = parent;
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.depth = depth;
+		}
+	}
+
+	private static class Violation {
+		final int pgNo;
+		final long seq;
+		final String message;
+
+		Violation(int pgNo, long seq, String message) {
+			this.pgNo = pgNo;
+			this.seq = seq;
+			this.message = message;
+		}
+	}
+
+	private static final Comparator<Violation> BY_PAGE = Comparator.comparingInt((Violation v) -> v.pgNo)
+			.thenComparingLong(v -> v.seq);
+
+	private final BTreeFile bt;
+	private final int[] keyFields;
+	private final boolean checkOccupancy;
+	private final int maxViolations;
+	private final ForkJoinPool pool;
+	private final FileChannel channel;
+	private final int pageSize;
+	private final int numPages;
+
+	// the category of every page of the tree and header page, by page number
+	private final byte[] categories;
+	private final Placement[] placements;
+	private final List<BTreeHeaderPage> headers = new ArrayList<>();
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong numViolations = new AtomicLong();
+	private final TreeSet<Violation> violations = new TreeSet<>(BY_PAGE);
+
+	private ParallelBTreeChecker(BTreeFile bt, boolean checkOccupancy, int maxViolations, ForkJoinPool pool,
+			FileChannel channel) {
+		this.bt = bt;
+		this.keyFields = bt.keyFields();
+		this.checkOccupancy = checkOccupancy;
+		this.maxViolations = maxViolations;
+		this.pool = pool;
+		this.channel = channel;
+		this.pageSize = bt.getPageSize();
+		this.numPages = bt.numPages();
+		this.categories = new byte[numPages + 1];
+		this.placements = new Placement[numPages + 1];
+	}
+
+	/**
+	 * Check a B+ tree on the common fork-join pool.
+	 *
+	 * @see #check(BTreeFile, boolean, int, ForkJoinPool)
+	 */
+	public static Report check(BTreeFile bt, boolean checkOccupancy, int maxViolations) throws IOException {
+		return check(bt, checkOccupancy, maxViolations, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Check the file of a B+ tree, as it is on disk.
+	 *
+	 * @param bt - the B+ tree, which must be in the catalog
+	 * @param checkOccupancy - true to check that the pages other than the root
+	 *            are at least half full
+	 * @param maxViolations - the number of violations to report
+	 * @param pool - the pool checking the pages
+	 * @return the violations found on the first pages of the file, and how many
+	 *         there are in all
+	 */
+	public static Report check(BTreeFile bt, boolean checkOccupancy, int maxViolations, ForkJoinPool pool)
+			throws IOException {
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(bt.getFile().toPath(), StandardOpenOption.READ)) {
+			ParallelBTreeChecker checker = new ParallelBTreeChecker(bt, checkOccupancy, maxViolations, pool, channel);
+			try {
+				checker.checkInternalPages();
+				pool.invoke(checker.new RangeCheck(1, checker.numPages + 1));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			List<String> found = new ArrayList<>();
+			for(Violation v : checker.violations) {
+				found.add("page " + v.pgNo + ": " + v.message);
+			}
+			return new Report(checker.numPages, checker.bytesRead.get(), System.nanoTime() - start,
+					checker.numViolations.get(), found);
+		}
+	}
+
+	/**
+	 * Record a violation, keeping those of the first pages of the file.
+	 */
+	private void violation(int pgNo, String message) {
+		long seq = numViolations.getAndIncrement();
+		synchronized(violations) {
+			violations.add(new Violation(pgNo, seq, message));
+			if(violations.size() > maxViolations) {
+				violations.pollLast();
+			}
+		}
+	}
+
+	private byte[] read(long offset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while(buf.hasRemaining()) {
+			if(channel.read(buf, offset + buf.position()) < 0) {
+				throw new EOFException("read past the end of " + bt.getFile());
+			}
+		}
+		bytesRead.addAndGet(length);
+		return buf.array();
+	}
+
+	private byte[] readPageData(int pgNo) throws IOException {
+		return read(BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * pageSize, pageSize);
+	}
+
+	/**
+	 * Claim a page for the tree or the header pages, checking that it is in the
+	 * file and that no other page points to it.
+	 *
+	 * @return false if the page cannot be checked
+	 */
+	private boolean claim(BTreePageId id, int referrer, String what) {
+		int pgNo = id.getPageNumber();
+		if(pgNo < 1 || pgNo > numPages) {
+			violation(referrer, what + " " + pgNo + " is not in the file");
+			return false;
+		}
+		if(categories[pgNo] != 0) {
+			violation(referrer, what + " " + pgNo + " is already in the tree");
+			return false;
+		}
+		categories[pgNo] = (byte) id.pgcateg();
+		return true;
+	}
+
+	/**
+	 * Read the header pages, then check the internal pages level by level, which
+	 * places every page of the tree.
+	 */
+	@SuppressWarnings("unchecked")
+	private void checkInternalPages() throws IOException {
+		BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(bt.getId()),
+				read(0, BTreeRootPtrPage.getPageSize()));
+
+		BTreePageId prevId = null;
+		for(BTreePageId headerId = rootPtr.getHeaderId(); headerId != null; ) {
+			int referrer = prevId == null ? 0 : prevId.getPageNumber();
+			if(!claim(headerId, referrer, "header page")) {
+				break;
+			}
+			BTreeHeaderPage header = new BTreeHeaderPage(headerId, readPageData(headerId.getPageNumber()));
+			if(!Objects.equals(header.getPrevPageId(), prevId)) {
+				violation(headerId.getPageNumber(), "previous header page is " + header.getPrevPageId()
+						+ " instead of " + prevId);
+			}
+			headers.add(header);
+			prevId = headerId;
+			headerId = header.getNextPageId();
+		}
+
+		BTreePageId rootId = rootPtr.getRootId();
+		if(rootId == null || !claim(rootId, 0, "root")) {
+			return;
+		}
+		placements[rootId.getPageNumber()] = new Placement(rootId, rootPtr.getId(), null, null, 0);
+		List<BTreePageId> level = Collections.singletonList(rootId);
+		while(!level.isEmpty() && level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<List<Placement>> children = new ArrayList<>(Collections.nCopies(level.size(), null));
+			pool.invoke(new InternalCheck(level, children, 0, level.size()));
+
+			// the children of a level are the next level, in key order
+			List<BTreePageId> next = new ArrayList<>();
+			int categ = -1;
+			for(int i = 0; i < level.size(); i++) {
+				int referrer = level.get(i).getPageNumber();
+				for(Placement child : children.get(i)) {
+					if(categ == -1) {
+						categ = child.id.pgcateg();
+					} else if(child.id.pgcateg() != categ) {
+						violation(referrer, "child " + child.id.getPageNumber() + " is not at the depth of its cousins");
+						continue;
+					}
+					if(claim(child.id, referrer, "child")) {
+						placements[child.id.getPageNumber()] = child;
+						next.add(child.id);
+					}
+				}
+			}
+			for(int i = 0; i < next.size(); i++) {
+				Placement p = placements[next.get(i).getPageNumber()];
+				p.left = i > 0 ? next.get(i - 1) : null;
+				p.right = i < next.size() - 1 ? next.get(i + 1) : null;
+			}
+			level = next;
+		}
+	}
+
+	/**
+	 * Checks a slice of the internal pages of a level, and places their children.
+	 */
+	private class InternalCheck extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<BTreePageId> pages;
+		private final List<List<Placement>> children;
+		private final int from;
+		private final int to;
+
+		InternalCheck(List<BTreePageId> pages, List<List<Placement>> children, int from, int to) {
+			this.pages = pages;
+			this.children = children;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > INTERNAL_PAGES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new InternalCheck(pages, children, from, mid),
+						new InternalCheck(pages, children, mid, to));
+				return;
+			}
+			for(int i = from; i < to; i++) {
+				BTreePageId id = pages.get(i);
+				try {
+					children.set(i, checkInternalPage(id, readPageData(id.getPageNumber())));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check an internal page against its placement.
+	 *
+	 * @return the placements of the children of the page, in key order
+	 */
+	private List<Placement> checkInternalPage(BTreePageId id, byte[] data) throws IOException {
+		int pgNo = id.getPageNumber();
+		Placement p = placements[pgNo];
+		BTreeInternalPage page = new BTreeInternalPage(id, data, keyFields);
+		checkParent(page, p);
+		if(page.getNumEntries() == 0) {
+			violation(pgNo, "internal page has no entries");
+			return Collections.emptyList();
+		}
+		if(checkOccupancy && p.depth > 0 && !page.hasCompactKeys() && page.isBelowMinOccupancy()) {
+			violation(pgNo, "internal page is less than half full");
+		}
+
+		// each child holds the keys between the keys around it
+		List<Placement> children = new ArrayList<>();
+		Field lowerBound = p.lowerBound;
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			checkKey(pgNo, e.getKey(), lowerBound, p.upperBound);
+			children.add(new Placement(e.getLeftChild(), id, lowerBound, e.getKey(), p.depth + 1));
+			lowerBound = e.getKey();
+			if(!it.hasNext()) {
+				children.add(new Placement(e.getRightChild(), id, lowerBound, p.upperBound, p.depth + 1));
+			}
+		}
+		return children;
+	}
+
+	private void checkParent(BTreePage page, Placement p) {
+		if(!page.getParentId().equals(p.parent)) {
+			violation(page.getId().getPageNumber(), "parent is page " + page.getParentId().getPageNumber()
+					+ " instead of " + p.parent.getPageNumber());
+		}
+	}
+
+	/**
+	 * Check that a key is in order after the previous key of its page, and in
+	 * the range of the page.
+	 */
+	private void checkKey(int pgNo, Field key, Field prev, Field upperBound) {
+		if(prev != null && !prev.compare(Op.LESS_THAN_OR_EQ, key)) {
+			violation(pgNo, "key " + key + " is out of order after " + prev);
+		}
+		if(upperBound != null && !key.compare(Op.LESS_THAN_OR_EQ, upperBound)) {
+			violation(pgNo, "key " + key + " is above the upper bound " + upperBound);
+		}
+	}
+
+	/**
+	 * Checks a range of pages, read sequentially, and their slots in the header
+	 * pages.
+	 */
+	private class RangeCheck extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		RangeCheck(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > PAGES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RangeCheck(from, mid), new RangeCheck(mid, to));
+				return;
+			}
+			try {
+				for(int pgNo = from; pgNo < to; pgNo += PAGES_PER_READ) {
+					int n = Math.min(PAGES_PER_READ, to - pgNo);
+					byte[] data = read(BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * pageSize, n * pageSize);
+					for(int i = 0; i < n; i++) {
+						checkPage(pgNo + i, data, i * pageSize);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Check a page read sequentially: its slot in the header pages and, for a
+	 * leaf, its contents.
+	 */
+	private void checkPage(int pgNo, byte[] data, int offset) throws IOException {
+		byte categ = categories[pgNo];
+		boolean used = isMarkedUsed(pgNo);
+		if(categ != 0 && !used) {
+			violation(pgNo, "page is in use but marked free");
+		} else if(categ == 0 && used) {
+			violation(pgNo, "page is neither in the tree nor marked free");
+		}
+		if(categ == BTreePageId.LEAF) {
+			BTreePageId id = new BTreePageId(bt.getId(), pgNo, BTreePageId.LEAF);
+			checkLeafPage(new BTreeLeafPage(id, Arrays.copyOfRange(data, offset, offset + pageSize), keyFields));
+		}
+	}
+
+	/**
+	 * @return true if the header pages mark a page used; pages past the last
+	 *         header page are used
+	 */
+	private boolean isMarkedUsed(int pgNo) {
+		int numSlots = BTreeHeaderPage.getNumSlots(pageSize);
+		int h = pgNo / numSlots;
+		return h >= headers.size() || headers.get(h).isSlotUsed(pgNo - h * numSlots);
+	}
+
+	private void checkLeafPage(BTreeLeafPage page) {
+		int pgNo = page.getId().getPageNumber();
+		Placement p = placements[pgNo];
+		checkParent(page, p);
+		Field prev = p.lowerBound;
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			Field key = BTreePage.keyOf(it.next(), keyFields);
+			checkKey(pgNo, key, prev, p.upperBound);
+			prev = key;
+		}
+		if(!Objects.equals(page.getLeftSiblingId(), p.left)) {
+			violation(pgNo, "left sibling is " + pageNumber(page.getLeftSiblingId()) + " instead of "
+					+ pageNumber(p.left));
+		}
+		if(!Objects.equals(page.getRightSiblingId(), p.right)) {
+			violation(pgNo, "right sibling is " + pageNumber(page.getRightSiblingId()) + " instead of "
+					+ pageNumber(p.right));
+		}
+		if(checkOccupancy && p.depth > 0 && page.getNumTuples() < page.getMaxTuples() / 2) {
+			violation(pgNo, "leaf page is less than half full");
+		}
+	}
+
+	private static String pageNumber(BTreePageId id) {
+		return id == null ? "none" : Integer.toString(id.getPageNumber());
+	}
+}
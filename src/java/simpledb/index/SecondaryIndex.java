@@ -0,0 +1,346 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree on one column of a HeapFile. Instead of whole tuples,
+ * its leaf pages hold (key, page number, slot) entries, each pointing to the tuple
+ * of the table with that RecordId. The table stays the only copy of the tuples;
+ * an index lookup reads the matching entries in key order and then fetches each
+ * tuple from its heap page.
+ * <p>
+ * An index can also include other (non-key) columns of the table in its entries.
+ * A query that only reads the key and included columns of an index is then covered
+ * by it, and can be answered from the leaf pages alone with an
+ * {@link simpledb.execution.IndexOnlyScan}.
+ * <p>
+ * Once registered with {@link simpledb.common.Catalog#addIndex}, the index is
+ * kept up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}, and follows the tuples moved by
+ * {@link HeapFile#vacuum}.
+ *
+ * @see TableIndex
+ */
+public class SecondaryIndex extends BTreeFile implements TableIndex {
+
+	private final HeapFile table;
+	private final int field;
+	private final int[] included;
+
+	/**
+	 * Open an index, stored in the given file, on a column of a table.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this index
+	 * @param table - the indexed table
+	 * @param field - the index of the indexed column in the tuples of the table
+	 */
+	public SecondaryIndex(File f, HeapFile table, int field) {
+		this(f, table, field, new int[0]);
+	}
+
+	/**
+	 * Open an index, stored in the given file, on a column of a table, whose entries
+	 * also hold the values of other columns of the table.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this index
+	 * @param table - the indexed table
+	 * @param field - the index of the indexed column in the tuples of the table
+	 * @param included - the indexes of the included columns in the tuples of the table
+	 */
+	public SecondaryIndex(File f, HeapFile table, int field, int[] included) {
+		super(f, 0, entryDesc(table.getTupleDesc(), field, included));
+		this.table = table;
+		this.field = field;
+		this.included = included.clone();
+	}
+
+	/**
+	 * Build an index on a column of a table that already holds tuples. The entries
+	 * are sorted and written bottom-up by a {@link BTreeBulkLoader}, replacing any
+	 * previous contents of the file.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index
+	 * @param field - the column to index
+	 * @param f - the file to store the index in
+	 * @return the index, which is not added to the catalog
+	 */
+	public static SecondaryIndex create(TransactionId tid, HeapFile table, int field, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		return create(tid, table, field, new int[0], f);
+	}
+
+	/**
+	 * Build an index on a column of a table that already holds tuples, including
+	 * the values of other columns of the table in its entries.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index
+	 * @param field - the column to index
+	 * @param included - the columns to include in the entries
+	 * @param f - the file to store the index in
+	 * @return the index, which is not added to the catalog
+	 * @see #create(TransactionId, HeapFile, int, File)
+	 */
+	public static SecondaryIndex create(TransactionId tid, HeapFile table, int field, int[] included, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = entryDesc(table.getTupleDesc(), field, included);
+		BTreeBulkLoader loader = new BTreeBulkLoader(td, 0, BufferPool.getPageSize(),
+				BTreeBulkLoader.DEFAULT_FILL_FACTOR, BTreeBulkLoader.DEFAULT_RUN_TUPLES);
+		DbFileIterator tuples = table.iterator(tid);
+		tuples.open();
+		try {
+			loader.load(new AbstractDbFileIterator() {
+				public void open() {
+				}
+
+				public void rewind() throws DbException, TransactionAbortedException {
+					tuples.rewind();
+				}
+
+				protected Tuple readNext() throws DbException, TransactionAbortedException {
+					return tuples.hasNext() ? entry(td, field, included, tuples.next()) : null;
+				}
+			}, f);
+		} finally {
+			tuples.close();
+		}
+		return new SecondaryIndex(f, table, field, included);
+	}
+
+	/**
+	 * The TupleDesc of the entries of an index: the indexed column and the included
+	 * columns, followed by the page number and slot of the tuple.
+	 */
+	static TupleDesc entryDesc(TupleDesc td, int field, int[] included) {
+		Type[] types = new Type[included.length + 3];
+		String[] names = new String[included.length + 3];
+		types[0] = td.getFieldType(field);
+		names[0] = td.getFieldName(field);
+		for(int i = 0; i < included.length; i++) {
+			types[i + 1] = td.getFieldType(included[i]);
+			names[i + 1] = td.getFieldName(included[i]);
+		}
+		types[included.length + 1] = Type.INT_TYPE;
+		names[included.length + 1] = "page";
+		types[included.length + 2] = Type.INT_TYPE;
+		names[included.length + 2] = "slot";
+		return new TupleDesc(types, names);
+	}
+
+	static Tuple entry(TupleDesc td, int field, int[] included, Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(td);
+		e.setField(0, t.getField(field));
+		for(int i = 0; i < included.length; i++) {
+			e.setField(i + 1, t.getField(included[i]));
+		}
+		e.setField(included.length + 1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(included.length + 2, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	public HeapFile getTable() {
+		return table;
+	}
+
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * A B+ tree can look up every operation except NOT_EQUALS and LIKE by reading
+	 * a range of its leaf pages.
+	 */
+	public boolean supports(Op op) {
+		return op != Op.NOT_EQUALS && op != Op.LIKE;
+	}
+
+	/**
+	 * @return the indexes of the included columns in the tuples of the table
+	 */
+	public int[] getIncluded() {
+		return included.clone();
+	}
+
+	/**
+	 * Returns the position in the entries of this index of a column of the table.
+	 *
+	 * @param tableField - the index of the column in the tuples of the table
+	 * @return the index of the column in the entries, or -1 if the entries do not
+	 * hold it
+	 */
+	public int entryField(int tableField) {
+		if(tableField == field) {
+			return 0;
+		}
+		for(int i = 0; i < included.length; i++) {
+			if(included[i] == tableField) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param fields - indexes of columns in the tuples of the table
+	 * @return true if the entries of this index hold all the given columns
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for(int f : fields) {
+			if(entryField(f) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the RecordId in the table of the tuple an entry points to.
+	 *
+	 * @param e - an entry of this index
+	 */
+	public RecordId recordId(Tuple e) {
+		return recordId(table, e);
+	}
+
+	/**
+	 * Returns the RecordId in a table of the tuple an entry, ending with the page
+	 * number and slot of the tuple, points to.
+	 */
+	static RecordId recordId(HeapFile table, Tuple e) {
+		int n = e.getTupleDesc().numFields();
+		HeapPageId pid = new HeapPageId(table.getId(), ((IntField) e.getField(n - 2)).getValue());
+		return new RecordId(pid, ((IntField) e.getField(n - 1)).getValue());
+	}
+
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return insertTuple(tid, entry(getTupleDesc(), field, included, t));
+	}
+
+	/**
+	 * Adds the entries of the tuples in one batch, sorted by key.
+	 */
+	public List<Page> insertEntries(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> entries = new ArrayList<>(tuples.size());
+		for(Tuple t : tuples) {
+			entries.add(entry(getTupleDesc(), field, included, t));
+		}
+		return insertTuples(tid, entries);
+	}
+
+	public List<Page> deleteEntry(TransactionId tid, Field key, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple e = it.next();
+				if(rid.equals(recordId(e))) {
+					return deleteTuple(tid, e);
+				}
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("no index entry for tuple " + rid.getPageId().getPageNumber()
+				+ "/" + rid.getTupleNumber());
+	}
+
+	public void tupleMoved(TransactionId tid, RecordId oldRid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Page> pages = new ArrayList<>(deleteEntry(tid, t.getField(field), oldRid));
+		pages.addAll(insertEntry(tid, t));
+		Database.getBufferPool().cacheDirtyPages(tid, pages);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed column matches the
+	 * given predicate, in the order of that column.
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		return new EntryTupleIterator(table, tid, indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed column matches the
+	 * given predicate, in ascending or descending order of that column.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed column, or null for all the tuples
+	 * @param descending - whether to return the tuples in descending order
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred, boolean descending) {
+		return new EntryTupleIterator(table, tid, entries(tid, ipred, descending));
+	}
+
+	/**
+	 * Get an iterator over the entries whose key matches the given predicate, in
+	 * ascending or descending key order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key, or null for all the entries
+	 * @param descending - whether to return the entries in descending key order
+	 */
+	public DbFileIterator entries(TransactionId tid, IndexPredicate ipred, boolean descending) {
+		if(ipred == null) {
+			return descending ? reverseIterator(tid) : iterator(tid);
+		}
+		return descending ? reverseIndexIterator(tid, ipred) : indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Fetches the tuple of the table pointed to by each matching entry.
+	 */
+	static class EntryTupleIterator extends AbstractDbFileIterator {
+
+		private final HeapFile table;
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		EntryTupleIterator(HeapFile table, TransactionId tid, DbFileIterator entries) {
+			this.table = table;
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while(entries.hasNext()) {
+				Tuple t = table.getTuple(tid, recordId(table, entries.next()));
+				if(t != null && Database.getVersionManager().isVisible(tid, t.getRecordId())) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.util.List;
+
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * A TableIndex is a DbFile of entries pointing to the tuples of a HeapFile by
+ * RecordId, keyed on one column of the table. Once registered with
+ * {@link simpledb.common.Catalog#addIndex}, it is kept up to date by
+ * {@link BufferPool#insertTuple}, {@link BufferPool#insertTuples} and {@link BufferPool#deleteTuple}, follows the
+ * tuples moved by {@link HeapFile#vacuum}, and may be used by the query optimizer
+ * to read the table.
+ *
+ * @see SecondaryIndex
+ * @see HashIndex
+ */
+public interface TableIndex extends DbFile, HeapFile.TupleMoveListener {
+
+	/**
+	 * @return the indexed table
+	 */
+	HeapFile getTable();
+
+	/**
+	 * @return the index of the indexed column in the tuples of the table
+	 */
+	int getField();
+
+	/**
+	 * @param op - an operation on the indexed column
+	 * @return true if {@link #lookup} with this operation reads fewer entries
+	 * than the whole index
+	 */
+	boolean supports(Op op);
+
+	/**
+	 * Add the entry of a tuple that was just inserted into the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple, with its RecordId in the table
+	 * @return the index pages that were dirtied
+	 */
+	List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException;
+
+	/**
+	 * Add the entries of a batch of tuples that were just inserted into the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples, with their RecordIds in the table
+	 * @return the index pages that were dirtied
+	 */
+	List<Page> insertEntries(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException;
+
+	/**
+	 * Remove the entry of a tuple deleted from the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param key - the value of the indexed column of the tuple
+	 * @param rid - the RecordId the tuple had in the table
+	 * @return the index pages that were dirtied
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	List<Page> deleteEntry(TransactionId tid, Field key, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException;
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed column matches the
+	 * given predicate.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed column
+	 * @return an iterator over the matching tuples of the table
+	 */
+	DbFileIterator lookup(TransactionId tid, IndexPredicate ipred);
+}
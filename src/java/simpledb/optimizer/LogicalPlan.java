@@ -4,6 +4,9 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.HashIndex;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.TableIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -25,6 +28,22 @@ import java.io.File;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /**
+     * Estimated fraction of a table above which a range filter on an indexed
+     * column is still evaluated with a full SeqScan: every tuple found through
+     * a secondary index costs a random page read, while a SeqScan reads pages
+     * in order.
+     */
+    public static final double INDEX_SCAN_MAX_SELECTIVITY = 0.1;
+
+    /**
+     * Estimated number of pages read to look up one outer tuple in a hash index
+     * on the inner table of an equality join: a bucket page and the heap page of
+     * the matching tuple. An {@link IndexNestedLoopJoin} is used when this many
+     * pages per outer tuple is less than a scan of the inner table.
+     */
+    public static final int INDEX_JOIN_PAGES_PER_PROBE = 2;
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -274,6 +293,326 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Returns an IndexScan reading a table through the index on the column of
+     * its most selective filter, or null if the table should be read with a
+     * SeqScan. Equality filters on an indexed column are assumed to be
+     * selective, and are looked up in a hash index rather than a B+ tree if
+     * the column has both; range filters are only looked up in a B+ tree if
+     * they are estimated to select less than
+     * {@link #INDEX_SCAN_MAX_SELECTIVITY} of the table. A lower and an upper
+     * bound on the same column are looked up as one range. The filters
+     * themselves are still applied above the scan.
+     *
+     * @param t the transaction the scan runs as part of
+     * @param table the table to scan
+     * @param td the TupleDesc of a scan of the table, with alias-qualified names
+     * @param stats the statistics of the table, or null if there are none
+     */
+    private IndexScan indexScan(TransactionId t, LogicalScanNode table, TupleDesc td, TableStats stats) {
+        IndexScan best = null;
+        double bestSel = 0;
+        for (TableIndex index : Database.getCatalog().getIndexes(table.t)) {
+            IndexPredicate ipred = keyPredicate(table.alias, td, index);
+            if (ipred == null) {
+                continue;
+            }
+            double sel = stats == null ? 1.0 : stats.estimateSelectivity(index.getField(), ipred.getOp(), ipred.getField());
+            if (ipred.isRange()) {
+                // both bounds exclude the tuples outside the range
+                double upperSel = stats == null ? 1.0
+                        : stats.estimateSelectivity(index.getField(), ipred.getUpperOp(), ipred.getUpperField());
+                sel = Math.max(sel + upperSel - 1.0, 0.0);
+            }
+            if (ipred.getOp() != Predicate.Op.EQUALS && sel >= INDEX_SCAN_MAX_SELECTIVITY) {
+                continue;
+            }
+            if (best == null || sel < bestSel || sel == bestSel && index instanceof HashIndex
+                    && !(best.getIndex() instanceof HashIndex)) {
+                bestSel = sel;
+                best = new IndexScan(t, index, table.alias, ipred);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the predicate to look up in an index of a table, combining the
+     * filters of the query on the indexed column that the index supports: an
+     * equality filter if there is one, else the tightest lower and upper
+     * bounds, merged into a range if the column has both. Returns null if
+     * there is no such filter.
+     *
+     * @param alias the alias of the table
+     * @param td the TupleDesc of a scan of the table, with alias-qualified names
+     * @param index an index of the table
+     */
+    private IndexPredicate keyPredicate(String alias, TupleDesc td, TableIndex index) {
+        Type type = td.getFieldType(index.getField());
+        IndexPredicate lower = null, upper = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias) || !index.supports(lf.p)) {
+                continue;
+            }
+            try {
+                if (td.fieldNameToIndex(lf.fieldQuantifiedName) != index.getField()) {
+                    continue;
+                }
+            } catch (NoSuchElementException e) {
+                // reported when the filter itself is planned
+                continue;
+            }
+            Field f = filterConstant(type, lf.c);
+            switch (lf.p) {
+                case EQUALS:
+                    return new IndexPredicate(lf.p, f);
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    if (lower == null || tighter(lf.p, f, lower, Predicate.Op.GREATER_THAN)) {
+                        lower = new IndexPredicate(lf.p, f);
+                    }
+                    break;
+                case LESS_THAN:
+                case LESS_THAN_OR_EQ:
+                    if (upper == null || tighter(lf.p, f, upper, Predicate.Op.LESS_THAN)) {
+                        upper = new IndexPredicate(lf.p, f);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (lower != null && upper != null) {
+            return new IndexPredicate(lower.getOp(), lower.getField(), upper.getOp(), upper.getField());
+        }
+        return lower != null ? lower : upper;
+    }
+
+    /**
+     * Returns true if the bound (op, f) excludes more keys than the bound
+     * held by the given predicate, where strict is the strict operation of
+     * that side, GREATER_THAN for lower bounds and LESS_THAN for upper ones.
+     */
+    private static boolean tighter(Predicate.Op op, Field f, IndexPredicate bound, Predicate.Op strict) {
+        if (f.compare(strict, bound.getField())) {
+            return true;
+        }
+        return f.equals(bound.getField()) && op == strict && bound.getOp() != strict;
+    }
+
+    /**
+     * Returns an IndexOnlyScan reading a table from the leaf pages of a
+     * secondary index whose entries hold every column of the table the query
+     * refers to, or null if there is no such index. An index whose key has a
+     * filter on it is preferred, so that only the matching entries are read,
+     * and then an index on the ORDER BY column, which needs no sort.
+     *
+     * @param t the transaction the scan runs as part of
+     * @param table the table to scan
+     * @param td the TupleDesc of a scan of the table, with alias-qualified names
+     */
+    private IndexOnlyScan indexOnlyScan(TransactionId t, LogicalScanNode table, TupleDesc td) {
+        List<SecondaryIndex> indexes = new ArrayList<>();
+        for (TableIndex index : Database.getCatalog().getIndexes(table.t)) {
+            // only the leaf pages of a B+ tree can be read in key order
+            if (index instanceof SecondaryIndex) {
+                indexes.add((SecondaryIndex) index);
+            }
+        }
+        if (indexes.isEmpty()) {
+            return null;
+        }
+        Set<Integer> referenced = referencedFields(table.alias, td);
+        if (referenced == null) {
+            return null;
+        }
+        int order = scanOrderField(td);
+        IndexOnlyScan best = null;
+        for (SecondaryIndex index : indexes) {
+            if (!index.covers(referenced)) {
+                continue;
+            }
+            IndexPredicate ipred = keyPredicate(table.alias, td, index);
+            boolean filtered = ipred != null, bestFiltered = best != null && best.getIndexPredicate() != null;
+            if (best == null || (!bestFiltered && filtered) || (bestFiltered == filtered
+                    && index.getField() == order && best.getIndex().getField() != order)) {
+                best = new IndexOnlyScan(t, index, table.alias, ipred);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the index, in the given TupleDesc of a scan of the only table of
+     * the query, of the ORDER BY column if the tuples of the scan reach the
+     * OrderBy in the order they are read: the query has no join and no
+     * aggregate, since the filters and the projection keep the order of their
+     * child. Returns -1 otherwise.
+     */
+    private int scanOrderField(TupleDesc td) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty()) {
+            return -1;
+        }
+        try {
+            return td.fieldNameToIndex(oByField);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a scan reading the same tuples as the given scan of a table in
+     * the order of the ORDER BY clause, so that the OrderBy can be left out of
+     * the plan, or null if there is none. A scan through a B+ tree on the
+     * ORDER BY column reads the index forward for an ascending order and
+     * backward, from its right-most leaf page, for a descending one; an
+     * equality lookup of the ORDER BY column returns a single value in any
+     * index. A SeqScan is never replaced by a full index scan, which would
+     * read the heap pages in random order.
+     *
+     * @param t the transaction the scan runs as part of
+     * @param table the table to scan
+     * @param td the TupleDesc of a scan of the table, with alias-qualified names
+     * @param scan the scan chosen for the table
+     */
+    private SeqScan orderedScan(TransactionId t, LogicalScanNode table, TupleDesc td, SeqScan scan) {
+        int order = scanOrderField(td);
+        if (order < 0) {
+            return null;
+        }
+        if (scan instanceof IndexOnlyScan) {
+            IndexOnlyScan is = (IndexOnlyScan) scan;
+            if (is.getIndex().getField() == order) {
+                return new IndexOnlyScan(t, is.getIndex(), table.alias, is.getIndexPredicate(), !oByAsc);
+            }
+        } else if (scan instanceof IndexScan) {
+            IndexScan is = (IndexScan) scan;
+            if (is.getIndex().getField() != order) {
+                return null;
+            }
+            if (is.getIndexPredicate().getOp() == Predicate.Op.EQUALS) {
+                return is;
+            }
+            if (is.getIndex() instanceof SecondaryIndex) {
+                return new IndexScan(t, (SecondaryIndex) is.getIndex(), table.alias, is.getIndexPredicate(), !oByAsc);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indexes of the fields of the table with the given alias that
+     * the query refers to, in its select list, filters, joins, aggregate,
+     * GROUP BY or ORDER BY, or null if it refers to fields that are not in the
+     * given TupleDesc or to all the fields with *.
+     */
+    private Set<Integer> referencedFields(String alias, TupleDesc td) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode)) {
+                names.add(lj.f2QuantifiedName);
+            }
+        }
+        if (hasAgg) {
+            names.add(aggField);
+        }
+        names.add(groupByField);
+        if (hasOrderBy) {
+            names.add(oByField);
+        }
+
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            if (name == null || !name.startsWith(alias + ".") && !name.startsWith("null.") && !name.equals("*")) {
+                continue;
+            }
+            try {
+                fields.add(td.fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Returns an IndexNestedLoopJoin looking up the tuples of plan1 in a hash
+     * index on the join column of the second table of an equality join, or
+     * null if the join should be instantiated by
+     * {@link JoinOptimizer#instantiateJoin}. The index is used when the second
+     * table is read by a plain SeqScan, and looking up the estimated number of
+     * tuples of plan1 reads fewer pages, at
+     * {@link #INDEX_JOIN_PAGES_PER_PROBE} each, than scanning the table.
+     *
+     * @param t the transaction the join runs as part of
+     * @param lj the join
+     * @param plan1 the outer plan
+     * @param plan2 the plan of the second table
+     * @param card1 at most the number of tuples of plan1, or -1 if unknown
+     */
+    private OpIterator indexJoin(TransactionId t, LogicalJoinNode lj, OpIterator plan1, OpIterator plan2,
+                                 int card1) throws ParsingException {
+        if (lj instanceof LogicalSubplanJoinNode || lj.p != Predicate.Op.EQUALS || card1 < 0
+                || plan2.getClass() != SeqScan.class) {
+            return null;
+        }
+        SeqScan inner = (SeqScan) plan2;
+        int field;
+        try {
+            field = inner.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        int tableId = getTableId(lj.t2Alias);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile)
+                || (long) card1 * INDEX_JOIN_PAGES_PER_PROBE >= ((HeapFile) file).numPages()) {
+            return null;
+        }
+        for (TableIndex index : Database.getCatalog().getIndexes(tableId)) {
+            if (index instanceof HashIndex && index.getField() == field) {
+                int outerField;
+                try {
+                    outerField = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+                }
+                return new IndexNestedLoopJoin(new JoinPredicate(outerField, lj.p, field), plan1, inner, t, index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an upper bound of the number of tuples of a scan of a table
+     * under filters of the given selectivity, from the number of pages of the
+     * table and the number of tuples that fit in a page, or -1 if the table
+     * is not a HeapFile. Used when the statistics of the table give no
+     * estimate.
+     */
+    private int maxCardinality(String alias, double selectivity) {
+        DbFile file = Database.getCatalog().getDatabaseFile(getTableId(alias));
+        if (!(file instanceof HeapFile) || ((HeapFile) file).isCompressed()) {
+            return -1;
+        }
+        int tupleSize = file.getTupleDesc().getSize();
+        int perPage = (file.getPageSize() * 8) / (tupleSize * 8 + 1);
+        return (int) Math.ceil(((HeapFile) file).numPages() * perPage * selectivity);
+    }
+
+    private static Field filterConstant(Type type, String c) {
+        if (type == Type.INT_TYPE)
+            return new IntField(Integer.parseInt(c));
+        return new StringField(c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +631,8 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        // whether the scan of the only table already returns the tuples in ORDER BY order
+        boolean scanOrdered = false;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -301,9 +642,22 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            String baseTableName = Database.getCatalog().getTableName(table.t);
+            TupleDesc td = ss.getTupleDesc();
+            SeqScan is = indexOnlyScan(t, table, td);
+            if (is == null) {
+                is = indexScan(t, table, td, baseTableStats.get(baseTableName));
+            }
+            if (is != null) {
+                ss = is;
+            }
+            SeqScan os = orderedScan(t, table, td, ss);
+            if (os != null) {
+                ss = os;
+                scanOrdered = true;
+            }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -324,10 +678,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -349,6 +700,8 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // the aliases whose subplans are the result of a join
+        Set<String> joined = new HashSet<>();
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -380,9 +733,20 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
-            OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            int card1 = -1;
+            if (!joined.contains(t1name)) {
+                TableStats stats1 = statsMap.get(Database.getCatalog().getTableName(getTableId(t1name)));
+                card1 = stats1 == null ? 0 : stats1.estimateTableCardinality(filterSelectivities.get(t1name));
+                if (card1 <= 0) {
+                    card1 = maxCardinality(t1name, filterSelectivities.get(t1name));
+                }
+            }
+            OpIterator j = isSubqueryJoin || joined.contains(t2name) ? null : indexJoin(t, lj, plan1, plan2, card1);
+            if (j == null) {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            }
             subplanMap.put(t1name, j);
+            joined.add(t1name);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -471,7 +835,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !scanOrdered) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
@@ -0,0 +1,122 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * BackgroundWriter is a daemon thread that periodically writes out the dirty
+ * pages that are next in line for eviction, so that a query thread missing
+ * on a full buffer pool usually finds a clean page to evict instead of
+ * having to write one on its critical path.
+ * <p>
+ * Every round it looks at the first <code>lookahead</code> pages in eviction
+ * order and writes at most <code>maxPagesPerRound</code> of the dirty ones,
+ * together, so that each file forces their images to its double-write buffer
+ * once.
+ * Pages dirtied by transactions that are still running are written too:
+ * like every page write, each one first logs the changes of the page that
+ * are not logged yet and forces the log, so that recovery can undo them.
+ *
+ * @see BufferPool#startBackgroundWriters()
+ * @see Checkpointer
+ */
+public class BackgroundWriter extends Thread {
+
+    /** Default delay between two rounds, in milliseconds */
+    public static final long DEFAULT_DELAY_MILLIS = 200;
+
+    private final BufferPool bufferPool;
+    private final long delayMillis;
+    private final int lookahead;
+    private final int maxPagesPerRound;
+    private final Object lock = new Object();
+    private boolean running = true;
+
+    /**
+     * Creates a background writer for the given buffer pool that scans a
+     * quarter of the pool every {@link #DEFAULT_DELAY_MILLIS} ms.
+     */
+    public BackgroundWriter(BufferPool bufferPool) {
+        this(bufferPool, DEFAULT_DELAY_MILLIS, Math.max(1, bufferPool.getCapacity() / 4),
+                Math.max(1, bufferPool.getCapacity() / 10));
+    }
+
+    /**
+     * @param bufferPool       the buffer pool whose pages are written
+     * @param delayMillis      the delay between two rounds
+     * @param lookahead        the number of pages, in eviction order, scanned
+     *                         for dirty pages every round
+     * @param maxPagesPerRound the maximum number of pages written per round
+     */
+    public BackgroundWriter(BufferPool bufferPool, long delayMillis, int lookahead, int maxPagesPerRound) {
+        super("BackgroundWriter");
+        this.bufferPool = bufferPool;
+        this.delayMillis = delayMillis;
+        this.lookahead = lookahead;
+        this.maxPagesPerRound = maxPagesPerRound;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (pause(delayMillis)) {
+            try {
+                writeRound();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wait for the given time, or until shutdown is called. The thread is
+     * never interrupted, since interrupting it in the middle of a page write
+     * would close the file channel being written.
+     *
+     * @return false if the thread should stop
+     */
+    private boolean pause(long millis) {
+        synchronized (lock) {
+            if (running && millis > 0) {
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+            return running;
+        }
+    }
+
+    /**
+     * Write out the dirty pages that are about to be evicted.
+     *
+     * @return the number of pages written
+     */
+    public int writeRound() throws IOException {
+        List<PageId> candidates = bufferPool.getDirtyEvictionCandidates(lookahead);
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        int written = bufferPool.flushPagesInBackground(
+                candidates.subList(0, Math.min(maxPagesPerRound, candidates.size())), false);
+        Debug.log(1, "BackgroundWriter: wrote %d pages", written);
+        return written;
+    }
+
+    /**
+     * Stop the thread and wait for it to finish its current round.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
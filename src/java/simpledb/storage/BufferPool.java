@@ -1,8 +1,13 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.TableIndex;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockManager.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.VersionManager;
 
 import java.io.*;
 
@@ -14,9 +19,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * disk. Access methods call into it to retrieve pages, and it fetches
  * pages from the appropriate location.
  * <p>
- * The BufferPool is also responsible for locking;  when a transaction fetches
- * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * The BufferPool also takes the locks of transactions on the tuples they
+ * write, in the {@link LockManager}; fetching a page takes no lock.
  *
  * @Threadsafe, all fields are final
  */
@@ -26,6 +30,11 @@ public class BufferPool {
      */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
+    /**
+     * Page sizes a DbFile may choose for its own pages.
+     */
+    public static final int[] SUPPORTED_PAGE_SIZES = {4096, 8192, 16384, 32768, 65536};
+
     /**
      * The set used for store pages
      */
@@ -41,8 +50,28 @@ public class BufferPool {
      */
     private int numPages;
 
+    /**
+     * Number of frames currently used. Pages larger than the global page
+     * size take several frames, see {@link #framesFor(PageId)}.
+     */
+    private int usedFrames;
+
+    /**
+     * The number of resident pages of each page size (size class)
+     */
+    private Map<Integer, Integer> pagesBySizeClass;
+
     private static int pageSize = DEFAULT_PAGE_SIZE;
 
+    /**
+     * Number of dirty pages written by query threads (on eviction or by
+     * flushAllPages), by the background writer and by the checkpointer
+     */
+    private long foregroundWrites, backgroundWrites, checkpointWrites;
+
+    private BackgroundWriter backgroundWriter;
+    private Checkpointer checkpointer;
+
     /**
      * Default number of pages passed to the constructor. This is used by
      * other classes. BufferPool should use the numPages argument to the
@@ -59,12 +88,144 @@ public class BufferPool {
         this.numPages = numPages;
         pages = new HashMap<>(numPages);
         visitTimes = new HashMap<>();
+        pagesBySizeClass = new HashMap<>();
     }
 
     public static int getPageSize() {
         return pageSize;
     }
 
+    /**
+     * Returns the page size of the specified table, as recorded by its DbFile
+     * in the catalog.
+     *
+     * @see DbFile#getPageSize()
+     */
+    public static int getPageSize(int tableId) {
+        return Database.getCatalog().getPageSize(tableId);
+    }
+
+    /**
+     * @throws IllegalArgumentException if size is not one of SUPPORTED_PAGE_SIZES
+     */
+    public static void checkPageSize(int size) {
+        for (int supported : SUPPORTED_PAGE_SIZES) {
+            if (supported == size) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported page size " + size);
+    }
+
+    /**
+     * The number of frames a page of the given table occupies: one frame per
+     * global page size, rounded up.
+     */
+    private int framesFor(PageId pid) {
+        return Math.max(1, (getPageSize(pid.getTableId()) + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * @return the number of resident pages whose size is sizeClass bytes
+     */
+    public synchronized int getNumPages(int sizeClass) {
+        return pagesBySizeClass.getOrDefault(sizeClass, 0);
+    }
+
+    /**
+     * Put a page into the cache, keeping the frame accounting up to date.
+     */
+    private void cachePage(Page page) {
+        PageId pid = page.getId();
+        if (pages.put(pid, page) == null) {
+            usedFrames += framesFor(pid);
+            pagesBySizeClass.merge(getPageSize(pid.getTableId()), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Put a page returned by DbFile.insertTuple or deleteTuple into the cache,
+     * unless a different version of it is already cached. Such a version was
+     * read or created by another thread after the file released the page, for
+     * instance when a B+ tree page is freed by a merge and reused by a split,
+     * so it is the newer one.
+     */
+    private void cacheChangedPage(Page page) {
+        Page cached = pages.get(page.getId());
+        if (cached == null || cached == page) {
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Marks the given pages dirty, logs their changes and puts them into the
+     * cache, replacing any other version of them. Files whose pages are
+     * changed by several threads at once call this before releasing their
+     * latches on the pages, so that each change is logged as an update of
+     * the transaction that made it.
+     *
+     * @param tid     the transaction that changed the pages
+     * @param dirtied the changed pages
+     */
+    public synchronized void cacheDirtyPages(TransactionId tid, List<Page> dirtied) throws IOException {
+        for (Page p : dirtied) {
+            p.markDirty(true, tid);
+            logChanges(tid, p);
+            cachePage(p);
+        }
+    }
+
+    /**
+     * Same as {@link #cacheDirtyPages(TransactionId, List)} for the pages
+     * changed by an operation inserting or deleting tuples of a B+ tree file.
+     * The tuples are logged after the changes of the pages, so that rolling
+     * back tid undoes the operation by key rather than on the pages, which
+     * other transactions may have changed since.
+     *
+     * @param tableId  the id of the B+ tree file
+     * @param inserted true if the tuples were inserted, false if deleted
+     * @param tuples   the tuples inserted or deleted
+     * @see LogFile#logTupleChanges
+     */
+    public synchronized void cacheDirtyPages(TransactionId tid, List<Page> dirtied, int tableId,
+                                             boolean inserted, List<Tuple> tuples) throws IOException {
+        for (Page p : dirtied) {
+            p.markDirty(true, tid);
+            cachePage(p);
+        }
+        Database.getLogFile().logTupleChanges(tid, dirtied, tableId, inserted, tuples);
+    }
+
+    /**
+     * Mark the pages changed by an operation of tid dirty and put them into
+     * the cache, unless another version is cached. Their changes were
+     * logged by their file, with {@link #cacheDirtyPages}, or are when they
+     * are written.
+     */
+    private synchronized void cacheChangedPages(TransactionId tid, List<Page> changedPages) {
+        for (Page p : changedPages) {
+            p.markDirty(true, tid);
+            cacheChangedPage(p);
+        }
+    }
+
+    /**
+     * Log the changes made to a page since its before image as updates of
+     * transaction tid, and make its current state its before image.
+     *
+     * @see LogFile#logChanges
+     */
+    private void logChanges(TransactionId tid, Page p) throws IOException {
+        Database.getLogFile().logChanges(tid, p);
+    }
+
+    /**
+     * @return the cached version of the page, or null if it is not resident
+     */
+    synchronized Page getCachedPage(PageId pid) {
+        return pages.get(pid);
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
         BufferPool.pageSize = pageSize;
@@ -77,8 +238,9 @@ public class BufferPool {
 
     /**
      * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * Takes no lock: readers of heap files see the snapshot of their
+     * transaction, their writers lock the tuples they write, and index files
+     * latch their pages themselves.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -90,16 +252,17 @@ public class BufferPool {
      * @param pid  the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
         Page page = pages.get(pid);
         if (page == null) {
-            if (pages.size() == numPages) {
-                evictPage();
+            int needed = framesFor(pid);
+            while (!pages.isEmpty() && usedFrames + needed > numPages) {
+                evictPage(getPageSize(pid.getTableId()));
             }
             DbFile databaseFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             page = databaseFile.readPage(pid);
             visitTimes.put(pid, 1);
-            pages.put(pid, page);
+            cachePage(page);
         } else {
             Integer currentTimes = visitTimes.get(pid);
             if (visitTimes.get(pid) == null) {
@@ -112,7 +275,8 @@ public class BufferPool {
     }
 
     /**
-     * Releases the lock on a page.
+     * Releases the lock on a page, which a transaction holds in an intention
+     * mode for the tuples it locked on the page, or after their escalation.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
@@ -121,8 +285,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        Database.getLockManager().release(tid, pid);
     }
 
     /**
@@ -131,17 +294,14 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        Database.getLockManager().releaseAll(tid);
     }
 
     /**
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return Database.getLockManager().holdsLock(tid, p);
     }
 
     /**
@@ -152,20 +312,21 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        Database.getLockManager().releaseAll(tid);
     }
 
     /**
-     * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other
-     * pages that are updated (Lock acquisition is not needed for lab2).
-     * May block if the lock(s) cannot be acquired.
+     * Add a tuple to the specified table on behalf of transaction tid.
      * <p>
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * The tuple is also added to every secondary index on the table.
+     * <p>
+     * A running {@link simpledb.transaction.Transaction} locks a heap table
+     * in IX mode, and the tuple it adds in X mode, in the {@link LockManager}.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -175,22 +336,69 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         Catalog catalog = Database.getCatalog();
         DbFile databaseFile = catalog.getDatabaseFile(tableId);
-        List<Page> changedPages = databaseFile.insertTuple(tid, t);
-        for (Page p : changedPages) {
-            p.markDirty(true, tid);
-            pages.put(p.getId(), p);
+        boolean locking = locksTuples(tid, databaseFile);
+        if (locking) {
+            Database.getLockManager().lockTable(tid, tableId, LockMode.IX);
+        }
+        List<Page> changedPages = new ArrayList<>(databaseFile.insertTuple(tid, t));
+        if (locking) {
+            Database.getLockManager().lockTuple(tid, t.getRecordId(), LockMode.X);
+        }
+        for (TableIndex index : catalog.getIndexes(tableId)) {
+            changedPages.addAll(index.insertEntry(tid, t));
+        }
+        cacheChangedPages(tid, changedPages);
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction tid,
+     * like {@link #insertTuple} does for each of them. A B+ tree table inserts the
+     * batch in key order, visiting each leaf page once for the tuples that go into
+     * it, and so does every B+ tree secondary index of a heap table.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Catalog catalog = Database.getCatalog();
+        DbFile databaseFile = catalog.getDatabaseFile(tableId);
+        List<Page> changedPages = new ArrayList<>();
+        if (databaseFile instanceof BTreeFile) {
+            changedPages.addAll(((BTreeFile) databaseFile).insertTuples(tid, tuples));
+        } else {
+            boolean locking = locksTuples(tid, databaseFile);
+            if (locking) {
+                Database.getLockManager().lockTable(tid, tableId, LockMode.IX);
+            }
+            for (Tuple t : tuples) {
+                changedPages.addAll(databaseFile.insertTuple(tid, t));
+                if (locking) {
+                    Database.getLockManager().lockTuple(tid, t.getRecordId(), LockMode.X);
+                }
+            }
         }
+        for (TableIndex index : catalog.getIndexes(tableId)) {
+            changedPages.addAll(index.insertEntries(tid, tuples));
+        }
+        cacheChangedPages(tid, changedPages);
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from and any
-     * other pages that are updated. May block if the lock(s) cannot be acquired.
      * <p>
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * The tuple is also removed from every secondary index on its table.
+     * <p>
+     * A running {@link simpledb.transaction.Transaction} only stamps a tuple of
+     * a heap file as deleted in the {@link VersionManager}, which removes it
+     * from its page and its indexes once no snapshot sees it, and locks it in X
+     * mode in the {@link LockManager} until it completes.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -198,12 +406,47 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         Catalog catalog = Database.getCatalog();
-        DbFile databaseFile = catalog.getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> changedPages = databaseFile.deleteTuple(tid, t);
-        for (Page p : changedPages) {
-            p.markDirty(true, tid);
-            pages.put(p.getId(), p);
+        RecordId rid = t.getRecordId();
+        int tableId = rid.getPageId().getTableId();
+        DbFile databaseFile = catalog.getDatabaseFile(tableId);
+        if (databaseFile instanceof HeapFile && Database.getVersionManager().tupleDeleted(tid, t)) {
+            Database.getLockManager().lockTuple(tid, rid, LockMode.X);
+            return;
         }
+        // the entries go first, so that no index points to the slot once it can be reused
+        List<Page> changedPages = new ArrayList<>();
+        for (TableIndex index : catalog.getIndexes(tableId)) {
+            changedPages.addAll(index.deleteEntry(tid, t.getField(index.getField()), rid));
+        }
+        changedPages.addAll(databaseFile.deleteTuple(tid, t));
+        cacheChangedPages(tid, changedPages);
+    }
+
+    /**
+     * Returns true if the writes of tid to the file take tuple locks: those of
+     * the running Transactions to heap files, whose readers use snapshots.
+     */
+    private static boolean locksTuples(TransactionId tid, DbFile file) {
+        return file instanceof HeapFile && Database.getVersionManager().isRunning(tid);
+    }
+
+    /**
+     * Replace a tuple with an updated copy on behalf of transaction tid: the
+     * tuple is deleted and the copy inserted into the same table. For a
+     * running Transaction on a heap file, the old version stays readable by
+     * older snapshots, and {@link VersionManager#getNextVersion} leads from it
+     * to the copy.
+     *
+     * @param tid     the transaction updating the tuple
+     * @param t       the tuple to replace
+     * @param updated the new version of the tuple
+     */
+    public void updateTuple(TransactionId tid, Tuple t, Tuple updated)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        deleteTuple(tid, t);
+        insertTuple(tid, rid.getPageId().getTableId(), updated);
+        Database.getVersionManager().tupleUpdated(rid, updated.getRecordId());
     }
 
     /**
@@ -212,9 +455,7 @@ public class BufferPool {
      * break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for(Page p : pages.values()){
-            flushPage(p.getId());
-        }
+        foregroundWrites += writePages(new ArrayList<>(pages.keySet()));
     }
 
     /**
@@ -227,7 +468,10 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void discardPage(PageId pid) {
-        pages.remove(pid);
+        if (pages.remove(pid) != null) {
+            usedFrames -= framesFor(pid);
+            pagesBySizeClass.merge(getPageSize(pid.getTableId()), -1, Integer::sum);
+        }
         visitTimes.remove(pid);
     }
 
@@ -237,15 +481,175 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        Page p = pages.get(pid);
-        TransactionId tid = null;
-        // flush it if it is dirty
-        if((tid = p.isDirty())!= null) {
-//            Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
-//            Database.getLogFile().force();
+        if (writePage(pid)) {
+            foregroundWrites++;
+        }
+    }
+
+    /**
+     * Write a page to disk if it is still resident and dirty.
+     *
+     * @return true if the page was written
+     */
+    private synchronized boolean writePage(PageId pid) throws IOException {
+        return writePages(Collections.singletonList(pid)) == 1;
+    }
+
+    /**
+     * Write the pages that are still resident and dirty to disk, each file
+     * writing its pages together, so that their images are forced to its
+     * double-write buffer at once.
+     *
+     * @return the number of pages written
+     */
+    private synchronized int writePages(List<PageId> pids) throws IOException {
+        Map<Integer, List<Page>> byTable = new LinkedHashMap<>();
+        for (PageId pid : pids) {
+            Page p = pages.get(pid);
+            TransactionId tid;
+            if (p != null && (tid = p.isDirty()) != null) {
+                // write ahead: changes not logged when they were made
+                logChanges(tid, p);
+                byTable.computeIfAbsent(pid.getTableId(), k -> new ArrayList<>()).add(p);
+            }
+        }
+        if (byTable.isEmpty()) {
+            return 0;
+        }
+        // then the log up to the last change of the pages
+        Database.getLogFile().force();
+        int written = 0;
+        for (Map.Entry<Integer, List<Page>> e : byTable.entrySet()) {
             // write to disk
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-            p.markDirty(false, null);
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(e.getValue());
+            for (Page p : e.getValue()) {
+                p.markDirty(false, null);
+            }
+            written += e.getValue().size();
+        }
+        return written;
+    }
+
+    /**
+     * Flushes a page on behalf of the background writer or the checkpointer,
+     * so that query threads find clean pages to evict.
+     *
+     * @param checkpoint true if called by the checkpointer
+     * @return true if the page was still resident and dirty and has been written
+     */
+    synchronized boolean flushPageInBackground(PageId pid, boolean checkpoint) throws IOException {
+        return flushPagesInBackground(Collections.singletonList(pid), checkpoint) == 1;
+    }
+
+    /**
+     * Same as {@link #flushPageInBackground} for several pages, written
+     * together.
+     *
+     * @return the number of pages that were still resident and dirty and have
+     *         been written
+     */
+    synchronized int flushPagesInBackground(List<PageId> pids, boolean checkpoint) throws IOException {
+        int written = writePages(pids);
+        if (checkpoint) {
+            checkpointWrites += written;
+        } else {
+            backgroundWrites += written;
+        }
+        return written;
+    }
+
+    /**
+     * Returns the dirty pages among the first window pages in eviction order
+     * (least visited first), i.e. the pages the next evictions would have to
+     * write.
+     */
+    synchronized List<PageId> getDirtyEvictionCandidates(int window) {
+        List<PageId> candidates = new ArrayList<>(pages.keySet());
+        candidates.sort(Comparator.comparingInt(pid -> visitTimes.getOrDefault(pid, 0)));
+        List<PageId> dirty = new ArrayList<>();
+        for (PageId pid : candidates.subList(0, Math.min(window, candidates.size()))) {
+            if (pages.get(pid).isDirty() != null) {
+                dirty.add(pid);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * @return the ids of all dirty resident pages
+     */
+    synchronized List<PageId> getDirtyPages() {
+        List<PageId> dirty = new ArrayList<>();
+        for (Page p : pages.values()) {
+            if (p.isDirty() != null) {
+                dirty.add(p.getId());
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getCapacity() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of dirty pages written by query threads, i.e. on
+     * eviction or by flushAllPages
+     */
+    public synchronized long getForegroundWrites() {
+        return foregroundWrites;
+    }
+
+    /**
+     * @return the number of dirty pages written by the background writer
+     */
+    public synchronized long getBackgroundWrites() {
+        return backgroundWrites;
+    }
+
+    /**
+     * @return the number of dirty pages written by the checkpointer
+     */
+    public synchronized long getCheckpointWrites() {
+        return checkpointWrites;
+    }
+
+    /**
+     * Start the background writer and the checkpointer of this buffer pool,
+     * with their default settings. Does nothing if they are already running.
+     */
+    public synchronized void startBackgroundWriters() {
+        if (backgroundWriter == null) {
+            backgroundWriter = new BackgroundWriter(this);
+            backgroundWriter.start();
+        }
+        if (checkpointer == null) {
+            checkpointer = new Checkpointer(this);
+            checkpointer.start();
+        }
+    }
+
+    /**
+     * Stop the background writer and the checkpointer, waiting for the page
+     * they are writing, if any.
+     */
+    public void stopBackgroundWriters() {
+        BackgroundWriter writer;
+        Checkpointer cp;
+        synchronized (this) {
+            writer = backgroundWriter;
+            cp = checkpointer;
+            backgroundWriter = null;
+            checkpointer = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
+        if (cp != null) {
+            cp.shutdown();
         }
     }
 
@@ -262,15 +666,32 @@ public class BufferPool {
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized void evictPage() throws DbException {
-        ArrayList<PageId> pageIds = new ArrayList<>(visitTimes.keySet());
+        evictPage(pageSize);
+    }
+
+    /**
+     * Discards the least visited page of the given size class, so that its
+     * frames can be reused by a page of the same size. Falls back to the least
+     * visited page of any size if no page of that size is resident.
+     */
+    private synchronized void evictPage(int sizeClass) throws DbException {
+        ArrayList<PageId> pageIds = new ArrayList<>(pages.keySet());
         // Get rid of the page that has been least visit
-        PageId pageIdOfMinVisitPage = pageIds.get(0);
-        for (int i = 1; i < pageIds.size(); i++) {
-            PageId currentPageId = pageIds.get(i);
-            if (visitTimes.get(pageIdOfMinVisitPage) > visitTimes.get(currentPageId)) {
-                pageIdOfMinVisitPage = currentPageId;
+        PageId pageIdOfMinVisitPage = null;
+        for (int pass = 0; pass < 2 && pageIdOfMinVisitPage == null; pass++) {
+            for (PageId currentPageId : pageIds) {
+                if (pass == 0 && getPageSize(currentPageId.getTableId()) != sizeClass) {
+                    continue;
+                }
+                if (pageIdOfMinVisitPage == null
+                        || visitTimes.getOrDefault(pageIdOfMinVisitPage, 0) > visitTimes.getOrDefault(currentPageId, 0)) {
+                    pageIdOfMinVisitPage = currentPageId;
+                }
             }
         }
+        if (pageIdOfMinVisitPage == null) {
+            throw new DbException("There is no page to evict");
+        }
         // PageId pid = new ArrayList<>(pages.keySet()).get(0);
         try {
             flushPage(pageIdOfMinVisitPage);
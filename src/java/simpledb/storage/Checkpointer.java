@@ -0,0 +1,127 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Debug;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Checkpointer is a daemon thread that takes a checkpoint every
+ * <code>intervalMillis</code>. Rather than writing all dirty pages at once,
+ * as {@link LogFile#logCheckpoint()} does, it first writes the pages that are
+ * dirty when the checkpoint starts one at a time, spread over
+ * <code>completionTarget</code> of the interval, and then calls
+ * logCheckpoint, which only has the pages dirtied in the meantime left to
+ * write before recording the checkpoint. As for the {@link BackgroundWriter},
+ * the write path logs the changes of each page and forces the log before the
+ * page reaches disk.
+ *
+ * @see BufferPool#startBackgroundWriters()
+ * @see BackgroundWriter
+ */
+public class Checkpointer extends Thread {
+
+    /** Default time between two checkpoints, in milliseconds */
+    public static final long DEFAULT_INTERVAL_MILLIS = 30000;
+
+    /** Default fraction of the interval over which writes are spread */
+    public static final double DEFAULT_COMPLETION_TARGET = 0.5;
+
+    private final BufferPool bufferPool;
+    private final long intervalMillis;
+    private final double completionTarget;
+    private final Object lock = new Object();
+    private boolean running = true;
+
+    /**
+     * Creates a checkpointer for the given buffer pool with the default
+     * interval and completion target.
+     */
+    public Checkpointer(BufferPool bufferPool) {
+        this(bufferPool, DEFAULT_INTERVAL_MILLIS, DEFAULT_COMPLETION_TARGET);
+    }
+
+    /**
+     * @param bufferPool       the buffer pool whose pages are written
+     * @param intervalMillis   the time between two checkpoints
+     * @param completionTarget the fraction of the interval over which the
+     *                         writes of a checkpoint are spread
+     */
+    public Checkpointer(BufferPool bufferPool, long intervalMillis, double completionTarget) {
+        super("Checkpointer");
+        this.bufferPool = bufferPool;
+        this.intervalMillis = intervalMillis;
+        this.completionTarget = completionTarget;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (pause(intervalMillis)) {
+            try {
+                checkpoint((long) (intervalMillis * completionTarget));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wait for the given time, or until shutdown is called. The thread is
+     * never interrupted, since interrupting it in the middle of a page write
+     * would close the file channel being written.
+     *
+     * @return false if the thread should stop
+     */
+    private boolean pause(long millis) {
+        synchronized (lock) {
+            if (running && millis > 0) {
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+            return running;
+        }
+    }
+
+    /**
+     * Take a checkpoint, spreading the writes of the pages that are dirty now
+     * evenly over spreadMillis. Returns early, without recording the
+     * checkpoint, if shutdown is called meanwhile.
+     *
+     * @return the number of pages written by the checkpointer itself
+     */
+    public int checkpoint(long spreadMillis) throws IOException {
+        List<PageId> dirty = bufferPool.getDirtyPages();
+        long pauseMillis = dirty.isEmpty() ? 0 : spreadMillis / dirty.size();
+        int written = 0;
+        for (PageId pid : dirty) {
+            if (bufferPool.flushPageInBackground(pid, true)) {
+                written++;
+            }
+            if (!pause(pauseMillis)) {
+                return written;
+            }
+        }
+        Database.getLogFile().logCheckpoint();
+        Debug.log(1, "Checkpointer: wrote %d pages", written);
+        return written;
+    }
+
+    /**
+     * Stop the thread and wait for it to finish the page it is writing.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
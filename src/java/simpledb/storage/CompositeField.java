@@ -0,0 +1,148 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, the key of a B+
+ * tree on more than one column. CompositeFields compare lexicographically: by
+ * their first fields, then their second fields, and so on.
+ * <p>
+ * A CompositeField with fewer fields than another one compares as a prefix of
+ * it: only the fields both have are compared, so (1) is equal to (1, 5) and
+ * less than (2, 0). This makes it possible to look up all the keys starting
+ * with some values.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, at least one.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields of this composite field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @param i the index of the field to return
+     * @return the ith field of this composite field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @param n the number of fields to keep, at least one
+     * @return a composite field with the first n fields of this one
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compares the fields this and val have in common, in order, and returns a
+     * negative number, zero, or a positive number if this is less than, equal
+     * to, or greater than val.
+     */
+    private int compareTo(CompositeField val) {
+        int n = Math.min(fields.length, val.fields.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, val.fields[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, val.fields[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field.
+     * Return semantics are as specified by Field.compare; LIKE is the same as
+     * EQUALS.
+     *
+     * @throws IllegalCastException if val is not a CompositeField
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        int c = compareTo((CompositeField) val);
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQ:
+                return c <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * A composite field has no type of its own, see {@link #getTypes()}.
+     *
+     * @return the type of the first field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+
+    /**
+     * @return the types of the fields of this composite field
+     */
+    public Type[] getTypes() {
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            types[i] = fields[i].getType();
+        return types;
+    }
+}
@@ -0,0 +1,739 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompressedHeapPage is an alternative page format for HeapFiles whose
+ * tuples are stored column by column, each column encoded with whichever
+ * of {@link Encoding} yields the smallest image for the values currently on
+ * the page. The encoding is chosen again every time the page is serialized,
+ * so a page adapts as its contents change.
+ * <p>
+ * The on-disk format of a compressed page is:
+ * <ul>
+ * <li> an int holding the number of slots n
+ * <li> ceiling(n / 8) bytes of slot bitmap (same bit order as HeapPage)
+ * <li> for every column: one encoding byte, an int with the length of the
+ * column block, and the column block itself
+ * <li> zero padding up to the page size of the table
+ * </ul>
+ * An all-zero page is a valid, empty compressed page.
+ * <p>
+ * Columns are decoded lazily: reading a page only parses the slot bitmap and
+ * remembers where each column block starts. {@link #iterator(Predicate)}
+ * evaluates a predicate directly on the dictionary, the runs or the
+ * frame-of-reference deltas of the filtered column, and only materializes the
+ * tuples that pass.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ */
+public class CompressedHeapPage implements Page {
+
+    /**
+     * The encodings a column block may use.
+     */
+    public enum Encoding {
+        /** values written one after another; strings are length-prefixed */
+        PLAIN,
+        /** (value, run length) pairs */
+        RLE,
+        /** sorted list of distinct values followed by bit-packed codes */
+        DICTIONARY,
+        /** int columns only: a base value followed by bit-packed deltas */
+        FRAME_OF_REFERENCE;
+
+        public static Encoding getEncoding(int i) {
+            return values()[i];
+        }
+    }
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int pageSize;
+
+    private int numSlots;
+    private byte[] header;
+
+    /* raw page image, kept until every column has been decoded */
+    private byte[] data;
+    private int[] blockOffsets;
+    private EncodedColumn[] encoded;
+
+    /* decoded column values, one array per column, null until needed */
+    private Field[][] columns;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private boolean dirty;
+    private TransactionId tid;
+
+    /**
+     * Create a CompressedHeapPage from a set of bytes of data read from disk.
+     * Only the slot bitmap is parsed here; column blocks are decoded on first
+     * access.
+     */
+    public CompressedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = BufferPool.getPageSize(id.getTableId());
+        this.data = data;
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        numSlots = dis.readInt();
+        header = new byte[(numSlots + 7) / 8];
+        dis.readFully(header);
+
+        int offset = 4 + header.length;
+        blockOffsets = new int[td.numFields()];
+        for (int c = 0; c < td.numFields(); c++) {
+            blockOffsets[c] = offset;
+            dis.readByte();
+            int len = dis.readInt();
+            offset += 5 + len;
+            dis.skipBytes(len);
+        }
+        dis.close();
+
+        encoded = new EncodedColumn[td.numFields()];
+        columns = new Field[td.numFields()][];
+        setBeforeImage();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * CompressedHeapPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #createEmptyPageData()}, for a file with the given page size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize];
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public CompressedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new CompressedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    public void setBeforeImage(byte[] data) {
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    /** Return the data of the before image of this page, without parsing it */
+    public byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.tid = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? tid : null;
+    }
+
+    /**
+     * @return the number of slots (used or not) currently on this page
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && ((header[i / 8] >> (i % 8)) & 1) == 1;
+    }
+
+    /**
+     * @return the tuple in slot i of this page, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || !isSlotUsed(i)) {
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < td.numFields(); c++) {
+            t.setField(c, column(c)[i]);
+        }
+        t.setRecordId(new RecordId(pid, i));
+        return t;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            header[i / 8] |= (byte) (1 << (i % 8));
+        } else {
+            header[i / 8] &= (byte) ~(1 << (i % 8));
+        }
+    }
+
+    /**
+     * Returns the number of tuples currently stored on this page.
+     */
+    public int getNumTuples() {
+        int number = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                number++;
+            }
+        }
+        return number;
+    }
+
+    /**
+     * @return the encoding the given column would be written with if the page
+     * was serialized now
+     */
+    public Encoding getEncoding(int column) {
+        decodeAll();
+        return chooseEncoding(column, columns[column], numSlots);
+    }
+
+    /**
+     * Returns true if t can be added to this page without its encoded image
+     * growing beyond the page size.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        decodeAll();
+        int slot = firstFreeSlot();
+        int n = Math.max(numSlots, slot + 1);
+        Field[][] trial = new Field[td.numFields()][];
+        for (int c = 0; c < td.numFields(); c++) {
+            trial[c] = Arrays.copyOf(columns[c], n);
+            trial[c][slot] = t.getField(c);
+        }
+        return encodedSize(trial, n) <= pageSize;
+    }
+
+    /**
+     * Adds the specified tuple to the page, reusing the first free slot if
+     * there is one.
+     *
+     * @throws DbException if the tupledesc is mismatched or the encoded page
+     *                     would no longer fit in the page
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("The tupledesc is mismatched");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("The page is full");
+        }
+        int slot = firstFreeSlot();
+        if (slot == numSlots) {
+            numSlots++;
+            header = Arrays.copyOf(header, (numSlots + 7) / 8);
+            for (int c = 0; c < td.numFields(); c++) {
+                columns[c] = Arrays.copyOf(columns[c], numSlots);
+            }
+        }
+        for (int c = 0; c < td.numFields(); c++) {
+            columns[c][slot] = t.getField(c);
+        }
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page. The values of the slot are
+     * kept so the column encodings are not disturbed until the slot is reused.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("The tuple is not on this page");
+        }
+        if (!isSlotUsed(rid.getTupleNumber())) {
+            throw new DbException("The corresponding slot is already empty");
+        }
+        markSlotUsed(rid.getTupleNumber(), false);
+    }
+
+    private int firstFreeSlot() {
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return numSlots;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    public Iterator<Tuple> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy p. The
+     * predicate is evaluated on the encoded column, so pages in which no tuple
+     * qualifies are never fully decoded.
+     *
+     * @param p the predicate to apply, or null for all tuples
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        boolean[] matches = null;
+        if (p != null) {
+            int c = p.getField();
+            if (columns[c] != null) {
+                matches = new boolean[numSlots];
+                for (int i = 0; i < numSlots; i++) {
+                    matches[i] = isSlotUsed(i) && columns[c][i].compare(p.getOp(), p.getOperand());
+                }
+            } else {
+                matches = encodedColumn(c).evaluate(p.getOp(), p.getOperand());
+            }
+        }
+
+        List<Tuple> result = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i) || (matches != null && !matches[i])) {
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            for (int c = 0; c < td.numFields(); c++) {
+                t.setField(c, column(c)[i]);
+            }
+            t.setRecordId(new RecordId(pid, i));
+            result.add(t);
+        }
+        return result.iterator();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, choosing
+     * the smallest encoding for each column.
+     */
+    public byte[] getPageData() {
+        if (data != null) {
+            // only the slot bitmap can have changed since the page was read
+            byte[] image = data.clone();
+            System.arraycopy(header, 0, image, 4, header.length);
+            return image;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(numSlots);
+            dos.write(header);
+            for (int c = 0; c < td.numFields(); c++) {
+                Encoding enc = chooseEncoding(c, columns[c], numSlots);
+                byte[] block = encodeBlock(enc, columns[c], numSlots);
+                dos.writeByte(enc.ordinal());
+                dos.writeInt(block.length);
+                dos.write(block);
+            }
+            dos.write(new byte[pageSize - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /* ----------------------------------------------------------------------
+     * column decoding
+     * ---------------------------------------------------------------------- */
+
+    private Field[] column(int c) {
+        if (columns[c] == null) {
+            EncodedColumn col = encodedColumn(c);
+            Field[] values = new Field[numSlots];
+            for (int i = 0; i < numSlots; i++) {
+                values[i] = col.get(i);
+            }
+            columns[c] = values;
+        }
+        return columns[c];
+    }
+
+    /**
+     * Decodes every column and drops the raw page image; called before the
+     * page is modified.
+     */
+    private void decodeAll() {
+        for (int c = 0; c < td.numFields(); c++) {
+            column(c);
+        }
+        data = null;
+        encoded = new EncodedColumn[td.numFields()];
+    }
+
+    private EncodedColumn encodedColumn(int c) {
+        if (encoded[c] == null) {
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                        blockOffsets[c], data.length - blockOffsets[c]));
+                Encoding enc = Encoding.getEncoding(dis.readByte());
+                dis.readInt();
+                encoded[c] = readBlock(enc, td.getFieldType(c), dis);
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading column " + c);
+            }
+        }
+        return encoded[c];
+    }
+
+    /**
+     * The decoded form of one column block: either a list of values indexed
+     * by per-row codes (dictionary and run-length blocks), a plain list of
+     * values, or frame-of-reference deltas.
+     */
+    private class EncodedColumn {
+        Field[] values;
+        int[] codes;
+        int base;
+        int[] deltas;
+
+        Field get(int i) {
+            if (deltas != null) {
+                return new IntField(base + deltas[i]);
+            }
+            return values[codes == null ? i : codes[i]];
+        }
+
+        boolean[] evaluate(Predicate.Op op, Field operand) {
+            boolean[] matches = new boolean[numSlots];
+            if (deltas != null) {
+                long target = (long) ((IntField) operand).getValue() - base;
+                for (int i = 0; i < numSlots; i++) {
+                    matches[i] = isSlotUsed(i) && compareLong(op, deltas[i], target);
+                }
+            } else if (codes != null) {
+                boolean[] valueMatches = new boolean[values.length];
+                for (int v = 0; v < values.length; v++) {
+                    valueMatches[v] = values[v].compare(op, operand);
+                }
+                for (int i = 0; i < numSlots; i++) {
+                    matches[i] = isSlotUsed(i) && valueMatches[codes[i]];
+                }
+            } else {
+                for (int i = 0; i < numSlots; i++) {
+                    matches[i] = isSlotUsed(i) && values[i].compare(op, operand);
+                }
+            }
+            return matches;
+        }
+    }
+
+    private static boolean compareLong(Predicate.Op op, long v, long target) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return v == target;
+            case NOT_EQUALS:
+                return v != target;
+            case GREATER_THAN:
+                return v > target;
+            case GREATER_THAN_OR_EQ:
+                return v >= target;
+            case LESS_THAN:
+                return v < target;
+            case LESS_THAN_OR_EQ:
+                return v <= target;
+        }
+        return false;
+    }
+
+    private EncodedColumn readBlock(Encoding enc, Type type, DataInputStream dis) throws IOException {
+        EncodedColumn col = new EncodedColumn();
+        switch (enc) {
+            case PLAIN:
+                col.values = new Field[numSlots];
+                for (int i = 0; i < numSlots; i++) {
+                    col.values[i] = readValue(type, dis);
+                }
+                break;
+            case RLE: {
+                int runs = dis.readInt();
+                col.values = new Field[runs];
+                col.codes = new int[numSlots];
+                int i = 0;
+                for (int r = 0; r < runs; r++) {
+                    col.values[r] = readValue(type, dis);
+                    int len = dis.readInt();
+                    Arrays.fill(col.codes, i, i + len, r);
+                    i += len;
+                }
+                break;
+            }
+            case DICTIONARY: {
+                int size = dis.readInt();
+                col.values = new Field[size];
+                for (int v = 0; v < size; v++) {
+                    col.values[v] = readValue(type, dis);
+                }
+                int width = dis.readByte();
+                col.codes = unpack(dis, width, numSlots);
+                break;
+            }
+            case FRAME_OF_REFERENCE: {
+                col.base = dis.readInt();
+                int width = dis.readByte();
+                col.deltas = unpack(dis, width, numSlots);
+                break;
+            }
+        }
+        return col;
+    }
+
+    private static Field readValue(Type type, DataInputStream dis) throws IOException {
+        if (type == Type.INT_TYPE) {
+            return new IntField(dis.readInt());
+        }
+        byte[] bs = new byte[dis.readInt()];
+        dis.readFully(bs);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
+
+    /* ----------------------------------------------------------------------
+     * column encoding
+     * ---------------------------------------------------------------------- */
+
+    private int encodedSize(Field[][] cols, int n) {
+        int size = 4 + (n + 7) / 8;
+        for (int c = 0; c < cols.length; c++) {
+            size += 5 + blockSize(chooseEncoding(c, cols[c], n), cols[c], n);
+        }
+        return size;
+    }
+
+    private Encoding chooseEncoding(int c, Field[] values, int n) {
+        Encoding best = Encoding.PLAIN;
+        int bestSize = blockSize(Encoding.PLAIN, values, n);
+        for (Encoding enc : Encoding.values()) {
+            if (enc == Encoding.FRAME_OF_REFERENCE && td.getFieldType(c) != Type.INT_TYPE) {
+                continue;
+            }
+            int size = blockSize(enc, values, n);
+            if (size < bestSize) {
+                best = enc;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    private static int valueSize(Field f) {
+        if (f.getType() == Type.INT_TYPE) {
+            return 4;
+        }
+        return 4 + ((StringField) f).getValue().length();
+    }
+
+    private static int bitWidth(long maxValue) {
+        return 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    private static int blockSize(Encoding enc, Field[] values, int n) {
+        int size = 0;
+        switch (enc) {
+            case PLAIN:
+                for (int i = 0; i < n; i++) {
+                    size += valueSize(values[i]);
+                }
+                return size;
+            case RLE:
+                size = 4;
+                for (int i = 0; i < n; i++) {
+                    if (i == 0 || !values[i].equals(values[i - 1])) {
+                        size += valueSize(values[i]) + 4;
+                    }
+                }
+                return size;
+            case DICTIONARY: {
+                Set<Field> distinct = new HashSet<>(Arrays.asList(values).subList(0, n));
+                size = 5;
+                for (Field f : distinct) {
+                    size += valueSize(f);
+                }
+                return size + packedSize(bitWidth(Math.max(distinct.size() - 1, 0)), n);
+            }
+            case FRAME_OF_REFERENCE: {
+                if (n == 0) {
+                    return 5;
+                }
+                long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    int v = ((IntField) values[i]).getValue();
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                return 5 + packedSize(bitWidth(max - min), n);
+            }
+        }
+        throw new IllegalStateException("impossible to reach here");
+    }
+
+    private static byte[] encodeBlock(Encoding enc, Field[] values, int n) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        switch (enc) {
+            case PLAIN:
+                for (int i = 0; i < n; i++) {
+                    writeValue(values[i], dos);
+                }
+                break;
+            case RLE: {
+                List<Integer> starts = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    if (i == 0 || !values[i].equals(values[i - 1])) {
+                        starts.add(i);
+                    }
+                }
+                dos.writeInt(starts.size());
+                for (int r = 0; r < starts.size(); r++) {
+                    int end = r + 1 < starts.size() ? starts.get(r + 1) : n;
+                    writeValue(values[starts.get(r)], dos);
+                    dos.writeInt(end - starts.get(r));
+                }
+                break;
+            }
+            case DICTIONARY: {
+                TreeSet<Field> sorted = new TreeSet<>(CompressedHeapPage::compareFields);
+                sorted.addAll(Arrays.asList(values).subList(0, n));
+                Map<Field, Integer> codeOf = new HashMap<>();
+                dos.writeInt(sorted.size());
+                for (Field f : sorted) {
+                    codeOf.put(f, codeOf.size());
+                    writeValue(f, dos);
+                }
+                int width = bitWidth(Math.max(sorted.size() - 1, 0));
+                int[] codes = new int[n];
+                for (int i = 0; i < n; i++) {
+                    codes[i] = codeOf.get(values[i]);
+                }
+                dos.writeByte(width);
+                dos.write(pack(codes, width));
+                break;
+            }
+            case FRAME_OF_REFERENCE: {
+                int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    int v = ((IntField) values[i]).getValue();
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                if (n == 0) {
+                    min = max = 0;
+                }
+                int width = bitWidth((long) max - min);
+                int[] deltas = new int[n];
+                for (int i = 0; i < n; i++) {
+                    deltas[i] = (int) ((long) ((IntField) values[i]).getValue() - min);
+                }
+                dos.writeInt(min);
+                dos.writeByte(width);
+                dos.write(pack(deltas, width));
+                break;
+            }
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeValue(Field f, DataOutputStream dos) throws IOException {
+        if (f.getType() == Type.INT_TYPE) {
+            dos.writeInt(((IntField) f).getValue());
+        } else {
+            String s = ((StringField) f).getValue();
+            dos.writeInt(s.length());
+            dos.writeBytes(s);
+        }
+    }
+
+    private static int compareFields(Field a, Field b) {
+        if (a.getType() == Type.INT_TYPE) {
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        }
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    /* ----------------------------------------------------------------------
+     * bit packing; values are stored least significant bit first
+     * ---------------------------------------------------------------------- */
+
+    private static int packedSize(int width, int n) {
+        return (int) (((long) width * n + 7) / 8);
+    }
+
+    private static byte[] pack(int[] values, int width) {
+        byte[] out = new byte[packedSize(width, values.length)];
+        long bit = 0;
+        for (int v : values) {
+            long unsigned = v & 0xFFFFFFFFL;
+            for (int b = 0; b < width; b++, bit++) {
+                if (((unsigned >> b) & 1) == 1) {
+                    out[(int) (bit / 8)] |= (byte) (1 << (bit % 8));
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int[] unpack(DataInputStream dis, int width, int n) throws IOException {
+        byte[] in = new byte[packedSize(width, n)];
+        dis.readFully(in);
+        int[] values = new int[n];
+        long bit = 0;
+        for (int i = 0; i < n; i++) {
+            long v = 0;
+            for (int b = 0; b < width; b++, bit++) {
+                if (((in[(int) (bit / 8)] >> (bit % 8)) & 1) == 1) {
+                    v |= 1L << b;
+                }
+            }
+            values[i] = (int) v;
+        }
+        return values;
+    }
+}
@@ -33,10 +33,24 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk, as {@link #writePage} does for each of
+     * them. Files that protect their pages against torn writes with
+     * {@link PageChecksums} force the images of all the pages at once.
+     *
+     * @param pages The pages to write, all of this file.
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
-     * This method will acquire a lock on the affected pages of the file, and
-     * may block until the lock can be acquired.
+     * This method takes no locks; the BufferPool locks the tuples written by
+     * running transactions.
      *
      * @param tid The transaction performing the update
      * @param t The tuple to add.  This tuple should be updated to reflect that
@@ -51,8 +65,8 @@ public interface DbFile {
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
-     * This method will acquire a lock on the affected pages of the file, and
-     * may block until the lock can be acquired.
+     * This method takes no locks; the BufferPool locks the tuples written by
+     * running transactions.
      *
      * @param tid The transaction performing the update
      * @param t The tuple to delete.  This tuple should be updated to reflect that
@@ -93,4 +107,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Returns the size in bytes of the pages of this DbFile. Files that do not
+     * choose their own page size use the global {@link BufferPool#getPageSize()}.
+     * @return the page size of this DbFile.
+     */
+    default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
 }
@@ -1,8 +1,10 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.VersionManager;
 
 import java.io.*;
 import java.util.*;
@@ -13,6 +15,10 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile may instead be created as compressed, in which case its pages
+ * are {@link CompressedHeapPage}s: the same tuples, stored column by column
+ * with a per-page encoding, so that more of them fit in each page.
  *
  * @author Sam Madden, Zetong Zhao
  * @see HeapPage#HeapPage
@@ -23,6 +29,28 @@ public class HeapFile implements DbFile {
     private byte[] bytes;
     private BufferPool bufferPool;
     private int numPages = 0;
+    private final boolean compressed;
+    private final int pageSize;
+    private final ZoneMap zoneMap;
+    private final PageChecksums checksums;
+    private final List<TupleMoveListener> moveListeners = new ArrayList<>();
+
+    /**
+     * Notified when {@link #vacuum} moves a tuple in place to another page, so
+     * that structures referring to tuples by RecordId can follow it. The
+     * pages they change are dirtied by the transaction of the vacuum, so that
+     * they commit or roll back with the move. The moves of a Transaction are
+     * updates, which keep the original until no snapshot sees it, and insert
+     * the copy into the indexes of the table like any other insert.
+     */
+    public interface TupleMoveListener {
+        /**
+         * @param tid    the transaction moving the tuple
+         * @param oldRid the RecordId the tuple had before the move
+         * @param t      the tuple, with its new RecordId
+         */
+        void tupleMoved(TransactionId tid, RecordId oldRid, Tuple t) throws DbException, IOException, TransactionAbortedException;
+    }
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -31,9 +59,43 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f          the file that stores the on-disk backing store for this
+     *                   heap file.
+     * @param compressed whether the pages of the file use the compressed,
+     *                   column-encoded format of {@link CompressedHeapPage}
+     */
+    public HeapFile(File f, TupleDesc td, boolean compressed) {
+        this(f, td, compressed, 0);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f          the file that stores the on-disk backing store for this
+     *                   heap file.
+     * @param compressed whether the pages of the file use the compressed,
+     *                   column-encoded format of {@link CompressedHeapPage}
+     * @param pageSize   the size in bytes of the pages of this file, one of
+     *                   {@link BufferPool#SUPPORTED_PAGE_SIZES}, or 0 to use
+     *                   the global {@link BufferPool#getPageSize()}
+     */
+    public HeapFile(File f, TupleDesc td, boolean compressed, int pageSize) {
+        if (pageSize != 0) {
+            BufferPool.checkPageSize(pageSize);
+        }
         this.f = f;
         this.td = td;
+        this.compressed = compressed;
+        this.pageSize = pageSize;
+        this.zoneMap = new ZoneMap(td);
         this.bufferPool = Database.getBufferPool();
+        this.checksums = new PageChecksums(f);
         updateBytes(f);
     }
 
@@ -54,6 +116,42 @@ public class HeapFile implements DbFile {
         return f;
     }
 
+    /**
+     * @return true if the pages of this file are CompressedHeapPages
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the size of the pages of this file. Files created without an
+     * explicit page size follow the global page size.
+     */
+    @Override
+    public int getPageSize() {
+        return pageSize != 0 ? pageSize : BufferPool.getPageSize();
+    }
+
+    /**
+     * @return the per-page min/max summaries of this file
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+    /**
+     * Keep the zone of a page up to date after t was inserted into it.
+     */
+    private void updateZone(HeapPageId pid, Page page, Tuple t) {
+        if (zoneMap.isSummarized(pid.getPageNumber())) {
+            zoneMap.tupleInserted(pid.getPageNumber(), t);
+        } else if (page instanceof CompressedHeapPage) {
+            zoneMap.summarize(pid.getPageNumber(), ((CompressedHeapPage) page).iterator());
+        } else {
+            zoneMap.summarize(pid.getPageNumber(), ((HeapPage) page).iterator());
+        }
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -78,16 +176,26 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-        int pageSize = BufferPool.getPageSize();
+        int pageSize = getPageSize();
         HeapPageId currentPid = null;
         currentPid = (HeapPageId) pid;
         assert currentPid != null;
         int beginPosition = pageSize * currentPid.getPageNumber();
         byte[] currentByte = new byte[pageSize];
         System.arraycopy(bytes, beginPosition, currentByte, 0, pageSize);
-        HeapPage heapPage = null;
+        byte[] verified = checksums.verify(currentPid.getPageNumber(), beginPosition, currentByte);
+        if (verified != currentByte) {
+            // the page was torn and has been restored on disk
+            currentByte = verified;
+            updateBytes(f);
+        }
+        Page heapPage = null;
         try {
-            heapPage = new HeapPage(currentPid, currentByte);
+            if (compressed) {
+                heapPage = new CompressedHeapPage(currentPid, currentByte);
+            } else {
+                heapPage = new HeapPage(currentPid, currentByte);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -96,17 +204,29 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        HeapPageId id = (HeapPageId) page.getId();
-        int size = BufferPool.getPageSize();
-        int pageNumber = id.getPageNumber();
-        byte[] data = page.getPageData();
-        try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rw");
-            randomAccessFile.seek((long) pageNumber * size);
-            randomAccessFile.write(data);
-            randomAccessFile.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        writePages(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        int size = getPageSize();
+        int[] pageNumbers = new int[pages.size()];
+        long[] offsets = new long[pages.size()];
+        byte[][] data = new byte[pages.size()][];
+        for (int i = 0; i < pages.size(); i++) {
+            pageNumbers[i] = pages.get(i).getId().getPageNumber();
+            offsets[i] = (long) pageNumbers[i] * size;
+            data[i] = pages.get(i).getPageData();
+        }
+        checksums.beforeWrite(pageNumbers, offsets, data);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rw")) {
+            for (int i = 0; i < pages.size(); i++) {
+                randomAccessFile.seek(offsets[i]);
+                randomAccessFile.write(data[i]);
+            }
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            checksums.afterWrite(pageNumbers[i], data[i]);
         }
         updateBytes(f);
     }
@@ -115,11 +235,29 @@ public class HeapFile implements DbFile {
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) f.length() / BufferPool.getPageSize();
+        return (int) (f.length() / getPageSize());
     }
 
-    // see DbFile.java for javadocs
-    public List<Page> insertTuple(TransactionId tid, Tuple t)
+    /**
+     * Inserts the tuple, and stamps it as a version of transaction tid in the
+     * VersionManager before readers, which copy the tuples of a page under the
+     * lock of this file, can see it.
+     * <p>
+     * Transactions writing different tuples of a page change it at once, so
+     * the changed page is dirtied and its change logged under the lock of
+     * this file.
+     *
+     * @see DbFile#insertTuple
+     */
+    public synchronized List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> changedPages = compressed ? insertCompressedTuple(tid, t) : insertHeapTuple(tid, t);
+        bufferPool.cacheDirtyPages(tid, changedPages);
+        Database.getVersionManager().tupleInserted(tid, t);
+        return changedPages;
+    }
+
+    private List<Page> insertHeapTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> changedPages = new ArrayList<>();
         for (int i = 0; i < numPages(); i++) {
@@ -127,34 +265,288 @@ public class HeapFile implements DbFile {
             HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
                 page.insertTuple(t);
+                updateZone(heapPageId, page, t);
                 changedPages.add(page);
                 return changedPages;
             }
         }
         HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-        HeapPage newPage = new HeapPage(heapPageId, new byte[BufferPool.getPageSize()]);
+        HeapPage newPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData(getPageSize()));
         newPage.insertTuple(t);
+        updateZone(heapPageId, newPage, t);
         changedPages.add(newPage);
-        writePage(newPage);
+        // concurrent scans must find the page in the buffer pool once the file has grown
+        bufferPool.cacheDirtyPages(tid, changedPages);
+        // the tuple reaches disk once its insert is logged, when the page is flushed
+        writePage(new HeapPage(heapPageId, HeapPage.createEmptyPageData(getPageSize())));
         return changedPages;
     }
 
-    // see DbFile.java for javadocs
-    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+    /**
+     * Same as insertTuple, but for compressed files: whether a page has room
+     * depends on how well the new tuple encodes alongside the existing ones.
+     */
+    private List<Page> insertCompressedTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> changedPages = new ArrayList<>();
+        for (int i = 0; i < numPages(); i++) {
+            HeapPageId heapPageId = new HeapPageId(getId(), i);
+            CompressedHeapPage page = (CompressedHeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
+            if (page.hasRoomFor(t)) {
+                page.insertTuple(t);
+                updateZone(heapPageId, page, t);
+                changedPages.add(page);
+                return changedPages;
+            }
+        }
+        HeapPageId heapPageId = new HeapPageId(getId(), numPages());
+        CompressedHeapPage newPage = new CompressedHeapPage(heapPageId, CompressedHeapPage.createEmptyPageData(getPageSize()));
+        newPage.insertTuple(t);
+        updateZone(heapPageId, newPage, t);
+        changedPages.add(newPage);
+        // concurrent scans must find the page in the buffer pool once the file has grown
+        bufferPool.cacheDirtyPages(tid, changedPages);
+        // the tuple reaches disk once its insert is logged, when the page is flushed
+        writePage(new CompressedHeapPage(heapPageId, CompressedHeapPage.createEmptyPageData(getPageSize())));
+        return changedPages;
+    }
+
+    /**
+     * Deletes the tuple from its page, which is dirtied and whose change is
+     * logged under the lock of this file, see {@link #insertTuple}.
+     *
+     * @see DbFile#deleteTuple
+     */
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            IOException, TransactionAbortedException {
         ArrayList<Page> changedPage = new ArrayList<>();
         PageId pageId = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        Page page = bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+        if (compressed) {
+            ((CompressedHeapPage) page).deleteTuple(t);
+        } else {
+            ((HeapPage) page).deleteTuple(t);
+        }
+        zoneMap.tupleDeleted(pageId.getPageNumber());
 
         changedPage.add(page);
+        bufferPool.cacheDirtyPages(tid, changedPage);
         return changedPage;
     }
 
+    /**
+     * Read the tuple with the given RecordId through the buffer pool.
+     *
+     * @param tid the transaction reading the tuple
+     * @param rid the RecordId of the tuple in this file
+     * @return the tuple, or null if there is no tuple with that RecordId
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() >= numPages()) {
+            return null;
+        }
+        Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        if (page instanceof CompressedHeapPage) {
+            return ((CompressedHeapPage) page).getTuple(rid.getTupleNumber());
+        }
+        return ((HeapPage) page).getTuple(rid.getTupleNumber());
+    }
+
+    /**
+     * Register a listener to be notified of the tuples moved by vacuum.
+     */
+    public synchronized void addTupleMoveListener(TupleMoveListener listener) {
+        moveListeners.add(listener);
+    }
+
+    /**
+     * Compacts this file after deletes: tuples are moved from the last pages
+     * of the file into free slots of the first pages, and trailing pages left
+     * empty are cut off the end of the file.
+     * <p>
+     * At most maxMoves tuples are moved per call, so that a large file can be
+     * compacted incrementally between other work, under whatever throughput
+     * budget the caller chooses; call it again until it returns 0. Moved pages
+     * are dirtied in the BufferPool like any other update. Listeners added
+     * with {@link #addTupleMoveListener} are told the new RecordId of every
+     * moved tuple.
+     * <p>
+     * When tid is a started {@link simpledb.transaction.Transaction}, a move
+     * is an update in the VersionManager: the copy is created and the
+     * original deleted by tid, so that scans of earlier snapshots keep
+     * reading the original, and later ones the copy. The original leaves its
+     * page, and its index entries, once no snapshot sees it, and the pages
+     * it empties are only cut off by a later call, after tid has committed.
+     * Other transaction ids move tuples in place, as every write outside a
+     * Transaction does.
+     *
+     * @param tid      the transaction on behalf of which tuples are moved
+     * @param maxMoves the maximum number of tuples to move
+     * @return the number of tuples moved
+     */
+    public synchronized int vacuum(TransactionId tid, int maxMoves)
+            throws DbException, IOException, TransactionAbortedException {
+        int moved = 0;
+        int dst = 0;
+        truncateEmptyPages();
+        int src = numPages() - 1;
+        while (moved < maxMoves && dst < src) {
+            Page srcPage = bufferPool.getPage(tid, new HeapPageId(getId(), src), Permissions.READ_WRITE);
+            List<Tuple> tuples = new ArrayList<>();
+            visibleTuples(tid, srcPage, null).forEachRemaining(tuples::add);
+            for (Tuple t : tuples) {
+                if (moved == maxMoves) {
+                    break;
+                }
+                Page dstPage = null;
+                while (dst < src) {
+                    dstPage = bufferPool.getPage(tid, new HeapPageId(getId(), dst), Permissions.READ_WRITE);
+                    if (hasRoomFor(dstPage, t)) {
+                        break;
+                    }
+                    dst++;
+                }
+                if (dst == src) {
+                    break;
+                }
+                if (moveTuple(tid, t, srcPage, dstPage)) {
+                    moved++;
+                }
+            }
+            src--;
+        }
+        truncateEmptyPages();
+        return moved;
+    }
+
+    /**
+     * Returns the tuples of a page of this file that transaction tid sees in
+     * the VersionManager. Compressed pages only return the tuples that may
+     * satisfy p.
+     *
+     * @param p the predicate pushed down from a Filter, may be null
+     */
+    Iterator<Tuple> visibleTuples(TransactionId tid, Page page, Predicate p) {
+        Iterator<Tuple> tuples;
+        synchronized (this) {
+            // the pages materialize their tuples
+            tuples = page instanceof CompressedHeapPage ? ((CompressedHeapPage) page).iterator(p)
+                    : ((HeapPage) page).iterator();
+        }
+        VersionManager versions = Database.getVersionManager();
+        List<Tuple> visible = new ArrayList<>();
+        tuples.forEachRemaining(t -> {
+            if (versions.isVisible(tid, t.getRecordId())) {
+                visible.add(t);
+            }
+        });
+        return visible.iterator();
+    }
+
+    private static Iterator<Tuple> tuplesOf(Page page) {
+        if (page instanceof CompressedHeapPage) {
+            return ((CompressedHeapPage) page).iterator();
+        }
+        return ((HeapPage) page).iterator();
+    }
+
+    private static boolean hasRoomFor(Page page, Tuple t) {
+        if (page instanceof CompressedHeapPage) {
+            return ((CompressedHeapPage) page).hasRoomFor(t);
+        }
+        return ((HeapPage) page).getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Move tuple t of srcPage into dstPage, see {@link #vacuum}. In a
+     * Transaction, the move is an update through the BufferPool, which
+     * inserts the copy into the first page with room, dstPage at the latest,
+     * and into the indexes of the table.
+     *
+     * @return false if t is being deleted by another transaction, and was
+     *         left where it is
+     */
+    private boolean moveTuple(TransactionId tid, Tuple t, Page srcPage, Page dstPage)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId oldRid = t.getRecordId();
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            copy.setField(i, t.getField(i));
+        }
+        boolean stamped;
+        try {
+            stamped = Database.getVersionManager().tupleDeleted(tid, t);
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+        if (stamped) {
+            bufferPool.updateTuple(tid, t, copy);
+            return true;
+        }
+        if (compressed) {
+            ((CompressedHeapPage) srcPage).deleteTuple(t);
+            ((CompressedHeapPage) dstPage).insertTuple(copy);
+        } else {
+            ((HeapPage) srcPage).deleteTuple(t);
+            ((HeapPage) dstPage).insertTuple(copy);
+        }
+        zoneMap.tupleDeleted(srcPage.getId().getPageNumber());
+        updateZone((HeapPageId) dstPage.getId(), dstPage, copy);
+        bufferPool.cacheDirtyPages(tid, Arrays.asList(srcPage, dstPage));
+        Database.getVersionManager().tupleMoved(oldRid, copy.getRecordId());
+        for (TupleMoveListener listener : moveListeners) {
+            listener.tupleMoved(tid, oldRid, copy);
+        }
+        return true;
+    }
+
+    /**
+     * Cut the trailing empty pages off the end of the file. The first page is
+     * always kept, and so are the pages still dirty under a running
+     * transaction, whose changes it may yet roll back.
+     */
+    private void truncateEmptyPages() throws IOException {
+        VersionManager versions = Database.getVersionManager();
+        int last;
+        while ((last = numPages() - 1) > 0) {
+            HeapPageId pid = new HeapPageId(getId(), last);
+            Page page = bufferPool.getCachedPage(pid);
+            if (page == null) {
+                page = readPage(pid);
+            }
+            TransactionId dirtier = page.isDirty();
+            if (tuplesOf(page).hasNext() || (dirtier != null && versions.isRunning(dirtier))) {
+                break;
+            }
+            bufferPool.discardPage(pid);
+            zoneMap.invalidate(last);
+            checksums.truncate(last);
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength((long) last * getPageSize());
+            }
+            updateBytes(f);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
         return new HeapFileIterator(getId(), tid, Permissions.READ_ONLY, numPages());
     }
+
+    /**
+     * Returns an iterator over the tuples of this file that may satisfy p.
+     * Pages whose zone shows that no tuple can satisfy p are skipped without
+     * being fetched, and compressed pages evaluate p on their encoded
+     * columns. Other pages return all of their tuples, so callers must still
+     * apply p themselves.
+     *
+     * @param p the predicate pushed down from a Filter, may be null
+     * @see ZoneMap
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return new HeapFileIterator(getId(), tid, Permissions.READ_ONLY, numPages(), p, zoneMap);
+    }
 }
 
@@ -3,9 +3,11 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -18,17 +20,60 @@ public class HeapFileIterator implements  DbFileIterator{
     private Permissions perm;
     private int pageNumber;
     private int currentPageNumber;
-    private HeapPage page;
+    private Page page;
+    private Predicate predicate;
+    private ZoneMap zoneMap;
     Iterator<Tuple> iterator;
 
     HeapFileIterator(int tableId, TransactionId tid, Permissions perm, int pageNumber) {
+        this(tableId, tid, perm, pageNumber, null, null);
+    }
+
+    HeapFileIterator(int tableId, TransactionId tid, Permissions perm, int pageNumber,
+                     Predicate predicate, ZoneMap zoneMap) {
         this.tableId = tableId;
         this.tid = tid;
         this.perm = perm;
         this.pageNumber = pageNumber;
+        this.predicate = predicate;
+        this.zoneMap = zoneMap;
         this.currentPageNumber = 0;
     }
 
+    /**
+     * Returns true if the zone map proves that the current page holds no
+     * tuple satisfying the predicate.
+     */
+    private boolean canSkipCurrentPage() {
+        return predicate != null && zoneMap != null && !zoneMap.mightMatch(currentPageNumber, predicate);
+    }
+
+    /**
+     * Summarize a page the first time the scan reads it, so that later scans
+     * can skip it.
+     */
+    private void summarize(Page page) {
+        if (zoneMap != null && !zoneMap.isSummarized(currentPageNumber)) {
+            zoneMap.summarizeIfAbsent(currentPageNumber, page instanceof CompressedHeapPage
+                    ? ((CompressedHeapPage) page).iterator() : ((HeapPage) page).iterator());
+        }
+    }
+
+    /**
+     * Compressed pages can apply the pushed-down predicate on their encoded
+     * columns; plain HeapPages return every tuple. Only the tuples in the
+     * snapshot of the transaction are returned.
+     */
+    private Iterator<Tuple> tuplesOf(DbFile file, Page page) {
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).visibleTuples(tid, page, predicate);
+        }
+        if (page instanceof CompressedHeapPage) {
+            return ((CompressedHeapPage) page).iterator(predicate);
+        }
+        return ((HeapPage) page).iterator();
+    }
+
     private Page obtainCurrentPage(int tableId, TransactionId tid, Permissions perm, int pageNumber) {
         Page page = null;
         BufferPool bufferPool = Database.getBufferPool();
@@ -44,9 +89,7 @@ public class HeapFileIterator implements  DbFileIterator{
     @Override
     public void open() throws DbException, TransactionAbortedException {
         currentPageNumber = 0;
-        page = (HeapPage) obtainCurrentPage(tableId, tid, perm, currentPageNumber);
-        iterator = page.iterator();
-        currentPageNumber++;
+        iterator = Collections.emptyIterator();
     }
 
     @Override
@@ -57,10 +100,21 @@ public class HeapFileIterator implements  DbFileIterator{
         if (iterator.hasNext()) {
             return true;
         } else {
-            for (int i = currentPageNumber; i < pageNumber; currentPageNumber++) {
-                page = (HeapPage) obtainCurrentPage(tableId, tid, perm, currentPageNumber);
-                if (page.iterator().hasNext()) {
-                    iterator = page.iterator();
+            // the file may have been shortened by HeapFile.vacuum since the scan started
+            int numPages = pageNumber;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (file instanceof HeapFile) {
+                numPages = Math.min(numPages, ((HeapFile) file).numPages());
+            }
+            for (; currentPageNumber < numPages; currentPageNumber++) {
+                if (canSkipCurrentPage()) {
+                    continue;
+                }
+                page = obtainCurrentPage(tableId, tid, perm, currentPageNumber);
+                summarize(page);
+                Iterator<Tuple> pageIterator = tuplesOf(file, page);
+                if (pageIterator.hasNext()) {
+                    iterator = pageIterator;
                     currentPageNumber++;
                     return true;
                 }
@@ -71,7 +125,7 @@ public class HeapFileIterator implements  DbFileIterator{
 
     @Override
     public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-        if (iterator == null) {
+        if (iterator == null || !hasNext()) {
             throw new NoSuchElementException();
         }
         return iterator.next();
@@ -23,10 +23,11 @@ public class HeapPage implements Page {
     private final byte[] header;
     private final Tuple[] tuples;
     private final int numSlots;
+    private final int pageSize;
     private int headerSize;
 
     private byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
     private boolean dirty;
     private TransactionId tid;
@@ -36,21 +37,23 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}. (通过计算tuple中每一个字段类型所占的比特数的和)
      * The number of 8-bit header words is equal to: (每一个Tuple对应着一个比特)
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The page size is the one of the page's table, see {@link BufferPool#getPageSize(int)}.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see BufferPool#getPageSize(int)
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = BufferPool.getPageSize(id.getTableId());
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -78,8 +81,29 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
-        int size = td.getSize();
-        return (int) Math.floor((BufferPool.getPageSize() * 8.0) / (size * 8 + 1));
+        return getNumTuples(pageSize, td.getSize());
+    }
+
+    private static int getNumTuples(int pageSize, int tupleSize) {
+        return (int) Math.floor((pageSize * 8.0) / (tupleSize * 8 + 1));
+    }
+
+    /**
+     * Returns the number of slots of the pages of a table
+     * -- used by the log
+     */
+    static int getNumSlots(int tableId) {
+        return getNumTuples(BufferPool.getPageSize(tableId), Database.getCatalog().getTupleDesc(tableId).getSize());
+    }
+
+    /**
+     * Returns the offset of slot i in the data of a page of a table, after
+     * the header
+     * -- used by the log
+     */
+    static int getSlotOffset(int tableId, int i) {
+        int headerSize = (int) Math.ceil(getNumSlots(tableId) / 8.0);
+        return headerSize + i * Database.getCatalog().getTupleDesc(tableId).getSize();
     }
 
     /**
@@ -117,6 +141,19 @@ public class HeapPage implements Page {
         }
     }
 
+    public void setBeforeImage(byte[] data) {
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    /** Return the data of the before image of this page, without parsing it */
+    public byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -170,7 +207,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        int len = pageSize;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -213,7 +250,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -240,8 +277,14 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Same as {@link #createEmptyPageData()}, for a file with the given page size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -344,6 +387,16 @@ public class HeapPage implements Page {
         return flag == 1;
     }
 
+    /**
+     * @return the tuple in slot i of this page, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= tuples.length || !isSlotUsed(i)) {
+            return null;
+        }
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -6,8 +6,12 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.zip.CRC32;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -43,27 +47,49 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file begins with a header of HEADER_SIZE bytes: a long integer
+holding the offset of the last written checkpoint, or -1 if there are no
+checkpoints, then the integer LOG_MAGIC and the integer FORMAT_VERSION
+of the format below.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with a byte type, a long integer
+transaction id and the integer length of its data, followed by the
+data.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log file where the record began, and the integer
+CRC32 of all of its preceding bytes.  Reading the log stops at the
+first record whose checksum or offset does not match, such as a record
+torn by a crash.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are nine record types: ABORT, COMMIT, BEGIN, CHECKPOINT,
+the update records HEAP_INSERT, HEAP_DELETE and PAGE_DELTA, and the
+tuple records BTREE_INSERT and BTREE_DELETE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> Update records are physiological: they hold the id of the updated
+page, as its PageTypes tag, table id and page number, then the slot of
+a HeapPage and the bytes of the tuple inserted into or deleted from it
+(HEAP_INSERT, HEAP_DELETE), or the byte ranges of any other page, such
+as the B+ tree pages, with their old and new bytes (PAGE_DELTA).  Each
+type has its own redo and undo, see PageUpdate.  A page write is logged
+as the updates between its before image and its current state.
+
+<li> Tuple records hold the table id of a B+ tree file, the number of
+update records logged right before them by the same operation, and the
+tuples the operation inserted or deleted.  The update records they
+count are only redone: the operation is undone by key, see TupleUpdate.
+
+<li> Rolling back a transaction logs the undo of each of its updates as
+a compensation record: an update record of the transaction, of the
+inverse update, whose redo is that undo.  Recovery repeats history,
+compensations included, and only undoes the transactions that began and
+neither committed nor aborted.  The updates of transaction ids that
+were never begun, written outside a Transaction, are only redone.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -72,22 +98,37 @@ as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
 </ul>
+
+<p> Records are appended to an in-memory buffer, written to the file
+channel when it fills up, and forced to disk by force(), which commits
+and aborts call.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private FileChannel channel;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
-    static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int HEAP_INSERT_RECORD = 6;
+    static final int HEAP_DELETE_RECORD = 7;
+    static final int PAGE_DELTA_RECORD = 8;
+    static final int BTREE_INSERT_RECORD = 9;
+    static final int BTREE_DELETE_RECORD = 10;
     static final long NO_CHECKPOINT_ID = -1;
 
+    static final int LOG_MAGIC = 0x53444c47; // "SDLG"
+    static final int FORMAT_VERSION = 3;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = LONG_SIZE + 2 * INT_SIZE;
+    /** the size of a record without its data */
+    final static int RECORD_OVERHEAD = 1 + LONG_SIZE + INT_SIZE + LONG_SIZE + INT_SIZE;
+    final static int BUFFER_SIZE = 64 * 1024;
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
@@ -95,6 +136,12 @@ public class LogFile {
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** appended records not yet written to the channel */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteArrayOutputStream recordData = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(recordData);
+    private final CRC32 crc = new CRC32();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,7 +155,7 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        channel = open(f);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -122,6 +169,11 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -129,14 +181,150 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            channel.truncate(0);
+            writeHeader(channel, NO_CHECKPOINT_ID);
+            currentOffset = HEADER_SIZE;
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long checkpoint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpoint).putInt(LOG_MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
         }
     }
 
+    /** @return the offset of the last checkpoint record, or NO_CHECKPOINT_ID */
+    private long readCheckpointOffset() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new EOFException("log header is truncated");
+            }
+        }
+        header.flip();
+        long checkpoint = header.getLong();
+        if (header.getInt() != LOG_MAGIC || header.getInt() != FORMAT_VERSION) {
+            throw new IOException("log file " + logFile + " is not in log format version " + FORMAT_VERSION);
+        }
+        return checkpoint;
+    }
+
+    /** Return the stream the data of a new record is written to; the
+        record is appended by appendRecord. */
+    private DataOutputStream beginRecord() {
+        recordData.reset();
+        return recordOut;
+    }
+
+    /** Append the record of the given type whose data was written since
+        beginRecord to the buffer. */
+    private void appendRecord(int type, long tid) throws IOException {
+        recordOut.flush();
+        int size = RECORD_OVERHEAD + recordData.size();
+        if (buffer.remaining() < size) {
+            flushBuffer();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+        int start = buffer.position();
+        buffer.put((byte) type).putLong(tid).putInt(recordData.size());
+        buffer.put(recordData.toByteArray());
+        buffer.putLong(currentOffset);
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+        currentOffset += size;
+    }
+
+    /** Write the buffered records to the channel. */
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(channel, buffer, currentOffset - buffer.remaining());
+        buffer.clear();
+    }
+
+    /**
+     * A record read back from the log.
+     */
+    private static class Record {
+        final long offset;
+        final long end;
+        final int type;
+        final long tid;
+        final byte[] data;
+
+        Record(long offset, long end, int type, long tid, byte[] data) {
+            this.offset = offset;
+            this.end = end;
+            this.type = type;
+            this.tid = tid;
+            this.data = data;
+        }
+
+        DataInputStream in() {
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        /** @return the update of an update record */
+        PageUpdate update() throws IOException {
+            return PageUpdate.read(type, in());
+        }
+
+        /** @return the update of a tuple record */
+        TupleUpdate tupleUpdate() throws IOException {
+            return TupleUpdate.read(type, in());
+        }
+    }
+
+    /** Read the records from offset from up to offset to, stopping before
+        the first record that is torn or corrupt. */
+    private List<Record> readRecords(long from, long to) throws IOException {
+        flushBuffer();
+        List<Record> records = new ArrayList<>();
+        channel.position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                BUFFER_SIZE));
+        byte[] head = new byte[1 + LONG_SIZE + INT_SIZE];
+        long offset = from;
+        try {
+            while (offset + RECORD_OVERHEAD <= to) {
+                in.readFully(head);
+                ByteBuffer h = ByteBuffer.wrap(head);
+                int type = h.get() & 0xff;
+                long tid = h.getLong();
+                int length = h.getInt();
+                if (length < 0 || offset + RECORD_OVERHEAD + length > to) {
+                    break;
+                }
+                byte[] rest = new byte[length + LONG_SIZE];
+                in.readFully(rest);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(head);
+                crc.update(rest);
+                if ((int) crc.getValue() != checksum || ByteBuffer.wrap(rest, length, LONG_SIZE).getLong() != offset) {
+                    break;
+                }
+                long end = offset + RECORD_OVERHEAD + length;
+                records.add(new Record(offset, end, type, tid, Arrays.copyOf(rest, length)));
+                offset = end;
+            }
+        } catch (EOFException e) {
+            // torn record at the end of the file
+        }
+        return records;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -146,8 +334,9 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
 
         synchronized (Database.getBufferPool()) {
 
@@ -156,14 +345,8 @@ public class LogFile {
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord();
+                appendRecord(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -180,112 +363,116 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord();
+        appendRecord(COMMIT_RECORD, tid.getId());
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write the update records of the specified tid and page to disk:
+        the physiological updates turning the before image of the page
+        into its current state.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
+        @see PageUpdate#diff
     */
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE, offset = " + currentOffset);
+        for (PageUpdate update : PageUpdate.diff(before, after)) {
+            logUpdate(tid.getId(), update);
+        }
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Write the update records of the changes made to the specified page
+        by the specified tid since its before image, which becomes its
+        current state.
+        @param tid The transaction that changed the page
+        @param page The changed page
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        @see Page#getBeforeImageData
+    */
+    public synchronized void logChanges(TransactionId tid, Page page) throws IOException {
+        logPageChanges(tid, page);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /** Write the update records of the changes made to the specified
+        pages of a B+ tree file by an operation of the specified tid,
+        followed by a tuple record of the tuples it inserted or deleted,
+        so that the operation is rolled back by key.
+        @param tid The transaction that changed the pages
+        @param pages The changed pages
+        @param tableId The id of the B+ tree file
+        @param inserted True if the tuples were inserted, false if deleted
+        @param tuples The tuples inserted or deleted
+
+        @see TupleUpdate
+    */
+    public synchronized void logTupleChanges(TransactionId tid, List<Page> pages, int tableId,
+                                             boolean inserted, List<Tuple> tuples) throws IOException {
+        int numPageUpdates = 0;
+        for (Page page : pages) {
+            numPageUpdates += logPageChanges(tid, page);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        int type = inserted ? BTREE_INSERT_RECORD : BTREE_DELETE_RECORD;
+        preAppend();
+        new TupleUpdate(type, tableId, numPageUpdates, tuples).write(beginRecord());
+        appendRecord(type, tid.getId());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** @return the number of update records logged */
+    private int logPageChanges(TransactionId tid, Page page) throws IOException {
+        byte[] data = page.getPageData();
+        List<PageUpdate> updates = PageUpdate.diff(page, page.getBeforeImageData(), data);
+        for (PageUpdate update : updates) {
+            logUpdate(tid.getId(), update);
+        }
+        if (!updates.isEmpty()) {
+            page.setBeforeImage(data);
+        }
+        return updates.size();
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Append the update record of an update by the given transaction */
+    private void logUpdate(long tid, PageUpdate update) throws IOException {
+        preAppend();
+        update.write(beginRecord());
+        appendRecord(update.getType(), tid);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    static boolean isUpdateRecord(int type) {
+        return type == HEAP_INSERT_RECORD || type == HEAP_DELETE_RECORD || type == PAGE_DELTA_RECORD;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    static boolean isTupleRecord(int type) {
+        return type == BTREE_INSERT_RECORD || type == BTREE_DELETE_RECORD;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Return the update and tuple records to undo to roll back the
+        given records, last first.  The update records counted by a
+        tuple record are left out, since undoing the tuple record undoes
+        them. */
+    private static List<Record> toUndo(List<Record> records) throws IOException {
+        List<Record> undo = new ArrayList<>();
+        int covered = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            Record r = records.get(i);
+            if (isTupleRecord(r.type)) {
+                covered = TupleUpdate.numPageUpdates(r.in());
+                undo.add(r);
+            } else if (covered > 0) {
+                covered--;
+            } else {
+                undo.add(r);
+            }
         }
-        return newPage;
-
+        return undo;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,11 +487,9 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord();
+        appendRecord(BEGIN_RECORD, tid.getId());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -314,35 +499,27 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
+                long startCpOffset;
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = currentOffset;
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                DataOutputStream out = beginRecord();
+                out.writeInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    out.writeLong(e.getKey());
+                    out.writeLong(e.getValue());
                 }
+                appendRecord(CHECKPOINT_RECORD, -1); //no tid
+                force();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writeHeader(channel, startCpOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -354,95 +531,76 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        flushBuffer();
+        long cpLoc = readCheckpointOffset();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+        List<Record> checkpoint = readRecords(cpLoc, currentOffset);
+        if (checkpoint.isEmpty() || checkpoint.get(0).type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        DataInputStream cp = checkpoint.get(0).in();
+        int numOutstanding = cp.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            long tid = cp.readLong();
+            long firstLogRecord = cp.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
+        // we can truncate everything before minLogRecord: the records
+        // after it all move back by the same distance
+        long shift = minLogRecord - HEADER_SIZE;
+        if (shift == 0) {
+            return;
+        }
+        List<Record> records = readRecords(minLogRecord, currentOffset);
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        FileChannel logNew = open(newFile);
+        logNew.truncate(0);
+        writeHeader(logNew, cpLoc - shift);
 
         //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+        FileChannel old = channel;
+        channel = logNew;
+        currentOffset = HEADER_SIZE;
+        for (Record r : records) {
+            Debug.log("NEW START = " + currentOffset);
+            DataOutputStream out = beginRecord();
+            switch (r.type) {
+            case CHECKPOINT_RECORD:
+                DataInputStream in = r.in();
+                int numXactions = in.readInt();
+                out.writeInt(numXactions);
+                while (numXactions-- > 0) {
+                    out.writeLong(in.readLong());
+                    out.writeLong(in.readLong() - shift);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
                 break;
+            case BEGIN_RECORD:
+                tidToFirstLogRecord.put(r.tid, currentOffset);
+                break;
+            default:
+                out.write(r.data);
             }
+            appendRecord(r.type, r.tid);
         }
+        force();
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        Debug.log("TRUNCATING LOG;  WAS " + old.size() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (old.size() - minLogRecord));
 
-        raf.close();
+        old.close();
+        logNew.close();
         logFile.delete();
         newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
+        channel = open(logFile);
         newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
@@ -451,19 +609,96 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The updates are undone on the current versions of their pages,
+        in the BufferPool or on disk, and each undo is logged as a
+        compensation record, so that recovery never undoes them again
+        over the later updates of other transactions.  The operations
+        on B+ tree files are undone last, by key, through their files.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
+        // the B+ tree files latch their pages before they call the
+        // BufferPool, so they are called without its lock
+        for (TupleUpdate update : undoPageUpdates(tid)) {
+            update.undo(tid);
+        }
+    }
+
+    /** Undo the update records of the specified transaction, and
+        return its tuple records to undo, last first. */
+    private List<TupleUpdate> undoPageUpdates(TransactionId tid) throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                List<TupleUpdate> tupleUpdates = new ArrayList<>();
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null) {
+                    return tupleUpdates;
+                }
+                List<Record> records = new ArrayList<>();
+                for (Record r : readRecords(firstLogRecord, currentOffset)) {
+                    if ((isUpdateRecord(r.type) || isTupleRecord(r.type)) && r.tid == tid.getId()) {
+                        records.add(r);
+                    }
+                }
+
+                Map<PageId, byte[]> images = new HashMap<>();
+                for (Record r : toUndo(records)) {
+                    if (isTupleRecord(r.type)) {
+                        tupleUpdates.add(r.tupleUpdate());
+                        continue;
+                    }
+                    PageUpdate update = r.update();
+                    byte[] data = images.get(update.pid);
+                    if (data == null) {
+                        data = currentImage(update.pid);
+                        images.put(update.pid, data);
+                    }
+                    update.undo(data);
+                    logUpdate(tid.getId(), update.inverse());
+                }
+                force();
+                install(images);
+                return tupleUpdates;
             }
         }
     }
 
+    /** Return the data of a page being rolled back: that of its version
+        in the BufferPool, whose changes are logged first if they were
+        not yet, or else the data on disk. */
+    private byte[] currentImage(PageId pid) throws IOException {
+        Page page = Database.getBufferPool().getCachedPage(pid);
+        if (page == null) {
+            return PageUpdate.readImage(pid);
+        }
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            logChanges(dirtier, page);
+        }
+        return page.getPageData();
+    }
+
+    /** Return the data of a page being recovered, read from disk the
+        first time it is needed. */
+    private static byte[] image(Map<PageId, byte[]> images, PageId pid) {
+        return images.computeIfAbsent(pid, PageUpdate::readImage);
+    }
+
+    /** Write the recovered pages to disk, and discard their cached
+        versions from the BufferPool.  The log must have been forced
+        first. */
+    private static void install(Map<PageId, byte[]> images) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : images.entrySet()) {
+            PageId pid = e.getKey();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(PageTypes.newPage(pid, e.getValue()));
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -471,7 +706,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            channel.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -486,89 +721,131 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                buffer.clear();
+                if (channel.size() < HEADER_SIZE) {
+                    channel.truncate(0);
+                    writeHeader(channel, NO_CHECKPOINT_ID);
+                    currentOffset = HEADER_SIZE;
+                    return;
+                }
+                readCheckpointOffset();
+
+                // the checkpoint flushed every page, but the transactions
+                // outstanding then may have to be undone: read all of the
+                // log, which is truncated at checkpoints
+                Set<Long> losers = new LinkedHashSet<>();
+                Set<Long> completed = new HashSet<>();
+                List<Record> updates = new ArrayList<>();
+                currentOffset = channel.size();
+                long end = HEADER_SIZE;
+                for (Record r : readRecords(HEADER_SIZE, currentOffset)) {
+                    if (r.type == BEGIN_RECORD) {
+                        losers.add(r.tid);
+                    } else if (r.type == COMMIT_RECORD || r.type == ABORT_RECORD) {
+                        completed.add(r.tid);
+                    } else if (isUpdateRecord(r.type) || isTupleRecord(r.type)) {
+                        updates.add(r);
+                    }
+                    end = r.end;
+                }
+                losers.removeAll(completed);
+                // drop a record torn by the crash
+                channel.truncate(end);
+                currentOffset = end;
+
+                // repeat history, the compensations of the rollbacks
+                // included, then roll back the transactions that were
+                // running, logging their compensations and aborts so
+                // that they are not undone again
+                Map<PageId, byte[]> images = new HashMap<>();
+                List<Record> loserUpdates = new ArrayList<>();
+                for (Record r : updates) {
+                    if (isUpdateRecord(r.type)) {
+                        PageUpdate update = r.update();
+                        update.redo(image(images, update.pid));
+                    }
+                    if (losers.contains(r.tid)) {
+                        loserUpdates.add(r);
+                    }
+                }
+                List<Record> tupleRecords = new ArrayList<>();
+                for (Record r : toUndo(loserUpdates)) {
+                    if (isTupleRecord(r.type)) {
+                        tupleRecords.add(r);
+                        continue;
+                    }
+                    PageUpdate update = r.update();
+                    update.undo(image(images, update.pid));
+                    logUpdate(r.tid, update.inverse());
+                }
+                force();
+                install(images);
+                // then the operations on B+ tree files, by key on the
+                // recovered pages
+                for (Record r : tupleRecords) {
+                    r.tupleUpdate().undo(new TransactionId(r.tid));
+                }
+                for (long tid : losers) {
+                    preAppend();
+                    beginRecord();
+                    appendRecord(ABORT_RECORD, tid);
+                }
+                force();
+
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
-
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+    public synchronized void print() throws IOException {
+        flushBuffer();
+        System.out.println("0: checkpoint record at offset " + readCheckpointOffset());
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+        for (Record r : readRecords(HEADER_SIZE, channel.size())) {
+            System.out.println(r.offset + ": RECORD TYPE " + r.type);
+            System.out.println((r.offset + 1) + ": TID " + r.tid);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+            switch (r.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
 
-                    break;
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                DataInputStream in = r.in();
+                int numTransactions = in.readInt();
+                System.out.println("NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+
+                while (numTransactions-- > 0) {
+                    long tid = in.readLong();
+                    long firstRecord = in.readLong();
+                    System.out.println("TID: " + tid);
+                    System.out.println("FIRST LOG RECORD: " + firstRecord);
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
                 break;
+            case BTREE_INSERT_RECORD:
+            case BTREE_DELETE_RECORD:
+                System.out.println(" (TUPLES)");
+                System.out.println(r.tupleUpdate());
+                break;
+            default:
+                System.out.println(" (UPDATE)");
+                System.out.println(r.update());
             }
+            System.out.println((r.end - LONG_SIZE - INT_SIZE) + ": RECORD START OFFSET: " + r.offset);
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushBuffer();
+        channel.force(true);
     }
 
 }
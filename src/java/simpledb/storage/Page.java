@@ -52,9 +52,25 @@ public interface Page {
     */
     Page getBeforeImage();
 
+    /** Provide the data of the before image of this page, as getBeforeImage
+        would serialize it.  Used by the log to diff a page against its
+        before image.
+    */
+    default byte[] getBeforeImageData() {
+        return getBeforeImage().getPageData();
+    }
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /*
+     * same as setBeforeImage, with the current content of this page, as
+     * getPageData returned it.
+     */
+    default void setBeforeImage(byte[] data) {
+        setBeforeImage();
+    }
 }
@@ -0,0 +1,329 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * PageChecksums protects the pages of one DbFile against corruption and torn
+ * writes. It keeps two files next to the data file:
+ * <ul>
+ * <li> <code>&lt;file&gt;.crc</code>: for every page slot, a CRC32C of the
+ * page image last written and a flag telling whether the checksum is set.
+ * Pages written without going through writePage (e.g. by HeapFileEncoder)
+ * have no checksum and are not verified.
+ * <li> <code>&lt;file&gt;.dwb</code>: a double-write buffer. Every page image is
+ * appended to it and forced to disk before it is written in place, so that a
+ * page torn by a crash in the middle of the in-place write can be restored
+ * from the buffer.
+ * </ul>
+ * The double-write buffer is replayed when the file is opened, and is
+ * truncated (after forcing the data file) once it holds
+ * {@link #MAX_BUFFERED_PAGES} images. Both files are kept open, and the
+ * checksums are also kept in memory, so that verifying a page reads no file.
+ * The images of the pages written together, by a flush or a round of the
+ * {@link BackgroundWriter}, are forced to the buffer at once.
+ *
+ * @see HeapFile#writePage
+ * @see simpledb.index.BTreeFile#writePage
+ */
+public class PageChecksums {
+
+    /** bytes per entry in the checksum file: crc followed by a valid flag */
+    private static final int ENTRY_SIZE = 8;
+
+    /** number of page images after which the double-write buffer is truncated */
+    static final int MAX_BUFFERED_PAGES = 256;
+
+    private final File dataFile;
+    private final File crcFile;
+    private final File dwbFile;
+    private int bufferedPages = 0;
+    private FileChannel crc;
+    private FileChannel dwb;
+    // the checksums of the file, valid where set
+    private int[] checksums = new int[0];
+    private final BitSet valid = new BitSet();
+
+    /**
+     * Opens the checksum and double-write files of the given data file and
+     * repairs any page left torn by a crash. Both files are created on the
+     * first page write.
+     *
+     * @throws UncheckedIOException if the files cannot be read, or a torn
+     *                              page cannot be restored
+     */
+    public PageChecksums(File dataFile) {
+        this.dataFile = dataFile;
+        this.crcFile = new File(dataFile.getPath() + ".crc");
+        this.dwbFile = new File(dataFile.getPath() + ".dwb");
+        try {
+            loadChecksums();
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Delete the checksum and double-write files of a data file. Must be
+     * called by code that (re)creates a data file without going through
+     * writePage, such as HeapFileEncoder, so that stale checksums and page
+     * images of the old contents are not applied to the new ones.
+     */
+    public static void reset(File dataFile) {
+        new File(dataFile.getPath() + ".crc").delete();
+        new File(dataFile.getPath() + ".dwb").delete();
+    }
+
+    /**
+     * @return the CRC32C of the given page image
+     */
+    public static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append the image of a page to the double-write buffer and force it to
+     * disk. Must be called before the page is written in place.
+     *
+     * @param slot   the index of the page in the checksum file
+     * @param offset the byte offset of the page in the data file
+     * @param data   the page image about to be written
+     */
+    public void beforeWrite(int slot, long offset, byte[] data) throws IOException {
+        beforeWrite(new int[]{slot}, new long[]{offset}, new byte[][]{data});
+    }
+
+    /**
+     * Append the images of several pages to the double-write buffer, and
+     * force it to disk once. Must be called before any of the pages is
+     * written in place.
+     *
+     * @param slots   the indexes of the pages in the checksum file
+     * @param offsets the byte offsets of the pages in the data file
+     * @param images  the page images about to be written
+     */
+    public synchronized void beforeWrite(int[] slots, long[] offsets, byte[][] images) throws IOException {
+        if (bufferedPages > 0 && bufferedPages + slots.length > MAX_BUFFERED_PAGES) {
+            truncateBuffer();
+        }
+        int size = 0;
+        for (byte[] data : images) {
+            size += 4 + 8 + 4 + 4 + data.length;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(size);
+        for (int i = 0; i < slots.length; i++) {
+            byte[] data = images[i];
+            entries.putInt(slots[i]).putLong(offsets[i]).putInt(data.length).putInt(checksum(data)).put(data);
+        }
+        entries.flip();
+        FileChannel dwb = dwbChannel();
+        long position = dwb.size();
+        while (entries.hasRemaining()) {
+            position += dwb.write(entries, position);
+        }
+        dwb.force(false);
+        bufferedPages += slots.length;
+    }
+
+    /**
+     * Record the checksum of a page once it has been written in place.
+     */
+    public synchronized void afterWrite(int slot, byte[] data) throws IOException {
+        writeChecksum(slot, checksum(data));
+    }
+
+    /**
+     * Verify a page image read from the data file. If the checksum does not
+     * match, the page is restored from the double-write buffer.
+     *
+     * @param slot   the index of the page in the checksum file
+     * @param offset the byte offset of the page in the data file
+     * @param data   the page image read from disk
+     * @return data, or the repaired page image if data was corrupt
+     * @throws IllegalStateException if the page is corrupt and cannot be repaired
+     */
+    public synchronized byte[] verify(int slot, long offset, byte[] data) {
+        try {
+            if (!valid.get(slot) || checksums[slot] == checksum(data)) {
+                return data;
+            }
+            byte[] repaired = readBuffer(new HashMap<>()).get(slot);
+            if (repaired != null && repaired.length == data.length) {
+                Debug.log("PageChecksums: repairing page %d of %s from the double-write buffer", slot, dataFile);
+                writeInPlace(offset, repaired);
+                writeChecksum(slot, checksum(repaired));
+                return repaired;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("checksum mismatch on page " + slot + " of " + dataFile, e);
+        }
+        throw new IllegalStateException("checksum mismatch on page " + slot + " of " + dataFile);
+    }
+
+    /**
+     * Forget the pages from slot numPages on, before the data file is cut to
+     * numPages pages. The buffered images are dropped after forcing the data
+     * file, so that none of them is written back past its new end.
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        if (bufferedPages > 0) {
+            truncateBuffer();
+        }
+        if (numPages < checksums.length) {
+            Arrays.fill(checksums, numPages, checksums.length, 0);
+        }
+        valid.clear(numPages, Math.max(numPages, valid.length()));
+        if (crc != null || crcFile.exists()) {
+            crcChannel().truncate((long) numPages * ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Replay the double-write buffer: every page whose latest buffered image
+     * differs from the image in place is rewritten. Then force the data file
+     * and empty the buffer. Images of pages starting past the end of the data
+     * file are skipped: the file was cut after they were buffered.
+     */
+    public synchronized void recover() throws IOException {
+        if (!dwbFile.exists()) {
+            return;
+        }
+        Map<Integer, Long> offsets = new HashMap<>();
+        Map<Integer, byte[]> images = readBuffer(offsets);
+        for (Map.Entry<Integer, byte[]> e : images.entrySet()) {
+            int slot = e.getKey();
+            byte[] image = e.getValue();
+            long offset = offsets.get(slot);
+            byte[] inPlace = new byte[image.length];
+            boolean intact = false;
+            boolean pastEnd;
+            try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+                pastEnd = offset >= raf.length();
+                if (raf.length() >= offset + image.length) {
+                    raf.seek(offset);
+                    raf.readFully(inPlace);
+                    intact = checksum(inPlace) == checksum(image);
+                }
+            }
+            if (pastEnd) {
+                continue;
+            }
+            if (!intact) {
+                Debug.log("PageChecksums: restoring torn page %d of %s", slot, dataFile);
+                writeInPlace(offset, image);
+            }
+            writeChecksum(slot, checksum(image));
+        }
+        truncateBuffer();
+    }
+
+    /**
+     * Read the complete, uncorrupted entries of the double-write buffer. A
+     * partially written entry at the end (the crash happened while appending
+     * it, so its in-place write never started) is ignored.
+     *
+     * @return the latest image of each buffered slot
+     */
+    private Map<Integer, byte[]> readBuffer(Map<Integer, Long> offsets) throws IOException {
+        Map<Integer, byte[]> images = new HashMap<>();
+        if (!dwbFile.exists()) {
+            return images;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(dwbFile)))) {
+            while (true) {
+                int slot, length, crc;
+                long offset;
+                byte[] image;
+                try {
+                    slot = dis.readInt();
+                    offset = dis.readLong();
+                    length = dis.readInt();
+                    crc = dis.readInt();
+                    image = new byte[length];
+                    dis.readFully(image);
+                } catch (EOFException | NegativeArraySizeException | OutOfMemoryError e) {
+                    break;
+                }
+                if (checksum(image) == crc) {
+                    images.put(slot, image);
+                    offsets.put(slot, offset);
+                }
+            }
+        }
+        return images;
+    }
+
+    private void truncateBuffer() throws IOException {
+        if (dataFile.exists()) {
+            try (FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE)) {
+                data.force(false);
+            }
+        }
+        crcChannel().force(false);
+        dwbChannel().truncate(0);
+        bufferedPages = 0;
+    }
+
+    private void writeInPlace(long offset, byte[] data) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.seek(offset);
+            raf.write(data);
+        }
+    }
+
+    private FileChannel crcChannel() throws IOException {
+        if (crc == null) {
+            crc = FileChannel.open(crcFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return crc;
+    }
+
+    private FileChannel dwbChannel() throws IOException {
+        if (dwb == null) {
+            dwb = FileChannel.open(dwbFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return dwb;
+    }
+
+    private void writeChecksum(int slot, int checksum) throws IOException {
+        if (slot >= checksums.length) {
+            checksums = Arrays.copyOf(checksums, Math.max(slot + 1, 2 * checksums.length));
+        }
+        checksums[slot] = checksum;
+        valid.set(slot);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putInt(checksum).putInt(1).flip();
+        crcChannel().write(entry, (long) slot * ENTRY_SIZE);
+    }
+
+    /**
+     * Read the checksums recorded in the checksum file into memory.
+     */
+    private void loadChecksums() throws IOException {
+        if (!crcFile.exists()) {
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(crcFile.toPath()));
+        checksums = new int[entries.capacity() / ENTRY_SIZE];
+        for (int slot = 0; slot < checksums.length; slot++) {
+            checksums[slot] = entries.getInt();
+            if (entries.getInt() == 1) {
+                valid.set(slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.*;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * PageTypes is the registry of the kinds of pages the log can hold updates
+ * of. Each kind has a numeric tag, written in the log in place of the class
+ * names of the page and its id, and factories creating its PageIds and its
+ * pages from the data the log holds, without reflection.
+ * <p>
+ * A page is identified in the log by its tag, then its table id and its
+ * page number, or whatever else its kind needs to identify it; see
+ * {@link #writePageId} and {@link #readPageId}. The pages of every DbFile of
+ * this package and of simpledb.index are registered here; other kinds of
+ * pages may be registered with {@link #register}.
+ *
+ * @Threadsafe
+ */
+public class PageTypes {
+
+    public static final int HEAP = 1;
+    public static final int BTREE_ROOT_PTR = 2;
+    public static final int BTREE_INTERNAL = 3;
+    public static final int BTREE_LEAF = 4;
+    public static final int BTREE_HEADER = 5;
+    public static final int HASH_DIRECTORY = 6;
+    public static final int HASH_BUCKET = 7;
+    public static final int LSM_RUN = 8;
+
+    /**
+     * Creates the page of the given id holding the given data, as its file
+     * would when reading it.
+     */
+    public interface PageFactory {
+        Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    /**
+     * Writes the PageIds of a kind of page after its tag, and reads them back.
+     */
+    public interface PageIdCodec {
+        void write(DataOutput out, PageId pid) throws IOException;
+
+        PageId read(DataInput in) throws IOException;
+    }
+
+    private static class PageType {
+        final Predicate<PageId> isType;
+        final PageIdCodec ids;
+        final PageFactory newPage;
+
+        PageType(Predicate<PageId> isType, PageIdCodec ids, PageFactory newPage) {
+            this.isType = isType;
+            this.ids = ids;
+            this.newPage = newPage;
+        }
+    }
+
+    private static final PageType[] types = new PageType[256];
+
+    static {
+        register(HEAP, pid -> pid instanceof HeapPageId, HeapPageId::new, (pid, data) -> {
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+            HeapPageId id = (HeapPageId) pid;
+            return file.isCompressed() ? new CompressedHeapPage(id, data) : new HeapPage(id, data);
+        });
+        register(BTREE_ROOT_PTR, BTreePageId.ROOT_PTR,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        register(BTREE_INTERNAL, BTreePageId.INTERNAL,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyFields(pid)));
+        register(BTREE_LEAF, BTreePageId.LEAF,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyFields(pid)));
+        register(BTREE_HEADER, BTreePageId.HEADER,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        register(HASH_DIRECTORY, pid -> pid instanceof HashPageId && ((HashPageId) pid).pgcateg() == HashPageId.DIRECTORY,
+                (tableId, pgNo) -> new HashPageId(tableId, pgNo, HashPageId.DIRECTORY),
+                (pid, data) -> new HashDirectoryPage((HashPageId) pid, data));
+        register(HASH_BUCKET, pid -> pid instanceof HashPageId && ((HashPageId) pid).pgcateg() == HashPageId.BUCKET,
+                (tableId, pgNo) -> new HashPageId(tableId, pgNo, HashPageId.BUCKET),
+                (pid, data) -> new HashBucketPage((HashPageId) pid, data));
+        // the pages of an LSM run are written once, and never logged, but
+        // are identified by their run as well
+        register(LSM_RUN, pid -> pid instanceof LsmPageId, new PageIdCodec() {
+            public void write(DataOutput out, PageId pid) throws IOException {
+                out.writeInt(pid.getTableId());
+                out.writeInt(((LsmPageId) pid).getRunNumber());
+                out.writeInt(pid.getPageNumber());
+            }
+
+            public PageId read(DataInput in) throws IOException {
+                int tableId = in.readInt();
+                int runNo = in.readInt();
+                return new LsmPageId(tableId, runNo, in.readInt());
+            }
+        }, (pid, data) -> new LsmRunPage((LsmPageId) pid, data));
+    }
+
+    private static void register(int tag, int pgcateg, PageFactory newPage) {
+        register(tag, pid -> pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == pgcateg,
+                (tableId, pgNo) -> new BTreePageId(tableId, pgNo, pgcateg), newPage);
+    }
+
+    private static int[] keyFields(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields();
+    }
+
+    /**
+     * Register a kind of page.
+     *
+     * @param tag       the tag of the kind, from 1 to 255
+     * @param isType    tells whether a PageId is the id of a page of this kind
+     * @param newPageId creates the id of a page of this kind from its table
+     *                  id and page number
+     * @param newPage   creates a page of this kind from its id and data
+     * @throws IllegalArgumentException if the tag is taken
+     */
+    public static void register(int tag, Predicate<PageId> isType,
+                                BiFunction<Integer, Integer, PageId> newPageId, PageFactory newPage) {
+        register(tag, isType, new PageIdCodec() {
+            public void write(DataOutput out, PageId pid) throws IOException {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.getPageNumber());
+            }
+
+            public PageId read(DataInput in) throws IOException {
+                int tableId = in.readInt();
+                return newPageId.apply(tableId, in.readInt());
+            }
+        }, newPage);
+    }
+
+    /**
+     * Register a kind of page whose PageIds hold more than a table id and a
+     * page number.
+     *
+     * @param tag     the tag of the kind, from 1 to 255
+     * @param isType  tells whether a PageId is the id of a page of this kind
+     * @param ids     writes and reads the ids of the pages of this kind
+     * @param newPage creates a page of this kind from its id and data
+     * @throws IllegalArgumentException if the tag is taken
+     */
+    public static synchronized void register(int tag, Predicate<PageId> isType, PageIdCodec ids,
+                                             PageFactory newPage) {
+        if (tag <= 0 || tag >= types.length || types[tag] != null) {
+            throw new IllegalArgumentException("page type tag " + tag + " is invalid or taken");
+        }
+        types[tag] = new PageType(isType, ids, newPage);
+    }
+
+    /**
+     * @return the tag of the kind of the page with the given id
+     * @throws IllegalArgumentException if the kind was not registered
+     */
+    public static synchronized int getTag(PageId pid) {
+        for (int tag = 1; tag < types.length; tag++) {
+            if (types[tag] != null && types[tag].isType.test(pid)) {
+                return tag;
+            }
+        }
+        throw new IllegalArgumentException("pages of " + pid.getClass().getSimpleName() + " have no page type");
+    }
+
+    private static synchronized PageType getType(int tag) throws IOException {
+        PageType type = types[tag & 0xff];
+        if (type == null) {
+            throw new IOException("unknown page type " + tag);
+        }
+        return type;
+    }
+
+    /**
+     * Creates the page of the given id holding the given data.
+     */
+    public static Page newPage(PageId pid, byte[] data) throws IOException {
+        return getType(getTag(pid)).newPage.newPage(pid, data);
+    }
+
+    /**
+     * Write a PageId as its tag, followed by its table id and its page
+     * number for most kinds of pages.
+     */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int tag = getTag(pid);
+        out.writeByte(tag);
+        getType(tag).ids.write(out, pid);
+    }
+
+    /**
+     * Read a PageId written by {@link #writePageId}.
+     */
+    static PageId readPageId(DataInput in) throws IOException {
+        return getType(in.readUnsignedByte()).ids.read(in);
+    }
+}
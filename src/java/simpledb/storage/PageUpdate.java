@@ -0,0 +1,320 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageUpdate is the physiological content of an update record of the log:
+ * a change to one page, identified by its PageId and described by the slot or
+ * the byte ranges it touched and the bytes it changed there, rather than by
+ * images of the whole page.
+ * <p>
+ * There is one kind of update per record type of {@link LogFile}, each with
+ * its own redo and undo, which apply to the data of the page:
+ * <ul>
+ * <li> HEAP_INSERT and HEAP_DELETE: a tuple written to or removed from a slot
+ * of a {@link HeapPage}, with the bytes of the tuple
+ * <li> PAGE_DELTA: the bytes that changed on any other page, in particular
+ * the B+ tree pages, as ranges of (offset, old bytes, new bytes)
+ * </ul>
+ * The updates of a page write are computed by {@link #diff} from its before
+ * image and its current state.
+ *
+ * @see LogFile#logWrite
+ */
+abstract class PageUpdate {
+
+    /** unchanged bytes shorter than this between two changed ranges are logged with them */
+    private static final int MERGE_GAP = 8;
+
+    final PageId pid;
+
+    PageUpdate(PageId pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * @return the log record type of this update
+     */
+    abstract int getType();
+
+    /**
+     * Apply this update to the data of its page.
+     */
+    abstract void redo(byte[] data);
+
+    /**
+     * Revert this update on the data of its page.
+     */
+    abstract void undo(byte[] data);
+
+    /**
+     * @return the update whose redo is the undo of this one, logged as the
+     * compensation of this update when it is rolled back
+     */
+    abstract PageUpdate inverse();
+
+    abstract void writeData(DataOutput out) throws IOException;
+
+    void write(DataOutput out) throws IOException {
+        PageTypes.writePageId(out, pid);
+        writeData(out);
+    }
+
+    /**
+     * Read an update of the given record type, as written by {@link #write}.
+     */
+    static PageUpdate read(int type, DataInput in) throws IOException {
+        PageId pid = PageTypes.readPageId(in);
+        switch (type) {
+            case LogFile.HEAP_INSERT_RECORD:
+            case LogFile.HEAP_DELETE_RECORD:
+                int slot = in.readInt();
+                return new SlotUpdate(type, pid, slot, readBytes(in));
+            case LogFile.PAGE_DELTA_RECORD:
+                int numRanges = in.readInt();
+                int[] offsets = new int[numRanges];
+                byte[][] before = new byte[numRanges][];
+                byte[][] after = new byte[numRanges][];
+                for (int i = 0; i < numRanges; i++) {
+                    offsets[i] = in.readInt();
+                    before[i] = readBytes(in);
+                    after[i] = new byte[before[i].length];
+                    in.readFully(after[i]);
+                }
+                return new DeltaUpdate(pid, offsets, before, after);
+            default:
+                throw new IOException("not an update record: " + type);
+        }
+    }
+
+    /**
+     * Returns the updates turning the data of before into that of after, in
+     * the order they must be redone.
+     */
+    static List<PageUpdate> diff(Page before, Page after) {
+        return diff(after, before.getPageData(), after.getPageData());
+    }
+
+    /**
+     * Returns the updates turning oldData, the data of an earlier state of
+     * the page, into newData, its current data, in the order they must be
+     * redone.
+     */
+    static List<PageUpdate> diff(Page page, byte[] oldData, byte[] newData) {
+        PageId pid = page.getId();
+        List<PageUpdate> updates = new ArrayList<>();
+        if (page instanceof HeapPage) {
+            int tableId = pid.getTableId();
+            int tupleSize = Database.getCatalog().getTupleDesc(tableId).getSize();
+            oldData = oldData.clone();
+            for (int i = 0; i < HeapPage.getNumSlots(tableId); i++) {
+                int offset = HeapPage.getSlotOffset(tableId, i);
+                boolean used = isSlotUsed(newData, i);
+                if (isSlotUsed(oldData, i) && (!used
+                        || !Arrays.equals(oldData, offset, offset + tupleSize, newData, offset, offset + tupleSize))) {
+                    // deleted, or replaced by another tuple
+                    PageUpdate delete = new SlotUpdate(LogFile.HEAP_DELETE_RECORD, pid, i,
+                            Arrays.copyOfRange(oldData, offset, offset + tupleSize));
+                    delete.redo(oldData);
+                    updates.add(delete);
+                }
+                if (used && !isSlotUsed(oldData, i)) {
+                    PageUpdate insert = new SlotUpdate(LogFile.HEAP_INSERT_RECORD, pid, i,
+                            Arrays.copyOfRange(newData, offset, offset + tupleSize));
+                    insert.redo(oldData);
+                    updates.add(insert);
+                }
+            }
+        }
+        // whatever the slot updates do not account for
+        PageUpdate delta = DeltaUpdate.diff(pid, oldData, newData);
+        if (delta != null) {
+            updates.add(delta);
+        }
+        return updates;
+    }
+
+    private static boolean isSlotUsed(byte[] data, int slot) {
+        return (data[slot / 8] >> (slot % 8) & 1) == 1;
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Returns the data of a page as it is on disk, or empty data if the page
+     * was never written.
+     */
+    static byte[] readImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (RuntimeException e) {
+            // past the end of the file
+            boolean rootPtr = pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR;
+            return new byte[rootPtr ? BTreeRootPtrPage.getPageSize() : file.getPageSize()];
+        }
+    }
+
+    /**
+     * A tuple written to or removed from a slot of a heap page.
+     */
+    static class SlotUpdate extends PageUpdate {
+        private final int type;
+        private final int slot;
+        private final byte[] tuple;
+
+        SlotUpdate(int type, PageId pid, int slot, byte[] tuple) {
+            super(pid);
+            this.type = type;
+            this.slot = slot;
+            this.tuple = tuple;
+        }
+
+        int getType() {
+            return type;
+        }
+
+        void redo(byte[] data) {
+            set(data, type == LogFile.HEAP_INSERT_RECORD);
+        }
+
+        void undo(byte[] data) {
+            set(data, type != LogFile.HEAP_INSERT_RECORD);
+        }
+
+        PageUpdate inverse() {
+            int inverse = type == LogFile.HEAP_INSERT_RECORD ? LogFile.HEAP_DELETE_RECORD : LogFile.HEAP_INSERT_RECORD;
+            return new SlotUpdate(inverse, pid, slot, tuple);
+        }
+
+        private void set(byte[] data, boolean used) {
+            int offset = HeapPage.getSlotOffset(pid.getTableId(), slot);
+            if (used) {
+                System.arraycopy(tuple, 0, data, offset, tuple.length);
+                data[slot / 8] |= (byte) (1 << (slot % 8));
+            } else {
+                Arrays.fill(data, offset, offset + tuple.length, (byte) 0);
+                data[slot / 8] &= (byte) ~(1 << (slot % 8));
+            }
+        }
+
+        void writeData(DataOutput out) throws IOException {
+            out.writeInt(slot);
+            writeBytes(out, tuple);
+        }
+
+        public String toString() {
+            return (type == LogFile.HEAP_INSERT_RECORD ? "heap insert" : "heap delete") + " table "
+                    + pid.getTableId() + " page " + pid.getPageNumber() + " slot " + slot + ", " + tuple.length + " bytes";
+        }
+    }
+
+    /**
+     * Byte ranges of a page changed from their old to their new bytes.
+     */
+    static class DeltaUpdate extends PageUpdate {
+        private final int[] offsets;
+        private final byte[][] before;
+        private final byte[][] after;
+
+        DeltaUpdate(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+            super(pid);
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Returns the ranges of oldData changed in newData, or null if there
+         * are none.
+         */
+        static DeltaUpdate diff(PageId pid, byte[] oldData, byte[] newData) {
+            if (oldData.length != newData.length) {
+                throw new IllegalArgumentException("the images of page " + pid.getPageNumber() + " differ in size");
+            }
+            List<int[]> ranges = new ArrayList<>();
+            int i = 0;
+            while (i < newData.length) {
+                if (oldData[i] == newData[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = ++i;
+                while (i < newData.length && i - end < MERGE_GAP) {
+                    if (oldData[i] != newData[i]) {
+                        end = i + 1;
+                    }
+                    i++;
+                }
+                ranges.add(new int[]{start, end});
+                i = end;
+            }
+            if (ranges.isEmpty()) {
+                return null;
+            }
+            int[] offsets = new int[ranges.size()];
+            byte[][] before = new byte[ranges.size()][];
+            byte[][] after = new byte[ranges.size()][];
+            for (int r = 0; r < ranges.size(); r++) {
+                int[] range = ranges.get(r);
+                offsets[r] = range[0];
+                before[r] = Arrays.copyOfRange(oldData, range[0], range[1]);
+                after[r] = Arrays.copyOfRange(newData, range[0], range[1]);
+            }
+            return new DeltaUpdate(pid, offsets, before, after);
+        }
+
+        int getType() {
+            return LogFile.PAGE_DELTA_RECORD;
+        }
+
+        void redo(byte[] data) {
+            for (int r = 0; r < offsets.length; r++) {
+                System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+            }
+        }
+
+        void undo(byte[] data) {
+            for (int r = offsets.length - 1; r >= 0; r--) {
+                System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+            }
+        }
+
+        PageUpdate inverse() {
+            return new DeltaUpdate(pid, offsets, after, before);
+        }
+
+        void writeData(DataOutput out) throws IOException {
+            out.writeInt(offsets.length);
+            for (int r = 0; r < offsets.length; r++) {
+                out.writeInt(offsets[r]);
+                writeBytes(out, before[r]);
+                out.write(after[r]);
+            }
+        }
+
+        public String toString() {
+            int bytes = 0;
+            for (byte[] range : after) {
+                bytes += range.length;
+            }
+            return "page delta table " + pid.getTableId() + " page " + pid.getPageNumber() + ", "
+                    + offsets.length + " ranges, " + bytes + " bytes";
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * ParallelHeapFileEncoder is a bulk loader producing the same files as
+ * {@link HeapFileEncoder}, for large inputs. The input is read in chunks of
+ * whole lines; the chunks are parsed and encoded into fixed-width records by
+ * a pool of worker threads, while the calling thread packs the records, in
+ * input order, into heap pages and writes them out many pages at a time with
+ * large sequential FileChannel writes. Only a bounded number of chunks is in
+ * flight at any time, so memory use does not depend on the input size.
+ *
+ * @see HeapFileEncoder
+ * @see HeapPage
+ */
+public class ParallelHeapFileEncoder {
+
+    /** Default number of bytes of input per chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    /** Number of pages written by each FileChannel write */
+    private static final int PAGES_PER_WRITE = 256;
+
+    /**
+     * Summary of a bulk load.
+     */
+    public static class Result {
+        private final long rows;
+        private final int pages;
+        private final long millis;
+
+        Result(long rows, int pages, long millis) {
+            this.rows = rows;
+            this.pages = pages;
+            this.millis = millis;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public int getPages() {
+            return pages;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public double getRowsPerSecond() {
+            return rows * 1000.0 / Math.max(1, millis);
+        }
+
+        public String toString() {
+            return String.format("%d rows, %d pages in %.2f s (%.0f rows/s)",
+                    rows, pages, millis / 1000.0, getRowsPerSecond());
+        }
+    }
+
+    /**
+     * The records encoded from one chunk of input.
+     */
+    private static class EncodedChunk {
+        final byte[] records;
+        final int count;
+
+        EncodedChunk(byte[] records, int count) {
+            this.records = records;
+            this.count = count;
+        }
+    }
+
+    private static final EncodedChunk END = new EncodedChunk(new byte[0], 0);
+
+    private final Type[] typeAr;
+    private final char fieldSeparator;
+    private final int npagebytes;
+    private final int nrecbytes;
+    private final int nrecords;
+    private final int nheaderbytes;
+
+    private ParallelHeapFileEncoder(int npagebytes, Type[] typeAr, char fieldSeparator) {
+        this.typeAr = typeAr;
+        this.fieldSeparator = fieldSeparator;
+        this.npagebytes = npagebytes;
+        int recbytes = 0;
+        for (Type t : typeAr) {
+            recbytes += t.getLen();
+        }
+        this.nrecbytes = recbytes;
+        this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+        this.nheaderbytes = (nrecords + 7) / 8;
+    }
+
+    /**
+     * Convert the specified input text file into a binary page file, using
+     * one worker thread per available processor.
+     *
+     * @see #convert(File, File, int, Type[], char, int, int)
+     */
+    public static Result convert(File inFile, File outFile, int npagebytes, Type[] typeAr, char fieldSeparator)
+            throws IOException {
+        return convert(inFile, outFile, npagebytes, typeAr, fieldSeparator,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Convert the specified input text file into a binary page file. The
+     * input format is the one read by
+     * {@link HeapFileEncoder#convert(File, File, int, int, Type[], char)}
+     * and the output is identical to what it writes. Blank lines are ignored.
+     *
+     * @param inFile         The input file to read data from
+     * @param outFile        The output file to write data to
+     * @param npagebytes     The number of bytes per page in the output file
+     * @param typeAr         The types of the fields of each input line
+     * @param fieldSeparator The character separating fields on a line
+     * @param nThreads       The number of threads parsing the input
+     * @param chunkSize      The number of bytes of input handed to a thread at
+     *                       a time
+     * @return the number of rows and pages written, and the time it took
+     * @throws IOException if the input/output file can't be opened or a
+     *                     line does not have the right number of fields
+     */
+    public static Result convert(File inFile, File outFile, int npagebytes, Type[] typeAr, char fieldSeparator,
+                                 int nThreads, int chunkSize) throws IOException {
+        long start = System.currentTimeMillis();
+        ParallelHeapFileEncoder encoder = new ParallelHeapFileEncoder(npagebytes, typeAr, fieldSeparator);
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+        BlockingQueue<Future<EncodedChunk>> chunks = new ArrayBlockingQueue<>(2 * nThreads);
+        Thread reader = new Thread(() -> encoder.readChunks(inFile, chunkSize, workers, chunks),
+                "ParallelHeapFileEncoder-reader");
+        reader.setDaemon(true);
+
+        PageChecksums.reset(outFile);
+        try (FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            reader.start();
+            PageWriter writer = encoder.new PageWriter(out);
+            while (true) {
+                EncodedChunk chunk = chunks.take().get();
+                if (chunk == END) {
+                    break;
+                }
+                writer.add(chunk);
+            }
+            writer.finish();
+            return new Result(writer.rows, writer.pages, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("bulk load interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+            reader.interrupt();
+        }
+    }
+
+    /**
+     * Read the input in chunks ending at a line boundary, submit each chunk
+     * for parsing and queue the results in input order, followed by END.
+     * Errors are queued as failed futures.
+     */
+    private void readChunks(File inFile, int chunkSize, ExecutorService workers,
+                            BlockingQueue<Future<EncodedChunk>> chunks) {
+        try {
+            try (InputStream in = new FileInputStream(inFile)) {
+                byte[] carry = new byte[0];
+                while (true) {
+                    byte[] buf = new byte[Math.max(chunkSize, carry.length * 2)];
+                    System.arraycopy(carry, 0, buf, 0, carry.length);
+                    int len = carry.length;
+                    int n;
+                    while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+                        len += n;
+                    }
+                    if (len == carry.length) {
+                        // end of input: the last line may lack a newline
+                        if (len > 0) {
+                            final byte[] lastLine = carry;
+                            chunks.put(workers.submit(() -> parse(lastLine, lastLine.length)));
+                        }
+                        break;
+                    }
+                    int end = len;
+                    while (end > 0 && buf[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        // no complete line yet: read more before parsing
+                        carry = Arrays.copyOf(buf, len);
+                        continue;
+                    }
+                    carry = Arrays.copyOfRange(buf, end, len);
+                    final int chunkEnd = end;
+                    chunks.put(workers.submit(() -> parse(buf, chunkEnd)));
+                }
+            } catch (IOException e) {
+                chunks.put(failed(e));
+                return;
+            }
+            chunks.put(CompletableFuture.completedFuture(END));
+        } catch (InterruptedException e) {
+            // the load was aborted
+        }
+    }
+
+    private static Future<EncodedChunk> failed(IOException e) {
+        CompletableFuture<EncodedChunk> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
+    /**
+     * Encode the lines in buf[0 .. len) as records in the HeapPage format.
+     */
+    private EncodedChunk parse(byte[] buf, int len) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(Math.max(16 * nrecbytes, len));
+        int count = 0;
+        int lineStart = 0;
+        while (lineStart < len) {
+            int lineEnd = lineStart;
+            while (lineEnd < len && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd;
+            while (contentEnd > lineStart && buf[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+            if (contentEnd > lineStart) {
+                if (records.remaining() < nrecbytes) {
+                    ByteBuffer bigger = ByteBuffer.allocate(records.capacity() * 2);
+                    records.flip();
+                    bigger.put(records);
+                    records = bigger;
+                }
+                encodeLine(buf, lineStart, contentEnd, records);
+                count++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        byte[] out = new byte[records.position()];
+        records.flip();
+        records.get(out);
+        return new EncodedChunk(out, count);
+    }
+
+    private void encodeLine(byte[] buf, int start, int end, ByteBuffer out) throws IOException {
+        int fieldStart = start;
+        for (int field = 0; field < typeAr.length; field++) {
+            int fieldEnd = fieldStart;
+            while (fieldEnd < end && buf[fieldEnd] != fieldSeparator) {
+                fieldEnd++;
+            }
+            if (fieldEnd == end && field < typeAr.length - 1) {
+                throw new IOException("Expected " + typeAr.length + " fields on line: "
+                        + new String(buf, start, end - start, StandardCharsets.UTF_8));
+            }
+            String s = new String(buf, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8).trim();
+            if (typeAr[field] == Type.INT_TYPE) {
+                int value = 0;
+                try {
+                    value = Integer.parseInt(s);
+                } catch (NumberFormatException e) {
+                    System.out.println("BAD LINE : " + s);
+                }
+                out.putInt(value);
+            } else {
+                if (s.length() > Type.STRING_LEN) {
+                    s = s.substring(0, Type.STRING_LEN);
+                }
+                out.putInt(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.put((byte) s.charAt(i));
+                }
+                for (int i = s.length(); i < Type.STRING_LEN; i++) {
+                    out.put((byte) 0);
+                }
+            }
+            fieldStart = fieldEnd + 1;
+        }
+        if (fieldStart <= end) {
+            throw new IOException("Expected " + typeAr.length + " fields on line: "
+                    + new String(buf, start, end - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Packs records into pages and writes them out in batches.
+     */
+    private class PageWriter {
+        private final FileChannel out;
+        private final ByteBuffer batch = ByteBuffer.allocate(PAGES_PER_WRITE * npagebytes);
+        private final byte[] page = new byte[npagebytes];
+        private int recordsOnPage = 0;
+        long rows = 0;
+        int pages = 0;
+
+        PageWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        void add(EncodedChunk chunk) throws IOException {
+            for (int i = 0; i < chunk.count; i++) {
+                System.arraycopy(chunk.records, i * nrecbytes, page,
+                        nheaderbytes + recordsOnPage * nrecbytes, nrecbytes);
+                page[recordsOnPage / 8] |= (byte) (1 << (recordsOnPage % 8));
+                recordsOnPage++;
+                if (recordsOnPage == nrecords) {
+                    emitPage();
+                }
+            }
+            rows += chunk.count;
+        }
+
+        private void emitPage() throws IOException {
+            if (!batch.hasRemaining()) {
+                flush();
+            }
+            batch.put(page);
+            Arrays.fill(page, (byte) 0);
+            recordsOnPage = 0;
+            pages++;
+        }
+
+        private void flush() throws IOException {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                out.write(batch);
+            }
+            batch.clear();
+        }
+
+        /**
+         * Write the last, partially filled page, or an empty page if the
+         * input was empty.
+         */
+        void finish() throws IOException {
+            if (recordsOnPage > 0 || pages == 0) {
+                emitPage();
+            }
+            flush();
+        }
+    }
+}
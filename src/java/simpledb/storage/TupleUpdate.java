@@ -0,0 +1,122 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TupleUpdate is the content of a logical update record of the log: the
+ * tuples inserted into (BTREE_INSERT) or deleted from (BTREE_DELETE) a
+ * {@link BTreeFile} by one operation of a transaction. It is logged right
+ * after the page updates the operation made, and counts them.
+ * <p>
+ * B+ tree pages take no transaction locks, so other transactions may change
+ * the pages of an operation before it is rolled back, and reversing its byte
+ * ranges would erase their changes. Instead, its page updates are only
+ * redone, and the operation is undone by key: the tuples it inserted are
+ * deleted, and those it deleted inserted again, wherever they are in the
+ * tree by then. The undo is a B+ tree operation of the rolled back
+ * transaction, which logs its own page updates and TupleUpdate as the
+ * compensation.
+ * <p>
+ * An operation whose TupleUpdate is missing, because the log ends in the
+ * middle of its page updates, had not released its latches yet: its page
+ * updates are the last ones of their pages, and are undone physically.
+ *
+ * @see LogFile#logTupleChanges
+ */
+class TupleUpdate {
+
+    private final int type;
+    final int tableId;
+    /** the number of page update records of the operation, logged right before this one */
+    final int numPageUpdates;
+    private final List<Tuple> tuples;
+
+    TupleUpdate(int type, int tableId, int numPageUpdates, List<Tuple> tuples) {
+        this.type = type;
+        this.tableId = tableId;
+        this.numPageUpdates = numPageUpdates;
+        this.tuples = tuples;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    /**
+     * Roll the operation back on behalf of tid. Must not be called with the
+     * BufferPool or the LogFile locked, since the B+ tree latches its pages
+     * before calling them.
+     */
+    void undo(TransactionId tid) throws IOException {
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+        try {
+            if (type == LogFile.BTREE_INSERT_RECORD) {
+                for (Tuple t : tuples) {
+                    file.deleteEqualTuple(tid, t);
+                }
+            } else {
+                file.insertTuples(tid, tuples);
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("cannot roll back " + this, e);
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(tableId);
+        out.writeInt(numPageUpdates);
+        out.writeInt(tuples.size());
+        for (Tuple t : tuples) {
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        }
+    }
+
+    /**
+     * Read a tuple update of the given record type, as written by
+     * {@link #write}. The tuples are read with the schema of their file.
+     */
+    static TupleUpdate read(int type, DataInputStream in) throws IOException {
+        int tableId = in.readInt();
+        int numPageUpdates = in.readInt();
+        int numTuples = in.readInt();
+        TupleDesc td = Database.getCatalog().getDatabaseFile(tableId).getTupleDesc();
+        List<Tuple> tuples = new ArrayList<>(numTuples);
+        try {
+            for (int n = 0; n < numTuples; n++) {
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+                tuples.add(t);
+            }
+        } catch (ParseException e) {
+            throw new IOException("corrupt tuple in the log", e);
+        }
+        return new TupleUpdate(type, tableId, numPageUpdates, tuples);
+    }
+
+    /**
+     * @return the number of page update records of the operation, read
+     * without the tuples
+     */
+    static int numPageUpdates(DataInput in) throws IOException {
+        in.readInt();
+        return in.readInt();
+    }
+
+    public String toString() {
+        return (type == LogFile.BTREE_INSERT_RECORD ? "b+ tree insert" : "b+ tree delete") + " table " + tableId
+                + ", " + tuples.size() + " tuples after " + numPageUpdates + " page updates";
+    }
+}
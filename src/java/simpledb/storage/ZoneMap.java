@@ -0,0 +1,208 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZoneMap keeps, for every page of a HeapFile, the minimum and maximum value
+ * of each column, the number of null fields per column and the number of
+ * tuples on the page. Scans use it to skip pages that cannot contain a tuple
+ * satisfying a predicate without fetching them through the BufferPool.
+ * <p>
+ * A page's zone is built the first time the page is seen in memory (by a scan
+ * or an insert) and is then maintained as tuples are inserted. Deletes only
+ * decrement the tuple count, so the bounds of a zone may be wider than the
+ * values actually on the page, but never narrower.
+ *
+ * @see HeapFile#iterator(simpledb.transaction.TransactionId, Predicate)
+ * @Threadsafe
+ */
+public class ZoneMap {
+
+    /**
+     * Summary of the tuples of one page.
+     */
+    public static class Zone {
+        private final Field[] min;
+        private final Field[] max;
+        private final int[] nullCount;
+        private int numTuples;
+
+        Zone(int numFields) {
+            min = new Field[numFields];
+            max = new Field[numFields];
+            nullCount = new int[numFields];
+        }
+
+        void add(Tuple t) {
+            for (int i = 0; i < min.length; i++) {
+                Field f = t.getField(i);
+                if (f == null) {
+                    nullCount[i]++;
+                    continue;
+                }
+                if (min[i] == null || f.compare(Predicate.Op.LESS_THAN, min[i])) {
+                    min[i] = f;
+                }
+                if (max[i] == null || f.compare(Predicate.Op.GREATER_THAN, max[i])) {
+                    max[i] = f;
+                }
+            }
+            numTuples++;
+        }
+
+        /**
+         * @return the smallest non-null value of column i, or null if there is none
+         */
+        public Field getMin(int i) {
+            return min[i];
+        }
+
+        /**
+         * @return the largest non-null value of column i, or null if there is none
+         */
+        public Field getMax(int i) {
+            return max[i];
+        }
+
+        public int getNullCount(int i) {
+            return nullCount[i];
+        }
+
+        public int getNumTuples() {
+            return numTuples;
+        }
+
+        /**
+         * Returns false only if no tuple summarized by this zone can satisfy p.
+         */
+        boolean mightMatch(Predicate p) {
+            if (numTuples == 0) {
+                return false;
+            }
+            Field lo = min[p.getField()];
+            Field hi = max[p.getField()];
+            if (lo == null) {
+                // every value of the column is null, and null never qualifies
+                return false;
+            }
+            Field v = p.getOperand();
+            switch (p.getOp()) {
+                case EQUALS:
+                    return !lo.compare(Predicate.Op.GREATER_THAN, v) && !hi.compare(Predicate.Op.LESS_THAN, v);
+                case NOT_EQUALS:
+                    return !(lo.equals(v) && hi.equals(v));
+                case GREATER_THAN:
+                    return hi.compare(Predicate.Op.GREATER_THAN, v);
+                case GREATER_THAN_OR_EQ:
+                    return hi.compare(Predicate.Op.GREATER_THAN_OR_EQ, v);
+                case LESS_THAN:
+                    return lo.compare(Predicate.Op.LESS_THAN, v);
+                case LESS_THAN_OR_EQ:
+                    return lo.compare(Predicate.Op.LESS_THAN_OR_EQ, v);
+                default:
+                    // LIKE on strings cannot be decided from the bounds
+                    return true;
+            }
+        }
+    }
+
+    private final int numFields;
+    private final Map<Integer, Zone> zones = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty zone map for a file with the given schema.
+     */
+    public ZoneMap(TupleDesc td) {
+        this.numFields = td.numFields();
+    }
+
+    /**
+     * @return the zone of page pgNo, or null if the page has not been summarized
+     */
+    public Zone getZone(int pgNo) {
+        return zones.get(pgNo);
+    }
+
+    /**
+     * Returns true if page pgNo has a zone.
+     */
+    public boolean isSummarized(int pgNo) {
+        return zones.containsKey(pgNo);
+    }
+
+    /**
+     * (Re)build the zone of page pgNo from all of its tuples. Only writers of
+     * the page, which hold the lock of its HeapFile, may replace a zone.
+     */
+    public void summarize(int pgNo, Iterator<Tuple> tuples) {
+        zones.put(pgNo, build(tuples));
+    }
+
+    /**
+     * Build the zone of page pgNo from all of its tuples, unless it already
+     * has one. Scans use this: the page they read may already be older than
+     * a zone an insert has built or widened since.
+     */
+    public void summarizeIfAbsent(int pgNo, Iterator<Tuple> tuples) {
+        zones.putIfAbsent(pgNo, build(tuples));
+    }
+
+    private Zone build(Iterator<Tuple> tuples) {
+        Zone zone = new Zone(numFields);
+        while (tuples.hasNext()) {
+            zone.add(tuples.next());
+        }
+        return zone;
+    }
+
+    /**
+     * Record that t was inserted into page pgNo. Does nothing if the page has
+     * not been summarized yet.
+     */
+    public void tupleInserted(int pgNo, Tuple t) {
+        Zone zone = zones.get(pgNo);
+        if (zone != null) {
+            synchronized (zone) {
+                zone.add(t);
+            }
+        }
+    }
+
+    /**
+     * Record that a tuple was deleted from page pgNo. The bounds are left
+     * as they are.
+     */
+    public void tupleDeleted(int pgNo) {
+        Zone zone = zones.get(pgNo);
+        if (zone != null) {
+            synchronized (zone) {
+                zone.numTuples--;
+            }
+        }
+    }
+
+    /**
+     * Forget the zone of page pgNo, e.g. after its contents were replaced.
+     */
+    public void invalidate(int pgNo) {
+        zones.remove(pgNo);
+    }
+
+    /**
+     * Returns false only if page pgNo is summarized and none of its tuples can
+     * satisfy p; unsummarized pages must always be read.
+     */
+    public boolean mightMatch(int pgNo, Predicate p) {
+        Zone zone = zones.get(pgNo);
+        if (zone == null) {
+            return true;
+        }
+        synchronized (zone) {
+            return zone.mightMatch(p);
+        }
+    }
+}
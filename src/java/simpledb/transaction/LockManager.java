@@ -0,0 +1,439 @@
+package simpledb.transaction;
+
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+
+/**
+ * LockManager grants transactions hierarchical locks on tables and on the
+ * tuples of their pages, identified by table id and RecordId. Locking a tuple
+ * first takes the matching intention lock on its page and its table, so that
+ * a transaction locking a whole table conflicts with those locking its tuples,
+ * while transactions locking different tuples of the same page do not
+ * conflict. Pages are only locked in these intention modes, and when tuple
+ * locks are escalated to them.
+ * <p>
+ * Only the writes of running {@link Transaction}s to heap files take locks,
+ * through the BufferPool: IX on the table and X on each tuple they insert or
+ * delete. Readers see the snapshot of their transaction in the VersionManager
+ * and take none, and the B+ tree, hash and LSM files coordinate their threads
+ * with latches of their own instead.
+ * <p>
+ * A lock a transaction already holds on a parent may cover the request: S and
+ * SIX cover reading the children, X covers everything. Requesting a mode on
+ * a resource the transaction already locked converts the lock to the least
+ * mode covering both, e.g. S and IX to SIX.
+ * <p>
+ * The lock table only holds the resources currently locked or waited for.
+ * When a transaction holds too many tuple locks on one page, or too many page
+ * and tuple locks in one table, or the lock table as a whole grows past its
+ * limit, the locks are escalated: the transaction locks the parent instead,
+ * in S or X mode depending on the locks it replaces, and releases the locks
+ * below it. Escalation does not wait; if another transaction holds a
+ * conflicting lock on the parent, the fine grained locks are kept.
+ * <p>
+ * A transaction waits for the locks held by others in conflicting modes. If
+ * waiting would close a cycle of waiting transactions, it is aborted instead
+ * with a TransactionAbortedException.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * The lock modes, from weakest to strongest.
+     */
+    public enum LockMode {
+        /** intention to lock children shared */
+        IS,
+        /** intention to lock children exclusive */
+        IX,
+        /** shared */
+        S,
+        /** shared, with intention to lock children exclusive */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                // IS     IX     S      SIX    X
+                {true, true, true, true, false},     // IS
+                {true, true, false, false, false},   // IX
+                {true, false, true, false, false},   // S
+                {true, false, false, false, false},  // SIX
+                {false, false, false, false, false}, // X
+        };
+
+        /**
+         * @return true if another transaction may hold mode other on the same
+         *         resource
+         */
+        public boolean isCompatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return true if holding this mode grants everything other grants
+         */
+        public boolean covers(LockMode other) {
+            switch (this) {
+                case IS:
+                    return other == IS;
+                case IX:
+                    return other == IS || other == IX;
+                case S:
+                    return other == IS || other == S;
+                case SIX:
+                    return other != X;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @return the weakest mode covering both this mode and other
+         */
+        public LockMode combine(LockMode other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S with IX
+            return this == X || other == X ? X : SIX;
+        }
+
+        /**
+         * @return the mode the parent of a resource locked in this mode must be
+         *         locked in
+         */
+        LockMode intention() {
+            return this == IS || this == S ? IS : IX;
+        }
+
+        /**
+         * @return true if this mode on a parent covers requests for mode on
+         *         its children
+         */
+        boolean coversChildren(LockMode mode) {
+            return this == X || ((this == S || this == SIX) && (mode == IS || mode == S));
+        }
+    }
+
+    public static final int DEFAULT_TUPLES_PER_PAGE = 64;
+    public static final int DEFAULT_LOCKS_PER_TABLE = 1024;
+    public static final int DEFAULT_MAX_LOCKS = 100000;
+
+    /** how long a waiting transaction sleeps before it looks for deadlocks again */
+    private static final long WAIT_MILLIS = 50;
+
+    /**
+     * The transactions holding a resource, and in which modes.
+     */
+    private static class LockHead {
+        final Map<TransactionId, LockMode> granted = new HashMap<>();
+        int waiters = 0;
+    }
+
+    private final int tuplesPerPage;
+    private final int locksPerTable;
+    private final int maxLocks;
+    private final Map<Object, LockHead> lockTable = new HashMap<>();
+    /** the resources each transaction locked, and the ones locked below each of those */
+    private final Map<TransactionId, Map<Object, Set<Object>>> held = new HashMap<>();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+
+    public LockManager() {
+        this(DEFAULT_TUPLES_PER_PAGE, DEFAULT_LOCKS_PER_TABLE, DEFAULT_MAX_LOCKS);
+    }
+
+    /**
+     * @param tuplesPerPage the number of tuple locks a transaction may hold on
+     *                      a page before they are escalated to a page lock
+     * @param locksPerTable the number of page and tuple locks a transaction
+     *                      may hold in a table before they are escalated to a
+     *                      table lock
+     * @param maxLocks      the number of resources the lock table holds before
+     *                      the transactions locking more are escalated
+     */
+    public LockManager(int tuplesPerPage, int locksPerTable, int maxLocks) {
+        this.tuplesPerPage = tuplesPerPage;
+        this.locksPerTable = locksPerTable;
+        this.maxLocks = maxLocks;
+    }
+
+    /**
+     * Lock a table on behalf of transaction tid, waiting for conflicting locks
+     * to be released.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        lock(tid, tableId, mode);
+    }
+
+    /**
+     * Lock a tuple, and its page and table in the matching intention mode.
+     *
+     * @see #lockTable
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, LockMode mode) throws TransactionAbortedException {
+        lock(tid, rid, mode);
+    }
+
+    /**
+     * @return the mode in which tid holds the table, page or tuple with the
+     *         given id (an Integer table id, a PageId or a RecordId), or null
+     */
+    public synchronized LockMode getLockMode(TransactionId tid, Object resource) {
+        LockHead head = lockTable.get(resource);
+        return head == null ? null : head.granted.get(tid);
+    }
+
+    /**
+     * @return true if tid holds a lock on the page, or a table lock covering
+     *         reads of it
+     */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        return getLockMode(tid, pid) != null || covered(tid, pid, LockMode.S);
+    }
+
+    /**
+     * @return the number of resources in the lock table
+     */
+    public synchronized int size() {
+        return lockTable.size();
+    }
+
+    /**
+     * @return the number of locks held by tid
+     */
+    public synchronized int numLocks(TransactionId tid) {
+        Map<Object, Set<Object>> locks = held.get(tid);
+        return locks == null ? 0 : locks.size();
+    }
+
+    /**
+     * Release the lock of tid on a table, page or tuple, but not the locks it
+     * holds below it.
+     */
+    public synchronized void release(TransactionId tid, Object resource) {
+        Map<Object, Set<Object>> locks = held.get(tid);
+        if (locks == null || locks.remove(resource) == null) {
+            return;
+        }
+        Object parent = parentOf(resource);
+        Set<Object> siblings = parent == null ? null : locks.get(parent);
+        if (siblings != null) {
+            siblings.remove(resource);
+        }
+        LockHead head = lockTable.get(resource);
+        head.granted.remove(tid);
+        forgetIfUnused(resource, head);
+        if (locks.isEmpty()) {
+            held.remove(tid);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Release all the locks of tid, when it commits or aborts.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        Map<Object, Set<Object>> locks = held.remove(tid);
+        if (locks == null) {
+            return;
+        }
+        for (Object resource : locks.keySet()) {
+            LockHead head = lockTable.get(resource);
+            head.granted.remove(tid);
+            forgetIfUnused(resource, head);
+        }
+        notifyAll();
+    }
+
+    private static Object parentOf(Object resource) {
+        if (resource instanceof RecordId) {
+            return ((RecordId) resource).getPageId();
+        }
+        if (resource instanceof PageId) {
+            return ((PageId) resource).getTableId();
+        }
+        return null;
+    }
+
+    private void forgetIfUnused(Object resource, LockHead head) {
+        if (head.granted.isEmpty() && head.waiters == 0) {
+            lockTable.remove(resource);
+        }
+    }
+
+    /**
+     * Returns true if a lock tid holds on a parent of the resource covers mode.
+     */
+    private boolean covered(TransactionId tid, Object resource, LockMode mode) {
+        for (Object parent = parentOf(resource); parent != null; parent = parentOf(parent)) {
+            LockMode held = getLockMode(tid, parent);
+            if (held != null && held.coversChildren(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void lock(TransactionId tid, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        if (covered(tid, resource, mode)) {
+            return;
+        }
+        Object parent = parentOf(resource);
+        if (parent != null) {
+            lock(tid, parent, mode.intention());
+            if (covered(tid, resource, mode)) {
+                // the parent was escalated
+                return;
+            }
+        }
+        LockMode current = getLockMode(tid, resource);
+        LockMode wanted = current == null ? mode : current.combine(mode);
+        if (wanted == current) {
+            return;
+        }
+        acquire(tid, resource, wanted);
+        if (current == null && parent != null) {
+            held.get(tid).get(parent).add(resource);
+            escalate(tid, resource);
+        }
+    }
+
+    private boolean grantable(LockHead head, TransactionId tid, LockMode mode) {
+        for (Map.Entry<TransactionId, LockMode> e : head.granted.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.isCompatible(e.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grant(TransactionId tid, Object resource, LockHead head, LockMode mode) {
+        head.granted.put(tid, mode);
+        held.computeIfAbsent(tid, t -> new HashMap<>()).computeIfAbsent(resource, r -> new HashSet<>());
+    }
+
+    /**
+     * Wait until tid can hold the resource in the given mode.
+     */
+    private void acquire(TransactionId tid, Object resource, LockMode mode) throws TransactionAbortedException {
+        LockHead head = lockTable.computeIfAbsent(resource, r -> new LockHead());
+        if (grantable(head, tid, mode)) {
+            grant(tid, resource, head, mode);
+            return;
+        }
+        head.waiters++;
+        try {
+            while (!grantable(head, tid, mode)) {
+                Set<TransactionId> blockers = new HashSet<>();
+                for (Map.Entry<TransactionId, LockMode> e : head.granted.entrySet()) {
+                    if (!e.getKey().equals(tid) && !mode.isCompatible(e.getValue())) {
+                        blockers.add(e.getKey());
+                    }
+                }
+                waitsFor.put(tid, blockers);
+                if (waitsFor(blockers, tid, new HashSet<>())) {
+                    throw new TransactionAbortedException();
+                }
+                try {
+                    wait(WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+            }
+            grant(tid, resource, head, mode);
+        } finally {
+            waitsFor.remove(tid);
+            head.waiters--;
+            forgetIfUnused(resource, head);
+        }
+    }
+
+    /**
+     * Returns true if one of the given transactions waits, directly or not,
+     * for target.
+     */
+    private boolean waitsFor(Set<TransactionId> tids, TransactionId target, Set<TransactionId> visited) {
+        for (TransactionId tid : tids) {
+            if (tid.equals(target)) {
+                return true;
+            }
+            Set<TransactionId> next = waitsFor.get(tid);
+            if (visited.add(tid) && next != null && waitsFor(next, target, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Escalate the locks of tid around a resource it just locked, if there are
+     * too many of them.
+     */
+    private void escalate(TransactionId tid, Object resource) {
+        Map<Object, Set<Object>> locks = held.get(tid);
+        Object page = resource instanceof RecordId ? parentOf(resource) : null;
+        if (page != null && locks.get(page).size() > tuplesPerPage && escalateTo(tid, page)) {
+            resource = page;
+        }
+        Object table = parentOf(page != null ? page : resource);
+        int fine = 0;
+        for (Object child : locks.get(table)) {
+            fine += 1 + locks.getOrDefault(child, Collections.emptySet()).size();
+        }
+        if (fine > locksPerTable || (lockTable.size() > maxLocks && fine > 1)) {
+            escalateTo(tid, table);
+        }
+    }
+
+    /**
+     * Replace the locks of tid below a page or table with a lock on it, if no
+     * other transaction holds a conflicting lock on it.
+     *
+     * @return true if the locks were escalated
+     */
+    private boolean escalateTo(TransactionId tid, Object parent) {
+        Map<Object, Set<Object>> locks = held.get(tid);
+        List<Object> below = new ArrayList<>();
+        collect(locks, parent, below);
+        LockMode mode = LockMode.S;
+        for (Object child : below) {
+            LockMode m = getLockMode(tid, child);
+            if (m != LockMode.IS && m != LockMode.S) {
+                mode = LockMode.X;
+            }
+        }
+        LockMode wanted = getLockMode(tid, parent).combine(mode);
+        LockHead head = lockTable.get(parent);
+        if (!grantable(head, tid, wanted)) {
+            return false;
+        }
+        head.granted.put(tid, wanted);
+        for (Object child : below) {
+            locks.remove(child);
+            LockHead childHead = lockTable.get(child);
+            childHead.granted.remove(tid);
+            forgetIfUnused(child, childHead);
+        }
+        locks.get(parent).clear();
+        notifyAll();
+        return true;
+    }
+
+    private static void collect(Map<Object, Set<Object>> locks, Object parent, List<Object> below) {
+        for (Object child : locks.getOrDefault(parent, Collections.emptySet())) {
+            below.add(child);
+            collect(locks, child, below);
+        }
+    }
+}
@@ -17,9 +17,10 @@ public class Transaction {
         tid = new TransactionId();
     }
 
-    /** Start the transaction running */
+    /** Start the transaction running, reading a snapshot of the database */
     public void start() {
         started = true;
+        Database.getVersionManager().begin(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -45,19 +46,20 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write abort log record and rollback transaction
             if (abort) {
+                //write abort log record and rollback transaction
                 Database.getLogFile().logAbort(tid); //does rollback too
-            } 
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                Database.getVersionManager().abort(tid);
+            } else {
+                // write commit log record
+                Database.getLogFile().logCommit(tid);
+                Database.getVersionManager().commit(tid);
             }
 
+            // Release locks once the outcome is visible, so that a transaction
+            // waiting for them sees it
+            Database.getBufferPool().transactionComplete(tid, !abort);
+
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
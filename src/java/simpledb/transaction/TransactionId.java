@@ -17,6 +17,14 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /**
+     * The id of a transaction read back from the log, e.g. to roll it back
+     * during recovery.
+     */
+    public TransactionId(long id) {
+        myid = id;
+    }
+
     public long getId() {
         return myid;
     }
@@ -0,0 +1,371 @@
+package simpledb.transaction;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.HeapFile;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VersionManager gives the transactions begun with {@link Transaction#start}
+ * snapshot isolation over the tuples of heap files, with multi-version
+ * concurrency control: readers never wait for writers, nor writers for
+ * readers.
+ * <p>
+ * Every tuple written by such a transaction is a version, stamped with the
+ * transaction that created it and the one that deleted it. A delete only
+ * stamps the version, and leaves the tuple on its page; an update deletes the
+ * old version and inserts the new one, which the old version points to. The
+ * stamps are kept here, keyed by RecordId, rather than on the pages: a tuple
+ * without an entry was created by a transaction that committed before every
+ * running snapshot, and was not deleted since.
+ * <p>
+ * A transaction reads the snapshot of the database taken when it started: the
+ * versions created by the transactions committed before it started, and by
+ * itself, that none of those deleted. Two transactions deleting the same
+ * version conflict; the second one is aborted, whether or not the first has
+ * committed yet. Transaction ids that were not started, such as those of
+ * operators run outside a Transaction, read the latest committed versions and
+ * write in place, as they would without this class.
+ * <p>
+ * When the last snapshot that can see a deleted version ends, the garbage
+ * collector deletes its tuple from its page. The versions of an aborted
+ * transaction are undone when it aborts.
+ *
+ * @Threadsafe, with each transaction run by one thread at a time
+ */
+public class VersionManager {
+
+    /**
+     * The stamps of a version of a tuple.
+     */
+    private static class Version {
+        volatile RecordId rid;
+        /** the running or recently committed creator, null once every snapshot sees it */
+        volatile TransactionId creator;
+        volatile TransactionId deleter;
+        /** the newer version written by the update that deleted this one */
+        volatile RecordId next;
+        /** set once the tuple is no longer visible to any transaction */
+        volatile boolean dead;
+
+        Version(RecordId rid) {
+            this.rid = rid;
+        }
+    }
+
+    /**
+     * The versions created and deleted by a transaction.
+     */
+    private static class WriteSet {
+        final TransactionId tid;
+        final List<Version> created = new ArrayList<>();
+        final List<Version> deleted = new ArrayList<>();
+        long commitTs;
+
+        WriteSet(TransactionId tid) {
+            this.tid = tid;
+        }
+    }
+
+    /** the commit timestamp of the last committed transaction */
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Long> commitTimes = new ConcurrentHashMap<>();
+    private final Map<RecordId, Version> versions = new ConcurrentHashMap<>();
+    private final Map<TransactionId, WriteSet> writeSets = new ConcurrentHashMap<>();
+    /** the committed write sets not yet collected, in commit order */
+    private final Deque<WriteSet> committed = new ArrayDeque<>();
+    private final Object commitLock = new Object();
+    private final Object gcLock = new Object();
+
+    /**
+     * Take the snapshot transaction tid will read.
+     */
+    public void begin(TransactionId tid) {
+        synchronized (commitLock) {
+            snapshots.put(tid, clock.get());
+        }
+    }
+
+    /**
+     * @return true if tid was begun and has not yet committed or aborted
+     */
+    public boolean isRunning(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * Returns true if transaction tid sees the tuple of a heap file with the
+     * given RecordId.
+     */
+    public boolean isVisible(TransactionId tid, RecordId rid) {
+        if (versions.isEmpty()) {
+            return true;
+        }
+        Version v = versions.get(rid);
+        if (v == null) {
+            return true;
+        }
+        Long snapshot = snapshots.get(tid);
+        long readTs = snapshot == null ? clock.get() : snapshot;
+        // the collector clears the creator, or marks the version dead, before
+        // it forgets the commit time of a writer: check them again after it
+        TransactionId creator = v.creator;
+        if (creator != null && !sees(tid, readTs, creator) && v.creator != null) {
+            return false;
+        }
+        TransactionId deleter = v.deleter;
+        if (deleter != null && sees(tid, readTs, deleter)) {
+            return false;
+        }
+        return !v.dead;
+    }
+
+    private boolean sees(TransactionId tid, long readTs, TransactionId writer) {
+        if (writer.equals(tid)) {
+            return true;
+        }
+        Long commitTs = commitTimes.get(writer);
+        return commitTs != null && commitTs <= readTs;
+    }
+
+    /**
+     * Stamp a tuple just inserted into a heap file by transaction tid. Called by
+     * the heap file before other transactions can read the tuple.
+     */
+    public void tupleInserted(TransactionId tid, Tuple t) {
+        RecordId rid = t.getRecordId();
+        if (!isRunning(tid)) {
+            // the slot may still hold the stamps of a collected version
+            versions.remove(rid);
+            return;
+        }
+        Version v = new Version(rid);
+        v.creator = tid;
+        versions.put(rid, v);
+        writeSet(tid).created.add(v);
+    }
+
+    /**
+     * Stamp a tuple of a heap file as deleted by transaction tid, leaving it on
+     * its page for the snapshots that still see it.
+     *
+     * @return false if tid was not begun, and must delete the tuple in place
+     * @throws TransactionAbortedException if another transaction deleted the
+     *                                     tuple first
+     */
+    public boolean tupleDeleted(TransactionId tid, Tuple t) throws TransactionAbortedException {
+        if (!isRunning(tid)) {
+            return false;
+        }
+        RecordId rid = t.getRecordId();
+        while (true) {
+            Version v = versions.computeIfAbsent(rid, Version::new);
+            synchronized (v) {
+                if (versions.get(rid) != v) {
+                    // collected or moved meanwhile
+                    continue;
+                }
+                TransactionId deleter = v.deleter;
+                if (tid.equals(deleter)) {
+                    return true;
+                }
+                if (deleter != null || !isVisible(tid, rid)) {
+                    // deleted by another transaction, or not in the snapshot of tid
+                    throw new TransactionAbortedException();
+                }
+                v.deleter = tid;
+                writeSet(tid).deleted.add(v);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Link the version of a tuple deleted by an update to the version that
+     * replaced it.
+     */
+    public void tupleUpdated(RecordId oldRid, RecordId newRid) {
+        Version v = versions.get(oldRid);
+        if (v != null) {
+            v.next = newRid;
+        }
+    }
+
+    /**
+     * Returns the RecordId of the version that replaced the tuple with the
+     * given RecordId, or null if the tuple was not updated or its update was
+     * collected.
+     */
+    public RecordId getNextVersion(RecordId rid) {
+        Version v = versions.get(rid);
+        return v == null || v.dead ? null : v.next;
+    }
+
+    /**
+     * Follow a tuple of a heap file moved to another slot.
+     */
+    public void tupleMoved(RecordId oldRid, RecordId newRid) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        Version v = versions.get(oldRid);
+        if (v == null) {
+            versions.remove(newRid);
+            return;
+        }
+        synchronized (v) {
+            v.rid = newRid;
+            versions.put(newRid, v);
+            versions.remove(oldRid, v);
+        }
+        for (Version prev : versions.values()) {
+            if (oldRid.equals(prev.next)) {
+                prev.next = newRid;
+            }
+        }
+    }
+
+    /**
+     * Commit transaction tid: its versions become visible to the snapshots
+     * taken from now on.
+     */
+    public void commit(TransactionId tid) throws IOException {
+        WriteSet ws = writeSets.remove(tid);
+        synchronized (commitLock) {
+            if (ws != null) {
+                long ts = clock.get() + 1;
+                ws.commitTs = ts;
+                commitTimes.put(tid, ts);
+                synchronized (committed) {
+                    committed.addLast(ws);
+                }
+                clock.set(ts);
+            }
+            snapshots.remove(tid);
+        }
+        collectGarbage();
+    }
+
+    /**
+     * Abort transaction tid: the tuples it inserted are deleted, and those it
+     * deleted are restored.
+     */
+    public void abort(TransactionId tid) throws IOException {
+        WriteSet ws = writeSets.remove(tid);
+        snapshots.remove(tid);
+        if (ws != null) {
+            for (Version v : ws.deleted) {
+                synchronized (v) {
+                    if (tid.equals(v.deleter)) {
+                        v.next = null;
+                        v.deleter = null;
+                    }
+                }
+                forgetIfSettled(v);
+            }
+            for (Version v : ws.created) {
+                removeTuple(v);
+            }
+        }
+        collectGarbage();
+    }
+
+    /**
+     * Delete from their pages the tuples that no running or future snapshot
+     * sees, and forget the stamps every snapshot agrees on. Runs after every
+     * commit and abort.
+     *
+     * @return the number of tuples deleted
+     */
+    public int collectGarbage() throws IOException {
+        synchronized (gcLock) {
+            long horizon;
+            synchronized (commitLock) {
+                horizon = clock.get();
+                for (long readTs : snapshots.values()) {
+                    horizon = Math.min(horizon, readTs);
+                }
+            }
+            int removed = 0;
+            while (true) {
+                WriteSet ws;
+                synchronized (committed) {
+                    ws = committed.peekFirst();
+                    if (ws == null || ws.commitTs > horizon) {
+                        break;
+                    }
+                    committed.removeFirst();
+                }
+                for (Version v : ws.created) {
+                    v.creator = null;
+                    forgetIfSettled(v);
+                }
+                for (Version v : ws.deleted) {
+                    if (!v.dead) {
+                        removeTuple(v);
+                        removed++;
+                    }
+                }
+                commitTimes.remove(ws.tid);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * @return the number of tuples whose versions are tracked, including the
+     *         slots of deleted tuples that were not reused yet
+     */
+    public int numVersions() {
+        return versions.size();
+    }
+
+    private WriteSet writeSet(TransactionId tid) {
+        return writeSets.computeIfAbsent(tid, WriteSet::new);
+    }
+
+    /**
+     * Drop the stamps of a version every snapshot sees, under the lock
+     * {@link #tupleDeleted} stamps it with.
+     */
+    private void forgetIfSettled(Version v) {
+        synchronized (v) {
+            if (v.creator == null && v.deleter == null && !v.dead) {
+                versions.remove(v.rid, v);
+            }
+        }
+    }
+
+    /**
+     * Delete the tuple of a version from its page. The version is marked dead
+     * first, so that readers that already hold the tuple skip it; its entry
+     * stays until the slot is reused.
+     */
+    private void removeTuple(Version v) throws IOException {
+        v.dead = true;
+        TransactionId tid = new TransactionId();
+        RecordId rid = v.rid;
+        if (versions.get(rid) != v) {
+            // deleted in place, and its slot reused
+            return;
+        }
+        try {
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+            Tuple t = file.getTuple(tid, rid);
+            if (t != null) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            }
+        } catch (NoSuchElementException e) {
+            // the table was dropped
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeBatchInsertTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+	private Random random;
+
+	@Before public void setUp() {
+		tid = new TransactionId();
+		random = new Random(44);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private static final Comparator<List<Integer>> BY_VALUES = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	/**
+	 * Returns the tuples of a B+ tree, checking that they are in key order.
+	 */
+	private List<List<Integer>> scan(BTreeFile bf) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			List<Integer> row = SystemTestUtil.tupleToList(it.next());
+			assertTrue(result.isEmpty() || result.get(result.size() - 1).get(0) <= row.get(0));
+			result.add(row);
+		}
+		it.close();
+		return result;
+	}
+
+	private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> found) {
+		expected = new ArrayList<>(expected);
+		found = new ArrayList<>(found);
+		expected.sort(BY_VALUES);
+		found.sort(BY_VALUES);
+		assertEquals(expected, found);
+	}
+
+	private List<Tuple> randomBatch(List<List<Integer>> rows, int n, int maxKey) {
+		List<Tuple> batch = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			List<Integer> row = Arrays.asList(random.nextInt(maxKey), rows.size());
+			rows.add(row);
+			batch.add(BTreeUtility.getBTreeTuple(row));
+		}
+		return batch;
+	}
+
+	/**
+	 * Batches inserted into a tree with several levels keep it valid and sorted.
+	 */
+	@Test public void insertIntoTree() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, rows, 0);
+		for(int i = 0; i < 3; i++) {
+			Database.getBufferPool().insertTuples(tid, bf.getId(), randomBatch(rows, 2000, BTreeUtility.MAX_RAND_VALUE));
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		}
+		assertSameRows(rows, scan(bf));
+
+		// a batch of keys above every key of the tree
+		List<Tuple> batch = new ArrayList<>();
+		for(int i = 0; i < 2000; i++) {
+			List<Integer> row = Arrays.asList(BTreeUtility.MAX_RAND_VALUE + i, rows.size());
+			rows.add(row);
+			batch.add(BTreeUtility.getBTreeTuple(row));
+		}
+		Database.getBufferPool().insertTuples(tid, bf.getId(), batch);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertSameRows(rows, scan(bf));
+	}
+
+	/**
+	 * A batch creates the root of an empty tree, and fills it with runs of
+	 * tuples with equal keys.
+	 */
+	@Test public void insertIntoEmptyTree() throws Exception {
+		File f = File.createTempFile("batch", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		List<List<Integer>> rows = new ArrayList<>();
+		Database.getBufferPool().insertTuples(tid, bf.getId(), randomBatch(rows, 3000, 10));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertSameRows(rows, scan(bf));
+	}
+
+	/**
+	 * Batches inserted by concurrent threads, which latch the tree exclusively only
+	 * to split pages, all end up in a valid tree.
+	 */
+	@Test public void concurrentBatches() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, rows, 0);
+		List<List<Tuple>> batches = new ArrayList<>();
+		for(int i = 0; i < 16; i++) {
+			batches.add(randomBatch(rows, 500, BTreeUtility.MAX_RAND_VALUE));
+		}
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for(int i = 0; i < 4; i++) {
+			int first = i;
+			Thread thread = new Thread(() -> {
+				try {
+					TransactionId writer = new TransactionId();
+					for(int b = first; b < batches.size(); b += 4) {
+						Database.getBufferPool().insertTuples(writer, bf.getId(), batches.get(b));
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertSameRows(rows, scan(bf));
+	}
+
+	/**
+	 * Insert adds the tuples of its child in batches, and the secondary indexes
+	 * of a heap table are updated with them.
+	 */
+	@Test public void insertOperator() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, rows, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.create(tid, hf, 1, f);
+		Database.getCatalog().addIndex(index);
+
+		List<Tuple> tuples = new ArrayList<>();
+		int n = 2 * Insert.BATCH_SIZE + 1;
+		for(int i = 0; i < n; i++) {
+			List<Integer> row = Arrays.asList(i, random.nextInt(1000));
+			rows.add(row);
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(row.get(0)));
+			t.setField(1, new IntField(row.get(1)));
+			tuples.add(t);
+		}
+		Insert insert = new Insert(tid, new TupleIterator(hf.getTupleDesc(), tuples), hf.getId());
+		insert.open();
+		assertEquals(n, ((IntField) insert.next().getField(0)).getValue());
+		insert.close();
+
+		BTreeChecker.checkRep(index, tid, new HashMap<>(), true);
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(300));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(1) < 300) {
+				expected.add(row);
+			}
+		}
+		List<List<Integer>> found = new ArrayList<>();
+		DbFileIterator it = index.lookup(tid, ipred);
+		it.open();
+		while(it.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		assertSameRows(expected, found);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBatchInsertTest.class);
+	}
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures point lookups and inserts on a B+ tree, on int keys and on string
+ * keys with long common prefixes. Each measurement is repeated after warming up,
+ * and the best round is reported in nanoseconds per operation.
+ * <p>
+ * Run with {@code ant benchmark}, or with the test classpath:
+ * <pre>java simpledb.BTreeBenchmark [tuples] [rounds]</pre>
+ */
+public class BTreeBenchmark {
+
+	private static final int LOOKUPS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		run("int", Type.INT_TYPE, tuples, rounds);
+		run("string", Type.STRING_TYPE, tuples, rounds);
+	}
+
+	private static Field key(Type type, int i) {
+		if(type == Type.INT_TYPE) {
+			return new IntField(i);
+		}
+		return new StringField("customer-" + String.format("%08d", i) + "-account", Type.STRING_LEN);
+	}
+
+	private static void run(String name, Type type, int tuples, int rounds) throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{type, Type.INT_TYPE});
+		Random random = new Random(38);
+		long bestInsert = Long.MAX_VALUE;
+		long bestLookup = Long.MAX_VALUE;
+		for(int r = 0; r < rounds; r++) {
+			Database.reset();
+			// keep the whole tree in memory, so that the page operations are measured
+			Database.resetBufferPool(tuples);
+			File f = File.createTempFile("benchmark", ".dat");
+			f.deleteOnExit();
+			BTreeFile bf = new BTreeFile(f, 0, td);
+			Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+			TransactionId tid = new TransactionId();
+
+			int[] keys = new int[tuples];
+			for(int i = 0; i < tuples; i++) {
+				keys[i] = random.nextInt(Integer.MAX_VALUE);
+			}
+			long start = System.nanoTime();
+			for(int i = 0; i < tuples; i++) {
+				Tuple t = new Tuple(td);
+				t.setField(0, key(type, keys[i]));
+				t.setField(1, new IntField(i));
+				Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			}
+			bestInsert = Math.min(bestInsert, (System.nanoTime() - start) / tuples);
+
+			int found = 0;
+			start = System.nanoTime();
+			for(int i = 0; i < LOOKUPS; i++) {
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+						key(type, keys[random.nextInt(tuples)])));
+				it.open();
+				if(it.hasNext()) {
+					found++;
+				}
+				it.close();
+			}
+			bestLookup = Math.min(bestLookup, (System.nanoTime() - start) / LOOKUPS);
+			if(found != LOOKUPS) {
+				throw new IllegalStateException("found " + found + " of " + LOOKUPS + " keys");
+			}
+		}
+		Database.reset();
+		System.out.printf("%-7s insert %8d ns/op   point lookup %8d ns/op%n", name, bestInsert, bestLookup);
+	}
+}
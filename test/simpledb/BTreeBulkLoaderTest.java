@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 5000;
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile source;
+
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		// a narrow key range, so that keys repeat across pages
+		source = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, tuples);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private BTreeFile load(double fillFactor, int runTuples) throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		BTreeBulkLoader loader = new BTreeBulkLoader(Utility.getTupleDesc(2), 0,
+				BufferPool.getPageSize(), fillFactor, runTuples);
+		DbFileIterator it = source.iterator(tid);
+		it.open();
+		BTreeFile bf = loader.load(it, f);
+		it.close();
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		return bf;
+	}
+
+	private List<List<Integer>> scan(BTreeFile bf) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private void assertSameKeys(BTreeFile bf) throws Exception {
+		List<List<Integer>> loaded = scan(bf);
+		assertEquals(tuples.size(), loaded.size());
+		for(int i = 1; i < loaded.size(); i++) {
+			assertTrue(loaded.get(i - 1).get(0) <= loaded.get(i).get(0));
+		}
+		Comparator<List<Integer>> byValues = Comparator.comparing((List<Integer> l) -> l.get(0))
+				.thenComparing(l -> l.get(1));
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		expected.sort(byValues);
+		loaded.sort(byValues);
+		assertEquals(expected, loaded);
+	}
+
+	/**
+	 * Sorting through many spilled runs, merged in several passes, gives the
+	 * same tree as sorting in memory.
+	 */
+	@Test public void externalSort() throws Exception {
+		BTreeFile inMemory = load(1.0, ROWS);
+		BTreeFile external = load(1.0, 50);
+		assertSameKeys(inMemory);
+		assertSameKeys(external);
+		assertEquals(inMemory.numPages(), external.numPages());
+	}
+
+	/**
+	 * Pages filled below capacity leave room for inserts without splits.
+	 */
+	@Test public void fillFactor() throws Exception {
+		BTreeFile full = load(1.0, ROWS);
+		BTreeFile sparse = load(0.7, ROWS);
+		assertSameKeys(sparse);
+		assertTrue(sparse.numPages() > full.numPages());
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(sparse.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				root.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+		assertEquals((int) (leaf.getMaxTuples() * 0.7), leaf.getNumTuples());
+
+		int pages = sparse.numPages();
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, sparse.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(pages, sparse.numPages());
+		BTreeChecker.checkRep(sparse, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * An index on another column of an existing heap file holds all its tuples.
+	 */
+	@Test public void createIndex() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, source, 1, f, 0.9);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<List<Integer>> loaded = scan(bf);
+		assertEquals(ROWS, loaded.size());
+		for(int i = 1; i < loaded.size(); i++) {
+			assertTrue(loaded.get(i - 1).get(1) <= loaded.get(i).get(1));
+		}
+	}
+
+	/**
+	 * An empty input gives a tree with a single empty leaf.
+	 */
+	@Test public void empty() throws Exception {
+		source = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeFile bf = load(1.0, 10);
+		assertEquals(1, bf.numPages());
+		assertTrue(scan(bf).isEmpty());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeCompactKeyTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE},
+			new String[]{"name", "id"});
+
+	private TransactionId tid;
+	private Random random;
+
+	@Before public void setUp() {
+		tid = new TransactionId();
+		random = new Random(37);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	/**
+	 * Keys sharing long prefixes, as in many real string columns.
+	 */
+	private String key(int i) {
+		return "customer-" + String.format("%06d", i) + "-account";
+	}
+
+	private Tuple tuple(String name, int id) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(name, Type.STRING_LEN));
+		t.setField(1, new IntField(id));
+		return t;
+	}
+
+	private BTreeFile empty() throws Exception {
+		File f = File.createTempFile("compact", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private List<String> scan(BTreeFile bf) throws Exception {
+		List<String> keys = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private BTreePage root(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Internal pages hold truncated separators in the compact layout, so that a
+	 * tree on string keys is much wider than a page of full-width keys allows.
+	 */
+	@Test public void fanout() throws Exception {
+		BTreeFile bf = empty();
+		List<String> expected = new ArrayList<>();
+		for(int i = 0; i < 4000; i++) {
+			String k = key(random.nextInt(1000000));
+			expected.add(k);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(k, i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Collections.sort(expected);
+		assertEquals(expected, scan(bf));
+
+		BTreeInternalPage root = (BTreeInternalPage) root(bf);
+		assertTrue(root.hasCompactKeys());
+		int fullWidth = (BufferPool.getPageSize() - 9) / (Type.STRING_TYPE.getLen() + 4);
+		assertTrue(root.getNumEntries() > 2 * fullWidth);
+		Iterator<BTreeEntry> it = root.iterator();
+		BTreeEntry e = it.next();
+		assertEquals(BTreePageId.LEAF, e.getLeftChild().pgcateg());
+		assertTrue(((StringField) e.getKey()).getValue().length() < key(0).length());
+
+		// the compact pages read back from disk unchanged
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(expected, scan(bf));
+	}
+
+	/**
+	 * Lookups and deletes rebalancing and merging compact internal pages keep
+	 * the tree valid.
+	 */
+	@Test public void insertAndDelete() throws Exception {
+		BTreeFile bf = empty();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 6000; i++) {
+			Tuple t = tuple(key(random.nextInt(3000)), i);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			tuples.add(t);
+		}
+
+		String probe = ((StringField) tuples.get(17).getField(0)).getValue();
+		int matches = 0;
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+				new StringField(probe, Type.STRING_LEN)));
+		it.open();
+		while(it.hasNext()) {
+			assertEquals(probe, ((StringField) it.next().getField(0)).getValue());
+			matches++;
+		}
+		it.close();
+		int expectedMatches = 0;
+		for(Tuple t : tuples) {
+			if(((StringField) t.getField(0)).getValue().equals(probe)) {
+				expectedMatches++;
+			}
+		}
+		assertEquals(expectedMatches, matches);
+
+		Collections.shuffle(tuples, random);
+		List<String> remaining = new ArrayList<>();
+		for(int i = 0; i < tuples.size(); i++) {
+			if(i % 10 == 0) {
+				remaining.add(((StringField) tuples.get(i).getField(0)).getValue());
+				continue;
+			}
+			// look the tuple up again, since rebalancing moves tuples to other pages
+			it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, tuples.get(i).getField(0)));
+			it.open();
+			Tuple stored = it.next();
+			while(!stored.getField(1).equals(tuples.get(i).getField(1))) {
+				stored = it.next();
+			}
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, stored);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Collections.sort(remaining);
+		assertEquals(remaining, scan(bf));
+	}
+
+	/**
+	 * The bulk loader writes compact internal pages too.
+	 */
+	@Test public void bulkLoad() throws Exception {
+		List<Tuple> tuples = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for(int i = 0; i < 5000; i++) {
+			String k = key(random.nextInt(1000000));
+			tuples.add(tuple(k, i));
+			expected.add(k);
+		}
+		File f = File.createTempFile("compact", ".dat");
+		f.deleteOnExit();
+		BTreeBulkLoader loader = new BTreeBulkLoader(TD, 0, BufferPool.getPageSize(),
+				BTreeBulkLoader.DEFAULT_FILL_FACTOR, BTreeBulkLoader.DEFAULT_RUN_TUPLES);
+		DbFileIterator source = new AbstractDbFileIterator() {
+			private Iterator<Tuple> it;
+
+			public void open() {
+				it = tuples.iterator();
+			}
+
+			public void rewind() {
+				open();
+			}
+
+			protected Tuple readNext() {
+				return it.hasNext() ? it.next() : null;
+			}
+		};
+		source.open();
+		BTreeFile bf = loader.load(source, f);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Collections.sort(expected);
+		assertEquals(expected, scan(bf));
+
+		for(int i = 0; i < 500; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key(random.nextInt(1000000)), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactKeyTest.class);
+	}
+}
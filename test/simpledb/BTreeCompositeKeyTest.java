@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+
+	private static final int TENANTS = 20;
+	private static final int TIMES = 1000;
+
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+			new String[]{"tenant_id", "created_at", "id"});
+
+	private static final Comparator<List<Integer>> BY_KEY = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	private TransactionId tid;
+	private Random random;
+	private BTreeFile bf;
+	private List<List<Integer>> rows;
+
+	/**
+	 * Create a B+ tree keyed on (tenant_id, created_at).
+	 */
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		random = new Random(39);
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, new int[]{0, 1}, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		rows = new ArrayList<>();
+		for(int i = 0; i < 5000; i++) {
+			rows.add(Arrays.asList(random.nextInt(TENANTS), random.nextInt(TIMES), i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(rows.get(i)));
+		}
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private static Tuple tuple(List<Integer> row) {
+		Tuple t = new Tuple(TD);
+		for(int i = 0; i < row.size(); i++) {
+			t.setField(i, new IntField(row.get(i)));
+		}
+		return t;
+	}
+
+	private List<List<Integer>> collect(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Looks up the rows of a tenant whose created_at satisfies the operation, and
+	 * checks that they are the same rows, in key order, as filtering all the rows.
+	 */
+	private void assertLookup(int tenant, Op op, int time) throws Exception {
+		List<List<Integer>> found = collect(bf.indexIterator(tid,
+				new IndexPredicate(new Field[]{new IntField(tenant)}, op, new IntField(time))));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(0) == tenant && new IntField(row.get(1)).compare(op, new IntField(time))) {
+				expected.add(row);
+			}
+		}
+		assertSameRows(expected, found);
+	}
+
+	private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> found) {
+		for(int i = 1; i < found.size(); i++) {
+			assertTrue(BY_KEY.compare(found.get(i - 1), found.get(i)) <= 0);
+		}
+		Comparator<List<Integer>> byRow = BY_KEY.thenComparing(l -> l.get(2));
+		expected = new ArrayList<>(expected);
+		found = new ArrayList<>(found);
+		expected.sort(byRow);
+		found.sort(byRow);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * The tuples are sorted by tenant_id, then created_at, and the internal pages
+	 * hold composite keys that survive a round trip to disk.
+	 */
+	@Test public void sortedLexicographically() throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertSameRows(rows, collect(bf.iterator(tid)));
+		assertTrue(bf.numPages() > 2);
+
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertSameRows(rows, collect(bf.iterator(tid)));
+	}
+
+	/**
+	 * Equality on tenant_id plus a range on created_at returns exactly the rows of
+	 * that tenant in the range.
+	 */
+	@Test public void prefixAndRange() throws Exception {
+		for(Op op : new Op[]{Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+				Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS}) {
+			int tenant = random.nextInt(TENANTS);
+			assertLookup(tenant, op, rows.get(random.nextInt(rows.size())).get(1));
+			// the first and last tenants, whose ranges end at the ends of the tree
+			assertLookup(0, op, TIMES / 2);
+			assertLookup(TENANTS - 1, op, TIMES / 2);
+		}
+		// no such tenant
+		assertTrue(collect(bf.indexIterator(tid, new IndexPredicate(new Field[]{new IntField(TENANTS)},
+				Op.GREATER_THAN, new IntField(0)))).isEmpty());
+	}
+
+	/**
+	 * A predicate on fewer fields only compares these fields: equality on a
+	 * prefix of the key, or a range on the first key field.
+	 */
+	@Test public void shorterPredicates() throws Exception {
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(0) == 7) {
+				expected.add(row);
+			}
+		}
+		assertSameRows(expected, collect(bf.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new CompositeField(new IntField(7))))));
+
+		expected.clear();
+		for(List<Integer> row : rows) {
+			if(row.get(0) < 3) {
+				expected.add(row);
+			}
+		}
+		assertSameRows(expected, collect(bf.indexIterator(tid,
+				new IndexPredicate(Op.LESS_THAN, new IntField(3)))));
+	}
+
+	/**
+	 * Deleting most of the rows merges and rebalances pages with composite keys.
+	 */
+	@Test public void delete() throws Exception {
+		Collections.shuffle(rows, random);
+		List<List<Integer>> remaining = new ArrayList<>();
+		for(int i = 0; i < rows.size(); i++) {
+			List<Integer> row = rows.get(i);
+			if(i % 8 == 0) {
+				remaining.add(row);
+				continue;
+			}
+			// look the tuple up again, since rebalancing moves tuples to other pages
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+					new CompositeField(new IntField(row.get(0)), new IntField(row.get(1)))));
+			it.open();
+			Tuple stored = it.next();
+			while(((IntField) stored.getField(2)).getValue() != row.get(2)) {
+				stored = it.next();
+			}
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, stored);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		rows = remaining;
+		assertSameRows(rows, collect(bf.iterator(tid)));
+		assertLookup(5, Op.GREATER_THAN_OR_EQ, TIMES / 3);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
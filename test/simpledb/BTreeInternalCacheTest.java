@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeInternalCacheTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private CountingBTreeFile bf;
+
+	/**
+	 * Counts the pages read from disk.
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+
+		CountingBTreeFile(File f, int key, TupleDesc td) {
+			super(f, key, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+	}
+
+	/**
+	 * Create a B+ tree with an internal root page above its leaves, from distinct
+	 * keys so that every lookup of a key reads one leaf.
+	 */
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		BTreeFile created = BTreeUtility.createBTreeFile(2, 20000, null, tuples, 0);
+		bf = new CountingBTreeFile(created.getFile(), 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private int count(int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	private int expected(int key) {
+		int n = 0;
+		for(List<Integer> t : tuples) {
+			if(t.get(0) == key) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private BTreePageId rootId() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return rootPtr.getRootId();
+	}
+
+	/**
+	 * Once a descent has cached the root and internal pages, lookups read them
+	 * from the cache, even after the buffer pool drops them.
+	 */
+	@Test public void lookupsReadOnlyLeaves() throws Exception {
+		BTreePageId root = rootId();
+		assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+		assertEquals(0, bf.numCachedInternalPages());
+		int key = tuples.get(0).get(0);
+		assertEquals(expected(key), count(key));
+		assertEquals(1, bf.numCachedInternalPages());
+
+		Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(bf.getId()));
+		Database.getBufferPool().discardPage(root);
+		bf.reads = 0;
+		assertEquals(expected(key), count(key));
+		// the leaf was not dropped
+		assertEquals(0, bf.reads);
+	}
+
+	/**
+	 * Inserts that split pages clear the cache, and lookups then see the new
+	 * structure of the tree.
+	 */
+	@Test public void clearedBySplits() throws Exception {
+		Random random = new Random(43);
+		for(int i = 0; i < 20; i++) {
+			int key = tuples.get(random.nextInt(tuples.size())).get(0);
+			assertEquals(expected(key), count(key));
+		}
+		assertTrue(bf.numCachedInternalPages() > 0);
+
+		boolean cleared = false;
+		for(int i = 0; i < 2000; i++) {
+			List<Integer> row = Arrays.asList(random.nextInt(BTreeUtility.MAX_RAND_VALUE), i);
+			tuples.add(row);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(row));
+			cleared |= bf.numCachedInternalPages() == 0;
+			if(i % 100 == 0) {
+				int key = tuples.get(random.nextInt(tuples.size())).get(0);
+				assertEquals(expected(key), count(key));
+			}
+		}
+		assertTrue(cleared);
+		for(int i = 0; i < 20; i++) {
+			int key = tuples.get(random.nextInt(tuples.size())).get(0);
+			assertEquals(expected(key), count(key));
+		}
+	}
+
+	/**
+	 * A new buffer pool does not use the pages cached from the previous one.
+	 */
+	@Test public void clearedWithBufferPool() throws Exception {
+		int key = tuples.get(0).get(0);
+		count(key);
+		assertTrue(bf.numCachedInternalPages() > 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(0, bf.numCachedInternalPages());
+		bf.reads = 0;
+		assertEquals(expected(key), count(key));
+		// the root pointer, the root and the leaf
+		assertEquals(3, bf.reads);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeInternalCacheTest.class);
+	}
+}
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+
+	private static final int THREADS = 4;
+	private static final int TUPLES_PER_THREAD = 2000;
+	private static final int RANGE = 100000;
+
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Create an empty B+ tree with small pages, so that inserts split often.
+	 */
+	@Before public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		File f = File.createTempFile("latch", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Thread inserting the tuples (key, n) for n in [0, count), with keys
+	 * in [base, base + RANGE) in a random order.
+	 */
+	private class RangeInserter extends Thread {
+		final int base;
+		final int count;
+		volatile Exception error = null;
+
+		RangeInserter(int base, int count) {
+			this.base = base;
+			this.count = count;
+		}
+
+		public void run() {
+			Random r = new Random(base);
+			TransactionId tid = new TransactionId();
+			try {
+				for(int n = 0; n < count; n++) {
+					Tuple t = BTreeUtility.getBTreeTuple(new int[]{base + r.nextInt(RANGE), n});
+					Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	private List<Tuple> scan(DbFileIterator it) throws Exception {
+		List<Tuple> tuples = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		return tuples;
+	}
+
+	private static void assertSorted(List<Tuple> tuples) {
+		for(int i = 1; i < tuples.size(); i++) {
+			assertTrue(tuples.get(i - 1).getField(0).compare(Op.LESS_THAN_OR_EQ, tuples.get(i).getField(0)));
+		}
+	}
+
+	/**
+	 * Threads inserting into disjoint key ranges all succeed and leave a
+	 * well-formed tree.
+	 */
+	@Test public void disjointInserts() throws Exception {
+		List<RangeInserter> threads = new ArrayList<>();
+		for(int i = 0; i < THREADS; i++) {
+			threads.add(new RangeInserter(i * RANGE, TUPLES_PER_THREAD));
+		}
+		for(RangeInserter t : threads) {
+			t.start();
+		}
+		for(RangeInserter t : threads) {
+			t.join();
+			assertNull(t.error);
+		}
+
+		List<Tuple> all = scan(bf.iterator(tid));
+		assertEquals(THREADS * TUPLES_PER_THREAD, all.size());
+		assertSorted(all);
+		for(int i = 0; i < THREADS; i++) {
+			IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField((i + 1) * RANGE));
+			assertEquals((i + 1) * TUPLES_PER_THREAD, scan(bf.indexIterator(tid, ipred)).size());
+		}
+		// the latches of the pages are not kept once released
+		assertEquals(0, bf.numPageLatches());
+	}
+
+	/**
+	 * A scan running while leaves split never returns a tuple twice or out of
+	 * order.
+	 */
+	@Test public void scanDuringInserts() throws Exception {
+		RangeInserter inserter = new RangeInserter(0, THREADS * TUPLES_PER_THREAD);
+		AtomicBoolean done = new AtomicBoolean(false);
+		inserter.start();
+		int scans = 0;
+		while(!done.get()) {
+			done.set(!inserter.isAlive());
+			List<Tuple> tuples = scan(bf.iterator(tid));
+			assertSorted(tuples);
+			Set<Integer> seen = new HashSet<>();
+			for(Tuple t : tuples) {
+				assertTrue(seen.add(((IntField) t.getField(1)).getValue()));
+			}
+			scans++;
+		}
+		inserter.join();
+		assertNull(inserter.error);
+		assertTrue(scans > 1);
+		assertEquals(THREADS * TUPLES_PER_THREAD, scan(bf.iterator(tid)).size());
+	}
+
+	/**
+	 * Inserts and deletes running at the same time, some of them merging
+	 * pages, keep every tuple that was not deleted.
+	 */
+	@Test public void insertsAndDeletes() throws Exception {
+		RangeInserter loader = new RangeInserter(0, TUPLES_PER_THREAD);
+		loader.run();
+		assertNull(loader.error);
+		List<Tuple> initial = scan(bf.iterator(tid));
+
+		RangeInserter inserter = new RangeInserter(RANGE, TUPLES_PER_THREAD);
+		inserter.start();
+		int deleted = 0;
+		for(int i = 0; i < initial.size(); i += 2) {
+			Database.getBufferPool().deleteTuple(tid, initial.get(i));
+			deleted++;
+		}
+		inserter.join();
+		assertNull(inserter.error);
+
+		List<Tuple> all = scan(bf.iterator(tid));
+		assertSorted(all);
+		assertEquals(2 * TUPLES_PER_THREAD - deleted, all.size());
+		assertEquals(0, bf.numPageLatches());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
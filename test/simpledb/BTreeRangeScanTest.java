@@ -0,0 +1,231 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeRangeScanTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 5000;
+
+	private TransactionId tid;
+	private Random random;
+	private List<List<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Create a B+ tree with several levels, keyed on its first column.
+	 */
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		random = new Random(42);
+		tuples = new ArrayList<>();
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private static List<List<Integer>> collect(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private static final Comparator<List<Integer>> BY_VALUES = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	/**
+	 * Returns the rows whose given column is within the range, sorted.
+	 */
+	private static List<List<Integer>> filter(List<List<Integer>> rows, int column, IndexPredicate range) {
+		List<List<Integer>> result = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(range.matches(new IntField(row.get(column)))) {
+				result.add(row);
+			}
+		}
+		result.sort(BY_VALUES);
+		return result;
+	}
+
+	/**
+	 * Asserts that found holds the same rows as expected, in ascending (or
+	 * descending) order of the given column.
+	 */
+	private static void assertOrdered(List<List<Integer>> expected, List<List<Integer>> found, int column,
+			boolean descending) {
+		for(int i = 1; i < found.size(); i++) {
+			int a = found.get(i - 1).get(column), b = found.get(i).get(column);
+			assertTrue(descending ? a >= b : a <= b);
+		}
+		found = new ArrayList<>(found);
+		found.sort(BY_VALUES);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * A range scan returns the tuples between its bounds, inclusive or not, in
+	 * both directions.
+	 */
+	@Test public void ranges() throws Exception {
+		Op[] lowerOps = {Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ};
+		Op[] upperOps = {Op.LESS_THAN, Op.LESS_THAN_OR_EQ};
+		for(Op lowerOp : lowerOps) {
+			for(Op upperOp : upperOps) {
+				for(int i = 0; i < 5; i++) {
+					// existing keys, so that the bounds are tested with duplicates
+					int a = tuples.get(random.nextInt(ROWS)).get(0);
+					int b = tuples.get(random.nextInt(ROWS)).get(0);
+					IndexPredicate range = new IndexPredicate(lowerOp, new IntField(Math.min(a, b)),
+							upperOp, new IntField(Math.max(a, b)));
+					assertTrue(range.isRange());
+					List<List<Integer>> expected = filter(tuples, 0, range);
+					assertOrdered(expected, collect(new BTreeScan(tid, bf.getId(), "t", range)), 0, false);
+					assertOrdered(expected, collect(new BTreeScan(tid, bf.getId(), "t", range, true)), 0, true);
+				}
+			}
+		}
+
+		IndexPredicate empty = new IndexPredicate(Op.GREATER_THAN, new IntField(100), Op.LESS_THAN, new IntField(100));
+		assertTrue(collect(new BTreeScan(tid, bf.getId(), "t", empty)).isEmpty());
+		assertTrue(collect(new BTreeScan(tid, bf.getId(), "t", empty, true)).isEmpty());
+	}
+
+	/**
+	 * A range needs a lower and an upper bound.
+	 */
+	@Test(expected = IllegalArgumentException.class) public void notARange() {
+		new IndexPredicate(Op.LESS_THAN, new IntField(1), Op.GREATER_THAN, new IntField(2));
+	}
+
+	/**
+	 * A range on a composite key selects the keys with the prefix of the bounds
+	 * whose next key field is between them.
+	 */
+	@Test public void compositeKey() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new String[]{"a", "b"});
+		File f = File.createTempFile("range", ".dat");
+		f.deleteOnExit();
+		BTreeFile composite = new BTreeFile(f, new int[]{0, 1}, td);
+		Database.getCatalog().addTable(composite, UUID.randomUUID().toString());
+		List<List<Integer>> rows = new ArrayList<>();
+		for(int i = 0; i < 3000; i++) {
+			List<Integer> row = Arrays.asList(random.nextInt(10), random.nextInt(1000));
+			rows.add(row);
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(row.get(0)));
+			t.setField(1, new IntField(row.get(1)));
+			Database.getBufferPool().insertTuple(tid, composite.getId(), t);
+		}
+
+		Field[] prefix = {new IntField(4)};
+		IndexPredicate range = new IndexPredicate(prefix, Op.GREATER_THAN_OR_EQ, new IntField(200),
+				Op.LESS_THAN, new IntField(700));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(0) == 4 && row.get(1) >= 200 && row.get(1) < 700) {
+				expected.add(row);
+			}
+		}
+		expected.sort(BY_VALUES);
+		assertOrdered(expected, collect(new BTreeScan(tid, composite.getId(), "t", range)), 1, false);
+		assertOrdered(expected, collect(new BTreeScan(tid, composite.getId(), "t", range, true)), 1, true);
+	}
+
+	/**
+	 * A hash file answers a range by scanning its buckets.
+	 */
+	@Test public void hashFile() throws Exception {
+		TupleDesc td = bf.getTupleDesc();
+		File f = File.createTempFile("range", ".dat");
+		f.deleteOnExit();
+		HashFile file = new HashFile(f, 0, td);
+		Database.getCatalog().addTable(file, UUID.randomUUID().toString());
+		for(int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, file.getId(), BTreeUtility.getBTreeTuple(tuples.get(i)));
+		}
+		IndexPredicate range = new IndexPredicate(Op.GREATER_THAN, new IntField(1000), Op.LESS_THAN_OR_EQ,
+				new IntField(20000));
+		List<List<Integer>> found = new ArrayList<>();
+		DbFileIterator it = file.indexIterator(tid, range);
+		it.open();
+		while(it.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		found.sort(BY_VALUES);
+		assertEquals(filter(tuples.subList(0, 1000), 0, range), found);
+	}
+
+	/**
+	 * The planner merges the tightest lower and upper bound filters on an
+	 * indexed column into one range looked up in the index.
+	 */
+	@Test public void physicalPlan() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, rows, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.create(tid, hf, 1, f);
+		Database.getCatalog().addIndex(index);
+		Map<String, TableStats> stats = new HashMap<>();
+		// each bound alone selects half of the table, the range a small part of it
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000) {
+			@Override
+			public double estimateSelectivity(int field, Op op, Field constant) {
+				return 0.52;
+			}
+		});
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.GREATER_THAN_OR_EQ, "300");
+		lp.addFilter("t.c1", Op.GREATER_THAN, "400");
+		lp.addFilter("t.c1", Op.LESS_THAN_OR_EQ, "600");
+		lp.addFilter("t.c1", Op.LESS_THAN, "600");
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = plan;
+		while(scan instanceof Operator) {
+			scan = ((Operator) scan).getChildren()[0];
+		}
+		IndexPredicate range = ((IndexScan) scan).getIndexPredicate();
+		assertTrue(range.equals(new IndexPredicate(Op.GREATER_THAN, new IntField(400), Op.LESS_THAN,
+				new IntField(600))));
+		List<List<Integer>> found = collect(plan);
+		assertOrdered(filter(rows, 1, range), found, 1, false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeRangeScanTest.class);
+	}
+}
@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BTreeReverseScanTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 5000;
+
+	private TransactionId tid;
+	private Random random;
+	private List<List<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Create a B+ tree with several levels, keyed on its first column.
+	 */
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		random = new Random(41);
+		tuples = new ArrayList<>();
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private static List<List<Integer>> collect(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private static final Comparator<List<Integer>> BY_VALUES = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	/**
+	 * Asserts that found holds the same rows as expected, in descending order of
+	 * the given column.
+	 */
+	private static void assertDescending(List<List<Integer>> expected, List<List<Integer>> found, int column) {
+		for(int i = 1; i < found.size(); i++) {
+			assertTrue(found.get(i - 1).get(column) >= found.get(i).get(column));
+		}
+		expected = new ArrayList<>(expected);
+		found = new ArrayList<>(found);
+		expected.sort(BY_VALUES);
+		found.sort(BY_VALUES);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * A descending scan returns every tuple, from the right-most leaf to the
+	 * left-most one, and can be rewound.
+	 */
+	@Test public void fullScan() throws Exception {
+		BTreeScan scan = new BTreeScan(tid, bf.getId(), "t", null, true);
+		assertTrue(scan.isDescending());
+		List<List<Integer>> found = collect(scan);
+		assertDescending(tuples, found, 0);
+
+		scan.open();
+		for(int i = 0; i < 100; i++) {
+			assertEquals(found.get(i), SystemTestUtil.tupleToList(scan.next()));
+		}
+		scan.rewind();
+		assertEquals(found.get(0), SystemTestUtil.tupleToList(scan.next()));
+		scan.close();
+	}
+
+	/**
+	 * A descending scan with a predicate returns the same tuples as an ascending
+	 * one, in reverse order of their keys.
+	 */
+	@Test public void predicates() throws Exception {
+		Op[] ops = {Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ};
+		for(Op op : ops) {
+			for(int i = 0; i < 5; i++) {
+				// an existing key, so that the bounds are tested with duplicates
+				IntField value = new IntField(tuples.get(random.nextInt(ROWS)).get(0));
+				IndexPredicate ipred = new IndexPredicate(op, value);
+				List<List<Integer>> expected = collect(new BTreeScan(tid, bf.getId(), "t", ipred));
+				List<List<Integer>> found = collect(new BTreeScan(tid, bf.getId(), "t", ipred, true));
+				assertTrue(op != Op.EQUALS || !found.isEmpty());
+				assertDescending(expected, found, 0);
+			}
+		}
+		IndexPredicate below = new IndexPredicate(Op.LESS_THAN, new IntField(-1));
+		assertTrue(collect(new BTreeScan(tid, bf.getId(), "t", below, true)).isEmpty());
+	}
+
+	/**
+	 * A descending scan of a composite key with a prefix returns the tuples with
+	 * that prefix, in descending order of the next key field.
+	 */
+	@Test public void compositeKey() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new String[]{"a", "b"});
+		File f = File.createTempFile("reverse", ".dat");
+		f.deleteOnExit();
+		BTreeFile composite = new BTreeFile(f, new int[]{0, 1}, td);
+		Database.getCatalog().addTable(composite, UUID.randomUUID().toString());
+		List<List<Integer>> rows = new ArrayList<>();
+		for(int i = 0; i < 3000; i++) {
+			List<Integer> row = Arrays.asList(random.nextInt(10), random.nextInt(1000));
+			rows.add(row);
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(row.get(0)));
+			t.setField(1, new IntField(row.get(1)));
+			Database.getBufferPool().insertTuple(tid, composite.getId(), t);
+		}
+
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new CompositeField(new IntField(4), new IntField(500)));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(0) == 4 && row.get(1) < 500) {
+				expected.add(row);
+			}
+		}
+		assertDescending(expected, collect(new BTreeScan(tid, composite.getId(), "t", ipred, true)), 1);
+
+		ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new CompositeField(new IntField(4), new IntField(500)));
+		expected.clear();
+		for(List<Integer> row : rows) {
+			if(row.get(0) == 4 && row.get(1) >= 500) {
+				expected.add(row);
+			}
+		}
+		assertDescending(expected, collect(new BTreeScan(tid, composite.getId(), "t", ipred, true)), 1);
+	}
+
+	/**
+	 * A descending scan that goes on after leaf pages split returns every tuple
+	 * that was in the tree when it started exactly once, in descending order.
+	 */
+	@Test public void concurrentSplits() throws Exception {
+		Database.resetBufferPool(1000);
+		Set<Integer> ids = new HashSet<>();
+		List<List<Integer>> rows = new ArrayList<>();
+		TupleDesc td = bf.getTupleDesc();
+		File f = File.createTempFile("reverse", ".dat");
+		f.deleteOnExit();
+		BTreeFile tree = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(tree, UUID.randomUUID().toString());
+		for(int i = 0; i < ROWS; i++) {
+			rows.add(Arrays.asList(random.nextInt(ROWS), i));
+			ids.add(i);
+			Database.getBufferPool().insertTuple(tid, tree.getId(), BTreeUtility.getBTreeTuple(rows.get(i)));
+		}
+
+		BTreeScan scan = new BTreeScan(tid, tree.getId(), "t", null, true);
+		scan.open();
+		List<List<Integer>> found = new ArrayList<>();
+		for(int i = 0; i < ROWS / 2; i++) {
+			found.add(SystemTestUtil.tupleToList(scan.next()));
+		}
+		// inserts on both sides of the scan split leaf pages
+		for(int i = 0; i < ROWS; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(new int[]{random.nextInt(ROWS), ROWS + i});
+			Database.getBufferPool().insertTuple(tid, tree.getId(), t);
+		}
+		while(scan.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(scan.next()));
+		}
+		scan.close();
+
+		Set<Integer> seen = new HashSet<>();
+		for(int i = 0; i < found.size(); i++) {
+			assertTrue(seen.add(found.get(i).get(1)));
+			if(i > 0) {
+				assertTrue(found.get(i - 1).get(0) >= found.get(i).get(0));
+			}
+		}
+		assertTrue(seen.containsAll(ids));
+	}
+
+	/**
+	 * A single-table query ordered by a column with a B+ tree index reads the
+	 * index in the order of the ORDER BY clause, forward or backward, and has no
+	 * OrderBy in its plan.
+	 */
+	@Test public void physicalPlan() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, rows, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.create(tid, hf, 1, f);
+		Database.getCatalog().addIndex(index);
+		Map<String, TableStats> stats = new HashMap<>();
+		// range filters on the indexed column are selective enough to use the index
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000) {
+			@Override
+			public double estimateSelectivity(int field, Op op, Field constant) {
+				return 0.01;
+			}
+		});
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(1) < 100) {
+				expected.add(row);
+			}
+		}
+		for(boolean asc : new boolean[]{true, false}) {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(hf.getId(), "t");
+			lp.addFilter("t.c1", Op.LESS_THAN, "100");
+			lp.addProjectField("t.c0", null);
+			lp.addProjectField("t.c1", null);
+			lp.addOrderBy("t.c1", asc);
+			OpIterator plan = lp.physicalPlan(tid, stats, false);
+			IndexScan scan = (IndexScan) findScan(plan);
+			assertEquals(!asc, scan.isDescending());
+			List<List<Integer>> found = collect(plan);
+			if(asc) {
+				Collections.reverse(found);
+			}
+			assertDescending(expected, found, 1);
+		}
+
+		// covered by the index: read backward from its last leaf page
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addProjectField("t.c1", null);
+		lp.addOrderBy("t.c1", false);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		IndexOnlyScan scan = (IndexOnlyScan) findScan(plan);
+		assertTrue(scan.isDescending());
+		List<Integer> found = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext()) {
+			found.add(((IntField) plan.next().getField(0)).getValue());
+		}
+		plan.close();
+		List<Integer> values = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			values.add(row.get(1));
+		}
+		values.sort(Collections.reverseOrder());
+		assertEquals(values, found);
+
+		// ordered by a column without an index: still sorted
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.LESS_THAN, "100");
+		lp.addProjectField("t.c0", null);
+		lp.addOrderBy("t.c0", false);
+		assertTrue(((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0] instanceof OrderBy);
+	}
+
+	/**
+	 * Returns the scan at the bottom of a plan of single-child operators,
+	 * checking that there is no OrderBy on the way.
+	 */
+	private static OpIterator findScan(OpIterator plan) {
+		while(plan instanceof Operator) {
+			assertFalse(plan instanceof OrderBy);
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReverseScanTest.class);
+	}
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 8;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    /**
+     * Create a table larger than the buffer pool.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3 * BUFFER_PAGES, null, null);
+        bp = Database.resetBufferPool(BUFFER_PAGES);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Fill the buffer pool with dirty pages 0 .. BUFFER_PAGES - 1.
+     */
+    private void dirtyPool() throws Exception {
+        for (int i = 0; i < BUFFER_PAGES; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+    }
+
+    private void readMore() throws Exception {
+        for (int i = BUFFER_PAGES; i < 2 * BUFFER_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * Without a background writer, evicting a dirty page writes it.
+     */
+    @Test public void foregroundWrites() throws Exception {
+        dirtyPool();
+        readMore();
+        assertTrue(bp.getForegroundWrites() > 0);
+        assertEquals(0, bp.getBackgroundWrites());
+    }
+
+    /**
+     * Pages cleaned by the background writer are evicted without a write.
+     */
+    @Test public void backgroundWrites() throws Exception {
+        dirtyPool();
+        BackgroundWriter writer = new BackgroundWriter(bp, 0, BUFFER_PAGES, BUFFER_PAGES / 2);
+        assertEquals(BUFFER_PAGES / 2, writer.writeRound());
+        assertEquals(BUFFER_PAGES / 2, writer.writeRound());
+        assertEquals(0, writer.writeRound());
+        readMore();
+        assertEquals(0, bp.getForegroundWrites());
+        assertEquals(BUFFER_PAGES, bp.getBackgroundWrites());
+    }
+
+    /**
+     * The background writer only looks ahead of the eviction order.
+     */
+    @Test public void lookahead() throws Exception {
+        dirtyPool();
+        // make page 0 the most visited page
+        for (int i = 0; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        }
+        BackgroundWriter writer = new BackgroundWriter(bp, 0, BUFFER_PAGES - 1, BUFFER_PAGES);
+        assertEquals(BUFFER_PAGES - 1, writer.writeRound());
+        assertNotNull(bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY).isDirty());
+    }
+
+    /**
+     * A checkpoint leaves no dirty page behind.
+     */
+    @Test public void checkpoint() throws Exception {
+        dirtyPool();
+        Checkpointer cp = new Checkpointer(bp);
+        assertEquals(BUFFER_PAGES, cp.checkpoint(0));
+        assertEquals(BUFFER_PAGES, bp.getCheckpointWrites());
+        readMore();
+        assertEquals(0, bp.getForegroundWrites());
+    }
+
+    /**
+     * Delete the first tuple of page 0 under a transaction that is still
+     * running, without logging the change, and return the data of the page
+     * before the delete.
+     */
+    private byte[] dirtyUncommitted(Transaction t) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        byte[] before = p.getPageData();
+        p.deleteTuple(p.iterator().next());
+        p.markDirty(true, t.getId());
+        return before;
+    }
+
+    /**
+     * Crash, recover and return the data of page 0 on disk.
+     */
+    private byte[] crashAndRecover() throws Exception {
+        Database.reset();
+        HeapFile file = Utility.openHeapFile(2, hf.getFile());
+        Database.getLogFile().recover();
+        return file.readPage(new HeapPageId(file.getId(), 0)).getPageData();
+    }
+
+    /**
+     * A page of a running transaction written by the background writer is
+     * logged first, so that recovery undoes its changes.
+     */
+    @Test public void uncommittedBackgroundWrite() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        byte[] before = dirtyUncommitted(t);
+        BackgroundWriter writer = new BackgroundWriter(bp, 0, BUFFER_PAGES, BUFFER_PAGES);
+        assertEquals(1, writer.writeRound());
+        assertArrayEquals(before, crashAndRecover());
+    }
+
+    /**
+     * Same for a page of a running transaction written by the checkpointer.
+     */
+    @Test public void uncommittedCheckpointWrite() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        byte[] before = dirtyUncommitted(t);
+        assertEquals(1, new Checkpointer(bp).checkpoint(0));
+        assertArrayEquals(before, crashAndRecover());
+    }
+
+    /**
+     * The threads start and stop cleanly.
+     */
+    @Test public void startAndStop() throws Exception {
+        bp.startBackgroundWriters();
+        dirtyPool();
+        bp.stopBackgroundWriters();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
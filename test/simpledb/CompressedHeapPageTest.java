@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.storage.CompressedHeapPage.Encoding;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class CompressedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private CompressedHeapPage emptyPage() throws Exception {
+        return new CompressedHeapPage(pid, CompressedHeapPage.createEmptyPageData());
+    }
+
+    /**
+     * An empty page has no tuples and accepts inserts.
+     */
+    @Test public void newPageIsEmpty() throws Exception {
+        CompressedHeapPage page = emptyPage();
+        assertEquals(0, page.getNumTuples());
+        assertFalse(page.iterator().hasNext());
+        assertTrue(page.hasRoomFor(Utility.getHeapTuple(1, 2)));
+    }
+
+    /**
+     * Low-cardinality columns fit many more tuples than a HeapPage's slots.
+     */
+    @Test public void holdsMoreThanHeapPage() throws Exception {
+        CompressedHeapPage page = emptyPage();
+        int inserted = 0;
+        while (inserted < 5000) {
+            Tuple t = Utility.getHeapTuple(new int[]{inserted % 4, 1000 + inserted / 100});
+            if (!page.hasRoomFor(t)) {
+                break;
+            }
+            page.insertTuple(t);
+            inserted++;
+        }
+        int heapPageSlots = (BufferPool.getPageSize() * 8) / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        assertTrue(inserted > 2 * heapPageSlots);
+        assertEquals(inserted, page.getNumTuples());
+    }
+
+    /**
+     * The encoding of each column follows its data.
+     */
+    @Test public void chooseEncoding() throws Exception {
+        CompressedHeapPage page = emptyPage();
+        for (int i = 0; i < 200; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{i / 50 * 1000000, 100000 + i}));
+        }
+        assertEquals(Encoding.RLE, page.getEncoding(0));
+        assertEquals(Encoding.FRAME_OF_REFERENCE, page.getEncoding(1));
+
+        CompressedHeapPage cycling = emptyPage();
+        for (int i = 0; i < 200; i++) {
+            cycling.insertTuple(Utility.getHeapTuple(new int[]{i % 3 * 1000000, i * 1000000}));
+        }
+        assertEquals(Encoding.DICTIONARY, cycling.getEncoding(0));
+    }
+
+    /**
+     * getPageData and the constructor round-trip, including deletions.
+     */
+    @Test public void roundTrip() throws Exception {
+        CompressedHeapPage page = emptyPage();
+        List<Tuple> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Tuple t = Utility.getHeapTuple(new int[]{i % 5, i * 3});
+            page.insertTuple(t);
+            expected.add(t);
+        }
+        page.deleteTuple(expected.remove(10));
+        page.deleteTuple(expected.remove(100));
+
+        CompressedHeapPage copy = new CompressedHeapPage(pid, page.getPageData());
+        assertEquals(298, copy.getNumTuples());
+        Iterator<Tuple> it = copy.iterator();
+        for (Tuple t : expected) {
+            assertTrue(it.hasNext());
+            Tuple actual = it.next();
+            assertTrue(TestUtil.compareTuples(t, actual));
+            assertEquals(copy.getId(), actual.getRecordId().getPageId());
+        }
+        assertFalse(it.hasNext());
+
+        // a deleted slot is reused by the next insert
+        Tuple reinserted = Utility.getHeapTuple(new int[]{1, 1});
+        copy.insertTuple(reinserted);
+        assertEquals(10, reinserted.getRecordId().getTupleNumber());
+    }
+
+    /**
+     * Predicates evaluated on the encoded columns return the same tuples as
+     * filtering decoded tuples.
+     */
+    @Test public void iteratorWithPredicate() throws Exception {
+        CompressedHeapPage page = emptyPage();
+        for (int i = 0; i < 400; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{i % 4, i}));
+        }
+        CompressedHeapPage copy = new CompressedHeapPage(pid, page.getPageData());
+
+        int count = 0;
+        Iterator<Tuple> it = copy.iterator(new Predicate(0, Predicate.Op.EQUALS, new IntField(2)));
+        while (it.hasNext()) {
+            assertEquals(new IntField(2), it.next().getField(0));
+            count++;
+        }
+        assertEquals(100, count);
+
+        count = 0;
+        it = copy.iterator(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(390)));
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(10, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,331 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class HashIndexTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 20000;
+	private static final int MAX_VALUE = 5000;
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private HashIndex index;
+
+	/**
+	 * Create a table and a hash index on its second column.
+	 */
+	@Before public void setUp() throws Exception {
+		// keep the table and the index in memory: HeapPage deletes tuples by identity
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		File f = File.createTempFile("hash", ".dat");
+		f.deleteOnExit();
+		index = HashIndex.create(tid, hf, 1, f);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private List<List<Integer>> lookup(int value) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private List<List<Integer>> scan(int value) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			List<Integer> row = SystemTestUtil.tupleToList(it.next());
+			if(row.get(1) == value) {
+				result.add(row);
+			}
+		}
+		it.close();
+		return result;
+	}
+
+	private static final Comparator<List<Integer>> BY_VALUES = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	/**
+	 * Lookups through the index return the same tuples as filtering the table.
+	 */
+	private void assertSameAsScan(int value) throws Exception {
+		List<List<Integer>> found = lookup(value);
+		List<List<Integer>> expected = scan(value);
+		found.sort(BY_VALUES);
+		expected.sort(BY_VALUES);
+		assertEquals(expected, found);
+	}
+
+	private HashDirectoryPage directory() throws Exception {
+		return (HashDirectoryPage) Database.getBufferPool().getPage(tid, HashPageId.directoryId(index.getId()),
+				Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Building the index splits buckets and doubles the directory, and every key is
+	 * found in its bucket.
+	 */
+	@Test public void lookup() throws Exception {
+		assertTrue(directory().getGlobalDepth() > 2);
+		assertTrue(index.numPages() > 1 << directory().getGlobalDepth() / 2);
+		for(int i = 0; i < 50; i++) {
+			assertSameAsScan(tuples.get(i).get(1));
+		}
+		assertTrue(lookup(MAX_VALUE).isEmpty());
+
+		int entries = 0;
+		DbFileIterator it = index.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			entries++;
+		}
+		it.close();
+		assertEquals(ROWS, entries);
+	}
+
+	/**
+	 * Keys with more duplicates than fit in a bucket go to overflow pages.
+	 */
+	@Test public void overflow() throws Exception {
+		for(int i = 0; i < 1000; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(-1));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		assertEquals(1000, lookup(-1).size());
+		assertSameAsScan(tuples.get(0).get(1));
+		assertTrue(directory().getGlobalDepth() <= directory().getMaxDepth());
+		int overflowPages = 0;
+		for(int i = 1; i < index.numPages(); i++) {
+			HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(index.getId(), i, HashPageId.BUCKET), Permissions.READ_ONLY);
+			if(page.getNextOverflowId() != null) {
+				overflowPages++;
+			}
+		}
+		int maxTuples = HashBucketPage.getMaxTuples(index.getTupleDesc(), BufferPool.getPageSize());
+		assertTrue(overflowPages >= 1000 / maxTuples);
+	}
+
+	/**
+	 * Tuples inserted and deleted through the BufferPool are added to and removed
+	 * from the index, and the index survives a round trip to disk.
+	 */
+	@Test public void maintainedByBufferPool() throws Exception {
+		for(int i = 0; i < 500; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(MAX_VALUE + i % 10));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		assertEquals(50, lookup(MAX_VALUE + 3).size());
+
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		List<Tuple> victims = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 2 == 0) {
+				victims.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		assertTrue(lookup(MAX_VALUE + 2).isEmpty());
+		assertEquals(50, lookup(MAX_VALUE + 3).size());
+
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertTrue(lookup(MAX_VALUE + 2).isEmpty());
+		assertEquals(50, lookup(MAX_VALUE + 3).size());
+		for(int i = 0; i < 20; i++) {
+			assertSameAsScan(tuples.get(i).get(1));
+		}
+	}
+
+	/**
+	 * A HashFile can also store whole tuples as a table of its own.
+	 */
+	@Test public void hashFile() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}, new String[]{"name", "n"});
+		File f = File.createTempFile("hash", ".dat");
+		f.deleteOnExit();
+		HashFile file = new HashFile(f, 0, td);
+		Database.getCatalog().addTable(file, UUID.randomUUID().toString());
+		for(int i = 0; i < 3000; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField("name" + i % 1000, Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, file.getId(), t);
+		}
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+				new StringField("name17", Type.STRING_LEN)));
+		it.open();
+		Set<Integer> found = new HashSet<>();
+		while(it.hasNext()) {
+			found.add(((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		assertEquals(new HashSet<>(Arrays.asList(17, 1017, 2017)), found);
+
+		it = file.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new StringField("name10", Type.STRING_LEN)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		// name0 and name1
+		assertEquals(2 * 3, count);
+	}
+
+	/**
+	 * The planner looks up equality filters in the hash index, even if the column
+	 * also has a B+ tree index, but never range filters.
+	 */
+	@Test public void physicalPlan() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex btree = SecondaryIndex.create(tid, hf, 1, f);
+		Database.getCatalog().addIndex(btree);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, "17");
+		lp.addProjectField("t.c0", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		IndexScan scan = (IndexScan) findScan(plan);
+		assertSame(index, scan.getIndex());
+		int rows = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			plan.next();
+			rows++;
+		}
+		plan.close();
+		assertEquals(scan(17).size(), rows);
+
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.LESS_THAN, "17");
+		lp.addProjectField("t.c0", null);
+		OpIterator rangeScan = findScan(lp.physicalPlan(tid, stats, false));
+		assertFalse(rangeScan instanceof IndexScan && ((IndexScan) rangeScan).getIndex() == index);
+	}
+
+	/**
+	 * An equality join of a small table with the indexed table looks up each tuple
+	 * of the small table in the hash index, and returns the same tuples as a hash
+	 * join.
+	 */
+	@Test public void indexJoin() throws Exception {
+		List<List<Integer>> small = new ArrayList<>();
+		HeapFile sf = SystemTestUtil.createRandomHeapFile(2, 5, MAX_VALUE, null, small, "c");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), stats(hf.getId(), ROWS));
+		stats.put(Database.getCatalog().getTableName(sf.getId()), stats(sf.getId(), small.size()));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(sf.getId(), "s");
+		lp.addScan(hf.getId(), "t");
+		lp.addJoin("s.c1", "t.c1", Op.EQUALS);
+		lp.addProjectField("s.c0", null);
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator join = plan;
+		while(!(join instanceof IndexNestedLoopJoin)) {
+			assertTrue(join instanceof Operator);
+			join = ((Operator) join).getChildren()[0];
+		}
+		assertSame(index, ((IndexNestedLoopJoin) join).getIndex());
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> s : small) {
+			for(List<Integer> t : tuples) {
+				if(s.get(1).equals(t.get(1))) {
+					expected.add(Arrays.asList(s.get(0), t.get(0), t.get(1)));
+				}
+			}
+		}
+		List<List<Integer>> found = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(plan.next()));
+		}
+		plan.close();
+		Comparator<List<Integer>> byRow = BY_VALUES.thenComparing(l -> l.get(2));
+		expected.sort(byRow);
+		found.sort(byRow);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * Statistics of a table that know its number of tuples.
+	 */
+	private static TableStats stats(int tableid, int tuples) {
+		return new TableStats(tableid, 1000) {
+			@Override
+			public int estimateTableCardinality(double selectivityFactor) {
+				return (int) Math.ceil(tuples * selectivityFactor);
+			}
+		};
+	}
+
+	private static OpIterator findScan(OpIterator plan) {
+		while(plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashIndexTest.class);
+	}
+}
@@ -90,6 +90,39 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * A HeapFile with its own page size stores proportionally more tuples
+     * per page, and its pages round-trip through the BufferPool.
+     */
+    @Test public void addTupleLargePages() throws Exception {
+        java.io.File f = java.io.File.createTempFile("bigpages", ".dat");
+        f.deleteOnExit();
+        HeapFile big = new HeapFile(f, Utility.getTupleDesc(2), false, 16384);
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+        assertEquals(16384, big.getPageSize());
+        assertEquals(16384, BufferPool.getPageSize(big.getId()));
+
+        int perPage = (16384 * 8) / (8 * 8 + 1);
+        for (int i = 0; i < perPage; ++i) {
+            big.insertTuple(tid, Utility.getHeapTuple(i, 2));
+            assertEquals(1, big.numPages());
+        }
+        big.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(2, big.numPages());
+        assertEquals(16384 * 2, f.length());
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(big.getId(), 1), simpledb.common.Permissions.READ_ONLY);
+        assertEquals(perPage - 1, page.getNumEmptySlots());
+        assertEquals(16384, page.getPageData().length);
+        assertEquals(2, Database.getBufferPool().getNumPages(16384));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedPageSize() throws Exception {
+        new HeapFile(java.io.File.createTempFile("badpages", ".dat"), Utility.getTupleDesc(2), false, 5000);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockManager.LockMode;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int TABLE = 1;
+
+    private LockManager locks;
+    private TransactionId tid1;
+    private TransactionId tid2;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        locks = new LockManager(4, 16, 1000);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(TABLE, pgNo);
+    }
+
+    private static RecordId tuple(int pgNo, int slot) {
+        return new RecordId(page(pgNo), slot);
+    }
+
+    /**
+     * A thread taking a lock, which may have to wait for it.
+     */
+    private static class Locker extends Thread {
+        private final Callable task;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        volatile boolean acquired = false;
+
+        Locker(Callable task) {
+            this.task = task;
+            setDaemon(true);
+            start();
+        }
+
+        @Override public void run() {
+            try {
+                task.call();
+                acquired = true;
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }
+
+        /** Returns true if the thread is still waiting after a while */
+        boolean waiting() throws InterruptedException {
+            join(200);
+            return isAlive();
+        }
+    }
+
+    private interface Callable {
+        void call() throws Exception;
+    }
+
+    /**
+     * Locking a tuple takes the intention locks on its page and table, and
+     * locks only conflict in incompatible modes.
+     */
+    @Test public void intentionLocks() throws Exception {
+        locks.lockTuple(tid1, tuple(0, 1), LockMode.S);
+        assertEquals(LockMode.IS, locks.getLockMode(tid1, page(0)));
+        assertEquals(LockMode.IS, locks.getLockMode(tid1, TABLE));
+        locks.lockTuple(tid1, tuple(0, 2), LockMode.X);
+        assertEquals(LockMode.IX, locks.getLockMode(tid1, page(0)));
+        assertEquals(LockMode.IX, locks.getLockMode(tid1, TABLE));
+        assertTrue(locks.holdsLock(tid1, page(0)));
+        assertFalse(locks.holdsLock(tid1, page(1)));
+
+        // S and IX on the table make SIX
+        locks.lockTable(tid1, TABLE, LockMode.S);
+        assertEquals(LockMode.SIX, locks.getLockMode(tid1, TABLE));
+        assertTrue(locks.holdsLock(tid1, page(1)));
+
+        // IS is compatible with SIX, S is not
+        locks.lockTuple(tid2, tuple(1, 0), LockMode.IS);
+        Locker reader = new Locker(() -> locks.lockTable(tid2, TABLE, LockMode.S));
+        assertTrue(reader.waiting());
+        locks.releaseAll(tid1);
+        reader.join();
+        assertNull(reader.error.get());
+        assertEquals(LockMode.S, locks.getLockMode(tid2, TABLE));
+    }
+
+    /**
+     * Transactions writing different tuples of the same page do not wait for
+     * each other, but do for the same tuple.
+     */
+    @Test public void tupleGranularity() throws Exception {
+        locks.lockTuple(tid1, tuple(0, 1), LockMode.X);
+        locks.lockTuple(tid2, tuple(0, 2), LockMode.X);
+        assertEquals(LockMode.X, locks.getLockMode(tid1, tuple(0, 1)));
+        assertEquals(LockMode.X, locks.getLockMode(tid2, tuple(0, 2)));
+
+        Locker writer = new Locker(() -> locks.lockTuple(tid2, tuple(0, 1), LockMode.S));
+        assertTrue(writer.waiting());
+        locks.releaseAll(tid1);
+        writer.join();
+        assertTrue(writer.acquired);
+        assertEquals(LockMode.S, locks.getLockMode(tid2, tuple(0, 1)));
+
+        // the lock table only holds what is locked
+        locks.releaseAll(tid2);
+        assertEquals(0, locks.size());
+    }
+
+    /**
+     * Too many tuple locks on a page become a page lock, and too many locks in
+     * a table a table lock.
+     */
+    @Test public void escalation() throws Exception {
+        for (int slot = 0; slot < 5; slot++) {
+            locks.lockTuple(tid1, tuple(0, slot), LockMode.S);
+        }
+        assertEquals(LockMode.S, locks.getLockMode(tid1, page(0)));
+        assertNull(locks.getLockMode(tid1, tuple(0, 0)));
+        assertEquals(2, locks.numLocks(tid1));
+        // the page lock covers the other tuples
+        locks.lockTuple(tid1, tuple(0, 9), LockMode.S);
+        assertEquals(2, locks.numLocks(tid1));
+
+        // an exclusive lock held by another transaction keeps the tuple locks
+        locks.lockTuple(tid2, tuple(1, 0), LockMode.X);
+        for (int slot = 1; slot < 6; slot++) {
+            locks.lockTuple(tid1, tuple(1, slot), LockMode.X);
+        }
+        assertEquals(LockMode.IX, locks.getLockMode(tid1, page(1)));
+        assertEquals(LockMode.X, locks.getLockMode(tid1, tuple(1, 5)));
+        locks.releaseAll(tid2);
+
+        for (int pgNo = 2; pgNo < 20; pgNo++) {
+            locks.lockTuple(tid1, tuple(pgNo, 0), LockMode.X);
+        }
+        assertEquals(LockMode.X, locks.getLockMode(tid1, TABLE));
+        assertEquals(1, locks.numLocks(tid1));
+        assertEquals(1, locks.size());
+        assertTrue(locks.holdsLock(tid1, page(100)));
+    }
+
+    /**
+     * Tuple locks spread over pages that each stay under the page limit still
+     * count towards the table limit.
+     */
+    @Test public void escalationAcrossPages() throws Exception {
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            for (int slot = 0; slot < 4; slot++) {
+                locks.lockTuple(tid1, tuple(pgNo, slot), LockMode.X);
+            }
+        }
+        assertEquals(LockMode.X, locks.getLockMode(tid1, TABLE));
+        assertEquals(1, locks.numLocks(tid1));
+    }
+
+    /**
+     * Escalation keeps the lock table within its limit.
+     */
+    @Test public void boundedLockTable() throws Exception {
+        LockManager small = new LockManager(1000, 1000, 50);
+        for (int i = 0; i < 200; i++) {
+            small.lockTuple(tid1, tuple(i / 10, i % 10), LockMode.X);
+            assertTrue(small.size() <= 51);
+        }
+        assertEquals(LockMode.X, small.getLockMode(tid1, TABLE));
+    }
+
+    /**
+     * A transaction that would close a cycle of waiting transactions is
+     * aborted.
+     */
+    @Test public void deadlock() throws Exception {
+        locks.lockTuple(tid1, tuple(0, 0), LockMode.X);
+        locks.lockTuple(tid2, tuple(0, 1), LockMode.X);
+        Locker first = new Locker(() -> locks.lockTuple(tid1, tuple(0, 1), LockMode.X));
+        assertTrue(first.waiting());
+        try {
+            locks.lockTuple(tid2, tuple(0, 0), LockMode.S);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            locks.releaseAll(tid2);
+        }
+        first.join();
+        assertTrue(first.acquired);
+        assertEquals(LockMode.X, locks.getLockMode(tid1, tuple(0, 1)));
+    }
+
+    /**
+     * Running transactions lock the tuples they write, and a transaction
+     * locking the table waits for them to complete.
+     */
+    @Test public void transactionsLockTuples() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        LockManager lockManager = Database.getLockManager();
+        Transaction writer = new Transaction();
+        writer.start();
+        DbFileIterator it = hf.iterator(writer.getId());
+        it.open();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(writer.getId(), first);
+        assertEquals(LockMode.X, lockManager.getLockMode(writer.getId(), first.getRecordId()));
+        assertEquals(LockMode.IX, lockManager.getLockMode(writer.getId(), hf.getId()));
+        assertTrue(Database.getBufferPool().holdsLock(writer.getId(), first.getRecordId().getPageId()));
+
+        // another transaction writes a tuple of the same page
+        Transaction other = new Transaction();
+        other.start();
+        Database.getBufferPool().deleteTuple(other.getId(), second);
+        other.commit();
+        assertEquals(0, lockManager.numLocks(other.getId()));
+
+        Transaction reader = new Transaction();
+        reader.start();
+        Locker tableLock = new Locker(() -> lockManager.lockTable(reader.getId(), hf.getId(), LockMode.S));
+        assertTrue(tableLock.waiting());
+        writer.commit();
+        tableLock.join();
+        assertTrue(tableLock.acquired);
+        assertEquals(0, lockManager.numLocks(writer.getId()));
+        reader.commit();
+        assertEquals(0, lockManager.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreePageId;
+import simpledb.index.HashPageId;
+import simpledb.index.LsmPageId;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LogFormatTest extends SimpleDbTestBase {
+
+    private File logFile;
+    private LogFile log;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("log", ".log");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile);
+        hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /**
+     * Log an insert into the heap page by tid, and write the page.
+     */
+    private byte[] insert(TransactionId tid, HeapPage page, int value) throws Exception {
+        page.insertTuple(tuple(value, value));
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        page.setBeforeImage();
+        hf.writePage(page);
+        return page.getPageData();
+    }
+
+    /**
+     * Pages are identified by their numeric page type tag.
+     */
+    @Test public void pageTypes() throws Exception {
+        assertEquals(PageTypes.HEAP, PageTypes.getTag(pid));
+        assertEquals(PageTypes.BTREE_LEAF, PageTypes.getTag(new BTreePageId(1, 2, BTreePageId.LEAF)));
+        assertEquals(PageTypes.BTREE_ROOT_PTR, PageTypes.getTag(new BTreePageId(1, 0, BTreePageId.ROOT_PTR)));
+        assertEquals(PageTypes.HASH_DIRECTORY, PageTypes.getTag(HashPageId.directoryId(1)));
+        assertEquals(PageTypes.HASH_BUCKET, PageTypes.getTag(new HashPageId(1, 3, HashPageId.BUCKET)));
+        assertEquals(PageTypes.LSM_RUN, PageTypes.getTag(new LsmPageId(1, 2, 3)));
+
+        Page page = PageTypes.newPage(pid, hf.readPage(pid).getPageData());
+        assertTrue(page instanceof HeapPage);
+        assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+
+        try {
+            PageTypes.register(PageTypes.HEAP, p -> false, HeapPageId::new, (p, data) -> null);
+            fail("expected the tag to be taken");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A tuple insert takes one record of a few dozen bytes.
+     */
+    @Test public void compactRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long length = logFile.length();
+        insert(tid, (HeapPage) hf.readPage(pid), 1);
+        assertEquals(1 + 8 + 4 + (1 + 4 + 4) + (4 + 4 + 8) + 8 + 4, logFile.length() - length);
+    }
+
+    /**
+     * Recovery stops at the first corrupt record, and drops it with the
+     * rest of the log: a commit record whose checksum does not match does
+     * not commit, and the transaction is rolled back.
+     */
+    @Test public void corruptRecord() throws Exception {
+        TransactionId winner = new TransactionId();
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(winner);
+        log.logXactionBegin(loser);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        byte[] committed = insert(winner, page, 1);
+        log.logCommit(winner);
+        insert(loser, page, 2);
+        long valid = logFile.length();
+        log.logCommit(loser);
+
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            // the transaction id of the last commit record
+            raf.seek(valid + 1);
+            raf.writeLong(loser.getId() ^ 1);
+        }
+        Database.getBufferPool().discardPage(pid);
+        new LogFile(logFile).recover();
+        assertArrayEquals(committed, hf.readPage(pid).getPageData());
+        // cut at the corrupt commit, then the compensation of the insert of
+        // the loser and its abort
+        assertEquals(valid + 50 + 25, logFile.length());
+    }
+
+    /**
+     * A checkpoint truncates the log before the first record of the
+     * transactions still running, which recovery can then undo.
+     */
+    @Test public void checkpointTruncates() throws Exception {
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        byte[] committed = insert(done, page, 1);
+        log.logCommit(done);
+        long before = logFile.length();
+
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        insert(running, page, 2);
+        log.logCheckpoint();
+        assertTrue(logFile.length() < before + 100);
+
+        Database.getBufferPool().discardPage(pid);
+        new LogFile(logFile).recover();
+        assertArrayEquals(committed, hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Recovery refuses a log of another format.
+     */
+    @Test public void formatVersion() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.seek(12);
+            raf.writeInt(1);
+        }
+        try {
+            new LogFile(logFile).recover();
+            fail("expected the log format to be refused");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
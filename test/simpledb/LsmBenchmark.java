@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.LsmFile;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the write amplification of random-key inserts into a B+ tree and into
+ * an LSM tree: the bytes each file writes to disk divided by the bytes of the
+ * inserted tuples. The B+ tree runs with a buffer pool much smaller than the
+ * tree, so that its dirty leaves are written back as they are evicted; the LSM
+ * tree counts the bytes of its memtable log, its runs and their compactions.
+ * <p>
+ * Run with {@code ant lsmbenchmark}, or with the test classpath:
+ * <pre>java simpledb.LsmBenchmark [tuples] [bufferpool pages]</pre>
+ */
+public class LsmBenchmark {
+
+	private static final int LOOKUPS = 5000;
+
+	/**
+	 * Counts the bytes of the pages written back by the buffer pool.
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		long bytesWritten = 0;
+
+		CountingBTreeFile(File f, TupleDesc td) {
+			super(f, 0, td);
+		}
+
+		@Override
+		public void writePage(Page page) throws IOException {
+			bytesWritten += page.getPageData().length;
+			super.writePage(page);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int pages = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		TupleDesc td = Utility.getTupleDesc(2);
+		int[] keys = new int[tuples];
+		Random random = new Random(45);
+		for(int i = 0; i < tuples; i++) {
+			keys[i] = random.nextInt(Integer.MAX_VALUE);
+		}
+		long userBytes = (long) tuples * td.getSize();
+
+		Database.reset();
+		Database.resetBufferPool(pages);
+		File bfile = File.createTempFile("benchmark", ".dat");
+		bfile.deleteOnExit();
+		CountingBTreeFile bf = new CountingBTreeFile(bfile, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		long insert = insert(bf, td, keys);
+		Database.getBufferPool().flushAllPages();
+		long lookup = lookup(bf, keys);
+		report("btree", bf.bytesWritten, userBytes, insert, lookup);
+
+		Database.reset();
+		Database.resetBufferPool(pages);
+		File lfile = File.createTempFile("benchmark", ".lsm");
+		LsmFile lf = new LsmFile(lfile, 0, td);
+		Database.getCatalog().addTable(lf, UUID.randomUUID().toString());
+		insert = insert(lf, td, keys);
+		lf.flush();
+		lf.compact();
+		lookup = lookup(lf, keys);
+		report("lsm", lf.getBytesWritten(), userBytes, insert, lookup);
+		Database.reset();
+
+		File[] files = lfile.getAbsoluteFile().getParentFile().listFiles(
+				(dir, name) -> name.startsWith(lfile.getName()));
+		for(File file : files) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Insert a tuple for each key, returning the nanoseconds per insert.
+	 */
+	private static long insert(DbFile file, TupleDesc td, int[] keys) throws Exception {
+		TransactionId tid = new TransactionId();
+		long start = System.nanoTime();
+		for(int i = 0; i < keys.length; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(keys[i]));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, file.getId(), t);
+		}
+		return (System.nanoTime() - start) / keys.length;
+	}
+
+	/**
+	 * Look up random inserted keys, returning the nanoseconds per lookup.
+	 */
+	private static long lookup(DbFile file, int[] keys) throws Exception {
+		TransactionId tid = new TransactionId();
+		Random random = new Random(46);
+		int found = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < LOOKUPS; i++) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(keys[random.nextInt(keys.length)]));
+			DbFileIterator it = file instanceof BTreeFile ? ((BTreeFile) file).indexIterator(tid, ipred)
+					: ((LsmFile) file).indexIterator(tid, ipred);
+			it.open();
+			if(it.hasNext()) {
+				found++;
+			}
+			it.close();
+		}
+		if(found != LOOKUPS) {
+			throw new IllegalStateException("found " + found + " of " + LOOKUPS + " keys");
+		}
+		return (System.nanoTime() - start) / LOOKUPS;
+	}
+
+	private static void report(String name, long bytesWritten, long userBytes, long insert, long lookup) {
+		System.out.printf("%-6s written %12d bytes   write amplification %6.1f   insert %7d ns/op   "
+				+ "point lookup %7d ns/op%n", name, bytesWritten, (double) bytesWritten / userBytes, insert, lookup);
+	}
+}
@@ -0,0 +1,303 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LsmFileTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 5000;
+	private static final int KEYS = 1000;
+
+	private TransactionId tid;
+	private Random random;
+	private File f;
+	private List<List<Integer>> rows;
+
+	/**
+	 * Counts the run pages read from disk.
+	 */
+	private static class CountingLsmFile extends LsmFile {
+		int reads = 0;
+
+		CountingLsmFile(File f, int memtableEntries, int fanout) {
+			super(f, 0, Utility.getTupleDesc(2), memtableEntries, fanout);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+	}
+
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		random = new Random(45);
+		f = File.createTempFile("lsm", ".dat");
+		rows = new ArrayList<>();
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+		File[] files = f.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(f.getName()));
+		for(File file : files) {
+			file.delete();
+		}
+	}
+
+	private CountingLsmFile open(int memtableEntries, int fanout) {
+		CountingLsmFile lf = new CountingLsmFile(f, memtableEntries, fanout);
+		Database.getCatalog().addTable(lf, SystemTestUtil.getUUID());
+		return lf;
+	}
+
+	private void insert(LsmFile lf, int n) throws Exception {
+		for(int i = 0; i < n; i++) {
+			List<Integer> row = Arrays.asList(random.nextInt(KEYS), rows.size());
+			rows.add(row);
+			Database.getBufferPool().insertTuple(tid, lf.getId(), BTreeUtility.getBTreeTuple(row));
+		}
+	}
+
+	private static final Comparator<List<Integer>> BY_VALUES = Comparator.comparing((List<Integer> l) -> l.get(0))
+			.thenComparing(l -> l.get(1));
+
+	/**
+	 * Returns the tuples of an iterator, checking that they are in key order.
+	 */
+	private static List<List<Integer>> collect(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			List<Integer> row = SystemTestUtil.tupleToList(it.next());
+			assertTrue(result.isEmpty() || result.get(result.size() - 1).get(0) <= row.get(0));
+			result.add(row);
+		}
+		it.close();
+		return result;
+	}
+
+	private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> found) {
+		expected = new ArrayList<>(expected);
+		found = new ArrayList<>(found);
+		expected.sort(BY_VALUES);
+		found.sort(BY_VALUES);
+		assertEquals(expected, found);
+	}
+
+	private static List<List<Integer>> filter(List<List<Integer>> rows, IndexPredicate ipred) {
+		List<List<Integer>> result = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(ipred.matches(new IntField(row.get(0)))) {
+				result.add(row);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts fill the memtable, which is written out as runs that are merged
+	 * level by level, and a scan returns every tuple in key order.
+	 */
+	@Test public void insertAndScan() throws Exception {
+		LsmFile lf = open(200, 3);
+		insert(lf, ROWS);
+		assertSameRows(rows, collect(lf.iterator(tid)));
+
+		lf.compact();
+		int[] runs = lf.numRuns();
+		assertTrue(runs.length > 2);
+		for(int n : runs) {
+			assertTrue(n < 3);
+		}
+		assertSameRows(rows, collect(lf.iterator(tid)));
+		assertSameRows(rows, collect(new SeqScanIterator(lf)));
+	}
+
+	/**
+	 * Wraps a SeqScan of a file in a DbFileIterator.
+	 */
+	private class SeqScanIterator extends AbstractDbFileIterator {
+		private final SeqScan scan;
+
+		SeqScanIterator(DbFile file) {
+			scan = new SeqScan(tid, file.getId(), "t");
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			scan.open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			return scan.hasNext() ? scan.next() : null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			scan.rewind();
+		}
+
+		public void close() {
+			super.close();
+			scan.close();
+		}
+	}
+
+	/**
+	 * Index iterators return the tuples matching equalities, inequalities and
+	 * ranges, from the memtable and the runs, in key order.
+	 */
+	@Test public void indexIterator() throws Exception {
+		LsmFile lf = open(300, 4);
+		insert(lf, ROWS);
+		Op[] ops = {Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+				Op.NOT_EQUALS};
+		for(Op op : ops) {
+			for(int i = 0; i < 5; i++) {
+				IndexPredicate ipred = new IndexPredicate(op, new IntField(rows.get(random.nextInt(ROWS)).get(0)));
+				assertSameRows(filter(rows, ipred), collect(lf.indexIterator(tid, ipred)));
+			}
+		}
+		for(int i = 0; i < 5; i++) {
+			int a = random.nextInt(KEYS), b = random.nextInt(KEYS);
+			IndexPredicate range = new IndexPredicate(Op.GREATER_THAN, new IntField(Math.min(a, b)),
+					Op.LESS_THAN_OR_EQ, new IntField(Math.max(a, b)));
+			assertSameRows(filter(rows, range), collect(lf.indexIterator(tid, range)));
+		}
+		IndexPredicate absent = new IndexPredicate(Op.EQUALS, new IntField(KEYS + 1));
+		assertTrue(collect(lf.indexIterator(tid, absent)).isEmpty());
+	}
+
+	/**
+	 * Point lookups of absent keys are answered by the Bloom filters of the runs,
+	 * and lookups of present keys read few pages of each run.
+	 */
+	@Test public void bloomFilters() throws Exception {
+		CountingLsmFile lf = open(500, 4);
+		insert(lf, ROWS);
+		lf.flush();
+		lf.compact();
+		int numRuns = Arrays.stream(lf.numRuns()).sum();
+		assertTrue(numRuns > 1);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		lf.reads = 0;
+		int lookups = 1000;
+		for(int i = 0; i < lookups; i++) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(KEYS + random.nextInt(1000000)));
+			assertTrue(collect(lf.indexIterator(tid, ipred)).isEmpty());
+		}
+		assertTrue(lf.reads < lookups * numRuns / 20);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		lf.reads = 0;
+		for(int i = 0; i < 20; i++) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(rows.get(random.nextInt(ROWS)).get(0)));
+			assertSameRows(filter(rows, ipred), collect(lf.indexIterator(tid, ipred)));
+		}
+		assertTrue(lf.reads <= 20 * numRuns * 2);
+	}
+
+	/**
+	 * Deleted tuples disappear whether they are in the memtable or in a run, and
+	 * merging every run drops the tombstones with the entries.
+	 */
+	@Test public void deletes() throws Exception {
+		LsmFile lf = open(1000, 2);
+		insert(lf, 1500);
+		lf.flush();
+		insert(lf, 500);
+
+		// delete through the operators: half of the keys, in the run and the memtable
+		Predicate p = new Predicate(0, Op.LESS_THAN, new IntField(KEYS / 2));
+		Delete delete = new Delete(tid, new Filter(p, new SeqScan(tid, lf.getId(), "t")));
+		delete.open();
+		int deleted = ((IntField) delete.next().getField(0)).getValue();
+		delete.close();
+		List<List<Integer>> remaining = new ArrayList<>();
+		for(List<Integer> row : rows) {
+			if(row.get(0) >= KEYS / 2) {
+				remaining.add(row);
+			}
+		}
+		assertEquals(rows.size() - remaining.size(), deleted);
+		assertSameRows(remaining, collect(lf.iterator(tid)));
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(rows.get(0).get(0)));
+		assertSameRows(filter(remaining, ipred), collect(lf.indexIterator(tid, ipred)));
+
+		lf.flush();
+		lf.compactAll();
+		assertEquals(1, Arrays.stream(lf.numRuns()).sum());
+		assertEquals(remaining.size(), lf.numRunEntries());
+		assertSameRows(remaining, collect(lf.iterator(tid)));
+
+		Tuple t = BTreeUtility.getBTreeTuple(Arrays.asList(0, -1));
+		t.setRecordId(new RecordId(new LsmPageId(lf.getId(), LsmPageId.MEMTABLE, 0), 0));
+		try {
+			lf.deleteTuple(tid, t);
+			fail("deleted a tuple that is not in the file");
+		} catch (DbException expected) {
+		}
+	}
+
+	/**
+	 * Reopening the file recovers its runs from the manifest, and the tuples
+	 * inserted and deleted since the last run was written from the log.
+	 */
+	@Test public void reopen() throws Exception {
+		LsmFile lf = open(700, 3);
+		insert(lf, 3000);
+		lf.compact();
+		List<List<Integer>> kept = new ArrayList<>();
+		DbFileIterator it = lf.iterator(tid);
+		it.open();
+		List<Tuple> victims = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(random.nextInt(10) == 0) {
+				victims.add(t);
+			} else {
+				kept.add(SystemTestUtil.tupleToList(t));
+			}
+		}
+		it.close();
+		for(Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		assertSameRows(kept, collect(lf.iterator(tid)));
+
+		Database.reset();
+		LsmFile reopened = open(700, 3);
+		assertSameRows(kept, collect(reopened.iterator(tid)));
+		rows = kept;
+		insert(reopened, 1000);
+		assertSameRows(rows, collect(reopened.iterator(tid)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LsmFileTest.class);
+	}
+}
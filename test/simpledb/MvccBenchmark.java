@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.VersionManager;
+
+/**
+ * Measures the throughput of a mixed workload on one table: reader threads run
+ * full SeqScans of the table, while writer threads run transactions that update
+ * random rows found through a secondary index. Every scan checks that it sees
+ * each row exactly once.
+ * <p>
+ * The workload runs twice: with two-phase locking, emulated by a table lock held
+ * shared by readers and exclusively by writers until they commit, and with the
+ * snapshots of the {@link VersionManager}, where only writers exclude each
+ * other. Both runs skip the log, so that only concurrency control is compared.
+ * Besides the throughputs, the latency of the write transactions shows how long
+ * writers wait for the scans in progress.
+ * <p>
+ * Run with {@code ant mvccbenchmark}, or with the test classpath:
+ * <pre>java simpledb.MvccBenchmark [rows] [readers] [writers] [seconds]</pre>
+ */
+public class MvccBenchmark {
+
+	private static final int UPDATES_PER_TRANSACTION = 10;
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int writers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		run("2pl", false, rows, readers, writers, seconds);
+		run("mvcc", true, rows, readers, writers, seconds);
+	}
+
+	private static double percentile(List<Long> sorted, double p) {
+		if(sorted.isEmpty()) {
+			return 0;
+		}
+		return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size()))) / 1e6;
+	}
+
+	private static Tuple row(TupleDesc td, int id, int value) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new IntField(id));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private static void run(String name, boolean mvcc, int rows, int readers, int writers, int seconds)
+			throws Exception {
+		Database.reset();
+		Database.resetBufferPool(2000);
+		File f = File.createTempFile("benchmark", ".dat");
+		f.deleteOnExit();
+		HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+		TupleDesc td = hf.getTupleDesc();
+		TransactionId loader = new TransactionId();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			tuples.add(row(td, i, 0));
+		}
+		Database.getBufferPool().insertTuples(loader, hf.getId(), tuples);
+		File indexFile = File.createTempFile("benchmark", ".idx");
+		indexFile.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.create(loader, hf, 0, indexFile);
+		Database.getCatalog().addIndex(index);
+
+		VersionManager versions = Database.getVersionManager();
+		ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+		ReentrantLock writerLock = new ReentrantLock();
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicLong scans = new AtomicLong();
+		AtomicLong updates = new AtomicLong();
+		List<Long> writeLatencies = Collections.synchronizedList(new ArrayList<>());
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+
+		for(int r = 0; r < readers; r++) {
+			threads.add(new Thread(() -> {
+				try {
+					while(!done.get()) {
+						TransactionId tid = new TransactionId();
+						if(mvcc) {
+							versions.begin(tid);
+						} else {
+							tableLock.readLock().lock();
+						}
+						try {
+							SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+							scan.open();
+							int seen = 0;
+							while(scan.hasNext()) {
+								scan.next();
+								seen++;
+							}
+							scan.close();
+							if(seen != rows) {
+								throw new IllegalStateException("scan saw " + seen + " of " + rows + " rows");
+							}
+						} finally {
+							if(mvcc) {
+								versions.commit(tid);
+							} else {
+								tableLock.readLock().unlock();
+							}
+						}
+						scans.incrementAndGet();
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for(int w = 0; w < writers; w++) {
+			Random random = new Random(47 + w);
+			threads.add(new Thread(() -> {
+				try {
+					while(!done.get()) {
+						long begin = System.nanoTime();
+						TransactionId tid = new TransactionId();
+						if(mvcc) {
+							writerLock.lock();
+							versions.begin(tid);
+						} else {
+							tableLock.writeLock().lock();
+						}
+						try {
+							for(int i = 0; i < UPDATES_PER_TRANSACTION; i++) {
+								int id = random.nextInt(rows);
+								DbFileIterator it = index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(id)));
+								it.open();
+								Tuple t = it.next();
+								it.close();
+								int value = ((IntField) t.getField(1)).getValue();
+								Database.getBufferPool().updateTuple(tid, t, row(td, id, value + 1));
+							}
+						} finally {
+							if(mvcc) {
+								versions.commit(tid);
+								Database.getBufferPool().transactionComplete(tid, true);
+								writerLock.unlock();
+							} else {
+								tableLock.writeLock().unlock();
+							}
+						}
+						updates.addAndGet(UPDATES_PER_TRANSACTION);
+						writeLatencies.add(System.nanoTime() - begin);
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+
+		long start = System.nanoTime();
+		threads.forEach(Thread::start);
+		Thread.sleep(seconds * 1000L);
+		done.set(true);
+		for(Thread t : threads) {
+			t.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if(!errors.isEmpty()) {
+			throw new RuntimeException(errors.get(0));
+		}
+		List<Long> latencies = new ArrayList<>(writeLatencies);
+		Collections.sort(latencies);
+		System.out.printf("%-5s %d readers %d writers   scans %7.1f /s   updates %8.1f /s   "
+				+ "write transaction latency p50 %6.2f ms  p99 %6.2f ms%n", name, readers, writers,
+				scans.get() / elapsed, updates.get() / elapsed, percentile(latencies, 0.5), percentile(latencies, 0.99));
+		Database.reset();
+	}
+}
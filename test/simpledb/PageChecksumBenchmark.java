@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.PageChecksums;
+
+/**
+ * Measures the cost of {@link PageChecksums} on page writes and reads. The same
+ * pages are written in place to a data file, in rounds of the size a flush or a
+ * background writer round would write:
+ * <ul>
+ * <li> without checksums;
+ * <li> with checksums, forcing the double-write buffer before every page, as a
+ * single page write (an eviction) does;
+ * <li> with checksums, forcing the double-write buffer once per round, as
+ * flushAllPages and the background writer do.
+ * </ul>
+ * Then every page is read back, without and with verification. The data file
+ * itself is never forced, so that only the overhead of the checksums is
+ * measured.
+ * <p>
+ * Run with {@code ant checksumbenchmark}, or with the test classpath:
+ * <pre>java simpledb.PageChecksumBenchmark [pages] [pages per round]</pre>
+ */
+public class PageChecksumBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int round = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int pageSize = BufferPool.getPageSize();
+        byte[][] images = new byte[pages][pageSize];
+        Random random = new Random(29);
+        for (byte[] image : images) {
+            random.nextBytes(image);
+        }
+        System.out.printf("%d pages of %d bytes, %d pages per round%n", pages, pageSize, round);
+        // warm up, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1;
+            write("no checksums", images, round, 0, report);
+            write("checksums, force per page", images, round, 1, report);
+            write("checksums, force per round", images, round, round, report);
+            read("read", images, false, report);
+            read("read and verify", images, true, report);
+        }
+    }
+
+    private static File dataFile() throws Exception {
+        File f = File.createTempFile("checksums", ".dat");
+        f.deleteOnExit();
+        PageChecksums.reset(f);
+        new File(f.getPath() + ".crc").deleteOnExit();
+        new File(f.getPath() + ".dwb").deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Write every page in place.
+     *
+     * @param perForce the number of pages whose images are forced to the
+     *                 double-write buffer together, 0 to skip checksums
+     */
+    private static void write(String name, byte[][] images, int round, int perForce, boolean report)
+            throws Exception {
+        File f = dataFile();
+        PageChecksums checksums = perForce > 0 ? new PageChecksums(f) : null;
+        int pageSize = images[0].length;
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            for (int first = 0; first < images.length; first += round) {
+                int last = Math.min(images.length, first + round);
+                for (int batch = first; checksums != null && batch < last; batch += perForce) {
+                    int n = Math.min(perForce, last - batch);
+                    int[] slots = new int[n];
+                    long[] offsets = new long[n];
+                    byte[][] data = new byte[n][];
+                    for (int i = 0; i < n; i++) {
+                        slots[i] = batch + i;
+                        offsets[i] = (long) (batch + i) * pageSize;
+                        data[i] = images[batch + i];
+                    }
+                    checksums.beforeWrite(slots, offsets, data);
+                    writeInPlace(raf, images, batch, batch + n, checksums);
+                }
+                if (checksums == null) {
+                    writeInPlace(raf, images, first, last, null);
+                }
+            }
+        }
+        report(name, images.length, start, report);
+    }
+
+    private static void writeInPlace(RandomAccessFile raf, byte[][] images, int from, int to,
+                                     PageChecksums checksums) throws Exception {
+        int pageSize = images[0].length;
+        for (int i = from; i < to; i++) {
+            raf.seek((long) i * pageSize);
+            raf.write(images[i]);
+            if (checksums != null) {
+                checksums.afterWrite(i, images[i]);
+            }
+        }
+    }
+
+    /**
+     * Write every page with checksums, then read them all back from a newly
+     * opened file, verifying them or not.
+     */
+    private static void read(String name, byte[][] images, boolean verify, boolean report) throws Exception {
+        File f = dataFile();
+        PageChecksums checksums = new PageChecksums(f);
+        int pageSize = images[0].length;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            for (int i = 0; i < images.length; i++) {
+                checksums.beforeWrite(i, (long) i * pageSize, images[i]);
+                raf.seek((long) i * pageSize);
+                raf.write(images[i]);
+                checksums.afterWrite(i, images[i]);
+            }
+        }
+        checksums = new PageChecksums(f);
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] page = new byte[pageSize];
+            for (int i = 0; i < images.length; i++) {
+                raf.seek((long) i * pageSize);
+                raf.readFully(page);
+                if (verify) {
+                    checksums.verify(i, (long) i * pageSize, page);
+                }
+            }
+        }
+        report(name, images.length, start, report);
+    }
+
+    private static void report(String name, int pages, long start, boolean report) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (report) {
+            System.out.printf("%-28s %10.0f pages/s %8.1f us/page%n", name, pages / seconds, seconds * 1e6 / pages);
+        }
+    }
+}
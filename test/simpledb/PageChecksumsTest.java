@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class PageChecksumsTest extends SimpleDbTestBase {
+
+    private File f;
+    private HeapFile hf;
+    private HeapPage page;
+
+    /**
+     * Create a HeapFile with one page written through writePage.
+     */
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("checksums", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".crc").deleteOnExit();
+        new File(f.getPath() + ".dwb").deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        for (int i = 0; i < 100; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{i, 2 * i}));
+        }
+        hf.writePage(page);
+    }
+
+    private void corrupt(long offset, int length) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(offset);
+            byte[] garbage = new byte[length];
+            Arrays.fill(garbage, (byte) 0x5a);
+            raf.write(garbage);
+        }
+    }
+
+    private HeapFile reopen() {
+        HeapFile reopened = Utility.openHeapFile(2, f);
+        Database.getBufferPool().discardPage(new HeapPageId(reopened.getId(), 0));
+        return reopened;
+    }
+
+    /**
+     * Pages read back intact pass verification.
+     */
+    @Test public void readIntact() throws Exception {
+        Page read = reopen().readPage(page.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * A page torn by a crash during the in-place write is restored from the
+     * double-write buffer when the file is reopened.
+     */
+    @Test public void tornWriteRestoredOnOpen() throws Exception {
+        corrupt(BufferPool.getPageSize() / 2, BufferPool.getPageSize() / 2);
+        HeapFile reopened = reopen();
+        Page read = reopened.readPage(page.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * Corruption detected on read is repaired while the page image is still
+     * in the double-write buffer.
+     */
+    @Test public void corruptionRepairedOnRead() throws Exception {
+        corrupt(10, 4);
+        Page read = hf.readPage(page.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * Pages written together are all restored from the double-write buffer.
+     */
+    @Test public void batchRestoredOnOpen() throws Exception {
+        HeapPage second = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; i++) {
+            second.insertTuple(Utility.getHeapTuple(new int[]{-i, i}));
+        }
+        hf.writePages(Arrays.asList(page, second));
+        corrupt(10, 4);
+        corrupt(BufferPool.getPageSize() + 10, 4);
+        HeapFile reopened = reopen();
+        assertArrayEquals(page.getPageData(), reopened.readPage(page.getId()).getPageData());
+        assertArrayEquals(second.getPageData(), reopened.readPage(second.getId()).getPageData());
+    }
+
+    /**
+     * Buffered images of pages past the end of a file cut since are not
+     * written back when it is reopened.
+     */
+    @Test public void cutPagesNotRestored() throws Exception {
+        HeapPage second = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        hf.writePages(Arrays.asList(page, second));
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(BufferPool.getPageSize());
+        }
+        HeapFile reopened = reopen();
+        assertEquals(1, reopened.numPages());
+        assertArrayEquals(page.getPageData(), reopened.readPage(page.getId()).getPageData());
+    }
+
+    /**
+     * A page that cannot be written in place is reported to the caller, so
+     * that the BufferPool keeps it dirty.
+     */
+    @Test(expected = IOException.class)
+    public void failedWriteReported() throws Exception {
+        File dir = Files.createTempDirectory("checksums").toFile();
+        File data = new File(dir, "table.dat");
+        Files.copy(f.toPath(), data.toPath());
+        HeapFile removed = Utility.openHeapFile(2, data);
+        // the double-write buffer can no longer be created
+        assertTrue(data.delete() && dir.delete());
+        removed.writePage(page);
+    }
+
+    /**
+     * Once the double-write buffer has been emptied, corruption is reported.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void corruptionDetected() throws Exception {
+        HeapFile reopened = reopen();
+        corrupt(10, 4);
+        reopened = reopen();
+        reopened.readPage(page.getId());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumsTest.class);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ParallelBTreeCheckerTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+	private ForkJoinPool pool;
+
+	@Before public void setUp() {
+		tid = new TransactionId();
+		pool = new ForkJoinPool(4);
+	}
+
+	@After public void tearDown() {
+		pool.shutdown();
+		Database.reset();
+	}
+
+	/**
+	 * Returns a tree of several levels, with pages freed by deletes and reused
+	 * by inserts, flushed to disk.
+	 */
+	private BTreeFile createTree() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 40000, null, tuples, 0);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(int i = 0; i < tuples.size() / 2 && it.hasNext(); i++) {
+			Tuple t = it.next();
+			if(i % 3 != 0) {
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+		}
+		it.close();
+		for(int j = 0; j < 2000; j++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(j * 17, 2));
+		}
+		Database.getBufferPool().flushAllPages();
+		return bf;
+	}
+
+	private static long pageOffset(BTreeFile bf, int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * bf.getPageSize();
+	}
+
+	/**
+	 * Returns the page numbers of the leaves of a tree, in key order.
+	 */
+	private List<Integer> leaves(BTreeFile bf) throws Exception {
+		List<Integer> leaves = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			int pgNo = it.next().getRecordId().getPageId().getPageNumber();
+			if(leaves.isEmpty() || leaves.get(leaves.size() - 1) != pgNo) {
+				leaves.add(pgNo);
+			}
+		}
+		it.close();
+		return leaves;
+	}
+
+	/**
+	 * A consistent tree, with header pages, has no violations, and every page of
+	 * the file is read once.
+	 */
+	@Test public void consistentTree() throws Exception {
+		BTreeFile bf = createTree();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertNotNull(rootPtr.getHeaderId());
+		ParallelBTreeChecker.Report report = ParallelBTreeChecker.check(bf, true, 10, pool);
+		assertTrue(report.getViolations().toString(), report.isConsistent());
+		assertEquals(bf.numPages(), report.getPages());
+		assertTrue(report.getBytesRead() >= (long) bf.numPages() * bf.getPageSize());
+		assertTrue(report.getBytesRead() < 2L * bf.numPages() * bf.getPageSize());
+	}
+
+	/**
+	 * Broken sibling pointers, keys out of order and pages leaked by the header
+	 * pages are reported on the pages where they are found.
+	 */
+	@Test public void corruptions() throws Exception {
+		BTreeFile bf = createTree();
+		List<Integer> leaves = leaves(bf);
+		int broken = leaves.get(leaves.size() / 2);
+		int reversed = leaves.get(leaves.size() / 3);
+		int leaked = bf.numPages() + 1;
+		Database.reset();
+
+		try (RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "rw")) {
+			// the right sibling pointer follows the parent and left sibling pointers
+			rf.seek(pageOffset(bf, broken) + 8);
+			rf.writeInt(0);
+
+			// the tuples of a leaf follow the pointers and the header of its slots
+			int header = (BTreeUtility.getNumTuplesPerPage(2) + 7) / 8;
+			byte[] bits = new byte[header];
+			rf.seek(pageOffset(bf, reversed) + 12);
+			rf.readFully(bits);
+			int slot = 0;
+			while((bits[slot / 8] & (1 << (slot % 8))) == 0) {
+				slot++;
+			}
+			rf.seek(pageOffset(bf, reversed) + 12 + header + (long) slot * 8);
+			rf.writeInt(Integer.MAX_VALUE);
+
+			rf.seek(pageOffset(bf, leaked));
+			rf.write(BTreePage.createEmptyPageData(bf.getPageSize()));
+		}
+		Database.getCatalog().addTable(bf, "t");
+
+		ParallelBTreeChecker.Report report = ParallelBTreeChecker.check(bf, true, 10, pool);
+		List<String> violations = report.getViolations();
+		assertTrue(violations.contains("page " + broken + ": right sibling is none instead of "
+				+ leaves.get(leaves.indexOf(broken) + 1)));
+		assertTrue(violations.stream().anyMatch(v -> v.startsWith("page " + reversed + ": key 2147483647")));
+		assertTrue(violations.contains("page " + leaked + ": page is neither in the tree nor marked free"));
+		for(int i = 1; i < violations.size(); i++) {
+			int prev = Integer.parseInt(violations.get(i - 1).split("[ :]")[1]);
+			assertTrue(prev <= Integer.parseInt(violations.get(i).split("[ :]")[1]));
+		}
+	}
+
+	/**
+	 * Only the violations of the first pages are reported, but all are counted.
+	 */
+	@Test public void maxViolations() throws Exception {
+		BTreeFile bf = createTree();
+		List<Integer> leaves = leaves(bf);
+		Database.reset();
+		try (RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "rw")) {
+			for(int pgNo : leaves) {
+				rf.seek(pageOffset(bf, pgNo));
+				rf.writeInt(bf.numPages() + 1);
+			}
+		}
+		Database.getCatalog().addTable(bf, "t");
+
+		ParallelBTreeChecker.Report report = ParallelBTreeChecker.check(bf, false, 5, pool);
+		assertEquals(leaves.size(), report.getNumViolations());
+		assertEquals(5, report.getViolations().size());
+		List<Integer> first = new ArrayList<>(leaves);
+		Collections.sort(first);
+		for(int i = 0; i < 5; i++) {
+			assertTrue(report.getViolations().get(i).startsWith("page " + first.get(i) + ": parent is page"));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ParallelBTreeCheckerTest.class);
+	}
+}
@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ParallelHeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("parallelEncoder", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Write rows of an int and a string column, with a blank line and a
+     * Windows line ending thrown in.
+     */
+    private static File writeInput(int rows) throws IOException {
+        File in = tempFile(".txt");
+        Random rand = new Random(7);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(in))) {
+            for (int i = 0; i < rows; i++) {
+                bw.write(rand.nextInt() + "," + "s" + rand.nextInt(1000));
+                bw.write(i == rows / 2 ? "\r\n\n" : "\n");
+            }
+        }
+        return in;
+    }
+
+    /**
+     * The parallel encoder writes exactly the file HeapFileEncoder writes,
+     * whatever the chunking of the input.
+     */
+    @Test public void sameAsSerial() throws Exception {
+        Type[] types = {Type.INT_TYPE, Type.STRING_TYPE};
+        File in = writeInput(5000);
+        File serial = tempFile(".dat");
+        HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), 2, types);
+
+        for (int chunkSize : new int[]{64, 1000, ParallelHeapFileEncoder.DEFAULT_CHUNK_SIZE}) {
+            File parallel = tempFile(".dat");
+            ParallelHeapFileEncoder.Result result = ParallelHeapFileEncoder.convert(in, parallel,
+                    BufferPool.getPageSize(), types, ',', 4, chunkSize);
+            assertEquals(5000, result.getRows());
+            assertEquals(serial.length() / BufferPool.getPageSize(), result.getPages());
+            assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+        }
+    }
+
+    /**
+     * An empty input gives one empty page, and a last line without a newline
+     * is kept.
+     */
+    @Test public void edgeCases() throws Exception {
+        Type[] types = {Type.INT_TYPE};
+        File in = tempFile(".txt");
+        File out = tempFile(".dat");
+        ParallelHeapFileEncoder.Result result = ParallelHeapFileEncoder.convert(in, out,
+                BufferPool.getPageSize(), types, ',');
+        assertEquals(0, result.getRows());
+        assertEquals(BufferPool.getPageSize(), out.length());
+
+        Files.write(in.toPath(), "1\n2\n3".getBytes());
+        result = ParallelHeapFileEncoder.convert(in, out, BufferPool.getPageSize(), types, ',');
+        assertEquals(3, result.getRows());
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * A line with the wrong number of fields fails the load.
+     */
+    @Test(expected = IOException.class)
+    public void malformedLine() throws Exception {
+        File in = tempFile(".txt");
+        Files.write(in.toPath(), "1,2\n3\n".getBytes());
+        ParallelHeapFileEncoder.convert(in, tempFile(".dat"), BufferPool.getPageSize(),
+                new Type[]{Type.INT_TYPE, Type.INT_TYPE}, ',');
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHeapFileEncoderTest.class);
+    }
+}
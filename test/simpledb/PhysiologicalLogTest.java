@@ -0,0 +1,352 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PhysiologicalLogTest extends SimpleDbTestBase {
+
+    private File logFile;
+    private LogFile log;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("log", ".log");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile);
+        hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    private byte[] onDisk(PageId id) {
+        return Database.getCatalog().getDatabaseFile(id.getTableId()).readPage(id).getPageData();
+    }
+
+    /**
+     * Write a page changed by tid to disk, as the BufferPool would, logging
+     * the change and forcing the log first.
+     */
+    private void flush(TransactionId tid, Page page) throws Exception {
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        page.setBeforeImage();
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+    }
+
+    /**
+     * An update is logged with the bytes it changed, not with images of the
+     * whole page.
+     */
+    @Test public void smallRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long length = logFile.length();
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.insertTuple(tuple(1, 2));
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        long insert = logFile.length() - length;
+        assertTrue("a tuple insert took " + insert + " bytes", insert < 100);
+
+        page.setBeforeImage();
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        page.insertTuple(tuple(3, 4));
+        length = logFile.length();
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        long replace = logFile.length() - length;
+        assertTrue("a replaced tuple took " + replace + " bytes", replace < 200);
+
+        // nothing changed, nothing logged
+        page.setBeforeImage();
+        length = logFile.length();
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        assertEquals(length, logFile.length());
+    }
+
+    /**
+     * Aborting a transaction undoes its updates of heap and B+ tree pages on
+     * disk.
+     */
+    @Test public void rollback() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        PageId leafId = rootPtr.getRootId();
+        byte[] heapBefore = onDisk(pid);
+        byte[] leafBefore = onDisk(leafId);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.insertTuple(tuple(1, 2));
+        flush(tid, page);
+        page.deleteTuple(page.iterator().next());
+        flush(tid, page);
+        BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(leafId);
+        leaf.insertTuple(tuple(5, 6));
+        flush(tid, leaf);
+
+        // committed by another transaction, and kept
+        TransactionId other = new TransactionId();
+        log.logXactionBegin(other);
+        page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.getTuple(50));
+        flush(other, page);
+        log.logCommit(other);
+
+        assertFalse(Arrays.equals(leafBefore, onDisk(leafId)));
+        log.logAbort(tid);
+        assertArrayEquals(leafBefore, onDisk(leafId));
+        HeapPage expected = new HeapPage(pid, heapBefore);
+        expected.deleteTuple(expected.getTuple(50));
+        assertArrayEquals(expected.getPageData(), onDisk(pid));
+    }
+
+    /**
+     * Recovery redoes the updates of committed transactions missing from
+     * disk, and undoes those of the others that reached it.
+     */
+    @Test public void recover() throws Exception {
+        TransactionId winner = new TransactionId();
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(winner);
+        log.logXactionBegin(loser);
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        byte[] before = page.getPageData();
+        page.insertTuple(tuple(1, 2));
+        log.logWrite(winner, page.getBeforeImage(), page);
+        page.setBeforeImage();
+        byte[] afterWinner = page.getPageData();
+        log.logCommit(winner);
+
+        // the winner's page was not flushed, the loser's was
+        page.deleteTuple(page.iterator().next());
+        flush(loser, page);
+        assertFalse(Arrays.equals(before, onDisk(pid)));
+
+        // crash, and restart
+        Database.getBufferPool().discardPage(pid);
+        new LogFile(logFile).recover();
+        assertArrayEquals(afterWinner, onDisk(pid));
+
+        // recovering again changes nothing
+        new LogFile(logFile).recover();
+        assertArrayEquals(afterWinner, onDisk(pid));
+    }
+
+    /**
+     * A rolled back update is not undone again by recovery, after another
+     * transaction reused what it freed.
+     */
+    @Test public void abortThenReuse() throws Exception {
+        TransactionId aborted = new TransactionId();
+        log.logXactionBegin(aborted);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        Tuple first = tuple(1, 2);
+        page.insertTuple(first);
+        flush(aborted, page);
+        log.logAbort(aborted);
+
+        TransactionId committed = new TransactionId();
+        log.logXactionBegin(committed);
+        page = (HeapPage) hf.readPage(pid);
+        Tuple t = tuple(3, 4);
+        page.insertTuple(t);
+        assertEquals(first.getRecordId(), t.getRecordId());
+        flush(committed, page);
+        log.logCommit(committed);
+        byte[] after = page.getPageData();
+
+        Database.getBufferPool().discardPage(pid);
+        new LogFile(logFile).recover();
+        assertArrayEquals(after, onDisk(pid));
+    }
+
+    private static Set<Integer> firstFields(HeapFile file) throws Exception {
+        Set<Integer> values = new HashSet<>();
+        DbFileIterator it = file.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    /**
+     * Transactions writing through the BufferPool log their updates: those
+     * of committed transactions survive a crash without their pages being
+     * flushed, and those of the others do not, even when their pages were.
+     */
+    @Test public void transactions() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction committed = new Transaction();
+        committed.start();
+        bp.insertTuple(committed.getId(), file.getId(), tuple(-1, 0));
+        committed.commit();
+
+        Transaction running = new Transaction();
+        running.start();
+        bp.insertTuple(running.getId(), file.getId(), tuple(-2, 0));
+        bp.flushAllPages();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        bp.insertTuple(aborted.getId(), file.getId(), tuple(-3, 0));
+        bp.flushAllPages();
+        aborted.abort();
+
+        Transaction reused = new Transaction();
+        reused.start();
+        bp.insertTuple(reused.getId(), file.getId(), tuple(-4, 0));
+        reused.commit();
+        Set<Integer> before = firstFields(file);
+        assertTrue(before.contains(-4));
+        assertFalse(before.contains(-3));
+
+        // crash, and restart
+        Database.reset();
+        file = Utility.openHeapFile(2, file.getFile());
+        Database.getLogFile().recover();
+        Set<Integer> after = firstFields(file);
+        assertTrue(after.contains(-1));
+        assertFalse(after.contains(-2));
+        assertFalse(after.contains(-3));
+        assertTrue(after.contains(-4));
+        before.remove(-2);
+        assertEquals(before, after);
+    }
+
+    private static List<Integer> keys(BTreeFile file) throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        DbFileIterator it = file.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return keys;
+    }
+
+    private static BTreeFile emptyBTreeFile(File f) {
+        BTreeFile file = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, UUID.randomUUID().toString());
+        return file;
+    }
+
+    /**
+     * Aborting a transaction removes its B+ tree inserts by key, keeping
+     * those other transactions committed meanwhile on the same leaf.
+     */
+    @Test public void rollbackSharedLeaf() throws Exception {
+        File f = File.createTempFile("shared", ".dat");
+        f.deleteOnExit();
+        BTreeFile file = emptyBTreeFile(f);
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction t0 = new Transaction();
+        t0.start();
+        bp.insertTuple(t0.getId(), file.getId(), tuple(10, 0));
+        t0.commit();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), file.getId(), tuple(5, 1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t2.getId(), file.getId(), tuple(3, 2));
+        t2.commit();
+
+        t1.abort();
+        assertEquals(Arrays.asList(3, 10), keys(file));
+    }
+
+    /**
+     * Recovery removes the B+ tree inserts of a transaction running at the
+     * crash by key, keeping those other transactions committed after them
+     * on the same leaf.
+     */
+    @Test public void recoverSharedLeaf() throws Exception {
+        File f = File.createTempFile("shared", ".dat");
+        f.deleteOnExit();
+        BTreeFile file = emptyBTreeFile(f);
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction t0 = new Transaction();
+        t0.start();
+        bp.insertTuple(t0.getId(), file.getId(), tuple(10, 0));
+        t0.commit();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), file.getId(), tuple(5, 1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t2.getId(), file.getId(), tuple(3, 2));
+        t2.commit();
+        bp.flushAllPages();
+
+        // crash, and restart
+        Database.reset();
+        file = emptyBTreeFile(f);
+        Database.getLogFile().recover();
+        assertEquals(Arrays.asList(3, 10), keys(file));
+
+        // recovering again changes nothing
+        Database.getLogFile().recover();
+        assertEquals(Arrays.asList(3, 10), keys(file));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PhysiologicalLogTest.class);
+    }
+}
@@ -0,0 +1,276 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 3000;
+	private static final int MAX_VALUE = 1000;
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private SecondaryIndex index;
+
+	/**
+	 * Create a table and an index on its second column.
+	 */
+	@Before public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, hf, 1, f);
+		Database.getCatalog().addIndex(index);
+	}
+
+	@After public void tearDown() {
+		Database.reset();
+	}
+
+	private List<List<Integer>> lookup(Op op, int value) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = index.lookup(tid, new IndexPredicate(op, new IntField(value)));
+		it.open();
+		while(it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private List<List<Integer>> scan(Op op, int value) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		Predicate p = new Predicate(1, op, new IntField(value));
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(p.filter(t)) {
+				result.add(SystemTestUtil.tupleToList(t));
+			}
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Lookups through the index return the same tuples as filtering the table,
+	 * in the order of the indexed column.
+	 */
+	private void assertSameAsScan(Op op, int value) throws Exception {
+		List<List<Integer>> found = lookup(op, value);
+		for(int i = 1; i < found.size(); i++) {
+			assertTrue(found.get(i - 1).get(1) <= found.get(i).get(1));
+		}
+		Comparator<List<Integer>> byValues = Comparator.comparing((List<Integer> l) -> l.get(0))
+				.thenComparing(l -> l.get(1));
+		List<List<Integer>> expected = scan(op, value);
+		expected.sort(byValues);
+		found.sort(byValues);
+		assertEquals(expected, found);
+	}
+
+	@Test public void lookup() throws Exception {
+		BTreeChecker.checkRep(index, tid, new HashMap<>(), true);
+		int key = tuples.get(0).get(1);
+		assertFalse(lookup(Op.EQUALS, key).isEmpty());
+		assertSameAsScan(Op.EQUALS, key);
+		assertSameAsScan(Op.LESS_THAN, 100);
+		assertSameAsScan(Op.GREATER_THAN_OR_EQ, 900);
+	}
+
+	/**
+	 * Tuples inserted and deleted through the BufferPool are added to and
+	 * removed from the index.
+	 */
+	@Test public void maintainedByBufferPool() throws Exception {
+		for(int i = 0; i < 500; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(MAX_VALUE + i % 10));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		assertEquals(50, lookup(Op.EQUALS, MAX_VALUE + 3).size());
+
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		List<Tuple> victims = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 2 == 0) {
+				victims.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		assertTrue(lookup(Op.EQUALS, MAX_VALUE + 2).isEmpty());
+		assertEquals(50, lookup(Op.EQUALS, MAX_VALUE + 3).size());
+		assertSameAsScan(Op.LESS_THAN, 500);
+		BTreeChecker.checkRep(index, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * The index follows the tuples moved by a vacuum of the table.
+	 */
+	@Test public void vacuum() throws Exception {
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		List<Tuple> all = new ArrayList<>();
+		while(it.hasNext()) {
+			all.add(it.next());
+		}
+		it.close();
+		for(int i = 0; i < all.size(); i++) {
+			if(i % 5 != 0) {
+				Database.getBufferPool().deleteTuple(tid, all.get(i));
+			}
+		}
+		int pages = hf.numPages();
+		while(hf.vacuum(tid, Integer.MAX_VALUE) > 0) {
+		}
+		assertTrue(hf.numPages() < pages);
+		assertSameAsScan(Op.GREATER_THAN, 0);
+		assertEquals(all.size() / 5 + (all.size() % 5 == 0 ? 0 : 1), lookup(Op.GREATER_THAN_OR_EQ, 0).size());
+	}
+
+	/**
+	 * The planner reads the table through the index for an equality filter on
+	 * the indexed column, and with a SeqScan otherwise.
+	 */
+	@Test public void physicalPlan() throws Exception {
+		String name = Database.getCatalog().getTableName(hf.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, "17");
+		lp.addProjectField("t.c0", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(findScan(plan) instanceof IndexScan);
+		List<List<Integer>> found = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(plan.next()));
+		}
+		plan.close();
+		assertEquals(scan(Op.EQUALS, 17).size(), found.size());
+
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.GREATER_THAN, "17");
+		lp.addProjectField("t.c0", null);
+		assertFalse(findScan(lp.physicalPlan(tid, stats, false)) instanceof IndexScan);
+
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "17");
+		lp.addProjectField("t.c0", null);
+		assertFalse(findScan(lp.physicalPlan(tid, stats, false)) instanceof IndexScan);
+	}
+
+	/**
+	 * An index including the other column of the table covers queries on both
+	 * columns, which are answered from its entries without reading the table.
+	 */
+	@Test public void indexOnlyScan() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex covering = SecondaryIndex.create(tid, hf, 1, new int[]{0}, f);
+		Database.getCatalog().addIndex(covering);
+		BTreeChecker.checkRep(covering, tid, new HashMap<>(), true);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.LESS_THAN, "100");
+		lp.addProjectField("t.c1", null);
+		lp.addProjectField("t.c0", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		IndexOnlyScan scan = (IndexOnlyScan) findScan(plan);
+		assertSame(covering, scan.getIndex());
+		assertEquals(Op.LESS_THAN, scan.getIndexPredicate().getOp());
+
+		Comparator<List<Integer>> byValues = Comparator.comparing((List<Integer> l) -> l.get(0))
+				.thenComparing(l -> l.get(1));
+		List<List<Integer>> expected = scan(Op.LESS_THAN, 100);
+		expected.sort(byValues);
+
+		// empty the table behind the back of the index: the scan must not read it
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		List<Tuple> all = new ArrayList<>();
+		while(it.hasNext()) {
+			all.add(it.next());
+		}
+		it.close();
+		for(Tuple t : all) {
+			hf.deleteTuple(tid, t);
+		}
+		assertTrue(scan(Op.LESS_THAN, 100).isEmpty());
+
+		List<List<Integer>> found = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext()) {
+			List<Integer> row = SystemTestUtil.tupleToList(plan.next());
+			found.add(Arrays.asList(row.get(1), row.get(0)));
+		}
+		plan.close();
+		found.sort(byValues);
+		assertEquals(expected, found);
+
+		// without a filter on the key, all the entries are read
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "17");
+		lp.addProjectField("t.c1", null);
+		scan = (IndexOnlyScan) findScan(lp.physicalPlan(tid, stats, false));
+		assertNull(scan.getIndexPredicate());
+
+		scan.open();
+		assertTrue(scan.hasNext());
+		assertTrue(scan.next().getRecordId().getPageId() instanceof HeapPageId);
+		scan.close();
+	}
+
+	private static OpIterator findScan(OpIterator plan) {
+		while(plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
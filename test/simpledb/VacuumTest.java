@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class VacuumTest extends SimpleDbTestBase {
+
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hf;
+    private TransactionId tid;
+    private List<List<Integer>> tuples;
+
+    /**
+     * Create a table of four full pages.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 4 * TUPLES_PER_PAGE, null, tuples);
+        tid = new TransactionId();
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * Delete every tuple whose position in the file is not a multiple of
+     * keepEvery, and return the values of the tuples kept.
+     */
+    private List<List<Integer>> deleteMost(int keepEvery) throws Exception {
+        List<Tuple> all = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            all.add(it.next());
+        }
+        it.close();
+        List<List<Integer>> kept = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i % keepEvery == 0) {
+                kept.add(SystemTestUtil.tupleToList(all.get(i)));
+            } else {
+                Database.getBufferPool().deleteTuple(tid, all.get(i));
+            }
+        }
+        return kept;
+    }
+
+    private List<List<Integer>> scan() throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return result;
+    }
+
+    private static Comparator<List<Integer>> byValues() {
+        return Comparator.comparing((List<Integer> l) -> l.get(0)).thenComparing(l -> l.get(1));
+    }
+
+    /**
+     * Vacuuming a sparse file packs its tuples into the first page and
+     * truncates the others, keeping every tuple.
+     */
+    @Test public void compact() throws Exception {
+        List<List<Integer>> kept = deleteMost(10);
+        while (hf.vacuum(tid, Integer.MAX_VALUE) > 0) {
+        }
+        assertEquals(1, hf.numPages());
+        List<List<Integer>> after = scan();
+        kept.sort(byValues());
+        after.sort(byValues());
+        assertEquals(kept, after);
+    }
+
+    /**
+     * The pages cut off by a vacuum do not come back from the double-write
+     * buffer when the file is reopened.
+     */
+    @Test public void reopen() throws Exception {
+        List<List<Integer>> kept = deleteMost(10);
+        Database.getBufferPool().flushAllPages();
+        while (hf.vacuum(tid, Integer.MAX_VALUE) > 0) {
+        }
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, hf.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf = Utility.openHeapFile(2, hf.getFile());
+        assertEquals(1, hf.numPages());
+        List<List<Integer>> after = scan();
+        kept.sort(byValues());
+        after.sort(byValues());
+        assertEquals(kept, after);
+    }
+
+    /**
+     * Each call moves at most the given number of tuples, and listeners see
+     * every move.
+     */
+    @Test public void incremental() throws Exception {
+        deleteMost(4);
+        Map<RecordId, RecordId> moves = new HashMap<>();
+        hf.addTupleMoveListener((tid, oldRid, t) -> moves.put(oldRid, t.getRecordId()));
+
+        int calls = 0;
+        int moved;
+        while ((moved = hf.vacuum(tid, 50)) > 0) {
+            assertTrue(moved <= 50);
+            calls++;
+        }
+        assertTrue(calls > 1);
+        assertEquals(1, hf.numPages());
+        for (Map.Entry<RecordId, RecordId> e : moves.entrySet()) {
+            assertTrue(e.getKey().getPageId().getPageNumber() > 0);
+            assertEquals(0, e.getValue().getPageId().getPageNumber());
+        }
+        assertEquals(TUPLES_PER_PAGE, scan().size());
+    }
+
+    /**
+     * A scan that started before a vacuum sees every tuple once, although
+     * the vacuum moves the tuples of the pages the scan has not read yet
+     * into the page it has already read. The pages are cut off once the
+     * scan is done.
+     */
+    @Test public void concurrentScan() throws Exception {
+        List<List<Integer>> kept = deleteMost(10);
+        Transaction reader = new Transaction();
+        reader.start();
+        DbFileIterator it = hf.iterator(reader.getId());
+        it.open();
+        List<List<Integer>> seen = new ArrayList<>();
+        // the tuples left on the first page
+        while (seen.size() < (TUPLES_PER_PAGE + 9) / 10) {
+            assertTrue(it.hasNext());
+            seen.add(SystemTestUtil.tupleToList(it.next()));
+        }
+
+        Transaction vacuum = new Transaction();
+        vacuum.start();
+        assertTrue(hf.vacuum(vacuum.getId(), Integer.MAX_VALUE) > 0);
+        assertEquals(0, hf.vacuum(vacuum.getId(), Integer.MAX_VALUE));
+        vacuum.commit();
+        assertEquals(4, hf.numPages());
+
+        while (it.hasNext()) {
+            seen.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        reader.commit();
+        kept.sort(byValues());
+        seen.sort(byValues());
+        assertEquals(kept, seen);
+
+        assertEquals(0, hf.vacuum(tid, Integer.MAX_VALUE));
+        assertEquals(1, hf.numPages());
+        List<List<Integer>> after = scan();
+        after.sort(byValues());
+        assertEquals(kept, after);
+    }
+
+    /**
+     * A full file is left alone.
+     */
+    @Test public void nothingToDo() throws Exception {
+        assertEquals(0, hf.vacuum(tid, 100));
+        assertEquals(4, hf.numPages());
+        assertEquals(4 * TUPLES_PER_PAGE, scan().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VacuumTest.class);
+    }
+}
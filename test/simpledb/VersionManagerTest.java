@@ -0,0 +1,266 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.VersionManager;
+
+import static org.junit.Assert.*;
+
+public class VersionManagerTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 300;
+
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private List<Tuple> tuplesOf(TransactionId tid) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        it.close();
+        return result;
+    }
+
+    private List<List<Integer>> scan(TransactionId tid) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        for (Tuple t : tuplesOf(tid)) {
+            result.add(SystemTestUtil.tupleToList(t));
+        }
+        result.sort(byValues());
+        return result;
+    }
+
+    private List<List<Integer>> expected(List<List<Integer>> values) {
+        List<List<Integer>> result = new ArrayList<>(values);
+        result.sort(byValues());
+        return result;
+    }
+
+    private static Comparator<List<Integer>> byValues() {
+        return Comparator.comparing((List<Integer> l) -> l.get(0)).thenComparing(l -> l.get(1));
+    }
+
+    /**
+     * Returns the number of tuples on the pages of the file, whatever their
+     * versions.
+     */
+    private int physicalTuples() throws Exception {
+        TransactionId tid = new TransactionId();
+        int count = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /**
+     * A transaction sees its own writes, and the others only see them once it
+     * has committed, if they started after it committed.
+     */
+    @Test public void snapshotIsolation() throws Exception {
+        Transaction reader = begin();
+        Transaction writer = begin();
+        List<Tuple> all = tuplesOf(writer.getId());
+        List<List<Integer>> after = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            if (i < 10) {
+                Database.getBufferPool().deleteTuple(writer.getId(), all.get(i));
+            } else {
+                after.add(SystemTestUtil.tupleToList(all.get(i)));
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            Database.getBufferPool().insertTuple(writer.getId(), hf.getId(), tuple(-i, i));
+            after.add(Arrays.asList(-i, i));
+        }
+
+        assertEquals(expected(after), scan(writer.getId()));
+        assertEquals(expected(tuples), scan(reader.getId()));
+        assertEquals(expected(tuples), scan(new TransactionId()));
+
+        writer.commit();
+        assertEquals(expected(tuples), scan(reader.getId()));
+        assertEquals(expected(after), scan(new TransactionId()));
+        Transaction later = begin();
+        assertEquals(expected(after), scan(later.getId()));
+        later.commit();
+        reader.commit();
+    }
+
+    /**
+     * Deleted tuples stay on their pages until no running snapshot sees them.
+     */
+    @Test public void collectDeletedTuples() throws Exception {
+        Transaction reader = begin();
+        Transaction writer = begin();
+        List<Tuple> all = tuplesOf(writer.getId());
+        for (int i = 0; i < 50; i++) {
+            Database.getBufferPool().deleteTuple(writer.getId(), all.get(i));
+        }
+        writer.commit();
+        assertEquals(ROWS, physicalTuples());
+        assertEquals(ROWS, scan(reader.getId()).size());
+
+        reader.commit();
+        assertEquals(ROWS - 50, physicalTuples());
+        assertEquals(ROWS - 50, scan(new TransactionId()).size());
+        assertEquals(0, Database.getVersionManager().collectGarbage());
+
+        // the slots of the collected tuples are reused
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 50; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, i));
+        }
+        assertEquals(ROWS, scan(tid).size());
+        assertEquals(0, Database.getVersionManager().numVersions());
+    }
+
+    /**
+     * Aborting a transaction removes the tuples it inserted and restores those
+     * it deleted.
+     */
+    @Test public void abortUndoesWrites() throws Exception {
+        Transaction t = begin();
+        List<Tuple> all = tuplesOf(t.getId());
+        for (int i = 0; i < 20; i++) {
+            Database.getBufferPool().deleteTuple(t.getId(), all.get(i));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(i, -i));
+        }
+        assertEquals(ROWS + 20, physicalTuples());
+        t.abort();
+        assertEquals(ROWS, physicalTuples());
+        assertEquals(expected(tuples), scan(new TransactionId()));
+
+        Transaction next = begin();
+        assertEquals(expected(tuples), scan(next.getId()));
+        Database.getBufferPool().deleteTuple(next.getId(), all.get(0));
+        next.commit();
+        assertEquals(ROWS - 1, physicalTuples());
+    }
+
+    /**
+     * The second of two transactions deleting the same tuple is aborted, even
+     * after the first one has committed.
+     */
+    @Test public void writeWriteConflict() throws Exception {
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        Transaction t3 = begin();
+        Tuple t = tuplesOf(t1.getId()).get(0);
+        Database.getBufferPool().deleteTuple(t1.getId(), t);
+        try {
+            Database.getBufferPool().deleteTuple(t2.getId(), t);
+            fail("expected a conflict");
+        } catch (TransactionAbortedException e) {
+            t2.abort();
+        }
+        t1.commit();
+        try {
+            Database.getBufferPool().updateTuple(t3.getId(), t, tuple(1, 1));
+            fail("expected a conflict");
+        } catch (TransactionAbortedException e) {
+            t3.abort();
+        }
+        assertEquals(ROWS - 1, physicalTuples());
+    }
+
+    /**
+     * An update links the old version to the new one, and index lookups
+     * return the version in the snapshot of the transaction.
+     */
+    @Test public void updateChain() throws Exception {
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex index = SecondaryIndex.create(new TransactionId(), hf, 0, f);
+        Database.getCatalog().addIndex(index);
+        VersionManager versions = Database.getVersionManager();
+
+        Transaction reader = begin();
+        Transaction writer = begin();
+        Tuple old = tuplesOf(writer.getId()).get(0);
+        int key = ((IntField) old.getField(0)).getValue();
+        List<Integer> oldValues = SystemTestUtil.tupleToList(old);
+        Tuple updated = tuple(key, 123456);
+        Database.getBufferPool().updateTuple(writer.getId(), old, updated);
+        assertEquals(updated.getRecordId(), versions.getNextVersion(old.getRecordId()));
+        writer.commit();
+
+        List<List<Integer>> seen = lookup(index, reader.getId(), key);
+        assertTrue(seen.contains(oldValues));
+        assertFalse(seen.contains(SystemTestUtil.tupleToList(updated)));
+        seen = lookup(index, new TransactionId(), key);
+        assertEquals(Collections.frequency(tuples, oldValues) - 1, Collections.frequency(seen, oldValues));
+        assertTrue(seen.contains(SystemTestUtil.tupleToList(updated)));
+
+        reader.commit();
+        assertNull(versions.getNextVersion(old.getRecordId()));
+        assertEquals(lookup(index, new TransactionId(), key), seen);
+    }
+
+    private static List<List<Integer>> lookup(SecondaryIndex index, TransactionId tid, int key) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        DbFileIterator it = index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return result;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VersionManagerTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private static Predicate pred(int field, Predicate.Op op, int value) {
+        return new Predicate(field, op, new IntField(value));
+    }
+
+    /**
+     * Zones built from tuples rule out pages only when no tuple can match.
+     */
+    @Test public void mightMatch() {
+        ZoneMap zm = new ZoneMap(Utility.getTupleDesc(2));
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 10; i <= 20; i++) {
+            tuples.add(Utility.getHeapTuple(new int[]{i, 5}));
+        }
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.EQUALS, 100)));
+        zm.summarize(0, tuples.iterator());
+
+        assertEquals(new IntField(10), zm.getZone(0).getMin(0));
+        assertEquals(new IntField(20), zm.getZone(0).getMax(0));
+        assertEquals(11, zm.getZone(0).getNumTuples());
+
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.EQUALS, 15)));
+        assertFalse(zm.mightMatch(0, pred(0, Predicate.Op.EQUALS, 21)));
+        assertFalse(zm.mightMatch(0, pred(0, Predicate.Op.GREATER_THAN, 20)));
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.GREATER_THAN_OR_EQ, 20)));
+        assertFalse(zm.mightMatch(0, pred(0, Predicate.Op.LESS_THAN, 10)));
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.LESS_THAN_OR_EQ, 10)));
+        assertFalse(zm.mightMatch(0, pred(1, Predicate.Op.NOT_EQUALS, 5)));
+        assertTrue(zm.mightMatch(0, pred(1, Predicate.Op.NOT_EQUALS, 6)));
+
+        zm.tupleInserted(0, Utility.getHeapTuple(new int[]{30, 5}));
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.GREATER_THAN, 20)));
+    }
+
+    /**
+     * A scan that read a page before an insert does not replace the zone the
+     * insert widened.
+     */
+    @Test public void staleScan() {
+        ZoneMap zm = new ZoneMap(Utility.getTupleDesc(1));
+        List<Tuple> tuples = new ArrayList<>();
+        tuples.add(Utility.getHeapTuple(new int[]{1}));
+        zm.summarize(0, tuples.iterator());
+        zm.tupleInserted(0, Utility.getHeapTuple(new int[]{50}));
+        zm.summarizeIfAbsent(0, tuples.iterator());
+        assertTrue(zm.mightMatch(0, pred(0, Predicate.Op.EQUALS, 50)));
+        assertEquals(2, zm.getZone(0).getNumTuples());
+
+        zm.summarizeIfAbsent(1, tuples.iterator());
+        assertTrue(zm.isSummarized(1));
+    }
+
+    /**
+     * A page whose tuples were all deleted is never read again.
+     */
+    @Test public void emptyZone() {
+        ZoneMap zm = new ZoneMap(Utility.getTupleDesc(1));
+        List<Tuple> tuples = new ArrayList<>();
+        tuples.add(Utility.getHeapTuple(new int[]{1}));
+        zm.summarize(3, tuples.iterator());
+        zm.tupleDeleted(3);
+        assertFalse(zm.mightMatch(3, pred(0, Predicate.Op.EQUALS, 1)));
+    }
+
+    /**
+     * Scanning a HeapFile with a predicate summarizes its pages and returns
+     * every qualifying tuple.
+     */
+    @Test public void heapFileScan() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            List<Integer> row = new ArrayList<>();
+            row.add(i);
+            row.add(i % 7);
+            rows.add(row);
+        }
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, f);
+        assertTrue(hf.numPages() > 2);
+
+        TransactionId tid = new TransactionId();
+        Predicate p = pred(0, Predicate.Op.GREATER_THAN_OR_EQ, 1900);
+        for (int scan = 0; scan < 2; scan++) {
+            DbFileIterator it = hf.iterator(tid, p);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                if (p.filter(it.next())) {
+                    count++;
+                }
+            }
+            it.close();
+            assertEquals(100, count);
+        }
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertTrue(hf.getZoneMap().isSummarized(i));
+        }
+        assertFalse(hf.getZoneMap().mightMatch(0, p));
+        assertTrue(hf.getZoneMap().mightMatch(hf.numPages() - 1, p));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}